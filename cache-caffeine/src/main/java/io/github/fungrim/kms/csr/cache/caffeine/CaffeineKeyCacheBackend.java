@@ -0,0 +1,144 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.cache.caffeine;
+
+
+import com.github.benmanes.caffeine.cache.CacheLoader;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.google.common.cache.CacheStats;
+import io.github.fungrim.kms.csr.cache.KeyCacheBackend;
+import io.github.fungrim.kms.csr.cache.KeyCacheSpec;
+import io.github.fungrim.kms.csr.cache.KeyCacheStore;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A key cache backend on a Caffeine loading cache. Size and weight bounds use
+ * the W-TinyLFU policy of Caffeine, which admits new keys by their access
+ * frequency and so keeps the hot keys of skewed workloads cached better than
+ * least recently used eviction. E.g.:
+ * 
+ * <pre>
+ * CsrBuilderFactory factory = CsrBuilderFactory.builder(client)
+ *              .withKeyCacheMaximumSize(100_000)
+ *              .withKeyCacheBackend(new CaffeineKeyCacheBackend())
+ *              .build();
+ * </pre>
+ */
+public class CaffeineKeyCacheBackend implements KeyCacheBackend {
+
+    private final Executor executor;
+
+    public CaffeineKeyCacheBackend() {
+        this(null);
+    }
+
+    /**
+     * @param executor
+     *            Executor for cache maintenance, such as evictions and removal
+     *            notifications, if null it will default to the common fork join
+     *            pool
+     */
+    public CaffeineKeyCacheBackend(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public <K, V> KeyCacheStore<K, V> create(KeyCacheSpec<K, V> spec) {
+        Caffeine<K, V> builder = Caffeine.newBuilder().removalListener((K key, V value, RemovalCause cause) -> {
+            if (spec.getRemovalListener() != null && cause != RemovalCause.REPLACED) {
+                spec.getRemovalListener().accept(key, value);
+            }
+        });
+        if (executor != null) {
+            builder.executor(executor);
+        }
+        builder.expireAfterAccess(spec.getExpireAfterAccess().toMillis(), TimeUnit.MILLISECONDS).recordStats();
+        if (spec.getRefreshAfterWrite() != null) {
+            builder.refreshAfterWrite(spec.getRefreshAfterWrite().toMillis(), TimeUnit.MILLISECONDS);
+        }
+        if (spec.isSizeBounded()) {
+            builder.maximumSize(spec.getMaximumSize());
+        } else if (spec.isWeightBounded()) {
+            builder.maximumWeight(spec.getMaximumWeight())
+                    .weigher((K key, V value) -> spec.getWeigher().applyAsInt(key, value));
+        }
+        return new Store<>(builder.build(new CacheLoader<K, V>() {
+
+            @Override
+            public V load(K key) throws Exception {
+                return spec.getLoader().load(key);
+            }
+
+            @Override
+            public CompletableFuture<V> asyncReload(K key, V oldValue, Executor executor) {
+                return spec.getLoader().reload(key, oldValue);
+            }
+        }));
+    }
+
+    private static class Store<K, V> implements KeyCacheStore<K, V> {
+
+        private final LoadingCache<K, V> cache;
+
+        private Store(LoadingCache<K, V> cache) {
+            this.cache = cache;
+        }
+
+        @Override
+        public V get(K key) {
+            try {
+                return cache.get(key);
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        @Override
+        public V getIfPresent(K key) {
+            return cache.getIfPresent(key);
+        }
+
+        @Override
+        public void put(K key, V value) {
+            cache.put(key, value);
+        }
+
+        @Override
+        public void invalidate(K key) {
+            cache.invalidate(key);
+        }
+
+        @Override
+        public long size() {
+            return cache.estimatedSize();
+        }
+
+        @Override
+        public CacheStats stats() {
+            com.github.benmanes.caffeine.cache.stats.CacheStats stats = cache.stats();
+            return new CacheStats(stats.hitCount(), stats.missCount(), stats.loadSuccessCount(),
+                    stats.loadFailureCount(), stats.totalLoadTime(), stats.evictionCount());
+        }
+    }
+}
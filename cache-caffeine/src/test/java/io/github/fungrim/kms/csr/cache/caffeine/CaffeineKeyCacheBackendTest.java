@@ -0,0 +1,116 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.cache.caffeine;
+
+
+import com.google.cloud.kms.v1.CryptoKeyVersion.CryptoKeyVersionAlgorithm;
+import com.google.cloud.kms.v1.CryptoKeyVersion.CryptoKeyVersionState;
+import com.google.cloud.kms.v1.CryptoKeyVersionName;
+import io.github.fungrim.kms.csr.KeyFailure;
+import io.github.fungrim.kms.csr.KmsKeyCache;
+import io.github.fungrim.kms.csr.KmsKeyException;
+import io.github.fungrim.kms.csr.emulator.KmsEmulator;
+import io.github.fungrim.kms.csr.metrics.KmsCall;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class CaffeineKeyCacheBackendTest {
+
+    private final CryptoKeyVersionName keyName = CryptoKeyVersionName.of("project", "location", "ring", "key", "1");
+
+    // run evictions on the calling thread so the tests can check them directly
+    private final CaffeineKeyCacheBackend backend = new CaffeineKeyCacheBackend(Runnable::run);
+
+    private KmsEmulator kms;
+
+    @BeforeEach
+    void setup() {
+        kms = KmsEmulator.builder().build();
+        kms.createKey(keyName, CryptoKeyVersionAlgorithm.EC_SIGN_P256_SHA256);
+    }
+
+    @AfterEach
+    void teardown() {
+        kms.close();
+    }
+
+    @Test
+    void getLoadsOnce() {
+        KmsKeyCache cache = KmsKeyCache.builder(kms).withBackend(backend).build();
+        KmsKeyCache.Entry entry = cache.get(keyName);
+        Assertions.assertSame(entry, cache.get(keyName));
+        Assertions.assertSame(entry, cache.getAsync(keyName).join());
+        Assertions.assertEquals(1, kms.getCallCount(KmsCall.GET_KEY));
+        Assertions.assertEquals(1, kms.getCallCount(KmsCall.GET_PUBLIC_KEY));
+        Assertions.assertEquals(1, cache.size());
+        Assertions.assertEquals(2, cache.stats().hitCount());
+        Assertions.assertTrue(cache.stats().missCount() >= 1);
+    }
+
+    @Test
+    void rejectsDisabledKeys() {
+        kms.setState(keyName, CryptoKeyVersionState.DISABLED);
+        KmsKeyCache cache = KmsKeyCache.builder(kms).withBackend(backend).build();
+        KmsKeyException e = Assertions.assertThrows(KmsKeyException.class, () -> cache.get(keyName));
+        Assertions.assertEquals(KeyFailure.NOT_ENABLED, e.getFailure());
+    }
+
+    @Test
+    void boundsSize() {
+        KmsKeyCache cache = KmsKeyCache.builder(kms).withMaximumSize(10).withBackend(backend).build();
+        for (CryptoKeyVersionName name : createKeys("project", 50)) {
+            cache.get(name);
+            Assertions.assertTrue(cache.size() <= 10, "Size " + cache.size());
+        }
+        Assertions.assertTrue(cache.stats().evictionCount() >= 40);
+    }
+
+    @Test
+    void boundsWeight() {
+        KmsKeyCache cache = KmsKeyCache.builder(kms).withMaximumWeight(30, entry -> 3).withBackend(backend)
+                .build();
+        for (CryptoKeyVersionName name : createKeys("project", 50)) {
+            cache.get(name);
+            Assertions.assertTrue(cache.size() <= 10, "Size " + cache.size());
+        }
+    }
+
+    @Test
+    void limitsTenants() {
+        KmsKeyCache cache = KmsKeyCache.builder(kms).withTenantLimit(null, 5).withBackend(backend).build();
+        List<CryptoKeyVersionName> small = createKeys("small", 5);
+        small.forEach(cache::get);
+        createKeys("large", 50).forEach(cache::get);
+        Assertions.assertEquals(10, cache.size());
+        long loads = kms.getCallCount(KmsCall.GET_KEY);
+        small.forEach(cache::get);
+        Assertions.assertEquals(loads, kms.getCallCount(KmsCall.GET_KEY));
+    }
+
+    private List<CryptoKeyVersionName> createKeys(String project, int count) {
+        List<CryptoKeyVersionName> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            CryptoKeyVersionName name = CryptoKeyVersionName.of(project, "location", "ring", "key" + i, "1");
+            kms.createKey(name, CryptoKeyVersionAlgorithm.EC_SIGN_P256_SHA256);
+            result.add(name);
+        }
+        return result;
+    }
+}
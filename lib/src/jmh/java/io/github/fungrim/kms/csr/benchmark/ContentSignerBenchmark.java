@@ -0,0 +1,82 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.benchmark;
+
+
+import com.google.cloud.kms.v1.CryptoKeyVersion.CryptoKeyVersionAlgorithm;
+import com.google.cloud.kms.v1.CryptoKeyVersionName;
+import io.github.fungrim.kms.csr.emulator.KmsEmulator;
+import io.github.fungrim.kms.csr.signer.KmsContentSigner;
+import io.github.fungrim.kms.csr.util.JcaDigest;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks streaming content through the content signer and digesting it,
+ * without the KMS signature itself.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ContentSignerBenchmark {
+
+    @Param({"EC_SIGN_P256_SHA256", "EC_SIGN_P384_SHA384", "RSA_SIGN_PKCS1_2048_SHA256", "RSA_SIGN_PKCS1_3072_SHA256",
+            "RSA_SIGN_PKCS1_4096_SHA256", "RSA_SIGN_PKCS1_4096_SHA512", "RSA_SIGN_PSS_2048_SHA256",
+            "RSA_SIGN_PSS_3072_SHA256", "RSA_SIGN_PSS_4096_SHA256", "RSA_SIGN_PSS_4096_SHA512"})
+    public CryptoKeyVersionAlgorithm algorithm;
+
+    @Param({"512", "65536"})
+    public int contentSize;
+
+    private KmsEmulator client;
+    private CryptoKeyVersionName keyName;
+    private byte[] content;
+
+    @Setup
+    public void setup() {
+        keyName = CryptoKeyVersionName.of("project", "location", "ring", "key", "1");
+        client = KmsEmulator.builder().withLocalSigning(false).build();
+        client.createKey(keyName, algorithm);
+        content = new byte[contentSize];
+        new Random(42).nextBytes(content);
+    }
+
+    @Benchmark
+    public byte[] streamAndSign() throws IOException {
+        KmsContentSigner signer = new KmsContentSigner(client, keyName, algorithm);
+        OutputStream out = signer.getOutputStream();
+        for (int offset = 0; offset < content.length; offset += 256) {
+            out.write(content, offset, Math.min(256, content.length - offset));
+        }
+        out.close();
+        return signer.getSignature();
+    }
+
+    @Benchmark
+    public Object digestAndWrap() {
+        return JcaDigest.of(algorithm).digestAndWrap(content);
+    }
+}
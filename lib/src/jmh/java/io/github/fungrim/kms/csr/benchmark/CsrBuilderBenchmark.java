@@ -0,0 +1,90 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.benchmark;
+
+
+import com.google.cloud.kms.v1.CryptoKeyVersion.CryptoKeyVersionAlgorithm;
+import com.google.cloud.kms.v1.CryptoKeyVersionName;
+import io.github.fungrim.kms.csr.CsrBuilder;
+import io.github.fungrim.kms.csr.CsrBuilderFactory;
+import io.github.fungrim.kms.csr.emulator.KmsEmulator;
+import io.github.fungrim.kms.csr.util.Pem;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import javax.security.auth.x500.X500Principal;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks building a CSR end to end with a warm key cache, with and without
+ * local signing, and encoding a CSR as PEM. The PEM encoder is called directly,
+ * as a result caches its encodings.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CsrBuilderBenchmark {
+
+    @Param({"EC_SIGN_P256_SHA256", "EC_SIGN_P384_SHA384", "RSA_SIGN_PKCS1_2048_SHA256", "RSA_SIGN_PKCS1_3072_SHA256",
+            "RSA_SIGN_PKCS1_4096_SHA256", "RSA_SIGN_PKCS1_4096_SHA512", "RSA_SIGN_PSS_2048_SHA256",
+            "RSA_SIGN_PSS_3072_SHA256", "RSA_SIGN_PSS_4096_SHA256", "RSA_SIGN_PSS_4096_SHA512"})
+    public CryptoKeyVersionAlgorithm algorithm;
+
+    private final X500Principal principal = new X500Principal("CN=io.github.fungrim, O=Fungrim Consulting AB, C=SE");
+
+    private CsrBuilderFactory signingFactory;
+    private CsrBuilderFactory fixedFactory;
+    private CryptoKeyVersionName keyName;
+    private byte[] der;
+
+    @Setup
+    public void setup() throws IOException {
+        keyName = CryptoKeyVersionName.of("project", "location", "ring", "key", "1");
+        KmsEmulator signingClient = KmsEmulator.builder().withLocalSigning(true).build();
+        signingClient.createKey(keyName, algorithm);
+        signingFactory = CsrBuilderFactory.builder(signingClient).build();
+        KmsEmulator fixedClient = KmsEmulator.builder().withLocalSigning(false).build();
+        fixedClient.createKey(keyName, algorithm);
+        fixedFactory = CsrBuilderFactory.builder(fixedClient).build();
+        der = signingFactory.builder().forPrincipal(principal).withKey(keyName).build().asDer();
+    }
+
+    @Benchmark
+    public CsrBuilder.Result build() {
+        return signingFactory.builder().forPrincipal(principal).withKey(keyName).build();
+    }
+
+    @Benchmark
+    public CsrBuilder.Result buildWithoutSigning() {
+        return fixedFactory.builder().forPrincipal(principal).withKey(keyName).build();
+    }
+
+    @Benchmark
+    public CsrBuilder.Result buildAsyncWithoutSigning() {
+        return fixedFactory.builder().forPrincipal(principal).withKey(keyName).buildAsync().join();
+    }
+
+    @Benchmark
+    public byte[] encodePem() {
+        return Pem.encode("CERTIFICATE REQUEST", der);
+    }
+}
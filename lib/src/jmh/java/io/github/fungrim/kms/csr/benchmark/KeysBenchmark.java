@@ -0,0 +1,69 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.benchmark;
+
+
+import com.google.cloud.kms.v1.CryptoKeyVersion.CryptoKeyVersionAlgorithm;
+import com.google.cloud.kms.v1.CryptoKeyVersionName;
+import io.github.fungrim.kms.csr.emulator.KmsEmulator;
+import io.github.fungrim.kms.csr.util.Algorithms;
+import io.github.fungrim.kms.csr.util.Keys;
+import java.security.PublicKey;
+import java.util.concurrent.TimeUnit;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks the key and algorithm conversions made per key load and per
+ * signature.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class KeysBenchmark {
+
+    @Param({"EC_SIGN_P256_SHA256", "EC_SIGN_P384_SHA384", "RSA_SIGN_PKCS1_2048_SHA256", "RSA_SIGN_PKCS1_3072_SHA256",
+            "RSA_SIGN_PKCS1_4096_SHA256", "RSA_SIGN_PKCS1_4096_SHA512", "RSA_SIGN_PSS_2048_SHA256",
+            "RSA_SIGN_PSS_3072_SHA256", "RSA_SIGN_PSS_4096_SHA256", "RSA_SIGN_PSS_4096_SHA512"})
+    public CryptoKeyVersionAlgorithm algorithm;
+
+    private byte[] pem;
+
+    @Setup
+    public void setup() {
+        CryptoKeyVersionName keyName = CryptoKeyVersionName.of("project", "location", "ring", "key", "1");
+        KmsEmulator client = KmsEmulator.builder().withLocalSigning(false).build();
+        client.createKey(keyName, algorithm);
+        pem = client.getPublicKeyPem(keyName);
+    }
+
+    @Benchmark
+    public PublicKey toPublicKey() {
+        return Keys.toPublicKey(algorithm, pem);
+    }
+
+    @Benchmark
+    public AlgorithmIdentifier toIdentifier() {
+        return Algorithms.toIdentifier(algorithm);
+    }
+}
@@ -0,0 +1,369 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr;
+
+
+import com.google.cloud.kms.v1.CryptoKeyVersionName;
+import com.google.common.base.Preconditions;
+import io.github.fungrim.kms.csr.client.KmsServiceClient;
+import io.github.fungrim.kms.csr.metrics.KmsMetrics;
+import io.github.fungrim.kms.csr.util.CompletableFutures;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * A batch of CSR:s to generate in one go. Each distinct key in the batch is
+ * resolved through the key cache once, after which the KMS signing calls are
+ * made asynchronously with a bounded number of calls in flight. E.g.:
+ * 
+ * <pre>
+ * CsrBuilderFactory factory = // create builder factory
+ * CsrBatch.Outcome outcome = factory.batch()
+ *              .withConcurrency(32)
+ *              .add(principal1, keyName1)
+ *              .add(principal2, keyName2)
+ *              .execute();
+ * </pre>
+ * 
+ * A failure for one item does not fail the batch, instead each item carries
+ * either a result or an error.
+ */
+public class CsrBatch {
+
+    /**
+     * A single CSR to generate, a principal and a crypto key version.
+     */
+    public static class Spec {
+
+        private final X500Principal principal;
+        private final CryptoKeyVersionName keyName;
+
+        private Spec(X500Principal principal, CryptoKeyVersionName keyName) {
+            this.principal = principal;
+            this.keyName = keyName;
+        }
+
+        /**
+         * @param principal
+         *            The principal to use, must not be null
+         * @param keyName
+         *            The key to use, must not be null
+         * @return A new spec, never null
+         */
+        public static Spec of(X500Principal principal, CryptoKeyVersionName keyName) {
+            return new Spec(Preconditions.checkNotNull(principal), Preconditions.checkNotNull(keyName));
+        }
+
+        /**
+         * @return The principal, never null
+         */
+        public X500Principal getPrincipal() {
+            return principal;
+        }
+
+        /**
+         * @return The crypto key version name, never null
+         */
+        public CryptoKeyVersionName getKeyName() {
+            return keyName;
+        }
+    }
+
+    /**
+     * The outcome of a single spec in the batch, either a CSR result or an error.
+     */
+    public static class Item {
+
+        private final Spec spec;
+        private final CsrBuilder.Result result;
+        private final Throwable error;
+
+        private Item(Spec spec, CsrBuilder.Result result, Throwable error) {
+            this.spec = spec;
+            this.result = result;
+            this.error = error;
+        }
+
+        /**
+         * @return The spec this item was generated for, never null
+         */
+        public Spec getSpec() {
+            return spec;
+        }
+
+        /**
+         * @return True if the CSR was generated, false if it failed
+         */
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+        /**
+         * @return The CSR result, or null if this item failed
+         */
+        public CsrBuilder.Result getResult() {
+            return result;
+        }
+
+        /**
+         * @return The error, or null if this item succeeded
+         */
+        public Throwable getError() {
+            return error;
+        }
+    }
+
+    /**
+     * The outcome of an executed batch.
+     */
+    public static class Outcome {
+
+        private final List<Item> items;
+        private final int distinctKeys;
+        private final Duration elapsed;
+
+        private Outcome(List<Item> items, int distinctKeys, Duration elapsed) {
+            this.items = items;
+            this.distinctKeys = distinctKeys;
+            this.elapsed = elapsed;
+        }
+
+        /**
+         * @return All items, in the order they were added to the batch, never null
+         */
+        public List<Item> getItems() {
+            return items;
+        }
+
+        /**
+         * @return The number of successful items
+         */
+        public int getSucceeded() {
+            return (int) items.stream().filter(Item::isSuccess).count();
+        }
+
+        /**
+         * @return The number of failed items
+         */
+        public int getFailed() {
+            return items.size() - getSucceeded();
+        }
+
+        /**
+         * @return The number of distinct keys resolved for the batch
+         */
+        public int getDistinctKeys() {
+            return distinctKeys;
+        }
+
+        /**
+         * @return The wall clock time the batch took, never null
+         */
+        public Duration getElapsed() {
+            return elapsed;
+        }
+
+        /**
+         * @return The batch throughput in items per second
+         */
+        public double getThroughput() {
+            long nanos = elapsed.toNanos();
+            return nanos == 0 ? 0 : items.size() * 1_000_000_000d / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d items (%d failed) over %d keys in %d ms, %.1f items/s", items.size(),
+                    getFailed(), distinctKeys, elapsed.toMillis(), getThroughput());
+        }
+    }
+
+    private final List<Spec> specs = new ArrayList<>();
+    private final KmsServiceClient client;
+    private final KmsKeyCache cache;
+    private final KmsMetrics metrics;
+    private final Executor executor;
+
+    private int concurrency = 16;
+
+    /**
+     * @param client
+     *            KMS client, must not be null
+     * @param cache
+     *            Key cache, must not be null
+     * @param metrics
+     *            Metrics to report builds to, must not be null
+     * @param executor
+     *            Executor to sign on, if null signing is asynchronous
+     */
+    CsrBatch(KmsServiceClient client, KmsKeyCache cache, KmsMetrics metrics, Executor executor) {
+        this.client = Preconditions.checkNotNull(client);
+        this.cache = Preconditions.checkNotNull(cache);
+        this.metrics = Preconditions.checkNotNull(metrics);
+        this.executor = executor;
+    }
+
+    /**
+     * Set the maximum number of KMS signing calls in flight. Defaults to 16.
+     * 
+     * @param concurrency
+     *            Max number of concurrent calls, must be positive
+     * @return This batch, never null
+     */
+    public CsrBatch withConcurrency(int concurrency) {
+        Preconditions.checkArgument(concurrency > 0, "Concurrency must be positive");
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    /**
+     * Add a CSR to the batch.
+     * 
+     * @param principal
+     *            The principal to use, must not be null
+     * @param keyName
+     *            The key to use, must not be null
+     * @return This batch, never null
+     */
+    public CsrBatch add(X500Principal principal, CryptoKeyVersionName keyName) {
+        return add(Spec.of(principal, keyName));
+    }
+
+    /**
+     * Add a CSR to the batch.
+     * 
+     * @param spec
+     *            The CSR spec, must not be null
+     * @return This batch, never null
+     */
+    public CsrBatch add(Spec spec) {
+        this.specs.add(Preconditions.checkNotNull(spec));
+        return this;
+    }
+
+    /**
+     * Add CSR:s to the batch.
+     * 
+     * @param specs
+     *            The CSR specs, must not be null
+     * @return This batch, never null
+     */
+    public CsrBatch addAll(Collection<Spec> specs) {
+        specs.forEach(this::add);
+        return this;
+    }
+
+    /**
+     * Execute the batch and wait for all items to complete.
+     * 
+     * @return The batch outcome, never null
+     */
+    public Outcome execute() {
+        return CompletableFutures.join(executeAsync());
+    }
+
+    /**
+     * Execute the batch asynchronously.
+     * 
+     * @return A future for the batch outcome, never null
+     */
+    public CompletableFuture<Outcome> executeAsync() {
+        return new Execution(new ArrayList<>(specs), concurrency).start();
+    }
+
+    private class Execution {
+
+        private final Map<CryptoKeyVersionName, CompletableFuture<KmsKeyCache.Entry>> keys = new HashMap<>();
+        private final CompletableFuture<Outcome> outcome = new CompletableFuture<>();
+        private final AtomicInteger next = new AtomicInteger();
+        private final AtomicInteger remaining;
+        private final List<Spec> specs;
+        private final Item[] items;
+        private final int concurrency;
+
+        private long startNanos;
+
+        private Execution(List<Spec> specs, int concurrency) {
+            this.specs = specs;
+            this.concurrency = concurrency;
+            this.items = new Item[specs.size()];
+            this.remaining = new AtomicInteger(specs.size());
+        }
+
+        private CompletableFuture<Outcome> start() {
+            startNanos = System.nanoTime();
+            if (specs.isEmpty()) {
+                complete();
+                return outcome;
+            }
+            for (Spec spec : specs) {
+                keys.computeIfAbsent(spec.getKeyName(), cache::getAsync);
+            }
+            for (int i = 0; i < Math.min(concurrency, specs.size()); i++) {
+                drive();
+            }
+            return outcome;
+        }
+
+        /*
+         * Start items until one is in flight asynchronously. This loops rather than
+         * recurses, so that a client that completes in the calling thread doesn't
+         * exhaust the stack.
+         */
+        private void drive() {
+            while (true) {
+                int index = next.getAndIncrement();
+                if (index >= specs.size()) {
+                    return;
+                }
+                Spec spec = specs.get(index);
+                CompletableFuture<CsrBuilder.Result> future = new CsrBuilder(client, cache, metrics, executor)
+                        .forPrincipal(spec.getPrincipal()).withKey(spec.getKeyName())
+                        .buildAsync(keys.get(spec.getKeyName()));
+                if (!future.isDone()) {
+                    future.whenComplete((result, error) -> {
+                        record(index, result, error);
+                        drive();
+                    });
+                    return;
+                }
+                future.whenComplete((result, error) -> record(index, result, error));
+            }
+        }
+
+        private void record(int index, CsrBuilder.Result result, Throwable error) {
+            items[index] = new Item(specs.get(index), result, error == null ? null : CompletableFutures.unwrap(error));
+            if (remaining.decrementAndGet() == 0) {
+                complete();
+            }
+        }
+
+        private void complete() {
+            Duration elapsed = Duration.ofNanos(System.nanoTime() - startNanos);
+            outcome.complete(new Outcome(Collections.unmodifiableList(Arrays.asList(items)), keys.size(), elapsed));
+        }
+    }
+}
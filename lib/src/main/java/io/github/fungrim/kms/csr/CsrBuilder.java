@@ -16,17 +16,32 @@
 package io.github.fungrim.kms.csr;
 
 
+import com.google.cloud.kms.v1.CryptoKeyName;
 import com.google.cloud.kms.v1.CryptoKeyVersionName;
 import com.google.common.base.Preconditions;
 import io.github.fungrim.kms.csr.client.KmsServiceClient;
+import io.github.fungrim.kms.csr.metrics.KmsMetrics;
 import io.github.fungrim.kms.csr.signer.KmsContentSigner;
+import io.github.fungrim.kms.csr.signer.KmsKeyPool;
+import io.github.fungrim.kms.csr.util.CompletableFutures;
+import io.github.fungrim.kms.csr.util.Pem;
 import java.io.IOException;
-import java.io.StringWriter;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import javax.security.auth.x500.X500Principal;
-import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.DERBitString;
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.asn1.pkcs.CertificationRequest;
+import org.bouncycastle.asn1.pkcs.CertificationRequestInfo;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
 import org.bouncycastle.pkcs.PKCS10CertificationRequest;
 import org.bouncycastle.pkcs.jcajce.JcaPKCS10CertificationRequestBuilder;
-import org.bouncycastle.util.io.pem.PemObject;
 
 /**
  * This CSR builder operates on a key cache and a KMS client to generate CSR:s
@@ -40,19 +55,37 @@ import org.bouncycastle.util.io.pem.PemObject;
  *              .build()
  *              .asPem();
  * </pre>
+ * 
+ * The CSR can also be built asynchronously via {@link #buildAsync()}, in which
+ * case no thread is blocked while waiting for KMS. If the factory is given an
+ * executor the signing call is instead made blocking on the executor, which
+ * suits virtual threads.
  */
 public class CsrBuilder {
 
     /**
-     * The result of a built CSR. Currently it can only be retrieved as a PEM in
-     * string format.
+     * The result of a built CSR. It can be retrieved as DER or PEM, as bytes, a
+     * buffer or a string, or written to a stream or channel. The encodings are
+     * made once and cached.
      */
     public static class Result {
 
         private final PKCS10CertificationRequest csr;
+        private final CryptoKeyVersionName keyName;
+        private volatile byte[] der;
+        private volatile byte[] pem;
 
-        private Result(PKCS10CertificationRequest csr) {
+        private Result(PKCS10CertificationRequest csr, CryptoKeyVersionName keyName) {
             this.csr = csr;
+            this.keyName = keyName;
+        }
+
+        /**
+         * @return The key version that signed the CSR, and whose public key it
+         *         holds, never null
+         */
+        public CryptoKeyVersionName getKeyName() {
+            return keyName;
         }
 
         /**
@@ -61,20 +94,91 @@ public class CsrBuilder {
          *             If failing to write the PEM
          */
         public String asPem() throws IOException {
-            PemObject pemObject = new PemObject("CERTIFICATE REQUEST", csr.getEncoded());
-            StringWriter csrString = new StringWriter();
-            JcaPEMWriter pemWriter = new JcaPEMWriter(csrString);
-            pemWriter.writeObject(pemObject);
-            pemWriter.close();
-            csrString.close();
-            return csrString.toString();
+            return new String(pem(), StandardCharsets.US_ASCII);
+        }
+
+        /**
+         * @return A copy of the CSR as PEM in US ASCII bytes, never null
+         * @throws IOException
+         *             If failing to encode the CSR
+         */
+        public byte[] asPemBytes() throws IOException {
+            return pem().clone();
+        }
+
+        /**
+         * @return A copy of the DER encoded CSR, never null
+         * @throws IOException
+         *             If failing to encode the CSR
+         */
+        public byte[] asDer() throws IOException {
+            return der().clone();
+        }
+
+        /**
+         * @return A read only buffer of the DER encoded CSR, without copying,
+         *         never null
+         * @throws IOException
+         *             If failing to encode the CSR
+         */
+        public ByteBuffer asByteBuffer() throws IOException {
+            return ByteBuffer.wrap(der()).asReadOnlyBuffer();
+        }
+
+        /**
+         * Write the DER encoded CSR to a stream. The stream is not closed.
+         * 
+         * @param out
+         *            Stream to write to, must not be null
+         * @throws IOException
+         *             If failing to encode or write the CSR
+         */
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(der());
+        }
+
+        /**
+         * Write the DER encoded CSR to a channel. The channel is not closed.
+         * 
+         * @param channel
+         *            Channel to write to, must not be null
+         * @throws IOException
+         *             If failing to encode or write the CSR
+         */
+        public void writeTo(WritableByteChannel channel) throws IOException {
+            ByteBuffer buffer = asByteBuffer();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        private byte[] der() throws IOException {
+            byte[] result = der;
+            if (result == null) {
+                result = csr.getEncoded();
+                der = result;
+            }
+            return result;
+        }
+
+        private byte[] pem() throws IOException {
+            byte[] result = pem;
+            if (result == null) {
+                result = Pem.encode("CERTIFICATE REQUEST", der());
+                pem = result;
+            }
+            return result;
         }
     }
 
     private final KmsServiceClient client;
     private final KmsKeyCache cache;
+    private final KmsMetrics metrics;
+    private final Executor executor;
 
     private CryptoKeyVersionName keyName;
+    private CryptoKeyName cryptoKey;
+    private KmsKeyPool keyPool;
     private X500Principal principal;
 
     /**
@@ -84,8 +188,37 @@ public class CsrBuilder {
      *            Key cache, must not be null
      */
     CsrBuilder(KmsServiceClient client, KmsKeyCache cache) {
+        this(client, cache, KmsMetrics.NOOP);
+    }
+
+    /**
+     * @param client
+     *            KMS client, must not be null
+     * @param cache
+     *            Key cache, must not be null
+     * @param metrics
+     *            Metrics to report builds to, must not be null
+     */
+    CsrBuilder(KmsServiceClient client, KmsKeyCache cache, KmsMetrics metrics) {
+        this(client, cache, metrics, null);
+    }
+
+    /**
+     * @param client
+     *            KMS client, must not be null
+     * @param cache
+     *            Key cache, must not be null
+     * @param metrics
+     *            Metrics to report builds to, must not be null
+     * @param executor
+     *            Executor to sign on in asynchronous builds, if null signing is
+     *            asynchronous
+     */
+    CsrBuilder(KmsServiceClient client, KmsKeyCache cache, KmsMetrics metrics, Executor executor) {
         this.client = Preconditions.checkNotNull(client);
         this.cache = Preconditions.checkNotNull(cache);
+        this.metrics = Preconditions.checkNotNull(metrics);
+        this.executor = executor;
     }
 
     /**
@@ -97,6 +230,40 @@ public class CsrBuilder {
      */
     public CsrBuilder withKey(CryptoKeyVersionName keyName) {
         this.keyName = Preconditions.checkNotNull(keyName);
+        this.cryptoKey = null;
+        this.keyPool = null;
+        return this;
+    }
+
+    /**
+     * Set the crypto key to use. The CSR is signed by, and holds the public key
+     * of, the latest enabled version of the key, as resolved by the key cache.
+     * See {@link Result#getKeyName()}.
+     * 
+     * @param cryptoKey
+     *            The key to use, must not be null
+     * @return This builder, never null
+     */
+    public CsrBuilder withKey(CryptoKeyName cryptoKey) {
+        this.cryptoKey = Preconditions.checkNotNull(cryptoKey);
+        this.keyName = null;
+        this.keyPool = null;
+        return this;
+    }
+
+    /**
+     * Set a pool of key versions to use instead of a single key version. The CSR
+     * is signed by, and holds the public key of, the key version with the fewest
+     * signatures in flight. See {@link Result#getKeyName()}.
+     * 
+     * @param keyPool
+     *            The key pool to use, must not be null
+     * @return This builder, never null
+     */
+    public CsrBuilder withKeyPool(KmsKeyPool keyPool) {
+        this.keyPool = Preconditions.checkNotNull(keyPool);
+        this.keyName = null;
+        this.cryptoKey = null;
         return this;
     }
 
@@ -119,10 +286,97 @@ public class CsrBuilder {
      * @return The CSR result, never null
      */
     public Result build() {
-        Preconditions.checkNotNull(this.keyName, "Missing crypto key version name");
+        checkKey();
         Preconditions.checkNotNull(this.principal, "Missing X500 principal");
-        KmsKeyCache.Entry entry = cache.get(this.keyName);
-        return new Result(new JcaPKCS10CertificationRequestBuilder(this.principal, entry.getPublicKey())
-                .build(new KmsContentSigner(client, keyName, entry.getAlgorithm())));
+        long start = System.nanoTime();
+        boolean success = false;
+        KmsKeyPool.Lease lease = keyPool == null ? null : keyPool.lease();
+        try {
+            KmsKeyCache.Entry entry;
+            if (lease != null) {
+                entry = cache.get(lease.getKeyName());
+            } else {
+                entry = cryptoKey == null ? cache.get(keyName) : cache.get(cryptoKey);
+            }
+            Result result = sign(principal, entry, lease);
+            success = true;
+            return result;
+        } finally {
+            if (lease != null) {
+                lease.close();
+            }
+            metrics.recordBuild(System.nanoTime() - start, success);
+        }
+    }
+
+    /**
+     * Build the CSR asynchronously. This will throw errors directly if the crypto
+     * key version or principal are not set, but if the key can't be accessed the
+     * returned future will fail instead.
+     * 
+     * @return A future for the CSR result, never null
+     */
+    public CompletableFuture<Result> buildAsync() {
+        checkKey();
+        Preconditions.checkNotNull(this.principal, "Missing X500 principal");
+        if (keyPool == null) {
+            return buildAsync(cryptoKey == null ? cache.getAsync(keyName) : cache.getAsync(cryptoKey));
+        }
+        KmsKeyPool.Lease lease = keyPool.lease();
+        long start = System.nanoTime();
+        return signAsync(principal, cache.getAsync(lease.getKeyName()), lease).whenComplete((result, error) -> {
+            lease.close();
+            metrics.recordBuild(System.nanoTime() - start, error == null);
+        });
+    }
+
+    /**
+     * Build the CSR asynchronously with a key entry that is being resolved. The
+     * principal must be set. The principal is read before returning, so the
+     * builder can be reused while the CSR is signed.
+     */
+    CompletableFuture<Result> buildAsync(CompletableFuture<KmsKeyCache.Entry> entry) {
+        long start = System.nanoTime();
+        return signAsync(principal, entry, null)
+                .whenComplete((result, error) -> metrics.recordBuild(System.nanoTime() - start, error == null));
+    }
+
+    private void checkKey() {
+        Preconditions.checkState(keyName != null || cryptoKey != null || keyPool != null,
+                "Missing crypto key version name");
+    }
+
+    private CompletableFuture<Result> signAsync(X500Principal principal, CompletableFuture<KmsKeyCache.Entry> entry,
+            KmsKeyPool.Lease lease) {
+        if (executor == null) {
+            return entry.thenCompose(e -> signAsync(principal, e, lease));
+        }
+        return entry.thenApplyAsync(e -> sign(principal, e, lease), executor);
+    }
+
+    private Result sign(X500Principal principal, KmsKeyCache.Entry entry, KmsKeyPool.Lease lease) {
+        KmsContentSigner signer = lease == null
+                ? new KmsContentSigner(client, entry.getKeyName(), entry.getAlgorithm())
+                : new KmsContentSigner(client, lease, entry.getAlgorithm());
+        return new Result(new JcaPKCS10CertificationRequestBuilder(principal, entry.getPublicKey()).build(signer),
+                entry.getKeyName());
+    }
+
+    private CompletableFuture<Result> signAsync(X500Principal principal, KmsKeyCache.Entry entry,
+            KmsKeyPool.Lease lease) {
+        KmsContentSigner signer = lease == null
+                ? new KmsContentSigner(client, entry.getKeyName(), entry.getAlgorithm())
+                : new KmsContentSigner(client, lease, entry.getAlgorithm());
+        CertificationRequestInfo info = new CertificationRequestInfo(X500Name.getInstance(principal.getEncoded()),
+                SubjectPublicKeyInfo.getInstance(entry.getPublicKey().getEncoded()), new DERSet());
+        try (OutputStream out = signer.getOutputStream()) {
+            info.encodeTo(out, ASN1Encoding.DER);
+        } catch (IOException e) {
+            return CompletableFutures.failed(new IllegalStateException("Failed to encode CSR", e));
+        }
+        return signer.getSignatureAsync().thenApply(signature -> new Result(
+                new PKCS10CertificationRequest(
+                        new CertificationRequest(info, signer.getAlgorithmIdentifier(), new DERBitString(signature))),
+                entry.getKeyName()));
     }
 }
@@ -16,29 +16,94 @@
 package io.github.fungrim.kms.csr;
 
 
+import com.google.cloud.kms.v1.CryptoKeyName;
+import com.google.cloud.kms.v1.CryptoKeyVersionName;
 import com.google.cloud.kms.v1.KeyManagementServiceClient;
+import com.google.cloud.kms.v1.KeyRingName;
 import com.google.common.base.Preconditions;
+import io.github.fungrim.kms.csr.cache.KeyCacheBackend;
 import io.github.fungrim.kms.csr.client.DefaultKmsServiceClient;
+import io.github.fungrim.kms.csr.client.InstrumentedKmsServiceClient;
 import io.github.fungrim.kms.csr.client.KmsServiceClient;
+import io.github.fungrim.kms.csr.cms.CmsSigner;
+import io.github.fungrim.kms.csr.crl.CrlWriter;
+import io.github.fungrim.kms.csr.issuer.CertificateIssuer;
+import io.github.fungrim.kms.csr.metrics.KmsMetrics;
+import io.github.fungrim.kms.csr.metrics.SimpleKmsMetrics;
+import io.github.fungrim.kms.csr.ocsp.OcspResponder;
+import io.github.fungrim.kms.csr.util.Threads;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
 
 /**
  * This CSR builder factory creates {@link CsrBuilder} instances with a common
  * KMS client and key cache. The default key cache time is 60 minutes.
+ * 
+ * The factory should be closed when no longer used, which closes any GCP
+ * client shards it created, see {@link Builder#withChannelShards(int)}. The
+ * GCP client given to the factory is never closed by it.
  */
-public class CsrBuilderFactory {
+public class CsrBuilderFactory implements AutoCloseable {
 
     /**
      * A builder for the factory. Created via
-     * {@link CsrBuilderFactory#builder(KeyManagementServiceClient)}.
+     * {@link CsrBuilderFactory#builder(KeyManagementServiceClient)} or
+     * {@link CsrBuilderFactory#builder(KmsServiceClient)}.
      */
     public static class Builder {
 
-        private final KeyManagementServiceClient client;
+        private final KmsServiceClient client;
+        private final KeyManagementServiceClient gcpClient;
+        private int channelShards = 1;
         private Duration cacheDuration;
+        private Duration refreshInterval;
+        private Duration resolveInterval;
+        private Executor refreshExecutor;
+        private Path persistentFile;
+        private Duration persistentTtl;
+        private final Map<KeyFailure, Duration> negativeDurations = new EnumMap<>(KeyFailure.class);
+        private boolean rejectDisabledKeys = true;
+        private long maximumKeys = -1;
+        private long maximumKeyWeight = -1;
+        private ToIntFunction<KmsKeyCache.Entry> keyWeigher;
+        private Function<CryptoKeyVersionName, String> tenant;
+        private int tenantKeyLimit = -1;
+        private KeyCacheBackend keyCacheBackend;
+        private KmsMetrics metrics;
+        private Executor executor;
 
-        private Builder(KeyManagementServiceClient client) {
+        private Builder(KmsServiceClient client, KeyManagementServiceClient gcpClient) {
             this.client = client;
+            this.gcpClient = gcpClient;
+        }
+
+        /**
+         * Spread calls over several GCP clients, each with its own gRPC channel.
+         * The extra clients are created with the settings of the given client, and
+         * are closed when the factory is closed. This is only available for
+         * factories created via
+         * {@link CsrBuilderFactory#builder(KeyManagementServiceClient)}.
+         * 
+         * @param shards
+         *            Number of clients, including the given client, defaults to 1
+         * @return This builder
+         */
+        public Builder withChannelShards(int shards) {
+            Preconditions.checkArgument(shards > 0, "Shards must be positive");
+            Preconditions.checkState(shards == 1 || gcpClient != null, "Channel shards need a GCP KMS client");
+            this.channelShards = shards;
+            return this;
         }
 
         /**
@@ -53,6 +118,203 @@ public class CsrBuilderFactory {
             return this;
         }
 
+        /**
+         * The interval after which cached keys are refreshed in the background.
+         * Until the refresh completes the old key is used, so that no caller has to
+         * wait for KMS.
+         * 
+         * @param interval
+         *            Refresh interval, if null keys are not refreshed
+         * @return This builder
+         */
+        public Builder withKeyRefreshInterval(Duration interval) {
+            this.refreshInterval = interval;
+            return this;
+        }
+
+        /**
+         * The interval after which the key version a crypto key resolves to, see
+         * {@link CsrBuilder#withKey(CryptoKeyName)}, is looked up again in the
+         * background. Until the lookup completes the old key version is used.
+         * 
+         * @param interval
+         *            Resolve interval, if null it will default to 5 minutes
+         * @return This builder
+         */
+        public Builder withKeyResolveInterval(Duration interval) {
+            this.resolveInterval = interval;
+            return this;
+        }
+
+        /**
+         * The time a key failure, e.g. a missing or disabled key, is remembered by
+         * the key cache. Until it expires, CSR:s for the key version fail with a
+         * {@link KmsKeyException} without calling KMS. Defaults to 10 seconds, and
+         * 10 minutes for unsupported algorithms.
+         * 
+         * @param failure
+         *            Failure to set the duration for, must not be null
+         * @param duration
+         *            Duration to use, if null or zero the failure is not
+         *            remembered
+         * @return This builder
+         */
+        public Builder withNegativeKeyCacheDuration(KeyFailure failure, Duration duration) {
+            Preconditions.checkNotNull(failure);
+            Preconditions.checkArgument(duration == null || !duration.isNegative(), "Duration must not be negative");
+            this.negativeDurations.put(failure, duration == null ? Duration.ZERO : duration);
+            return this;
+        }
+
+        /**
+         * Reject cached keys that a background refresh found to be no longer
+         * enabled, without calling KMS. Defaults to true.
+         * 
+         * @param reject
+         *            True to reject keys that are not enabled
+         * @return This builder
+         */
+        public Builder withRejectDisabledKeys(boolean reject) {
+            this.rejectDisabledKeys = reject;
+            return this;
+        }
+
+        /**
+         * Bound the key cache by number of keys.
+         * 
+         * @param size
+         *            Maximum number of cached keys, must be positive
+         * @return This builder
+         */
+        public Builder withKeyCacheMaximumSize(long size) {
+            Preconditions.checkArgument(size > 0, "Maximum size must be positive");
+            this.maximumKeys = size;
+            this.maximumKeyWeight = -1;
+            return this;
+        }
+
+        /**
+         * Bound the key cache by the total weight of the keys, instead of their
+         * number, see {@link KmsKeyCache.Builder#withMaximumWeight(long, ToIntFunction)}.
+         * 
+         * @param weight
+         *            Maximum total weight, must be positive
+         * @param weigher
+         *            Weight of a key, if null it will default to the size of the
+         *            encoded public key
+         * @return This builder
+         */
+        public Builder withKeyCacheMaximumWeight(long weight, ToIntFunction<KmsKeyCache.Entry> weigher) {
+            Preconditions.checkArgument(weight > 0, "Maximum weight must be positive");
+            this.maximumKeyWeight = weight;
+            this.keyWeigher = weigher;
+            this.maximumKeys = -1;
+            return this;
+        }
+
+        /**
+         * Limit the number of cached keys per tenant, so that a single tenant can't
+         * push the keys of others out of the key cache.
+         * 
+         * @param tenant
+         *            The tenant of a key version, if null it will default to the
+         *            project of the key version
+         * @param limit
+         *            Maximum number of cached keys per tenant, must be positive
+         * @return This builder
+         */
+        public Builder withKeyCacheTenantLimit(Function<CryptoKeyVersionName, String> tenant, int limit) {
+            Preconditions.checkArgument(limit > 0, "Tenant limit must be positive");
+            this.tenant = tenant;
+            this.tenantKeyLimit = limit;
+            return this;
+        }
+
+        /**
+         * The cache implementation behind the key cache, e.g. the Caffeine backend
+         * of the {@code cache-caffeine} module.
+         * 
+         * @param backend
+         *            Backend to use, if null a Guava cache is used
+         * @return This builder
+         */
+        public Builder withKeyCacheBackend(KeyCacheBackend backend) {
+            this.keyCacheBackend = backend;
+            return this;
+        }
+
+        /**
+         * The executor to start background key refreshes on.
+         * 
+         * @param executor
+         *            Executor to use, if null it will default to the common fork
+         *            join pool
+         * @return This builder
+         */
+        public Builder withKeyRefreshExecutor(Executor executor) {
+            this.refreshExecutor = executor;
+            return this;
+        }
+
+        /**
+         * Keep a persistent copy of the cached keys in a file, so that a new process
+         * can start signing without fetching every key from KMS first. Keys older
+         * than the time to live, or a corrupt file, fall back to KMS.
+         * 
+         * @param file
+         *            File to use, if null no file is used
+         * @param ttl
+         *            Max age of the keys in the file, must not be null if the file
+         *            is set
+         * @return This builder
+         */
+        public Builder withPersistentKeyCache(Path file, Duration ttl) {
+            this.persistentFile = file;
+            this.persistentTtl = ttl;
+            return this;
+        }
+
+        /**
+         * The metrics listener to report KMS calls, key cache statistics and CSR
+         * builds to. See {@link SimpleKmsMetrics} for a dependency free
+         * implementation.
+         * 
+         * @param metrics
+         *            Metrics to use, if null no metrics are reported
+         * @return This builder
+         */
+        public Builder withMetrics(KmsMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * The executor to make blocking KMS calls on. If set, asynchronous builds
+         * and batches sign with a blocking call on the executor instead of
+         * asynchronously, and background key refreshes default to it. This is
+         * meant for virtual threads, see {@link #withVirtualThreads()}.
+         * 
+         * @param executor
+         *            Executor to use, if null KMS is called asynchronously
+         * @return This builder
+         */
+        public Builder withExecutor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * Make blocking KMS calls on virtual threads, if the runtime supports them,
+         * i.e. Java 21 or later. On older runtimes this has no effect, see
+         * {@link #withExecutor(Executor)}.
+         * 
+         * @return This builder
+         */
+        public Builder withVirtualThreads() {
+            Threads.newVirtualThreadExecutor().ifPresent(e -> this.executor = e);
+            return this;
+        }
+
         /**
          * Create a new builder factory. If a duration is not set it will default to 60
          * minutes.
@@ -60,12 +322,48 @@ public class CsrBuilderFactory {
          * @return A new factory, never null
          */
         public CsrBuilderFactory build() {
-            if (this.cacheDuration == null) {
-                this.cacheDuration = Duration.ofMinutes(60);
+            KmsMetrics metrics = this.metrics == null ? KmsMetrics.NOOP : this.metrics;
+            KmsServiceClient kmsClient = client;
+            List<KeyManagementServiceClient> shards = createShards();
+            if (!shards.isEmpty()) {
+                List<KeyManagementServiceClient> clients = new ArrayList<>(shards.size() + 1);
+                clients.add(gcpClient);
+                clients.addAll(shards);
+                kmsClient = new DefaultKmsServiceClient(clients);
+            }
+            if (this.metrics != null) {
+                kmsClient = new InstrumentedKmsServiceClient(kmsClient, metrics);
+            }
+            KmsKeyCache.Builder cacheBuilder = KmsKeyCache.builder(kmsClient).withCacheDuration(cacheDuration)
+                    .withRefreshInterval(refreshInterval).withResolveInterval(resolveInterval)
+                    .withRefreshExecutor(refreshExecutor == null ? executor : refreshExecutor)
+                    .withPersistentFile(persistentFile, persistentTtl).withRejectDisabledKeys(rejectDisabledKeys);
+            negativeDurations.forEach(cacheBuilder::withNegativeCacheDuration);
+            if (maximumKeys > 0) {
+                cacheBuilder.withMaximumSize(maximumKeys);
+            } else if (maximumKeyWeight > 0) {
+                cacheBuilder.withMaximumWeight(maximumKeyWeight, keyWeigher);
             }
-            KmsServiceClient kmsClient = new DefaultKmsServiceClient(client);
-            KmsKeyCache cache = new KmsKeyCache(cacheDuration, kmsClient);
-            return new CsrBuilderFactory(kmsClient, cache);
+            if (tenantKeyLimit > 0) {
+                cacheBuilder.withTenantLimit(tenant, tenantKeyLimit);
+            }
+            cacheBuilder.withBackend(keyCacheBackend);
+            KmsKeyCache cache = cacheBuilder.build();
+            metrics.registerKeyCache(cache::stats);
+            return new CsrBuilderFactory(kmsClient, cache, metrics, executor, shards);
+        }
+
+        private List<KeyManagementServiceClient> createShards() {
+            List<KeyManagementServiceClient> shards = new ArrayList<>(channelShards - 1);
+            try {
+                for (int i = 1; i < channelShards; i++) {
+                    shards.add(KeyManagementServiceClient.create(gcpClient.getSettings()));
+                }
+            } catch (IOException e) {
+                shards.forEach(KeyManagementServiceClient::close);
+                throw new IllegalStateException("Failed to create KMS client shard", e);
+            }
+            return shards;
         }
 
     }
@@ -78,15 +376,34 @@ public class CsrBuilderFactory {
      * @return A new builder, never null
      */
     public static Builder builder(KeyManagementServiceClient client) {
-        return new Builder(Preconditions.checkNotNull(client));
+        return new Builder(new DefaultKmsServiceClient(Preconditions.checkNotNull(client)), client);
+    }
+
+    /**
+     * Create a new factory builder given a KMS service client. This can be used
+     * to decorate the calls to KMS, or to use a stand in for KMS.
+     * 
+     * @param client
+     *            Client to use, must not be null
+     * @return A new builder, never null
+     */
+    public static Builder builder(KmsServiceClient client) {
+        return new Builder(Preconditions.checkNotNull(client), null);
     }
 
     private final KmsServiceClient kmsClient;
     private final KmsKeyCache cache;
+    private final KmsMetrics metrics;
+    private final Executor executor;
+    private final List<KeyManagementServiceClient> ownedClients;
 
-    private CsrBuilderFactory(KmsServiceClient kmsClient, KmsKeyCache cache) {
+    private CsrBuilderFactory(KmsServiceClient kmsClient, KmsKeyCache cache, KmsMetrics metrics, Executor executor,
+            List<KeyManagementServiceClient> ownedClients) {
         this.kmsClient = kmsClient;
         this.cache = cache;
+        this.metrics = metrics;
+        this.executor = executor;
+        this.ownedClients = Collections.unmodifiableList(ownedClients);
     }
 
     /**
@@ -96,6 +413,97 @@ public class CsrBuilderFactory {
      * @return A new CSR builder, never null
      */
     public CsrBuilder builder() {
-        return new CsrBuilder(kmsClient, cache);
+        return new CsrBuilder(kmsClient, cache, metrics, executor);
+    }
+
+    /**
+     * Load the given keys into the key cache in parallel, so that the first CSR
+     * for each key doesn't have to wait for KMS. Call {@code join()} on the
+     * returned future to block until all keys are loaded.
+     * 
+     * @param keyNames
+     *            Keys to load, must not be null
+     * @return A future that completes when all keys are loaded, never null
+     */
+    public CompletableFuture<Void> preload(Collection<CryptoKeyVersionName> keyNames) {
+        return cache.preload(keyNames);
+    }
+
+    /**
+     * Load all enabled asymmetric signing key versions of a key ring into the key
+     * cache in parallel. Call {@code join()} on the returned future to block until
+     * all keys are loaded.
+     * 
+     * @param keyRing
+     *            Key ring to load, must not be null
+     * @return A future that completes when all keys are loaded, never null
+     */
+    public CompletableFuture<Void> preload(KeyRingName keyRing) {
+        return cache.preload(keyRing);
+    }
+
+    /**
+     * Create a new CSR batch based on the factory configured KMS client and key
+     * cache.
+     * 
+     * @return A new CSR batch, never null
+     */
+    public CsrBatch batch() {
+        return new CsrBatch(kmsClient, cache, metrics, executor);
+    }
+
+    /**
+     * Create a new certificate issuer builder based on the factory configured KMS
+     * client, key cache and executor. The CA key and certificate must be set on
+     * the returned builder.
+     * 
+     * @return A new certificate issuer builder, never null
+     */
+    public CertificateIssuer.Builder issuer() {
+        return CertificateIssuer.builder(kmsClient, cache).withExecutor(executor);
+    }
+
+    /**
+     * Create a new CMS signer builder based on the factory configured KMS client,
+     * key cache and executor. The key and signer certificate must be set on the
+     * returned builder.
+     * 
+     * @return A new CMS signer builder, never null
+     */
+    public CmsSigner.Builder cmsSigner() {
+        return CmsSigner.builder(kmsClient, cache).withExecutor(executor);
+    }
+
+    /**
+     * Create a new CRL writer builder based on the factory configured KMS client
+     * and key cache. The CA key and certificate must be set on the returned
+     * builder.
+     * 
+     * @return A new CRL writer builder, never null
+     */
+    public CrlWriter.Builder crlWriter() {
+        return CrlWriter.builder(kmsClient, cache);
+    }
+
+    /**
+     * Create a new OCSP responder builder based on the factory configured KMS
+     * client, key cache and executor. The key, issuer certificate and status
+     * source must be set on the returned builder.
+     * 
+     * @return A new OCSP responder builder, never null
+     */
+    public OcspResponder.Builder ocspResponder() {
+        return OcspResponder.builder(kmsClient, cache).withExecutor(executor);
+    }
+
+    /**
+     * Write pending changes to the persistent key cache, if any, and close the
+     * GCP client shards created by the factory, if any. The GCP client given to
+     * the factory is not closed.
+     */
+    @Override
+    public void close() {
+        cache.flush();
+        ownedClients.forEach(KeyManagementServiceClient::close);
     }
 }
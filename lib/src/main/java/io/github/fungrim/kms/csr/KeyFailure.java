@@ -0,0 +1,71 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr;
+
+
+import io.github.fungrim.kms.csr.util.StatusCodes;
+import java.util.Optional;
+
+/**
+ * The reasons a key version can't be used for signing. These are remembered
+ * by the key cache for a short while, see
+ * {@link KmsKeyCache.Builder#withNegativeCacheDuration(KeyFailure, java.time.Duration)},
+ * so that a misconfigured key doesn't send every call to KMS.
+ */
+public enum KeyFailure {
+
+    /**
+     * The key version does not exist.
+     */
+    NOT_FOUND,
+
+    /**
+     * The caller is not allowed to use the key version.
+     */
+    PERMISSION_DENIED,
+
+    /**
+     * The key version is not enabled, e.g. it is disabled or destroyed.
+     */
+    NOT_ENABLED,
+
+    /**
+     * The key version is not an asymmetric signing key supported by this
+     * library.
+     */
+    UNSUPPORTED;
+
+    /**
+     * @param error
+     *            KMS error to classify, must not be null
+     * @return The key failure a KMS error means, or an empty optional for
+     *         errors that are not about the key, e.g. transient errors or
+     *         UNAUTHENTICATED, which is about the caller's credentials and
+     *         usually passes once they are refreshed
+     */
+    static Optional<KeyFailure> of(Throwable error) {
+        switch (StatusCodes.of(error)) {
+            case NOT_FOUND :
+                return Optional.of(NOT_FOUND);
+            case PERMISSION_DENIED :
+                return Optional.of(PERMISSION_DENIED);
+            case FAILED_PRECONDITION :
+                return Optional.of(NOT_ENABLED);
+            default :
+                return Optional.empty();
+        }
+    }
+}
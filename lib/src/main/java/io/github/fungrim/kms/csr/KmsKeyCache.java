@@ -16,22 +16,73 @@
 package io.github.fungrim.kms.csr;
 
 
+import com.google.cloud.kms.v1.CryptoKeyName;
 import com.google.cloud.kms.v1.CryptoKeyVersion;
 import com.google.cloud.kms.v1.CryptoKeyVersion.CryptoKeyVersionAlgorithm;
+import com.google.cloud.kms.v1.CryptoKeyVersion.CryptoKeyVersionState;
 import com.google.cloud.kms.v1.CryptoKeyVersionName;
+import com.google.cloud.kms.v1.KeyRingName;
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
 import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.protobuf.Timestamp;
+import io.github.fungrim.kms.csr.cache.GuavaKeyCacheBackend;
+import io.github.fungrim.kms.csr.cache.KeyCacheBackend;
+import io.github.fungrim.kms.csr.cache.KeyCacheLoader;
+import io.github.fungrim.kms.csr.cache.KeyCacheSpec;
+import io.github.fungrim.kms.csr.cache.KeyCacheStore;
 import io.github.fungrim.kms.csr.client.KmsServiceClient;
+import io.github.fungrim.kms.csr.util.Algorithms;
+import io.github.fungrim.kms.csr.util.CompletableFutures;
 import io.github.fungrim.kms.csr.util.Keys;
+import java.nio.file.Path;
 import java.security.PublicKey;
+import java.time.Clock;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
 
 /**
  * This KMS key cache caches key version, version name and JCA public key for a
- * given duration.
+ * given duration. Optionally entries can be refreshed in the background after
+ * a given interval, so that callers don't have to wait for KMS when an entry
+ * gets old.
+ * 
+ * Crypto keys can also be resolved to their latest enabled key version. The
+ * resolved versions are cached as well, and looked up again in the background
+ * after a resolve interval, so that key rotation is picked up without callers
+ * waiting for KMS.
+ * 
+ * Keys that can't be used for signing, e.g. missing, disabled or of an
+ * unsupported algorithm, fail with a {@link KmsKeyException}. The failure is
+ * remembered for a short while, so that repeated calls for a bad key don't go
+ * to KMS, and cached entries that are refreshed to a disabled state are
+ * rejected without calling KMS.
+ * 
+ * The cache can be bounded by number of entries or by weight, and per tenant,
+ * and the cache implementation can be replaced via a {@link KeyCacheBackend}.
  */
 public class KmsKeyCache {
 
@@ -77,9 +128,308 @@ public class KmsKeyCache {
         public CryptoKeyVersionAlgorithm getAlgorithm() {
             return key.getAlgorithm();
         }
+
+        /**
+         * @return The crypto key version state when the entry was last fetched,
+         *         never null
+         */
+        public CryptoKeyVersionState getState() {
+            return key.getState();
+        }
+
+        /**
+         * @return True if the key version was enabled when the entry was last
+         *         fetched
+         */
+        public boolean isEnabled() {
+            return key.getState() == CryptoKeyVersionState.ENABLED;
+        }
+    }
+
+    /*
+     * A remembered key failure, with the time it expires. Key exceptions are
+     * thrown as new copies, other errors, i.e. from resolving a crypto key, are
+     * thrown again as they were.
+     */
+    private static class Failure {
+
+        private final RuntimeException exception;
+        private final long expiresAtMillis;
+
+        private Failure(RuntimeException exception, long expiresAtMillis) {
+            this.exception = exception;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+
+        private RuntimeException toException() {
+            if (exception instanceof KmsKeyException) {
+                KmsKeyException e = (KmsKeyException) exception;
+                return new KmsKeyException(e.getKeyName(), e.getFailure(), e.getMessage(), e.getCause());
+            }
+            return exception;
+        }
+    }
+
+    /**
+     * A builder for the key cache. Created via
+     * {@link KmsKeyCache#builder(KmsServiceClient)}.
+     */
+    public static class Builder {
+
+        private final KmsServiceClient client;
+        private Duration cacheDuration;
+        private Duration refreshInterval;
+        private Duration resolveInterval;
+        private Executor refreshExecutor;
+        private Path persistentFile;
+        private Duration persistentTtl;
+        private final Map<KeyFailure, Duration> negativeDurations = new EnumMap<>(KeyFailure.class);
+        private boolean rejectDisabledKeys = true;
+        private long maximumSize = -1;
+        private long maximumWeight = -1;
+        private ToIntFunction<Entry> weigher;
+        private Function<CryptoKeyVersionName, String> tenant;
+        private int tenantLimit = -1;
+        private KeyCacheBackend backend;
+        private Clock clock = Clock.systemUTC();
+
+        private Builder(KmsServiceClient client) {
+            this.client = client;
+            this.negativeDurations.put(KeyFailure.NOT_FOUND, Duration.ofSeconds(10));
+            this.negativeDurations.put(KeyFailure.PERMISSION_DENIED, Duration.ofSeconds(10));
+            this.negativeDurations.put(KeyFailure.NOT_ENABLED, Duration.ofSeconds(10));
+            this.negativeDurations.put(KeyFailure.UNSUPPORTED, Duration.ofMinutes(10));
+        }
+
+        /**
+         * The time an entry is kept in the cache after it was last accessed.
+         * 
+         * @param duration
+         *            Duration to use, if null it will default to 60 minutes
+         * @return This builder
+         */
+        public Builder withCacheDuration(Duration duration) {
+            this.cacheDuration = duration;
+            return this;
+        }
+
+        /**
+         * The time after which an entry is reloaded from KMS in the background. The
+         * reload is triggered by the first access after the interval, and until the
+         * reload completes callers get the old entry. If a reload fails the old entry
+         * is kept.
+         * 
+         * @param interval
+         *            Refresh interval, if null entries are not refreshed
+         * @return This builder
+         */
+        public Builder withRefreshInterval(Duration interval) {
+            this.refreshInterval = interval;
+            return this;
+        }
+
+        /**
+         * The time after which the key version a crypto key resolves to is looked
+         * up again in the background. Until the lookup completes callers get the
+         * old key version. If a lookup fails the old key version is kept.
+         * 
+         * @param interval
+         *            Resolve interval, if null it will default to 5 minutes
+         * @return This builder
+         */
+        public Builder withResolveInterval(Duration interval) {
+            this.resolveInterval = interval;
+            return this;
+        }
+
+        /**
+         * The executor on which background refreshes are started.
+         * 
+         * @param executor
+         *            Executor to use, if null it will default to the common fork
+         *            join pool
+         * @return This builder
+         */
+        public Builder withRefreshExecutor(Executor executor) {
+            this.refreshExecutor = executor;
+            return this;
+        }
+
+        /**
+         * Keep a persistent copy of the cached keys in a file. When a key is missing
+         * from the cache it is first looked for in the file, and only if it is not
+         * there, or older than the given time to live, is it fetched from KMS. The
+         * file is read once when the cache is created and is written in the
+         * background, on the refresh executor, when new keys are fetched. If the
+         * file is corrupt it is ignored. Keys from the file only carry the name,
+         * algorithm and state of the crypto key version.
+         * 
+         * @param file
+         *            File to use, if null no file is used
+         * @param ttl
+         *            Max age of the keys in the file, must not be null if the file
+         *            is set
+         * @return This builder
+         */
+        public Builder withPersistentFile(Path file, Duration ttl) {
+            this.persistentFile = file;
+            this.persistentTtl = ttl;
+            return this;
+        }
+
+        /**
+         * The time a key failure is remembered. Until it expires, calls for the key
+         * version fail with the remembered failure without calling KMS. Defaults
+         * to 10 seconds, except for unsupported algorithms, which can't change for a
+         * key version, that default to 10 minutes. Transient errors, such as
+         * timeouts, throttling or expired credentials, are never remembered.
+         * Failures to resolve a crypto key are remembered as well, a crypto key
+         * without an enabled signing key version as {@link KeyFailure#NOT_ENABLED}.
+         * 
+         * @param failure
+         *            Failure to set the duration for, must not be null
+         * @param duration
+         *            Duration to use, if null or zero the failure is not
+         *            remembered
+         * @return This builder
+         */
+        public Builder withNegativeCacheDuration(KeyFailure failure, Duration duration) {
+            Preconditions.checkNotNull(failure);
+            Preconditions.checkArgument(duration == null || !duration.isNegative(), "Duration must not be negative");
+            this.negativeDurations.put(failure, duration == null ? Duration.ZERO : duration);
+            return this;
+        }
+
+        /**
+         * Reject cached entries whose key version is no longer enabled, as seen
+         * when the entry was last refreshed, without calling KMS. Defaults to true.
+         * If false such entries are returned, and signing with them fails in KMS.
+         * 
+         * @param reject
+         *            True to reject entries that are not enabled
+         * @return This builder
+         */
+        public Builder withRejectDisabledKeys(boolean reject) {
+            this.rejectDisabledKeys = reject;
+            return this;
+        }
+
+        /**
+         * Bound the cache by number of entries. When the bound is reached, entries
+         * are evicted as decided by the backend, by default the least recently used.
+         * 
+         * @param size
+         *            Maximum number of entries, must be positive
+         * @return This builder
+         */
+        public Builder withMaximumSize(long size) {
+            Preconditions.checkArgument(size > 0, "Maximum size must be positive");
+            this.maximumSize = size;
+            this.maximumWeight = -1;
+            this.weigher = null;
+            return this;
+        }
+
+        /**
+         * Bound the cache by the total weight of the entries, instead of their
+         * number. The default weigher uses the size of the encoded public key, so
+         * that e.g. an RSA 4096 key weighs about six times as much as a P-256 key.
+         * 
+         * @param weight
+         *            Maximum total weight, must be positive
+         * @param weigher
+         *            Weight of an entry, if null it will default to the size of
+         *            the encoded public key
+         * @return This builder
+         */
+        public Builder withMaximumWeight(long weight, ToIntFunction<Entry> weigher) {
+            Preconditions.checkArgument(weight > 0, "Maximum weight must be positive");
+            this.maximumWeight = weight;
+            this.weigher = weigher;
+            this.maximumSize = -1;
+            return this;
+        }
+
+        /**
+         * Limit the number of entries per tenant, so that a single tenant can't
+         * push the keys of others out of the cache. When a tenant is over its
+         * limit, the entry of the tenant that was loaded first is evicted. The limit
+         * is approximate under concurrent loads and evictions of the same key.
+         * 
+         * @param tenant
+         *            The tenant of a key version, if null it will default to the
+         *            project of the key version
+         * @param limit
+         *            Maximum number of entries per tenant, must be positive
+         * @return This builder
+         */
+        public Builder withTenantLimit(Function<CryptoKeyVersionName, String> tenant, int limit) {
+            Preconditions.checkArgument(limit > 0, "Tenant limit must be positive");
+            this.tenant = tenant;
+            this.tenantLimit = limit;
+            return this;
+        }
+
+        /**
+         * The cache implementation to use.
+         * 
+         * @param backend
+         *            Backend to use, if null it will default to a
+         *            {@link GuavaKeyCacheBackend}
+         * @return This builder
+         */
+        public Builder withBackend(KeyCacheBackend backend) {
+            this.backend = backend;
+            return this;
+        }
+
+        /**
+         * @param clock
+         *            Clock for the expiry of remembered failures, defaults to the
+         *            UTC system clock, must not be null
+         * @return This builder
+         */
+        public Builder withClock(Clock clock) {
+            this.clock = Preconditions.checkNotNull(clock);
+            return this;
+        }
+
+        /**
+         * @return A new key cache, never null
+         */
+        public KmsKeyCache build() {
+            return new KmsKeyCache(this);
+        }
+    }
+
+    /**
+     * Create a new key cache builder given a KMS service client.
+     * 
+     * @param client
+     *            Client to use, must not be null
+     * @return A new builder, never null
+     */
+    public static Builder builder(KmsServiceClient client) {
+        return new Builder(Preconditions.checkNotNull(client));
     }
 
-    private final LoadingCache<CryptoKeyVersionName, Entry> entryCache;
+    private final ConcurrentMap<CryptoKeyVersionName, CompletableFuture<Entry>> pendingLoads =
+            new ConcurrentHashMap<>();
+    private final KmsServiceClient client;
+    private final Executor refreshExecutor;
+    private final KmsKeyFile keyFile;
+    private final KeyCacheStore<CryptoKeyVersionName, Entry> entryCache;
+    private final ConcurrentMap<CryptoKeyName, CompletableFuture<CryptoKeyVersion>> pendingResolves =
+            new ConcurrentHashMap<>();
+    private final LoadingCache<CryptoKeyName, CryptoKeyVersion> versionCache;
+    private final Map<KeyFailure, Duration> negativeDurations;
+    private final Cache<CryptoKeyVersionName, Failure> negativeCache;
+    private final Cache<CryptoKeyName, Failure> resolveFailures;
+    private final Clock clock;
+    private final boolean rejectDisabledKeys;
+    private final Function<CryptoKeyVersionName, String> tenant;
+    private final int tenantLimit;
+    private final ConcurrentMap<String, Set<CryptoKeyVersionName>> tenants = new ConcurrentHashMap<>();
 
     /**
      * Create a new KMS key cache.
@@ -90,31 +440,551 @@ public class KmsKeyCache {
      *            Kms service client, must not be null
      */
     public KmsKeyCache(final Duration cacheDuration, final KmsServiceClient client) {
-        Preconditions.checkNotNull(client);
-        this.entryCache = CacheBuilder.newBuilder()
-                .expireAfterAccess(Preconditions.checkNotNull(cacheDuration).toMillis(), TimeUnit.MILLISECONDS)
-                .build(new CacheLoader<CryptoKeyVersionName, Entry>() {
+        this(builder(client).withCacheDuration(Preconditions.checkNotNull(cacheDuration)));
+    }
+
+    private KmsKeyCache(Builder builder) {
+        Duration cacheDuration = builder.cacheDuration == null ? Duration.ofMinutes(60) : builder.cacheDuration;
+        this.client = builder.client;
+        this.refreshExecutor = builder.refreshExecutor == null ? ForkJoinPool.commonPool() : builder.refreshExecutor;
+        this.keyFile = builder.persistentFile == null
+                ? null
+                : new KmsKeyFile(builder.persistentFile, Preconditions.checkNotNull(builder.persistentTtl),
+                        refreshExecutor);
+        this.tenant = builder.tenant == null ? CryptoKeyVersionName::getProject : builder.tenant;
+        this.tenantLimit = builder.tenantLimit;
+        KeyCacheSpec.Builder<CryptoKeyVersionName, Entry> spec = KeyCacheSpec
+                .builder(new KeyCacheLoader<CryptoKeyVersionName, Entry>() {
 
                     @Override
                     public Entry load(CryptoKeyVersionName keyName) throws Exception {
-                        // load the key from KMS
-                        CryptoKeyVersion key = client.getKey(keyName);
-                        PublicKey pk = Keys.toPublicKey(key.getAlgorithm(), client.getPublicKeyPem(keyName));
-                        return new Entry(key, keyName, pk);
+                        Entry entry = CompletableFutures.join(loadAsync(keyName, null));
+                        admit(keyName);
+                        return entry;
+                    }
+
+                    @Override
+                    public CompletableFuture<Entry> reload(CryptoKeyVersionName keyName, Entry oldEntry) {
+                        return CompletableFuture.supplyAsync(() -> refreshAsync(oldEntry), refreshExecutor)
+                                .thenCompose(Function.identity());
+                    }
+                }).withExpireAfterAccess(cacheDuration).withRefreshAfterWrite(builder.refreshInterval);
+        if (builder.maximumSize > 0) {
+            spec.withMaximumSize(builder.maximumSize);
+        } else if (builder.maximumWeight > 0) {
+            ToIntFunction<Entry> weigher = builder.weigher == null ? KmsKeyCache::weigh : builder.weigher;
+            spec.withMaximumWeight(builder.maximumWeight, (keyName, entry) -> weigher.applyAsInt(entry));
+        }
+        if (tenantLimit > 0) {
+            spec.withRemovalListener((keyName, entry) -> release(keyName));
+        }
+        KeyCacheBackend backend = builder.backend == null ? new GuavaKeyCacheBackend() : builder.backend;
+        this.entryCache = backend.create(spec.build());
+        this.negativeDurations = new EnumMap<>(builder.negativeDurations);
+        Duration maxNegativeDuration = Collections.max(negativeDurations.values());
+        this.negativeCache = maxNegativeDuration.isZero()
+                ? null
+                : CacheBuilder.newBuilder().maximumSize(10_000)
+                        .expireAfterWrite(maxNegativeDuration.toMillis(), TimeUnit.MILLISECONDS).build();
+        this.resolveFailures = maxNegativeDuration.isZero()
+                ? null
+                : CacheBuilder.newBuilder().maximumSize(10_000)
+                        .expireAfterWrite(maxNegativeDuration.toMillis(), TimeUnit.MILLISECONDS).build();
+        this.clock = builder.clock;
+        this.rejectDisabledKeys = builder.rejectDisabledKeys;
+        Duration resolveInterval = builder.resolveInterval == null ? Duration.ofMinutes(5) : builder.resolveInterval;
+        CacheBuilder<Object, Object> versionBuilder = CacheBuilder.newBuilder()
+                .expireAfterAccess(cacheDuration.toMillis(), TimeUnit.MILLISECONDS)
+                .refreshAfterWrite(resolveInterval.toMillis(), TimeUnit.MILLISECONDS);
+        if (builder.maximumSize > 0) {
+            versionBuilder.maximumSize(builder.maximumSize);
+        }
+        this.versionCache = versionBuilder.build(new CacheLoader<CryptoKeyName, CryptoKeyVersion>() {
+
+            @Override
+            public CryptoKeyVersion load(CryptoKeyName cryptoKey) throws Exception {
+                return latestVersion(cryptoKey, client.listKeyVersions(cryptoKey));
+            }
+
+            @Override
+            public ListenableFuture<CryptoKeyVersion> reload(CryptoKeyName cryptoKey, CryptoKeyVersion oldVersion) {
+                SettableFuture<CryptoKeyVersion> future = SettableFuture.create();
+                refreshExecutor.execute(() -> {
+                    try {
+                        future.set(load(cryptoKey));
+                    } catch (Exception e) {
+                        future.setException(e);
                     }
                 });
+                return future;
+            }
+        });
     }
 
     /**
      * Get a key from the cache or fetch it from KMS. This will fail if the key
      * doesn't exist, the caller don't have rights to access the key, or if the key
-     * is not a key for assymetric signing.
+     * is not a key for assymetric signing. These failures are thrown as a
+     * {@link KmsKeyException}, and are remembered for the negative cache duration.
      * 
      * @param keyName
      *            Key to get, must not be null
      * @return A key entry
      */
     public Entry get(CryptoKeyVersionName keyName) {
-        return entryCache.getUnchecked(Preconditions.checkNotNull(keyName));
+        Preconditions.checkNotNull(keyName);
+        Failure failure = getFailure(negativeCache, keyName);
+        if (failure != null) {
+            throw failure.toException();
+        }
+        Entry entry = entryCache.getIfPresent(keyName);
+        if (entry == null) {
+            entry = CompletableFutures.join(load(keyName, null));
+        }
+        return checkEnabled(entry);
+    }
+
+    /**
+     * Get the latest enabled key version of a crypto key from the cache, resolving
+     * it via KMS if needed. This will fail if the crypto key has no enabled
+     * asymmetric signing key version, or under the same conditions as
+     * {@link #get(CryptoKeyVersionName)}.
+     * 
+     * @param cryptoKey
+     *            Crypto key to get, must not be null
+     * @return A key entry for the latest enabled version
+     */
+    public Entry get(CryptoKeyName cryptoKey) {
+        return get(resolve(cryptoKey));
+    }
+
+    /**
+     * Resolve a crypto key to its latest enabled asymmetric signing key version,
+     * by creation time. The versions are listed from KMS on a cache miss, and in
+     * the background after the resolve interval. A failure to resolve the crypto
+     * key, other than a transient error, is remembered for the negative cache
+     * duration.
+     * 
+     * @param cryptoKey
+     *            Crypto key to resolve, must not be null
+     * @return The latest enabled key version name, never null
+     * @throws IllegalStateException
+     *             If the crypto key has no enabled signing key version
+     */
+    public CryptoKeyVersionName resolve(CryptoKeyName cryptoKey) {
+        Preconditions.checkNotNull(cryptoKey);
+        Failure failure = getFailure(resolveFailures, cryptoKey);
+        if (failure != null) {
+            throw failure.toException();
+        }
+        try {
+            return CryptoKeyVersionName.parse(versionCache.getUnchecked(cryptoKey).getName());
+        } catch (UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                RuntimeException cause = (RuntimeException) e.getCause();
+                rememberResolveFailure(cryptoKey, cause);
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Get the latest enabled key version of a crypto key without blocking. On a
+     * cache miss the versions are listed on the refresh executor, and as the
+     * listing already carries the key version only the public key is fetched.
+     * The returned future fails under the same conditions as
+     * {@link #get(CryptoKeyName)}.
+     * 
+     * @param cryptoKey
+     *            Crypto key to get, must not be null
+     * @return A future for the key entry, never null
+     */
+    public CompletableFuture<Entry> getAsync(CryptoKeyName cryptoKey) {
+        return resolveAsync(Preconditions.checkNotNull(cryptoKey))
+                .thenCompose(version -> getAsync(CryptoKeyVersionName.parse(version.getName()), version));
+    }
+
+    /**
+     * @return The current hit, miss, load and eviction statistics, never null
+     */
+    public CacheStats stats() {
+        return entryCache.stats();
+    }
+
+    /**
+     * @return The approximate number of cached keys
+     */
+    public long size() {
+        return entryCache.size();
+    }
+
+    /**
+     * Get a key from the cache or fetch it from KMS without blocking. Concurrent
+     * requests for the same missing key, blocking or not, share a single load.
+     * The returned future
+     * fails under the same conditions as {@link #get(CryptoKeyVersionName)}.
+     * 
+     * @param keyName
+     *            Key to get, must not be null
+     * @return A future for the key entry, never null
+     */
+    public CompletableFuture<Entry> getAsync(CryptoKeyVersionName keyName) {
+        return getAsync(Preconditions.checkNotNull(keyName), null);
+    }
+
+    /**
+     * Load the given keys into the cache in parallel. Keys already in the cache
+     * are not fetched again. The returned future completes when all keys are
+     * loaded, and fails if any key failed to load.
+     * 
+     * @param keyNames
+     *            Keys to load, must not be null
+     * @return A future that completes when all keys are loaded, never null
+     */
+    public CompletableFuture<Void> preload(Collection<CryptoKeyVersionName> keyNames) {
+        return CompletableFuture.allOf(keyNames.stream().distinct().map(this::getAsync)
+                .toArray(CompletableFuture[]::new));
+    }
+
+    /**
+     * Load all enabled asymmetric signing key versions of a key ring into the
+     * cache in parallel. The key ring is listed on the refresh executor, and as
+     * the listing already carries the key versions only the public keys are
+     * fetched from KMS. Key versions of algorithms this library doesn't support
+     * are skipped. The returned future completes when all keys are loaded, and
+     * fails if the listing or any key failed. This needs a client that can list
+     * keys, see {@link KmsServiceClient#listSigningKeys(KeyRingName)}, which
+     * decorators must forward.
+     * 
+     * @param keyRing
+     *            Key ring to load, must not be null
+     * @return A future that completes when all keys are loaded, never null
+     */
+    public CompletableFuture<Void> preload(KeyRingName keyRing) {
+        Preconditions.checkNotNull(keyRing);
+        return CompletableFuture.supplyAsync(() -> client.listSigningKeys(keyRing), refreshExecutor)
+                .thenCompose(keys -> CompletableFuture.allOf(keys.stream()
+                        .filter(key -> Algorithms.isSupported(key.getAlgorithm()))
+                        .map(key -> getAsync(CryptoKeyVersionName.parse(key.getName()), key))
+                        .toArray(CompletableFuture[]::new)));
+    }
+
+    /**
+     * Write pending changes to the persistent key file, if any, in the calling
+     * thread. Called when the owning factory is closed.
+     */
+    public void flush() {
+        if (keyFile != null) {
+            keyFile.close();
+        }
+    }
+
+    /**
+     * Forget a remembered failure for a key version, e.g. after the key has been
+     * created or enabled, so that the next call goes to KMS.
+     * 
+     * @param keyName
+     *            Key to forget the failure of, must not be null
+     */
+    public void invalidateFailure(CryptoKeyVersionName keyName) {
+        Preconditions.checkNotNull(keyName);
+        if (negativeCache != null) {
+            negativeCache.invalidate(keyName);
+        }
+    }
+
+    /**
+     * Forget a remembered failure to resolve a crypto key, e.g. after a key
+     * version has been created or enabled, so that the next call goes to KMS.
+     * 
+     * @param cryptoKey
+     *            Crypto key to forget the failure of, must not be null
+     */
+    public void invalidateFailure(CryptoKeyName cryptoKey) {
+        Preconditions.checkNotNull(cryptoKey);
+        if (resolveFailures != null) {
+            resolveFailures.invalidate(cryptoKey);
+        }
+    }
+
+    private CompletableFuture<Entry> getAsync(CryptoKeyVersionName keyName, CryptoKeyVersion knownKey) {
+        Failure failure = getFailure(negativeCache, keyName);
+        if (failure != null) {
+            return CompletableFutures.failed(failure.toException());
+        }
+        Entry entry = entryCache.getIfPresent(keyName);
+        if (entry != null) {
+            try {
+                return CompletableFuture.completedFuture(checkEnabled(entry));
+            } catch (KmsKeyException e) {
+                return CompletableFutures.failed(e);
+            }
+        }
+        return load(keyName, knownKey);
+    }
+
+    /*
+     * Load a missing key into the cache, sharing the load with concurrent
+     * callers, blocking or not.
+     */
+    private CompletableFuture<Entry> load(CryptoKeyVersionName keyName, CryptoKeyVersion knownKey) {
+        CompletableFuture<Entry> load = new CompletableFuture<>();
+        CompletableFuture<Entry> pending = pendingLoads.putIfAbsent(keyName, load);
+        if (pending != null) {
+            return pending;
+        }
+        Entry loaded = entryCache.getIfPresent(keyName);
+        if (loaded != null) {
+            // a load finished between the cache miss and taking the load
+            pendingLoads.remove(keyName, load);
+            load.complete(loaded);
+            return load;
+        }
+        loadAsync(keyName, knownKey).whenComplete((e, t) -> {
+            if (t == null) {
+                entryCache.put(keyName, e);
+                admit(keyName);
+                pendingLoads.remove(keyName, load);
+                load.complete(e);
+            } else {
+                pendingLoads.remove(keyName, load);
+                load.completeExceptionally(t);
+            }
+        });
+        return load;
+    }
+
+    private CompletableFuture<CryptoKeyVersion> resolveAsync(CryptoKeyName cryptoKey) {
+        CryptoKeyVersion version = versionCache.getIfPresent(cryptoKey);
+        if (version != null) {
+            return CompletableFuture.completedFuture(version);
+        }
+        Failure failure = getFailure(resolveFailures, cryptoKey);
+        if (failure != null) {
+            return CompletableFutures.failed(failure.toException());
+        }
+        CompletableFuture<CryptoKeyVersion> resolve = new CompletableFuture<>();
+        CompletableFuture<CryptoKeyVersion> pending = pendingResolves.putIfAbsent(cryptoKey, resolve);
+        if (pending != null) {
+            return pending;
+        }
+        CompletableFuture
+                .supplyAsync(() -> latestVersion(cryptoKey, client.listKeyVersions(cryptoKey)), refreshExecutor)
+                .whenComplete((v, t) -> {
+                    if (t == null) {
+                        versionCache.put(cryptoKey, v);
+                        pendingResolves.remove(cryptoKey, resolve);
+                        resolve.complete(v);
+                    } else {
+                        Throwable cause = CompletableFutures.unwrap(t);
+                        if (cause instanceof RuntimeException) {
+                            rememberResolveFailure(cryptoKey, (RuntimeException) cause);
+                        }
+                        pendingResolves.remove(cryptoKey, resolve);
+                        resolve.completeExceptionally(cause);
+                    }
+                });
+        return resolve;
+    }
+
+    private static CryptoKeyVersion latestVersion(CryptoKeyName cryptoKey, List<CryptoKeyVersion> versions) {
+        CryptoKeyVersion latest = null;
+        for (CryptoKeyVersion version : versions) {
+            if (version.getState() != CryptoKeyVersionState.ENABLED
+                    || !Algorithms.isSupported(version.getAlgorithm())) {
+                continue;
+            }
+            if (latest == null || isNewer(version, latest)) {
+                latest = version;
+            }
+        }
+        if (latest == null) {
+            throw new IllegalStateException("No enabled signing key version of: " + cryptoKey);
+        }
+        return latest;
+    }
+
+    private static boolean isNewer(CryptoKeyVersion version, CryptoKeyVersion other) {
+        Timestamp created = version.getCreateTime();
+        Timestamp otherCreated = other.getCreateTime();
+        if (created.getSeconds() != otherCreated.getSeconds()) {
+            return created.getSeconds() > otherCreated.getSeconds();
+        }
+        return created.getNanos() > otherCreated.getNanos();
+    }
+
+    /*
+     * Track a newly cached key for its tenant, and evict the first loaded key of
+     * the tenant if it is over its limit.
+     */
+    private void admit(CryptoKeyVersionName keyName) {
+        if (tenantLimit <= 0) {
+            return;
+        }
+        List<CryptoKeyVersionName> evicted = new ArrayList<>(1);
+        tenants.compute(tenant.apply(keyName), (t, keys) -> {
+            Set<CryptoKeyVersionName> result = keys == null ? new LinkedHashSet<>() : keys;
+            result.add(keyName);
+            if (result.size() > tenantLimit) {
+                Iterator<CryptoKeyVersionName> it = result.iterator();
+                evicted.add(it.next());
+                it.remove();
+            }
+            return result;
+        });
+        evicted.forEach(entryCache::invalidate);
+    }
+
+    private void release(CryptoKeyVersionName keyName) {
+        tenants.computeIfPresent(tenant.apply(keyName), (t, keys) -> {
+            keys.remove(keyName);
+            return keys.isEmpty() ? null : keys;
+        });
+    }
+
+    private static int weigh(Entry entry) {
+        return entry.getPublicKey().getEncoded().length;
+    }
+
+    private Entry checkEnabled(Entry entry) {
+        if (rejectDisabledKeys && !entry.isEnabled()) {
+            throw new KmsKeyException(entry.getKeyName(), KeyFailure.NOT_ENABLED,
+                    entry.getKeyName() + " is not enabled, current state is: " + entry.getState(), null);
+        }
+        return entry;
+    }
+
+    private <K> Failure getFailure(Cache<K, Failure> failures, K key) {
+        if (failures == null) {
+            return null;
+        }
+        Failure failure = failures.getIfPresent(key);
+        if (failure != null && failure.expiresAtMillis - clock.millis() <= 0) {
+            failures.asMap().remove(key, failure);
+            return null;
+        }
+        return failure;
+    }
+
+    /*
+     * Remember a failure to resolve a crypto key, unless it is transient. No
+     * enabled signing key version counts as not enabled.
+     */
+    private void rememberResolveFailure(CryptoKeyName cryptoKey, RuntimeException error) {
+        if (resolveFailures == null) {
+            return;
+        }
+        Optional<KeyFailure> failure = KeyFailure.of(error);
+        if (!failure.isPresent() && error instanceof IllegalStateException) {
+            failure = Optional.of(KeyFailure.NOT_ENABLED);
+        }
+        Duration duration = failure.map(negativeDurations::get).orElse(Duration.ZERO);
+        if (!duration.isZero()) {
+            resolveFailures.put(cryptoKey, new Failure(error, clock.millis() + duration.toMillis()));
+        }
+    }
+
+    /*
+     * Turn KMS errors that are about the key into key exceptions, and remember
+     * them for the duration of their failure type.
+     */
+    private <T> CompletableFuture<T> checkFailure(CryptoKeyVersionName keyName, CompletableFuture<T> future) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        future.whenComplete((value, error) -> {
+            if (error == null) {
+                result.complete(value);
+                return;
+            }
+            Throwable cause = CompletableFutures.unwrap(error);
+            KmsKeyException exception = cause instanceof KmsKeyException
+                    ? (KmsKeyException) cause
+                    : KeyFailure.of(cause).map(failure -> new KmsKeyException(keyName, failure,
+                            "Failed to get key: " + keyName + ", " + failure, cause)).orElse(null);
+            if (exception == null) {
+                result.completeExceptionally(cause);
+                return;
+            }
+            Duration duration = negativeDurations.get(exception.getFailure());
+            if (negativeCache != null && !duration.isZero()) {
+                negativeCache.put(keyName, new Failure(exception, clock.millis() + duration.toMillis()));
+            }
+            result.completeExceptionally(exception);
+        });
+        return result;
+    }
+
+    /*
+     * Load the key from the persistent file if present, otherwise from KMS. If the
+     * key version is already known only the public key is fetched.
+     */
+    private CompletableFuture<Entry> loadAsync(CryptoKeyVersionName keyName, CryptoKeyVersion knownKey) {
+        if (keyFile != null) {
+            Optional<KmsKeyFile.Record> record = keyFile.get(keyName);
+            if (record.isPresent()) {
+                try {
+                    return CompletableFuture.completedFuture(toEntry(record.get()));
+                } catch (RuntimeException e) {
+                    // unusable record, fall through to KMS
+                }
+            }
+        }
+        return checkFailure(keyName, fetchAsync(keyName, knownKey));
+    }
+
+    /*
+     * Refresh an entry from KMS. The public key of a key version never changes,
+     * so only the key version is fetched, to pick up state changes. If the key
+     * version is gone the entry is dropped.
+     */
+    private CompletableFuture<Entry> refreshAsync(Entry oldEntry) {
+        CryptoKeyVersionName keyName = oldEntry.getKeyName();
+        CompletableFuture<Entry> entry = checkFailure(keyName, client.getKeyAsync(keyName)
+                .thenApply(key -> new Entry(key, keyName, oldEntry.getPublicKey())));
+        entry.whenComplete((e, t) -> {
+            if (t instanceof KmsKeyException) {
+                refreshExecutor.execute(() -> entryCache.invalidate(keyName));
+            }
+        });
+        if (keyFile != null) {
+            entry.thenAccept(keyFile::put);
+        }
+        return entry;
+    }
+
+    /*
+     * Fetch the key from KMS. The key version and public key are fetched
+     * concurrently, as the public key can only be parsed when the algorithm is
+     * known.
+     */
+    private CompletableFuture<Entry> fetchAsync(CryptoKeyVersionName keyName, CryptoKeyVersion knownKey) {
+        CompletableFuture<CryptoKeyVersion> key = knownKey == null
+                ? client.getKeyAsync(keyName)
+                : CompletableFuture.completedFuture(knownKey);
+        CompletableFuture<byte[]> pem = client.getPublicKeyPemAsync(keyName);
+        CompletableFuture<Entry> entry = key.thenApply(k -> checkSupported(keyName, k)).thenCombine(pem,
+                (k, p) -> new Entry(k, keyName, Keys.toPublicKey(k.getAlgorithm(), p)));
+        if (keyFile != null) {
+            entry.thenAccept(keyFile::put);
+        }
+        return entry;
+    }
+
+    /*
+     * KMS refuses the public key of keys that are not asymmetric, so the
+     * algorithm is checked on the key version, to report the right failure.
+     */
+    private static CryptoKeyVersion checkSupported(CryptoKeyVersionName keyName, CryptoKeyVersion key) {
+        if (!Algorithms.isSupported(key.getAlgorithm())) {
+            throw new KmsKeyException(keyName, KeyFailure.UNSUPPORTED,
+                    "Not an asymmetric signing key: " + keyName + ", algorithm: " + key.getAlgorithm(), null);
+        }
+        return key;
+    }
+
+    private static Entry toEntry(KmsKeyFile.Record record) {
+        CryptoKeyVersion key = CryptoKeyVersion.newBuilder().setName(record.getKeyName().toString())
+                .setAlgorithm(record.getAlgorithm()).setState(record.getState()).build();
+        return new Entry(key, record.getKeyName(), Keys.toPublicKeyFromSpki(record.getAlgorithm(), record.getSpki()));
     }
 }
@@ -0,0 +1,52 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr;
+
+
+import com.google.cloud.kms.v1.CryptoKeyVersionName;
+
+/**
+ * Thrown by the key cache when a key version can't be used for signing. The
+ * failure may have been remembered from an earlier call, in which case the
+ * cause is the original error from KMS, if any.
+ */
+public class KmsKeyException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String keyName;
+    private final KeyFailure failure;
+
+    KmsKeyException(CryptoKeyVersionName keyName, KeyFailure failure, String message, Throwable cause) {
+        super(message, cause);
+        this.keyName = keyName.toString();
+        this.failure = failure;
+    }
+
+    /**
+     * @return The key version that failed, never null
+     */
+    public CryptoKeyVersionName getKeyName() {
+        return CryptoKeyVersionName.parse(keyName);
+    }
+
+    /**
+     * @return The reason the key version can't be used, never null
+     */
+    public KeyFailure getFailure() {
+        return failure;
+    }
+}
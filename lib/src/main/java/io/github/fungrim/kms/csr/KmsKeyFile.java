@@ -0,0 +1,267 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr;
+
+
+import com.google.cloud.kms.v1.CryptoKeyVersion.CryptoKeyVersionAlgorithm;
+import com.google.cloud.kms.v1.CryptoKeyVersion.CryptoKeyVersionState;
+import com.google.cloud.kms.v1.CryptoKeyVersionName;
+import com.google.common.base.Preconditions;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A persistent file of key records, used as a second tier behind the key cache
+ * so that a new process can sign without first fetching every key from KMS.
+ * The file is read once when created. Records older than the time to live are
+ * ignored, and if the file can't be read at all it is ignored as a whole, in
+ * both cases the keys are fetched from KMS instead. Writes are coalesced and
+ * done on the given executor, and {@link #close()} writes pending changes in
+ * the calling thread, as the executor may not run before the process exits.
+ * <p>
+ * The file format is, big endian: a magic number, a format version, a record
+ * count, the records and a CRC32 of all preceding bytes. Each record holds the
+ * load time in epoch millis, the key version name, the algorithm and state
+ * numbers and the DER encoded subject public key info.
+ */
+class KmsKeyFile {
+
+    private static final int MAGIC = 0x4B4D534B;
+    private static final short VERSION = 1;
+
+    /**
+     * A key record in the file.
+     */
+    static class Record {
+
+        private final CryptoKeyVersionName keyName;
+        private final CryptoKeyVersionAlgorithm algorithm;
+        private final CryptoKeyVersionState state;
+        private final byte[] spki;
+        private final long loadedAt;
+
+        Record(CryptoKeyVersionName keyName, CryptoKeyVersionAlgorithm algorithm, CryptoKeyVersionState state,
+                byte[] spki, long loadedAt) {
+            this.keyName = keyName;
+            this.algorithm = algorithm;
+            this.state = state;
+            this.spki = spki;
+            this.loadedAt = loadedAt;
+        }
+
+        CryptoKeyVersionName getKeyName() {
+            return keyName;
+        }
+
+        CryptoKeyVersionAlgorithm getAlgorithm() {
+            return algorithm;
+        }
+
+        CryptoKeyVersionState getState() {
+            return state;
+        }
+
+        byte[] getSpki() {
+            return spki;
+        }
+    }
+
+    private final ConcurrentMap<CryptoKeyVersionName, Record> records = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private volatile boolean dirty;
+    private final Path file;
+    private final long ttlMillis;
+    private final Executor executor;
+
+    /**
+     * @param file
+     *            File to use, must not be null
+     * @param ttl
+     *            Max age of records, must not be null
+     * @param executor
+     *            Executor to write the file on, must not be null
+     */
+    KmsKeyFile(Path file, Duration ttl, Executor executor) {
+        this.file = Preconditions.checkNotNull(file);
+        this.ttlMillis = Preconditions.checkNotNull(ttl).toMillis();
+        this.executor = Preconditions.checkNotNull(executor);
+        this.records.putAll(read());
+    }
+
+    /**
+     * @param keyName
+     *            Key to get, must not be null
+     * @return The record, or empty if missing or older than the time to live
+     */
+    Optional<Record> get(CryptoKeyVersionName keyName) {
+        Record record = records.get(keyName);
+        if (record == null || System.currentTimeMillis() - record.loadedAt > ttlMillis) {
+            return Optional.empty();
+        }
+        return Optional.of(record);
+    }
+
+    /**
+     * Add or replace a record and schedule a write of the file.
+     * 
+     * @param entry
+     *            Key entry to store, must not be null
+     */
+    void put(KmsKeyCache.Entry entry) {
+        records.put(entry.getKeyName(), new Record(entry.getKeyName(), entry.getAlgorithm(), entry.getKey().getState(),
+                entry.getPublicKey().getEncoded(), System.currentTimeMillis()));
+        dirty = true;
+        if (flushScheduled.compareAndSet(false, true)) {
+            executor.execute(() -> {
+                flushScheduled.set(false);
+                flush();
+            });
+        }
+    }
+
+    /**
+     * Write all records that are still alive to the file. Failures are ignored,
+     * the file is only an optimization.
+     */
+    synchronized void flush() {
+        dirty = false;
+        long now = System.currentTimeMillis();
+        List<Record> alive = new ArrayList<>();
+        for (Record record : records.values()) {
+            if (now - record.loadedAt <= ttlMillis) {
+                alive.add(record);
+            }
+        }
+        Path temp = null;
+        try {
+            Path parent = file.toAbsolutePath().getParent();
+            Files.createDirectories(parent);
+            temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+            Files.write(temp, encode(alive));
+            try {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            temp = null;
+        } catch (IOException e) {
+            // ignore, keys will be fetched from KMS next time
+        } finally {
+            deleteQuietly(temp);
+        }
+    }
+
+    /**
+     * Write pending changes to the file in the calling thread, waiting for a
+     * write in progress.
+     */
+    void close() {
+        if (dirty) {
+            flush();
+        }
+    }
+
+    private static void deleteQuietly(Path temp) {
+        if (temp != null) {
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException e) {
+                // ignore, only a stray temp file
+            }
+        }
+    }
+
+    private static byte[] encode(List<Record> records) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CRC32 crc = new CRC32();
+        DataOutputStream out = new DataOutputStream(new CheckedOutputStream(bytes, crc));
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeInt(records.size());
+        for (Record record : records) {
+            out.writeLong(record.loadedAt);
+            byte[] name = record.keyName.toString().getBytes(StandardCharsets.UTF_8);
+            out.writeShort(name.length);
+            out.write(name);
+            out.writeInt(record.algorithm.getNumber());
+            out.writeInt(record.state.getNumber());
+            out.writeInt(record.spki.length);
+            out.write(record.spki);
+        }
+        out.flush();
+        new DataOutputStream(bytes).writeInt((int) crc.getValue());
+        return bytes.toByteArray();
+    }
+
+    private Map<CryptoKeyVersionName, Record> read() {
+        if (!Files.isRegularFile(file)) {
+            return new HashMap<>();
+        }
+        try {
+            return decode(ByteBuffer.wrap(Files.readAllBytes(file)), System.currentTimeMillis());
+        } catch (IOException | RuntimeException e) {
+            // missing, truncated or corrupt, fall back to KMS
+            return new HashMap<>();
+        }
+    }
+
+    private Map<CryptoKeyVersionName, Record> decode(ByteBuffer buffer, long now) {
+        int crcOffset = buffer.limit() - Integer.BYTES;
+        ByteBuffer content = buffer.duplicate();
+        content.limit(crcOffset);
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        Preconditions.checkState(buffer.getInt(crcOffset) == (int) crc.getValue(), "Checksum mismatch");
+        Preconditions.checkState(buffer.getInt() == MAGIC, "Not a key file");
+        Preconditions.checkState(buffer.getShort() == VERSION, "Unsupported key file version");
+        int count = buffer.getInt();
+        Map<CryptoKeyVersionName, Record> result = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            long loadedAt = buffer.getLong();
+            byte[] name = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(name);
+            CryptoKeyVersionAlgorithm algorithm = CryptoKeyVersionAlgorithm.forNumber(buffer.getInt());
+            CryptoKeyVersionState state = CryptoKeyVersionState.forNumber(buffer.getInt());
+            byte[] spki = new byte[buffer.getInt()];
+            buffer.get(spki);
+            if (algorithm != null && state != null && now - loadedAt <= ttlMillis) {
+                CryptoKeyVersionName keyName = CryptoKeyVersionName.parse(new String(name, StandardCharsets.UTF_8));
+                result.put(keyName, new Record(keyName, algorithm, state, spki, loadedAt));
+            }
+        }
+        Preconditions.checkState(buffer.position() == crcOffset, "Trailing bytes in key file");
+        return result;
+    }
+}
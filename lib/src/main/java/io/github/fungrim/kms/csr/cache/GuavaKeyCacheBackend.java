@@ -0,0 +1,120 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.cache;
+
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalCause;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import io.github.fungrim.kms.csr.util.CompletableFutures;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The default key cache backend, a Guava loading cache. Size and weight bounds
+ * evict by approximate least recent use.
+ */
+public class GuavaKeyCacheBackend implements KeyCacheBackend {
+
+    @Override
+    public <K, V> KeyCacheStore<K, V> create(KeyCacheSpec<K, V> spec) {
+        CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder()
+                .expireAfterAccess(spec.getExpireAfterAccess().toMillis(), TimeUnit.MILLISECONDS).recordStats();
+        if (spec.getRefreshAfterWrite() != null) {
+            builder.refreshAfterWrite(spec.getRefreshAfterWrite().toMillis(), TimeUnit.MILLISECONDS);
+        }
+        if (spec.isSizeBounded()) {
+            builder.maximumSize(spec.getMaximumSize());
+        } else if (spec.isWeightBounded()) {
+            builder.maximumWeight(spec.getMaximumWeight());
+        }
+        CacheBuilder<K, V> typed = withListeners(builder, spec);
+        return new Store<>(typed.build(new CacheLoader<K, V>() {
+
+            @Override
+            public V load(K key) throws Exception {
+                return spec.getLoader().load(key);
+            }
+
+            @Override
+            public ListenableFuture<V> reload(K key, V oldValue) {
+                return CompletableFutures.toListenable(spec.getLoader().reload(key, oldValue));
+            }
+        }));
+    }
+
+    private static <K, V> CacheBuilder<K, V> withListeners(CacheBuilder<Object, Object> builder,
+            KeyCacheSpec<K, V> spec) {
+        CacheBuilder<K, V> typed = builder.removalListener(notification -> {
+            if (spec.getRemovalListener() != null && notification.getCause() != RemovalCause.REPLACED) {
+                spec.getRemovalListener().accept(notification.getKey(), notification.getValue());
+            }
+        });
+        if (spec.isWeightBounded()) {
+            typed = typed.weigher((key, value) -> spec.getWeigher().applyAsInt(key, value));
+        }
+        return typed;
+    }
+
+    private static class Store<K, V> implements KeyCacheStore<K, V> {
+
+        private final LoadingCache<K, V> cache;
+
+        private Store(LoadingCache<K, V> cache) {
+            this.cache = cache;
+        }
+
+        @Override
+        public V get(K key) {
+            try {
+                return cache.getUnchecked(key);
+            } catch (UncheckedExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        @Override
+        public V getIfPresent(K key) {
+            return cache.getIfPresent(key);
+        }
+
+        @Override
+        public void put(K key, V value) {
+            cache.put(key, value);
+        }
+
+        @Override
+        public void invalidate(K key) {
+            cache.invalidate(key);
+        }
+
+        @Override
+        public long size() {
+            return cache.size();
+        }
+
+        @Override
+        public CacheStats stats() {
+            return cache.stats();
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.cache;
+
+
+/**
+ * A service provider interface for the cache implementation behind the key
+ * cache. The default, {@link GuavaKeyCacheBackend}, uses a Guava loading cache.
+ * Other implementations, e.g. with an admission policy that gets better hit
+ * rates on skewed workloads, can be plugged in via
+ * {@code KmsKeyCache.Builder#withBackend}.
+ */
+public interface KeyCacheBackend {
+
+    /**
+     * Create a new cache store. The store must honor all settings of the spec.
+     * 
+     * @param spec
+     *            Cache settings and loader, never null
+     * @return A new store, never null
+     */
+    public <K, V> KeyCacheStore<K, V> create(KeyCacheSpec<K, V> spec);
+
+}
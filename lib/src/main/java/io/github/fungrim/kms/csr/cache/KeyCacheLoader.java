@@ -0,0 +1,49 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.cache;
+
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Loads and reloads values for a {@link KeyCacheStore}.
+ */
+public interface KeyCacheLoader<K, V> {
+
+    /**
+     * Load a missing value, blocking until it is loaded.
+     * 
+     * @param key
+     *            Key to load, never null
+     * @return The value, never null
+     * @throws Exception
+     *             If the value could not be loaded
+     */
+    public V load(K key) throws Exception;
+
+    /**
+     * Reload a value after the refresh interval, without blocking. If the
+     * returned future fails the old value should be kept.
+     * 
+     * @param key
+     *            Key to reload, never null
+     * @param oldValue
+     *            The current value, never null
+     * @return A future for the new value, never null
+     */
+    public CompletableFuture<V> reload(K key, V oldValue);
+
+}
@@ -0,0 +1,210 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.cache;
+
+
+import com.google.common.base.Preconditions;
+import java.time.Duration;
+import java.util.function.BiConsumer;
+import java.util.function.ToIntBiFunction;
+
+/**
+ * The settings of a {@link KeyCacheStore}, as given to a
+ * {@link KeyCacheBackend}. A store is bounded by either a maximum size or a
+ * maximum weight, or not at all.
+ */
+public class KeyCacheSpec<K, V> {
+
+    /**
+     * A builder for cache specs. Created via
+     * {@link KeyCacheSpec#builder(KeyCacheLoader)}.
+     */
+    public static class Builder<K, V> {
+
+        private final KeyCacheLoader<K, V> loader;
+        private Duration expireAfterAccess;
+        private Duration refreshAfterWrite;
+        private long maximumSize = -1;
+        private long maximumWeight = -1;
+        private ToIntBiFunction<K, V> weigher;
+        private BiConsumer<K, V> removalListener;
+
+        private Builder(KeyCacheLoader<K, V> loader) {
+            this.loader = loader;
+        }
+
+        /**
+         * @param duration
+         *            Time a value is kept after it was last accessed, must not be
+         *            null
+         * @return This builder
+         */
+        public Builder<K, V> withExpireAfterAccess(Duration duration) {
+            this.expireAfterAccess = Preconditions.checkNotNull(duration);
+            return this;
+        }
+
+        /**
+         * @param interval
+         *            Time after which a value is reloaded on access, if null
+         *            values are not reloaded
+         * @return This builder
+         */
+        public Builder<K, V> withRefreshAfterWrite(Duration interval) {
+            this.refreshAfterWrite = interval;
+            return this;
+        }
+
+        /**
+         * @param size
+         *            Maximum number of values, must be positive
+         * @return This builder
+         */
+        public Builder<K, V> withMaximumSize(long size) {
+            Preconditions.checkArgument(size > 0, "Maximum size must be positive");
+            this.maximumSize = size;
+            this.maximumWeight = -1;
+            this.weigher = null;
+            return this;
+        }
+
+        /**
+         * @param weight
+         *            Maximum total weight of all values, must be positive
+         * @param weigher
+         *            Weight of a value, must not be null and must not return a
+         *            negative weight
+         * @return This builder
+         */
+        public Builder<K, V> withMaximumWeight(long weight, ToIntBiFunction<K, V> weigher) {
+            Preconditions.checkArgument(weight > 0, "Maximum weight must be positive");
+            this.maximumWeight = weight;
+            this.weigher = Preconditions.checkNotNull(weigher);
+            this.maximumSize = -1;
+            return this;
+        }
+
+        /**
+         * @param listener
+         *            Called when a value is evicted, expires or is invalidated, but
+         *            not when it is replaced, if null nothing is called
+         * @return This builder
+         */
+        public Builder<K, V> withRemovalListener(BiConsumer<K, V> listener) {
+            this.removalListener = listener;
+            return this;
+        }
+
+        /**
+         * @return A new spec, never null
+         */
+        public KeyCacheSpec<K, V> build() {
+            Preconditions.checkState(expireAfterAccess != null, "Expire after access must be set");
+            return new KeyCacheSpec<>(this);
+        }
+    }
+
+    /**
+     * @param loader
+     *            Loader of missing and refreshed values, must not be null
+     * @return A new builder, never null
+     */
+    public static <K, V> Builder<K, V> builder(KeyCacheLoader<K, V> loader) {
+        return new Builder<>(Preconditions.checkNotNull(loader));
+    }
+
+    private final KeyCacheLoader<K, V> loader;
+    private final Duration expireAfterAccess;
+    private final Duration refreshAfterWrite;
+    private final long maximumSize;
+    private final long maximumWeight;
+    private final ToIntBiFunction<K, V> weigher;
+    private final BiConsumer<K, V> removalListener;
+
+    private KeyCacheSpec(Builder<K, V> builder) {
+        this.loader = builder.loader;
+        this.expireAfterAccess = builder.expireAfterAccess;
+        this.refreshAfterWrite = builder.refreshAfterWrite;
+        this.maximumSize = builder.maximumSize;
+        this.maximumWeight = builder.maximumWeight;
+        this.weigher = builder.weigher;
+        this.removalListener = builder.removalListener;
+    }
+
+    /**
+     * @return The loader, never null
+     */
+    public KeyCacheLoader<K, V> getLoader() {
+        return loader;
+    }
+
+    /**
+     * @return The time a value is kept after it was last accessed, never null
+     */
+    public Duration getExpireAfterAccess() {
+        return expireAfterAccess;
+    }
+
+    /**
+     * @return The time after which a value is reloaded, or null if values are not
+     *         reloaded
+     */
+    public Duration getRefreshAfterWrite() {
+        return refreshAfterWrite;
+    }
+
+    /**
+     * @return True if the number of values is bounded
+     */
+    public boolean isSizeBounded() {
+        return maximumSize > 0;
+    }
+
+    /**
+     * @return The maximum number of values, only valid if size bounded
+     */
+    public long getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * @return True if the total weight of values is bounded
+     */
+    public boolean isWeightBounded() {
+        return maximumWeight > 0;
+    }
+
+    /**
+     * @return The maximum total weight, only valid if weight bounded
+     */
+    public long getMaximumWeight() {
+        return maximumWeight;
+    }
+
+    /**
+     * @return The weigher, or null if not weight bounded
+     */
+    public ToIntBiFunction<K, V> getWeigher() {
+        return weigher;
+    }
+
+    /**
+     * @return The removal listener, or null if none
+     */
+    public BiConsumer<K, V> getRemovalListener() {
+        return removalListener;
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.cache;
+
+
+import com.google.common.cache.CacheStats;
+
+/**
+ * A loading cache created by a {@link KeyCacheBackend}. Implementations must be
+ * thread safe.
+ */
+public interface KeyCacheStore<K, V> {
+
+    /**
+     * Get a value, loading it via the loader of the spec on a cache miss.
+     * Concurrent gets for the same missing key should share a single load.
+     * Runtime exceptions thrown by the loader must be rethrown as is.
+     * 
+     * @param key
+     *            Key to get, never null
+     * @return The value, never null
+     */
+    public V get(K key);
+
+    /**
+     * @param key
+     *            Key to get, never null
+     * @return The value, or null if not in the cache
+     */
+    public V getIfPresent(K key);
+
+    /**
+     * Put a value in the cache, replacing any current value.
+     * 
+     * @param key
+     *            Key to put, never null
+     * @param value
+     *            Value to put, never null
+     */
+    public void put(K key, V value);
+
+    /**
+     * Remove a value from the cache.
+     * 
+     * @param key
+     *            Key to remove, never null
+     */
+    public void invalidate(K key);
+
+    /**
+     * @return The approximate number of values in the cache
+     */
+    public long size();
+
+    /**
+     * @return The current hit, miss, load and eviction statistics, never null
+     */
+    public CacheStats stats();
+
+}
@@ -0,0 +1,454 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.client;
+
+
+import com.google.api.gax.rpc.StatusCode.Code;
+import com.google.cloud.kms.v1.CryptoKeyName;
+import com.google.cloud.kms.v1.CryptoKeyVersion;
+import com.google.cloud.kms.v1.CryptoKeyVersionName;
+import com.google.cloud.kms.v1.Digest;
+import com.google.cloud.kms.v1.KeyRingName;
+import com.google.common.base.Preconditions;
+import io.github.fungrim.kms.csr.metrics.KmsMetrics;
+import io.github.fungrim.kms.csr.util.CompletableFutures;
+import io.github.fungrim.kms.csr.util.Provider;
+import io.github.fungrim.kms.csr.util.StatusCodes;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A KMS service client that limits the number of concurrent sign calls, per key
+ * version or per project, before delegating to another client. The limit adapts
+ * to KMS: it grows by one per limit of successful calls while in use, and is cut
+ * by the backoff ratio when KMS answers RESOURCE_EXHAUSTED or DEADLINE_EXCEEDED,
+ * or optionally when a call is slower than a latency threshold.
+ * 
+ * Calls above the limit wait in a bounded queue, for at most the queue timeout
+ * after which they fail with DEADLINE_EXCEEDED. When the queue is full, calls
+ * fail at once with RESOURCE_EXHAUSTED instead of adding to the load on KMS.
+ * Only sign calls are limited, key lookups are few and pass straight through.
+ */
+public class ConcurrencyLimitingKmsServiceClient implements KmsServiceClient, AutoCloseable {
+
+    /**
+     * How calls are grouped under a shared limit.
+     */
+    public static enum Partitioning {
+
+        /**
+         * One limit per key version.
+         */
+        KEY,
+
+        /**
+         * One limit per GCP project, which matches the KMS quotas.
+         */
+        PROJECT
+
+    }
+
+    /**
+     * A builder for the client. Created via
+     * {@link ConcurrencyLimitingKmsServiceClient#builder(KmsServiceClient)}.
+     */
+    public static class Builder {
+
+        private final KmsServiceClient delegate;
+        private Partitioning partitioning = Partitioning.PROJECT;
+        private int initialLimit = 20;
+        private int minLimit = 1;
+        private int maxLimit = 500;
+        private double backoffRatio = 0.9;
+        private Duration latencyThreshold;
+        private int maxQueueSize = 100;
+        private Duration queueTimeout = Duration.ofSeconds(1);
+        private KmsMetrics metrics = KmsMetrics.NOOP;
+        private ScheduledExecutorService scheduler;
+
+        private Builder(KmsServiceClient delegate) {
+            this.delegate = Preconditions.checkNotNull(delegate);
+        }
+
+        /**
+         * @param partitioning
+         *            How to group calls, defaults to per project, must not be null
+         * @return This builder
+         */
+        public Builder withPartitioning(Partitioning partitioning) {
+            this.partitioning = Preconditions.checkNotNull(partitioning);
+            return this;
+        }
+
+        /**
+         * @param initial
+         *            The starting limit, defaults to 20
+         * @param min
+         *            The lowest limit, defaults to 1
+         * @param max
+         *            The highest limit, defaults to 500
+         * @return This builder
+         */
+        public Builder withLimit(int initial, int min, int max) {
+            Preconditions.checkArgument(min > 0 && min <= initial && initial <= max,
+                    "Limits must be positive and min <= initial <= max");
+            this.initialLimit = initial;
+            this.minLimit = min;
+            this.maxLimit = max;
+            return this;
+        }
+
+        /**
+         * @param ratio
+         *            The factor to cut the limit with on overload, between 0 and 1,
+         *            defaults to 0.9
+         * @return This builder
+         */
+        public Builder withBackoffRatio(double ratio) {
+            Preconditions.checkArgument(ratio > 0 && ratio < 1, "Backoff ratio must be between 0 and 1");
+            this.backoffRatio = ratio;
+            return this;
+        }
+
+        /**
+         * @param threshold
+         *            Calls slower than this count as overload, if null only errors
+         *            do, which is the default
+         * @return This builder
+         */
+        public Builder withLatencyThreshold(Duration threshold) {
+            this.latencyThreshold = threshold;
+            return this;
+        }
+
+        /**
+         * @param maxSize
+         *            The maximum number of waiting calls per partition, defaults to
+         *            100, 0 to never wait
+         * @param timeout
+         *            The longest a call waits, defaults to one second, must not be
+         *            null
+         * @return This builder
+         */
+        public Builder withQueue(int maxSize, Duration timeout) {
+            Preconditions.checkArgument(maxSize >= 0, "Queue size must not be negative");
+            this.maxQueueSize = maxSize;
+            this.queueTimeout = Preconditions.checkNotNull(timeout);
+            return this;
+        }
+
+        /**
+         * @param metrics
+         *            Metrics to register the limit and queue depth of each partition
+         *            with, must not be null
+         * @return This builder
+         */
+        public Builder withMetrics(KmsMetrics metrics) {
+            this.metrics = Preconditions.checkNotNull(metrics);
+            return this;
+        }
+
+        /**
+         * @param scheduler
+         *            Scheduler for queue timeouts, if null a single daemon thread is
+         *            created and shut down on close
+         * @return This builder
+         */
+        public Builder withScheduler(ScheduledExecutorService scheduler) {
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        /**
+         * @return A new client, never null
+         */
+        public ConcurrencyLimitingKmsServiceClient build() {
+            return new ConcurrencyLimitingKmsServiceClient(this);
+        }
+    }
+
+    /**
+     * @param delegate
+     *            Client to delegate to, must not be null
+     * @return A new builder, never null
+     */
+    public static Builder builder(KmsServiceClient delegate) {
+        return new Builder(delegate);
+    }
+
+    private static class Waiter {
+
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private ScheduledFuture<?> timeout;
+
+    }
+
+    private class Partition {
+
+        private final String name;
+        private final Deque<Waiter> queue = new ArrayDeque<>();
+        private double limit = initialLimit;
+        private int inFlight;
+
+        private Partition(String name) {
+            this.name = name;
+        }
+
+        private CompletableFuture<Void> acquire() {
+            Waiter waiter;
+            synchronized (this) {
+                if (inFlight < (int) limit && queue.isEmpty()) {
+                    inFlight++;
+                    return CompletableFuture.completedFuture(null);
+                }
+                if (queue.size() >= maxQueueSize) {
+                    metrics.recordRejection(name, Code.RESOURCE_EXHAUSTED);
+                    return CompletableFutures.failed(StatusCodes.toException(Code.RESOURCE_EXHAUSTED,
+                            "Concurrency limit of " + (int) limit + " reached for: " + name));
+                }
+                waiter = new Waiter();
+                queue.addLast(waiter);
+                waiter.timeout = scheduler.schedule(() -> expire(waiter), queueTimeout.toNanos(),
+                        TimeUnit.NANOSECONDS);
+            }
+            waiter.future.whenComplete((v, error) -> {
+                if (waiter.future.isCancelled()) {
+                    cancel(waiter);
+                }
+            });
+            return waiter.future;
+        }
+
+        private void cancel(Waiter waiter) {
+            synchronized (this) {
+                if (!queue.remove(waiter)) {
+                    return;
+                }
+            }
+            waiter.timeout.cancel(false);
+        }
+
+        private void expire(Waiter waiter) {
+            synchronized (this) {
+                if (!queue.remove(waiter)) {
+                    return;
+                }
+            }
+            metrics.recordRejection(name, Code.DEADLINE_EXCEEDED);
+            waiter.future.completeExceptionally(StatusCodes.toException(Code.DEADLINE_EXCEEDED,
+                    "Timed out waiting for a concurrency permit for: " + name));
+        }
+
+        private void release(long nanos, Code status) {
+            synchronized (this) {
+                inFlight--;
+                boolean overload = status == Code.RESOURCE_EXHAUSTED || status == Code.DEADLINE_EXCEEDED
+                        || (latencyThreshold != null && nanos > latencyThreshold.toNanos());
+                if (overload) {
+                    limit = Math.max(minLimit, limit * backoffRatio);
+                } else if (status == Code.OK && inFlight + 1 >= limit / 2) {
+                    limit = Math.min(maxLimit, limit + 1 / limit);
+                }
+            }
+            dispatch();
+        }
+
+        private void dispatch() {
+            while (true) {
+                Waiter waiter;
+                synchronized (this) {
+                    if (inFlight >= (int) limit || queue.isEmpty()) {
+                        return;
+                    }
+                    inFlight++;
+                    waiter = queue.pollFirst();
+                }
+                waiter.timeout.cancel(false);
+                if (!waiter.future.complete(null)) {
+                    // cancelled while being handed the permit, pass it on
+                    synchronized (this) {
+                        inFlight--;
+                    }
+                }
+            }
+        }
+
+        private synchronized int getLimit() {
+            return (int) limit;
+        }
+
+        private synchronized int getInFlight() {
+            return inFlight;
+        }
+
+        private synchronized int getQueueDepth() {
+            return queue.size();
+        }
+    }
+
+    private final Map<String, Partition> partitions = new ConcurrentHashMap<>();
+    private final KmsServiceClient delegate;
+    private final Partitioning partitioning;
+    private final int initialLimit;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double backoffRatio;
+    private final Duration latencyThreshold;
+    private final int maxQueueSize;
+    private final Duration queueTimeout;
+    private final KmsMetrics metrics;
+    private final ScheduledExecutorService scheduler;
+    private final boolean ownsScheduler;
+
+    private ConcurrencyLimitingKmsServiceClient(Builder builder) {
+        this.delegate = builder.delegate;
+        this.partitioning = builder.partitioning;
+        this.initialLimit = builder.initialLimit;
+        this.minLimit = builder.minLimit;
+        this.maxLimit = builder.maxLimit;
+        this.backoffRatio = builder.backoffRatio;
+        this.latencyThreshold = builder.latencyThreshold;
+        this.maxQueueSize = builder.maxQueueSize;
+        this.queueTimeout = builder.queueTimeout;
+        this.metrics = builder.metrics;
+        this.ownsScheduler = builder.scheduler == null;
+        this.scheduler = ownsScheduler ? Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "kms-concurrency-limiter");
+            thread.setDaemon(true);
+            return thread;
+        }) : builder.scheduler;
+    }
+
+    /**
+     * @param keyName
+     *            Key version to get the limit for, must not be null
+     * @return The current concurrency limit of the key version partition
+     */
+    public int getLimit(CryptoKeyVersionName keyName) {
+        return partition(keyName).getLimit();
+    }
+
+    /**
+     * @param keyName
+     *            Key version to get the queue depth for, must not be null
+     * @return The number of calls waiting in the key version partition
+     */
+    public int getQueueDepth(CryptoKeyVersionName keyName) {
+        return partition(keyName).getQueueDepth();
+    }
+
+    @Override
+    public CryptoKeyVersion getKey(CryptoKeyVersionName keyName) {
+        return delegate.getKey(keyName);
+    }
+
+    @Override
+    public byte[] getPublicKeyPem(CryptoKeyVersionName keyName) {
+        return delegate.getPublicKeyPem(keyName);
+    }
+
+    @Override
+    public byte[] asymmetricSign(CryptoKeyVersionName keyName, Digest digest) {
+        Partition partition = partition(keyName);
+        CompletableFutures.join(partition.acquire());
+        long start = System.nanoTime();
+        Code status = Code.UNKNOWN;
+        try {
+            byte[] result = delegate.asymmetricSign(keyName, digest);
+            status = Code.OK;
+            return result;
+        } catch (RuntimeException e) {
+            status = StatusCodes.of(e);
+            throw e;
+        } finally {
+            partition.release(System.nanoTime() - start, status);
+        }
+    }
+
+    @Override
+    public List<CryptoKeyVersion> listSigningKeys(KeyRingName keyRing) {
+        return delegate.listSigningKeys(keyRing);
+    }
+
+    @Override
+    public List<CryptoKeyVersion> listKeyVersions(CryptoKeyName cryptoKey) {
+        return delegate.listKeyVersions(cryptoKey);
+    }
+
+    @Override
+    public CompletableFuture<CryptoKeyVersion> getKeyAsync(CryptoKeyVersionName keyName) {
+        return delegate.getKeyAsync(keyName);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getPublicKeyPemAsync(CryptoKeyVersionName keyName) {
+        return delegate.getPublicKeyPemAsync(keyName);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> asymmetricSignAsync(CryptoKeyVersionName keyName, Digest digest) {
+        Partition partition = partition(keyName);
+        return CompletableFutures.compose(partition.acquire(), (v, acquireError) -> {
+            if (acquireError != null) {
+                return CompletableFutures.failed(acquireError);
+            }
+            long start = System.nanoTime();
+            return CompletableFutures.compose(call(() -> delegate.asymmetricSignAsync(keyName, digest)),
+                    (result, error) -> {
+                        partition.release(System.nanoTime() - start, StatusCodes.of(error));
+                        return error == null ? CompletableFuture.completedFuture(result)
+                                : CompletableFutures.failed(error);
+                    });
+        });
+    }
+
+    /**
+     * Shut down the scheduler, if it was created by the client.
+     */
+    @Override
+    public void close() {
+        if (ownsScheduler) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private static <T> CompletableFuture<T> call(Provider<CompletableFuture<T>> provider) {
+        try {
+            return provider.get();
+        } catch (RuntimeException e) {
+            return CompletableFutures.failed(e);
+        }
+    }
+
+    private Partition partition(CryptoKeyVersionName keyName) {
+        String name = partitioning == Partitioning.KEY ? keyName.toString() : keyName.getProject();
+        return partitions.computeIfAbsent(name, n -> {
+            Partition partition = new Partition(n);
+            metrics.registerConcurrencyLimit(n, partition::getLimit, partition::getInFlight,
+                    partition::getQueueDepth);
+            return partition;
+        });
+    }
+}
@@ -16,32 +16,136 @@
 package io.github.fungrim.kms.csr.client;
 
 
+import com.google.cloud.kms.v1.AsymmetricSignRequest;
+import com.google.cloud.kms.v1.CryptoKey;
+import com.google.cloud.kms.v1.CryptoKey.CryptoKeyPurpose;
+import com.google.cloud.kms.v1.CryptoKeyName;
 import com.google.cloud.kms.v1.CryptoKeyVersion;
+import com.google.cloud.kms.v1.CryptoKeyVersion.CryptoKeyVersionState;
 import com.google.cloud.kms.v1.CryptoKeyVersionName;
 import com.google.cloud.kms.v1.Digest;
+import com.google.cloud.kms.v1.GetCryptoKeyVersionRequest;
+import com.google.cloud.kms.v1.GetPublicKeyRequest;
 import com.google.cloud.kms.v1.KeyManagementServiceClient;
+import com.google.cloud.kms.v1.KeyRingName;
 import com.google.common.base.Preconditions;
+import io.github.fungrim.kms.csr.util.Algorithms;
+import io.github.fungrim.kms.csr.util.CompletableFutures;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * A KMS service client on top of the GCP KMS client. The asynchronous calls use
+ * the GAPIC futures of the underlying client and do not block any thread while
+ * waiting for KMS.
+ * 
+ * The client can be given several GCP clients, each with its own gRPC channel,
+ * to spread the calls over round robin. At high concurrency this avoids the
+ * limit on concurrent streams per HTTP/2 connection. The GCP clients are not
+ * closed by this client.
+ */
 public class DefaultKmsServiceClient implements KmsServiceClient {
 
-    private final KeyManagementServiceClient client;
+    private final AtomicInteger next = new AtomicInteger();
+    private final KeyManagementServiceClient[] clients;
 
     public DefaultKmsServiceClient(KeyManagementServiceClient client) {
-        this.client = Preconditions.checkNotNull(client);
+        this.clients = new KeyManagementServiceClient[] { Preconditions.checkNotNull(client) };
+    }
+
+    /**
+     * @param clients
+     *            GCP clients to spread calls over, must not be null or empty
+     */
+    public DefaultKmsServiceClient(List<KeyManagementServiceClient> clients) {
+        Preconditions.checkArgument(!clients.isEmpty(), "No clients given");
+        this.clients = clients.toArray(new KeyManagementServiceClient[0]);
+        for (KeyManagementServiceClient client : this.clients) {
+            Preconditions.checkNotNull(client);
+        }
+    }
+
+    /**
+     * @return The number of GCP clients calls are spread over
+     */
+    public int getShards() {
+        return clients.length;
     }
 
     @Override
     public CryptoKeyVersion getKey(CryptoKeyVersionName keyName) {
-        return client.getCryptoKeyVersion(keyName);
+        return client().getCryptoKeyVersion(keyName);
     }
 
     @Override
     public byte[] asymmetricSign(CryptoKeyVersionName keyName, Digest digest) {
-        return client.asymmetricSign(keyName, digest).getSignature().toByteArray();
+        return client().asymmetricSign(keyName, digest).getSignature().toByteArray();
     }
 
     @Override
     public byte[] getPublicKeyPem(CryptoKeyVersionName keyName) {
-        return client.getPublicKey(keyName).getPemBytes().toByteArray();
+        return client().getPublicKey(keyName).getPemBytes().toByteArray();
+    }
+
+    @Override
+    public List<CryptoKeyVersion> listSigningKeys(KeyRingName keyRing) {
+        List<CryptoKeyVersion> result = new ArrayList<>();
+        KeyManagementServiceClient client = client();
+        for (CryptoKey key : client.listCryptoKeys(keyRing).iterateAll()) {
+            if (key.getPurpose() != CryptoKeyPurpose.ASYMMETRIC_SIGN) {
+                continue;
+            }
+            for (CryptoKeyVersion version : client.listCryptoKeyVersions(key.getName()).iterateAll()) {
+                if (version.getState() == CryptoKeyVersionState.ENABLED
+                        && Algorithms.isSupported(version.getAlgorithm())) {
+                    result.add(version);
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public List<CryptoKeyVersion> listKeyVersions(CryptoKeyName cryptoKey) {
+        List<CryptoKeyVersion> result = new ArrayList<>();
+        for (CryptoKeyVersion version : client().listCryptoKeyVersions(cryptoKey).iterateAll()) {
+            if (version.getState() == CryptoKeyVersionState.ENABLED) {
+                result.add(version);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public CompletableFuture<CryptoKeyVersion> getKeyAsync(CryptoKeyVersionName keyName) {
+        GetCryptoKeyVersionRequest request = GetCryptoKeyVersionRequest.newBuilder().setName(keyName.toString())
+                .build();
+        return CompletableFutures.toCompletable(client().getCryptoKeyVersionCallable().futureCall(request));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> asymmetricSignAsync(CryptoKeyVersionName keyName, Digest digest) {
+        AsymmetricSignRequest request = AsymmetricSignRequest.newBuilder().setName(keyName.toString())
+                .setDigest(digest).build();
+        return CompletableFutures.thenApply(
+                CompletableFutures.toCompletable(client().asymmetricSignCallable().futureCall(request)),
+                r -> r.getSignature().toByteArray());
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getPublicKeyPemAsync(CryptoKeyVersionName keyName) {
+        GetPublicKeyRequest request = GetPublicKeyRequest.newBuilder().setName(keyName.toString()).build();
+        return CompletableFutures.thenApply(
+                CompletableFutures.toCompletable(client().getPublicKeyCallable().futureCall(request)),
+                k -> k.getPemBytes().toByteArray());
+    }
+
+    private KeyManagementServiceClient client() {
+        if (clients.length == 1) {
+            return clients[0];
+        }
+        return clients[Math.floorMod(next.getAndIncrement(), clients.length)];
     }
 }
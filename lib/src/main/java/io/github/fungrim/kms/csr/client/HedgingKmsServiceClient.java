@@ -0,0 +1,517 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.client;
+
+
+import com.google.api.gax.rpc.StatusCode.Code;
+import com.google.cloud.kms.v1.CryptoKeyName;
+import com.google.cloud.kms.v1.CryptoKeyVersion;
+import com.google.cloud.kms.v1.CryptoKeyVersionName;
+import com.google.cloud.kms.v1.Digest;
+import com.google.cloud.kms.v1.KeyRingName;
+import com.google.common.base.Preconditions;
+import io.github.fungrim.kms.csr.metrics.KmsCall;
+import io.github.fungrim.kms.csr.metrics.KmsMetrics;
+import io.github.fungrim.kms.csr.util.CompletableFutures;
+import io.github.fungrim.kms.csr.util.StatusCodes;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A KMS service client that hedges and retries sign calls to cut the tail
+ * latency. If a sign call has not answered after a percentile of the recent
+ * sign latencies, a duplicate call is sent and the first answer wins, the other
+ * call is cancelled. The clients in this library pass the cancellation on to
+ * the gRPC call, a delegate that ignores it lets the losing call run. Calls
+ * that fail with a retryable status are retried after a jittered exponential
+ * backoff. Cancelling the returned future cancels the outstanding calls, the
+ * pending hedge and any pending retry.
+ * 
+ * Hedges and retries are extra load on KMS, so they share a budget: only a
+ * ratio of the sign calls, 10% by default, may cause an extra call. Hedging
+ * needs a delegate with truly asynchronous calls, such as
+ * {@link DefaultKmsServiceClient}, and blocking sign calls wait for the
+ * asynchronous call. Key lookups pass straight through.
+ */
+public class HedgingKmsServiceClient implements KmsServiceClient, AutoCloseable {
+
+    private static final int BUDGET_BURST = 10;
+    private static final int WINDOW_SIZE = 1024;
+    private static final int WINDOW_MIN_SAMPLES = 32;
+    private static final int WINDOW_UPDATE_INTERVAL = 64;
+
+    /**
+     * A builder for the client. Created via
+     * {@link HedgingKmsServiceClient#builder(KmsServiceClient)}.
+     */
+    public static class Builder {
+
+        private final KmsServiceClient delegate;
+        private double hedgePercentile = 0.95;
+        private Duration initialHedgeDelay = Duration.ofMillis(100);
+        private Duration minHedgeDelay = Duration.ofMillis(1);
+        private int maxRetries = 2;
+        private Duration retryBackoff = Duration.ofMillis(50);
+        private Duration maxRetryBackoff = Duration.ofSeconds(1);
+        private double budgetRatio = 0.1;
+        private KmsMetrics metrics = KmsMetrics.NOOP;
+        private ScheduledExecutorService scheduler;
+
+        private Builder(KmsServiceClient delegate) {
+            this.delegate = Preconditions.checkNotNull(delegate);
+        }
+
+        /**
+         * @param percentile
+         *            Percentile of the recent sign latencies to hedge after, between
+         *            0 and 1, defaults to 0.95
+         * @param initialDelay
+         *            Delay to hedge after until enough latencies are known, defaults
+         *            to 100 milliseconds, must not be null
+         * @param minDelay
+         *            The shortest delay to hedge after, defaults to one millisecond,
+         *            must not be null
+         * @return This builder
+         */
+        public Builder withHedgeDelay(double percentile, Duration initialDelay, Duration minDelay) {
+            Preconditions.checkArgument(percentile > 0 && percentile < 1, "Percentile must be between 0 and 1");
+            this.hedgePercentile = percentile;
+            this.initialHedgeDelay = Preconditions.checkNotNull(initialDelay);
+            this.minHedgeDelay = Preconditions.checkNotNull(minDelay);
+            return this;
+        }
+
+        /**
+         * @param maxRetries
+         *            The maximum number of retries per sign call, defaults to 2, 0
+         *            to not retry
+         * @param backoff
+         *            The base backoff, doubled for each retry and jittered, defaults
+         *            to 50 milliseconds, must not be null
+         * @param maxBackoff
+         *            The longest backoff, defaults to one second, must not be null
+         * @return This builder
+         */
+        public Builder withRetries(int maxRetries, Duration backoff, Duration maxBackoff) {
+            Preconditions.checkArgument(maxRetries >= 0, "Retries must not be negative");
+            Preconditions.checkArgument(!backoff.isNegative(), "Backoff must not be negative");
+            this.maxRetries = maxRetries;
+            this.retryBackoff = Preconditions.checkNotNull(backoff);
+            this.maxRetryBackoff = Preconditions.checkNotNull(maxBackoff);
+            return this;
+        }
+
+        /**
+         * @param ratio
+         *            The ratio of sign calls that may cause a hedge or retry,
+         *            defaults to 0.1
+         * @return This builder
+         */
+        public Builder withBudget(double ratio) {
+            Preconditions.checkArgument(ratio >= 0 && ratio <= 1, "Budget ratio must be between 0 and 1");
+            this.budgetRatio = ratio;
+            return this;
+        }
+
+        /**
+         * @param metrics
+         *            Metrics to record hedges and retries to, must not be null
+         * @return This builder
+         */
+        public Builder withMetrics(KmsMetrics metrics) {
+            this.metrics = Preconditions.checkNotNull(metrics);
+            return this;
+        }
+
+        /**
+         * @param scheduler
+         *            Scheduler for hedges and retries, if null a single daemon thread
+         *            is created and shut down on close
+         * @return This builder
+         */
+        public Builder withScheduler(ScheduledExecutorService scheduler) {
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        /**
+         * @return A new client, never null
+         */
+        public HedgingKmsServiceClient build() {
+            return new HedgingKmsServiceClient(this);
+        }
+    }
+
+    /**
+     * @param delegate
+     *            Client to delegate to, must not be null
+     * @return A new builder, never null
+     */
+    public static Builder builder(KmsServiceClient delegate) {
+        return new Builder(delegate);
+    }
+
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgesWon = new LongAdder();
+    private final LongAdder hedgesWasted = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final long[] window = new long[WINDOW_SIZE];
+    private final KmsServiceClient delegate;
+    private final double hedgePercentile;
+    private final long initialHedgeDelay;
+    private final long minHedgeDelay;
+    private final int maxRetries;
+    private final long retryBackoff;
+    private final long maxRetryBackoff;
+    private final double budgetRatio;
+    private final KmsMetrics metrics;
+    private final ScheduledExecutorService scheduler;
+    private final boolean ownsScheduler;
+    private int windowCount;
+    private int windowNext;
+    private int windowUpdates;
+    private long hedgeDelay;
+    private double budget = BUDGET_BURST;
+
+    private HedgingKmsServiceClient(Builder builder) {
+        this.delegate = builder.delegate;
+        this.hedgePercentile = builder.hedgePercentile;
+        this.initialHedgeDelay = builder.initialHedgeDelay.toNanos();
+        this.minHedgeDelay = builder.minHedgeDelay.toNanos();
+        this.maxRetries = builder.maxRetries;
+        this.retryBackoff = builder.retryBackoff.toNanos();
+        this.maxRetryBackoff = builder.maxRetryBackoff.toNanos();
+        this.budgetRatio = builder.budgetRatio;
+        this.metrics = builder.metrics;
+        this.hedgeDelay = initialHedgeDelay;
+        this.ownsScheduler = builder.scheduler == null;
+        this.scheduler = ownsScheduler ? Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "kms-hedging");
+            thread.setDaemon(true);
+            return thread;
+        }) : builder.scheduler;
+    }
+
+    /**
+     * @return The number of hedges sent
+     */
+    public long getHedges() {
+        return hedges.sum();
+    }
+
+    /**
+     * @return The number of hedges that answered first
+     */
+    public long getHedgesWon() {
+        return hedgesWon.sum();
+    }
+
+    /**
+     * @return The number of hedges whose answer was not used
+     */
+    public long getHedgesWasted() {
+        return hedgesWasted.sum();
+    }
+
+    /**
+     * @return The number of retries
+     */
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    /**
+     * @return The current hedge delay
+     */
+    public synchronized Duration getHedgeDelay() {
+        return Duration.ofNanos(hedgeDelay);
+    }
+
+    @Override
+    public CryptoKeyVersion getKey(CryptoKeyVersionName keyName) {
+        return delegate.getKey(keyName);
+    }
+
+    @Override
+    public byte[] getPublicKeyPem(CryptoKeyVersionName keyName) {
+        return delegate.getPublicKeyPem(keyName);
+    }
+
+    @Override
+    public byte[] asymmetricSign(CryptoKeyVersionName keyName, Digest digest) {
+        return CompletableFutures.join(asymmetricSignAsync(keyName, digest));
+    }
+
+    @Override
+    public List<CryptoKeyVersion> listSigningKeys(KeyRingName keyRing) {
+        return delegate.listSigningKeys(keyRing);
+    }
+
+    @Override
+    public List<CryptoKeyVersion> listKeyVersions(CryptoKeyName cryptoKey) {
+        return delegate.listKeyVersions(cryptoKey);
+    }
+
+    @Override
+    public CompletableFuture<CryptoKeyVersion> getKeyAsync(CryptoKeyVersionName keyName) {
+        return delegate.getKeyAsync(keyName);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getPublicKeyPemAsync(CryptoKeyVersionName keyName) {
+        return delegate.getPublicKeyPemAsync(keyName);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> asymmetricSignAsync(CryptoKeyVersionName keyName, Digest digest) {
+        deposit();
+        SignCall call = new SignCall(keyName, digest);
+        call.result.whenComplete((value, error) -> call.stop());
+        call.attempt();
+        return call.result;
+    }
+
+    /**
+     * Shut down the scheduler, if it was created by the client.
+     */
+    @Override
+    public void close() {
+        if (ownsScheduler) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private class SignCall {
+
+        private final CompletableFuture<byte[]> result = new CompletableFuture<>();
+        private final CryptoKeyVersionName keyName;
+        private final Digest digest;
+        private int retry;
+        private Round round;
+        private ScheduledFuture<?> pendingRetry;
+
+        private SignCall(CryptoKeyVersionName keyName, Digest digest) {
+            this.keyName = keyName;
+            this.digest = digest;
+        }
+
+        private void attempt() {
+            Round next;
+            synchronized (this) {
+                if (result.isDone()) {
+                    return;
+                }
+                next = round = new Round(this);
+            }
+            next.start();
+        }
+
+        private void stop() {
+            Round current;
+            ScheduledFuture<?> retryTimer;
+            synchronized (this) {
+                current = round;
+                retryTimer = pendingRetry;
+            }
+            if (retryTimer != null) {
+                retryTimer.cancel(false);
+            }
+            if (current != null) {
+                current.cancel();
+            }
+        }
+
+        private void failed(Throwable error) {
+            Code status = StatusCodes.of(error);
+            if (StatusCodes.isRetryable(status) && retry < maxRetries && withdraw()) {
+                retry++;
+                long backoff = Math.min(maxRetryBackoff, backoff(retry));
+                try {
+                    synchronized (this) {
+                        pendingRetry = scheduler.schedule(this::attempt,
+                                ThreadLocalRandom.current().nextLong(Math.max(1, backoff)), TimeUnit.NANOSECONDS);
+                    }
+                    retries.increment();
+                    metrics.recordRetry(KmsCall.ASYMMETRIC_SIGN, status);
+                    return;
+                } catch (RejectedExecutionException e) {
+                    // the client is closed, fail with the error instead
+                }
+            }
+            result.completeExceptionally(CompletableFutures.unwrap(error));
+        }
+    }
+
+    /**
+     * One attempt of a sign call, with the primary call and possibly a hedge.
+     */
+    private class Round {
+
+        private final List<CompletableFuture<byte[]>> requests = new ArrayList<>(2);
+        private final SignCall call;
+        private ScheduledFuture<?> hedgeTimer;
+        private boolean hedged;
+        private boolean closed;
+        private int sent;
+        private int failed;
+
+        private Round(SignCall call) {
+            this.call = call;
+        }
+
+        private void start() {
+            send(false);
+            long delay = getHedgeDelayNanos();
+            synchronized (this) {
+                if (!closed) {
+                    try {
+                        hedgeTimer = scheduler.schedule(this::hedge, delay, TimeUnit.NANOSECONDS);
+                    } catch (RejectedExecutionException e) {
+                        // the client is closed, go without a hedge
+                    }
+                }
+            }
+        }
+
+        private void cancel() {
+            List<CompletableFuture<byte[]>> pending;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                pending = new ArrayList<>(requests);
+                if (hedgeTimer != null) {
+                    hedgeTimer.cancel(false);
+                }
+            }
+            pending.forEach(f -> f.cancel(false));
+        }
+
+        private void hedge() {
+            synchronized (this) {
+                if (closed || !withdraw()) {
+                    return;
+                }
+                hedged = true;
+            }
+            hedges.increment();
+            send(true);
+        }
+
+        private void send(boolean hedge) {
+            synchronized (this) {
+                sent++;
+            }
+            long start = System.nanoTime();
+            CompletableFuture<byte[]> request;
+            try {
+                request = delegate.asymmetricSignAsync(call.keyName, call.digest);
+            } catch (RuntimeException e) {
+                request = CompletableFutures.failed(e);
+            }
+            boolean late;
+            synchronized (this) {
+                requests.add(request);
+                late = closed;
+            }
+            if (late) {
+                request.cancel(false);
+            }
+            request.whenComplete((value, error) -> complete(hedge, start, value, error));
+        }
+
+        private void complete(boolean hedge, long start, byte[] value, Throwable error) {
+            List<CompletableFuture<byte[]>> others;
+            boolean wasHedged;
+            synchronized (this) {
+                if (closed || (error != null && ++failed < sent)) {
+                    return;
+                }
+                closed = true;
+                wasHedged = hedged;
+                others = new ArrayList<>(requests);
+                if (hedgeTimer != null) {
+                    hedgeTimer.cancel(false);
+                }
+            }
+            if (wasHedged) {
+                boolean won = hedge && error == null;
+                (won ? hedgesWon : hedgesWasted).increment();
+                metrics.recordHedge(KmsCall.ASYMMETRIC_SIGN, won);
+            }
+            if (error == null) {
+                record(System.nanoTime() - start);
+                call.result.complete(value);
+                others.forEach(f -> f.cancel(false));
+            } else {
+                call.failed(error);
+            }
+        }
+    }
+
+    /**
+     * @return The base backoff doubled for each retry after the first,
+     *         saturating instead of overflowing
+     */
+    private long backoff(int retry) {
+        int shift = retry - 1;
+        if (retryBackoff == 0 || shift < Long.numberOfLeadingZeros(retryBackoff) - 1) {
+            return retryBackoff << shift;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private synchronized void deposit() {
+        budget = Math.min(BUDGET_BURST, budget + budgetRatio);
+    }
+
+    private synchronized boolean withdraw() {
+        if (budget < 1) {
+            return false;
+        }
+        budget--;
+        return true;
+    }
+
+    private synchronized long getHedgeDelayNanos() {
+        return hedgeDelay;
+    }
+
+    private synchronized void record(long nanos) {
+        window[windowNext] = nanos;
+        windowNext = (windowNext + 1) % WINDOW_SIZE;
+        windowCount = Math.min(windowCount + 1, WINDOW_SIZE);
+        if (windowCount >= WINDOW_MIN_SAMPLES && ++windowUpdates >= WINDOW_UPDATE_INTERVAL
+                || windowCount == WINDOW_MIN_SAMPLES) {
+            windowUpdates = 0;
+            long[] sorted = Arrays.copyOf(window, windowCount);
+            Arrays.sort(sorted);
+            int index = Math.min(windowCount - 1, (int) Math.ceil(hedgePercentile * windowCount) - 1);
+            hedgeDelay = Math.max(minHedgeDelay, sorted[Math.max(0, index)]);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.client;
+
+
+import com.google.cloud.kms.v1.CryptoKeyName;
+import com.google.cloud.kms.v1.CryptoKeyVersion;
+import com.google.cloud.kms.v1.CryptoKeyVersionName;
+import com.google.cloud.kms.v1.Digest;
+import com.google.cloud.kms.v1.KeyRingName;
+import com.google.common.base.Preconditions;
+import io.github.fungrim.kms.csr.metrics.KmsCall;
+import io.github.fungrim.kms.csr.metrics.KmsMetrics;
+import io.github.fungrim.kms.csr.util.CompletableFutures;
+import io.github.fungrim.kms.csr.util.Provider;
+import io.github.fungrim.kms.csr.util.StatusCodes;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A KMS service client that reports the latency and status of every call to a
+ * metrics listener before delegating to another client.
+ */
+public class InstrumentedKmsServiceClient implements KmsServiceClient {
+
+    private final KmsServiceClient delegate;
+    private final KmsMetrics metrics;
+
+    /**
+     * @param delegate
+     *            Client to delegate to, must not be null
+     * @param metrics
+     *            Metrics to report to, must not be null
+     */
+    public InstrumentedKmsServiceClient(KmsServiceClient delegate, KmsMetrics metrics) {
+        this.delegate = Preconditions.checkNotNull(delegate);
+        this.metrics = Preconditions.checkNotNull(metrics);
+    }
+
+    @Override
+    public CryptoKeyVersion getKey(CryptoKeyVersionName keyName) {
+        return record(KmsCall.GET_KEY, () -> delegate.getKey(keyName));
+    }
+
+    @Override
+    public byte[] getPublicKeyPem(CryptoKeyVersionName keyName) {
+        return record(KmsCall.GET_PUBLIC_KEY, () -> delegate.getPublicKeyPem(keyName));
+    }
+
+    @Override
+    public byte[] asymmetricSign(CryptoKeyVersionName keyName, Digest digest) {
+        return record(KmsCall.ASYMMETRIC_SIGN, () -> delegate.asymmetricSign(keyName, digest));
+    }
+
+    @Override
+    public List<CryptoKeyVersion> listSigningKeys(KeyRingName keyRing) {
+        return record(KmsCall.LIST_SIGNING_KEYS, () -> delegate.listSigningKeys(keyRing));
+    }
+
+    @Override
+    public List<CryptoKeyVersion> listKeyVersions(CryptoKeyName cryptoKey) {
+        return record(KmsCall.LIST_KEY_VERSIONS, () -> delegate.listKeyVersions(cryptoKey));
+    }
+
+    @Override
+    public CompletableFuture<CryptoKeyVersion> getKeyAsync(CryptoKeyVersionName keyName) {
+        return recordAsync(KmsCall.GET_KEY, () -> delegate.getKeyAsync(keyName));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getPublicKeyPemAsync(CryptoKeyVersionName keyName) {
+        return recordAsync(KmsCall.GET_PUBLIC_KEY, () -> delegate.getPublicKeyPemAsync(keyName));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> asymmetricSignAsync(CryptoKeyVersionName keyName, Digest digest) {
+        return recordAsync(KmsCall.ASYMMETRIC_SIGN, () -> delegate.asymmetricSignAsync(keyName, digest));
+    }
+
+    private <T> T record(KmsCall call, Provider<T> provider) {
+        long start = System.nanoTime();
+        try {
+            T result = provider.get();
+            metrics.recordCall(call, System.nanoTime() - start, StatusCodes.of(null));
+            return result;
+        } catch (RuntimeException e) {
+            metrics.recordCall(call, System.nanoTime() - start, StatusCodes.of(e));
+            throw e;
+        }
+    }
+
+    private <T> CompletableFuture<T> recordAsync(KmsCall call, Provider<CompletableFuture<T>> provider) {
+        long start = System.nanoTime();
+        return CompletableFutures.compose(provider.get(), (result, error) -> {
+            metrics.recordCall(call, System.nanoTime() - start, StatusCodes.of(error));
+            return error == null ? CompletableFuture.completedFuture(result) : CompletableFutures.failed(error);
+        });
+    }
+}
@@ -16,12 +16,21 @@
 package io.github.fungrim.kms.csr.client;
 
 
+import com.google.cloud.kms.v1.CryptoKeyName;
 import com.google.cloud.kms.v1.CryptoKeyVersion;
 import com.google.cloud.kms.v1.CryptoKeyVersionName;
 import com.google.cloud.kms.v1.Digest;
+import com.google.cloud.kms.v1.KeyRingName;
+import io.github.fungrim.kms.csr.util.CompletableFutures;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
- * A facade for KMS service calls.
+ * A facade for KMS service calls. Each call has a blocking and an asynchronous
+ * variant. The default asynchronous variants delegate to the blocking calls in
+ * the calling thread, implementations that can do better should override them.
+ * Cancelling a future returned by an overridden asynchronous call should
+ * cancel the underlying call.
  */
 public interface KmsServiceClient {
 
@@ -48,4 +57,58 @@ public interface KmsServiceClient {
      */
     public byte[] asymmetricSign(CryptoKeyVersionName keyName, Digest digest);
 
+    /**
+     * @param keyRing
+     *            Key ring to list, must not be null
+     * @return All enabled asymmetric signing key versions in the key ring with
+     *         an algorithm this library supports, never null
+     * @throws UnsupportedOperationException
+     *             If the client can't list keys, the default, so decorators
+     *             must forward this call
+     */
+    public default List<CryptoKeyVersion> listSigningKeys(KeyRingName keyRing) {
+        throw new UnsupportedOperationException(
+                "Listing signing keys is not supported by " + getClass().getName() + ", needed for: " + keyRing);
+    }
+
+    /**
+     * @param cryptoKey
+     *            Crypto key to list, must not be null
+     * @return All enabled versions of the crypto key, never null
+     * @throws UnsupportedOperationException
+     *             If the client can't list key versions, the default
+     */
+    public default List<CryptoKeyVersion> listKeyVersions(CryptoKeyName cryptoKey) {
+        throw new UnsupportedOperationException(
+                "Listing key versions is not supported by " + getClass().getName() + ", needed for: " + cryptoKey);
+    }
+
+    /**
+     * @param keyName
+     *            Key to get, must not be null
+     * @return A future for the crypto key version, never null
+     */
+    public default CompletableFuture<CryptoKeyVersion> getKeyAsync(CryptoKeyVersionName keyName) {
+        return CompletableFutures.supply(() -> getKey(keyName));
+    }
+
+    /**
+     * @param keyName
+     *            Key to get, must not be null
+     * @return A future for the public key pem bytes, never null
+     */
+    public default CompletableFuture<byte[]> getPublicKeyPemAsync(CryptoKeyVersionName keyName) {
+        return CompletableFutures.supply(() -> getPublicKeyPem(keyName));
+    }
+
+    /**
+     * @param keyName
+     *            Key to sign with, must not be null
+     * @param digest
+     *            The digest to sign, must not be null
+     * @return A future for the signature bytes, never null
+     */
+    public default CompletableFuture<byte[]> asymmetricSignAsync(CryptoKeyVersionName keyName, Digest digest) {
+        return CompletableFutures.supply(() -> asymmetricSign(keyName, digest));
+    }
 }
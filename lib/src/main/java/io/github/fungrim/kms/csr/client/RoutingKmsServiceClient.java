@@ -0,0 +1,454 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.client;
+
+
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.StatusCode.Code;
+import com.google.cloud.kms.v1.CryptoKeyName;
+import com.google.cloud.kms.v1.CryptoKeyVersion;
+import com.google.cloud.kms.v1.CryptoKeyVersionName;
+import com.google.cloud.kms.v1.Digest;
+import com.google.cloud.kms.v1.KeyRingName;
+import com.google.common.base.Preconditions;
+import io.github.fungrim.kms.csr.util.CompletableFutures;
+import io.github.fungrim.kms.csr.util.StatusCodes;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiFunction;
+
+/**
+ * A KMS service client that routes calls over several regions holding
+ * replicas of the same keys. Each region has its own client and location, and
+ * a key version name is mapped to a region by replacing its location, or by a
+ * custom key mapping.
+ * 
+ * The client tracks an exponentially weighted moving average of the latency
+ * and error rate per region, and routes each call to the fastest healthy
+ * region. A region not yet used starts at the average latency of the others. A
+ * small ratio of calls probes the other healthy regions to keep their latency
+ * current. If a call fails with a gRPC status that another region may not
+ * have, i.e. a retryable status, INTERNAL or UNKNOWN, it fails over to the next
+ * region. Only such errors count to the error rate, other errors, e.g.
+ * NOT_FOUND, say nothing about the region. A region with an error rate above
+ * the threshold is unhealthy and only used as a last resort after the healthy
+ * regions. Once per recovery time an unhealthy region is probed with a shadow
+ * key lookup, next to the routed call and without waiting for it, so the probe
+ * should be asynchronous, as in {@link DefaultKmsServiceClient}. E.g.:
+ * 
+ * <pre>
+ * KmsServiceClient client = RoutingKmsServiceClient.builder()
+ *              .withRegion("europe-west1", new DefaultKmsServiceClient(europeClient))
+ *              .withRegion("europe-north1", new DefaultKmsServiceClient(northClient))
+ *              .build();
+ * </pre>
+ * 
+ * The replicas must have the same key material, e.g. imported keys, so that
+ * the public key from one region verifies signatures from another.
+ */
+public class RoutingKmsServiceClient implements KmsServiceClient {
+
+    /**
+     * A builder for the client. Created via
+     * {@link RoutingKmsServiceClient#builder()}.
+     */
+    public static class Builder {
+
+        private final Map<String, KmsServiceClient> regions = new LinkedHashMap<>();
+        private BiFunction<CryptoKeyVersionName, String, CryptoKeyVersionName> keyMapping = (k,
+                l) -> CryptoKeyVersionName.of(k.getProject(), l, k.getKeyRing(), k.getCryptoKey(),
+                        k.getCryptoKeyVersion());
+        private double smoothing = 0.2;
+        private double maxErrorRate = 0.5;
+        private Duration recoveryTime = Duration.ofSeconds(10);
+        private double probeRatio = 0.01;
+
+        private Builder() {
+        }
+
+        /**
+         * Add a region. The first region added is used first until latencies are
+         * known.
+         * 
+         * @param location
+         *            KMS location of the region, must not be null
+         * @param client
+         *            Client for the region, must not be null
+         * @return This builder
+         */
+        public Builder withRegion(String location, KmsServiceClient client) {
+            Preconditions.checkArgument(!regions.containsKey(location), "Duplicate region: %s", location);
+            regions.put(Preconditions.checkNotNull(location), Preconditions.checkNotNull(client));
+            return this;
+        }
+
+        /**
+         * @param keyMapping
+         *            Function from a key version name and a location to the key
+         *            version replica in that location, defaults to replacing the
+         *            location of the name, must not be null
+         * @return This builder
+         */
+        public Builder withKeyMapping(BiFunction<CryptoKeyVersionName, String, CryptoKeyVersionName> keyMapping) {
+            this.keyMapping = Preconditions.checkNotNull(keyMapping);
+            return this;
+        }
+
+        /**
+         * @param smoothing
+         *            Weight of the latest call in the moving averages, between 0
+         *            and 1, defaults to 0.2
+         * @return This builder
+         */
+        public Builder withSmoothing(double smoothing) {
+            Preconditions.checkArgument(smoothing > 0 && smoothing <= 1, "Smoothing must be between 0 and 1");
+            this.smoothing = smoothing;
+            return this;
+        }
+
+        /**
+         * @param maxErrorRate
+         *            Error rate above which a region is unhealthy, defaults to 0.5
+         * @param recoveryTime
+         *            Time between probes of an unhealthy region, defaults to 10
+         *            seconds, must not be null
+         * @return This builder
+         */
+        public Builder withHealth(double maxErrorRate, Duration recoveryTime) {
+            Preconditions.checkArgument(maxErrorRate > 0 && maxErrorRate <= 1, "Error rate must be between 0 and 1");
+            this.maxErrorRate = maxErrorRate;
+            this.recoveryTime = Preconditions.checkNotNull(recoveryTime);
+            return this;
+        }
+
+        /**
+         * @param probeRatio
+         *            Ratio of calls sent to another healthy region than the
+         *            fastest, defaults to 0.01
+         * @return This builder
+         */
+        public Builder withProbeRatio(double probeRatio) {
+            Preconditions.checkArgument(probeRatio >= 0 && probeRatio < 1, "Probe ratio must be between 0 and 1");
+            this.probeRatio = probeRatio;
+            return this;
+        }
+
+        /**
+         * @return A new client, never null
+         */
+        public RoutingKmsServiceClient build() {
+            Preconditions.checkState(!regions.isEmpty(), "No regions added");
+            return new RoutingKmsServiceClient(this);
+        }
+    }
+
+    /**
+     * @return A new builder, never null
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    private class Region {
+
+        private final String location;
+        private final KmsServiceClient client;
+        private boolean measured;
+        private double latency;
+        private double errorRate;
+        private long lastProbe;
+
+        private Region(String location, KmsServiceClient client) {
+            this.location = location;
+            this.client = client;
+        }
+
+        private synchronized void record(long nanos, boolean failed) {
+            if (!failed) {
+                latency = measured ? latency + smoothing * (nanos - latency) : nanos;
+                measured = true;
+            }
+            boolean wasHealthy = isHealthy();
+            errorRate += smoothing * ((failed ? 1 : 0) - errorRate);
+            if (wasHealthy && !isHealthy()) {
+                // the recovery time starts when the region turns unhealthy
+                lastProbe = System.nanoTime();
+            }
+        }
+
+        private synchronized boolean isHealthy() {
+            return errorRate <= maxErrorRate;
+        }
+
+        private synchronized boolean tryProbe(long now) {
+            if (now - lastProbe < recoveryTime.toNanos()) {
+                return false;
+            }
+            lastProbe = now;
+            return true;
+        }
+
+        private synchronized double getLatency() {
+            return latency;
+        }
+
+        private synchronized boolean isMeasured() {
+            return measured;
+        }
+
+        /*
+         * Record the outcome of a shadow probe, which only counts towards the error
+         * rate as a key lookup is faster than the routed calls.
+         */
+        private synchronized void recordProbe(boolean failed) {
+            errorRate += smoothing * ((failed ? 1 : 0) - errorRate);
+        }
+
+        private synchronized double getErrorRate() {
+            return errorRate;
+        }
+    }
+
+    private final List<Region> regions = new ArrayList<>();
+    private final BiFunction<CryptoKeyVersionName, String, CryptoKeyVersionName> keyMapping;
+    private final double smoothing;
+    private final double maxErrorRate;
+    private final Duration recoveryTime;
+    private final double probeRatio;
+
+    private RoutingKmsServiceClient(Builder builder) {
+        builder.regions.forEach((location, client) -> regions.add(new Region(location, client)));
+        this.keyMapping = builder.keyMapping;
+        this.smoothing = builder.smoothing;
+        this.maxErrorRate = builder.maxErrorRate;
+        this.recoveryTime = builder.recoveryTime;
+        this.probeRatio = builder.probeRatio;
+    }
+
+    /**
+     * @param location
+     *            Region location, must be added to the client
+     * @return The moving average latency of the region, zero if not yet used
+     */
+    public Duration getLatency(String location) {
+        return Duration.ofNanos((long) region(location).getLatency());
+    }
+
+    /**
+     * @param location
+     *            Region location, must be added to the client
+     * @return The moving average error rate of the region, between 0 and 1
+     */
+    public double getErrorRate(String location) {
+        return region(location).getErrorRate();
+    }
+
+    /**
+     * @param location
+     *            Region location, must be added to the client
+     * @return True if the region error rate is below the threshold
+     */
+    public boolean isHealthy(String location) {
+        return region(location).isHealthy();
+    }
+
+    @Override
+    public CryptoKeyVersion getKey(CryptoKeyVersionName keyName) {
+        return route(keyName, (r, k) -> r.client.getKey(k));
+    }
+
+    @Override
+    public byte[] getPublicKeyPem(CryptoKeyVersionName keyName) {
+        return route(keyName, (r, k) -> r.client.getPublicKeyPem(k));
+    }
+
+    @Override
+    public byte[] asymmetricSign(CryptoKeyVersionName keyName, Digest digest) {
+        return route(keyName, (r, k) -> r.client.asymmetricSign(k, digest));
+    }
+
+    /**
+     * List the signing keys in the region of the key ring location, or in the
+     * fastest region if the location is not routed.
+     */
+    @Override
+    public List<CryptoKeyVersion> listSigningKeys(KeyRingName keyRing) {
+        for (Region region : regions) {
+            if (region.location.equals(keyRing.getLocation())) {
+                return region.client.listSigningKeys(keyRing);
+            }
+        }
+        return candidates().get(0).client.listSigningKeys(keyRing);
+    }
+
+    /**
+     * List the key versions in the region of the crypto key location, or in the
+     * fastest region if the location is not routed.
+     */
+    @Override
+    public List<CryptoKeyVersion> listKeyVersions(CryptoKeyName cryptoKey) {
+        for (Region region : regions) {
+            if (region.location.equals(cryptoKey.getLocation())) {
+                return region.client.listKeyVersions(cryptoKey);
+            }
+        }
+        return candidates().get(0).client.listKeyVersions(cryptoKey);
+    }
+
+    @Override
+    public CompletableFuture<CryptoKeyVersion> getKeyAsync(CryptoKeyVersionName keyName) {
+        return routeAsync(keyName, (r, k) -> r.client.getKeyAsync(k));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getPublicKeyPemAsync(CryptoKeyVersionName keyName) {
+        return routeAsync(keyName, (r, k) -> r.client.getPublicKeyPemAsync(k));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> asymmetricSignAsync(CryptoKeyVersionName keyName, Digest digest) {
+        return routeAsync(keyName, (r, k) -> r.client.asymmetricSignAsync(k, digest));
+    }
+
+    private <T> T route(CryptoKeyVersionName keyName, BiFunction<Region, CryptoKeyVersionName, T> call) {
+        probe(keyName);
+        RuntimeException failure = null;
+        for (Region region : candidates()) {
+            long start = System.nanoTime();
+            try {
+                T result = call.apply(region, keyMapping.apply(keyName, region.location));
+                region.record(System.nanoTime() - start, false);
+                return result;
+            } catch (RuntimeException e) {
+                boolean regional = isRegional(e);
+                region.record(System.nanoTime() - start, regional);
+                if (!regional) {
+                    throw e;
+                }
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    private <T> CompletableFuture<T> routeAsync(CryptoKeyVersionName keyName,
+            BiFunction<Region, CryptoKeyVersionName, CompletableFuture<T>> call) {
+        probe(keyName);
+        return routeAsync(keyName, call, candidates(), 0);
+    }
+
+    private <T> CompletableFuture<T> routeAsync(CryptoKeyVersionName keyName,
+            BiFunction<Region, CryptoKeyVersionName, CompletableFuture<T>> call, List<Region> candidates, int index) {
+        Region region = candidates.get(index);
+        long start = System.nanoTime();
+        CompletableFuture<T> result;
+        try {
+            result = call.apply(region, keyMapping.apply(keyName, region.location));
+        } catch (RuntimeException e) {
+            result = CompletableFutures.failed(e);
+        }
+        return CompletableFutures.compose(result, (value, error) -> {
+            if (error instanceof CancellationException) {
+                return CompletableFutures.<T> failed(error);
+            }
+            // an error the region is not to blame for, such as NOT_FOUND, is only latency
+            boolean regional = error != null && isRegional(error);
+            region.record(System.nanoTime() - start, regional);
+            if (error == null) {
+                return CompletableFuture.completedFuture(value);
+            } else if (index + 1 < candidates.size() && regional) {
+                return routeAsync(keyName, call, candidates, index + 1);
+            } else {
+                return CompletableFutures.<T> failed(error);
+            }
+        });
+    }
+
+    /**
+     * Order the regions by preference: the healthy regions by latency, with the
+     * fastest region swapped for another on a probe, and last the unhealthy
+     * regions. Regions not yet used are placed at the average latency.
+     */
+    private List<Region> candidates() {
+        List<Region> healthy = new ArrayList<>(regions.size());
+        List<Region> unhealthy = new ArrayList<>(regions.size());
+        Map<Region, Double> latencies = new HashMap<>();
+        double total = 0;
+        int measured = 0;
+        for (Region region : regions) {
+            (region.isHealthy() ? healthy : unhealthy).add(region);
+            if (region.isMeasured()) {
+                double latency = region.getLatency();
+                latencies.put(region, latency);
+                total += latency;
+                measured++;
+            }
+        }
+        double average = measured == 0 ? 0 : total / measured;
+        healthy.sort(Comparator.comparingDouble(r -> latencies.getOrDefault(r, average)));
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (healthy.size() > 1 && probeRatio > 0 && random.nextDouble() < probeRatio) {
+            Region probe = healthy.remove(1 + random.nextInt(healthy.size() - 1));
+            healthy.add(0, probe);
+        }
+        healthy.addAll(unhealthy);
+        return healthy;
+    }
+
+    /**
+     * Send a shadow key lookup to each unhealthy region that is due a probe. The
+     * outcome only updates the region health.
+     */
+    private void probe(CryptoKeyVersionName keyName) {
+        long now = System.nanoTime();
+        for (Region region : regions) {
+            if (!region.isHealthy() && region.tryProbe(now)) {
+                CompletableFuture<CryptoKeyVersion> probe;
+                try {
+                    probe = region.client.getKeyAsync(keyMapping.apply(keyName, region.location));
+                } catch (RuntimeException e) {
+                    probe = CompletableFutures.failed(e);
+                }
+                probe.whenComplete((version, error) -> region.recordProbe(error != null && isRegional(error)));
+            }
+        }
+    }
+
+    private Region region(String location) {
+        for (Region region : regions) {
+            if (region.location.equals(location)) {
+                return region;
+            }
+        }
+        throw new IllegalArgumentException("No such region: " + location);
+    }
+
+    private static boolean isRegional(Throwable error) {
+        if (!(CompletableFutures.unwrap(error) instanceof ApiException)) {
+            return false;
+        }
+        Code status = StatusCodes.of(error);
+        return StatusCodes.isRetryable(status) || status == Code.INTERNAL || status == Code.UNKNOWN;
+    }
+}
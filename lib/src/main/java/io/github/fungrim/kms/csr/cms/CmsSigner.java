@@ -0,0 +1,528 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.cms;
+
+
+import com.google.cloud.kms.v1.CryptoKeyVersionName;
+import com.google.common.base.Preconditions;
+import io.github.fungrim.kms.csr.KmsKeyCache;
+import io.github.fungrim.kms.csr.client.KmsServiceClient;
+import io.github.fungrim.kms.csr.signer.KmsContentSigner;
+import io.github.fungrim.kms.csr.util.CompletableFutures;
+import io.github.fungrim.kms.csr.util.JcaDigest;
+import io.github.fungrim.kms.csr.util.Pem;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.asn1.cms.Attribute;
+import org.bouncycastle.asn1.cms.CMSAlgorithmProtection;
+import org.bouncycastle.asn1.cms.CMSAttributes;
+import org.bouncycastle.asn1.cms.CMSObjectIdentifiers;
+import org.bouncycastle.asn1.cms.ContentInfo;
+import org.bouncycastle.asn1.cms.IssuerAndSerialNumber;
+import org.bouncycastle.asn1.cms.SignedData;
+import org.bouncycastle.asn1.cms.SignerIdentifier;
+import org.bouncycastle.asn1.cms.SignerInfo;
+import org.bouncycastle.asn1.cms.Time;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.DefaultCMSSignatureEncryptionAlgorithmFinder;
+import org.bouncycastle.operator.DefaultDigestAlgorithmIdentifierFinder;
+
+/**
+ * This signer creates detached CMS (PKCS#7) signatures of files or streams
+ * with a KMS key. E.g.:
+ * 
+ * <pre>
+ * CsrBuilderFactory factory = // create builder factory
+ * CmsSigner signer = factory.cmsSigner()
+ *              .withKey(keyName)
+ *              .withCertificate(certificate)
+ *              .build();
+ * byte[] signature = signer.sign(Paths.get("artifact.tar.gz")).asDer();
+ * </pre>
+ * 
+ * Files are digested through memory mapped windows of the file, and streams
+ * through a small buffer, so content is never held in the heap regardless of
+ * its size. The content digest is put in the signed attributes, and only the
+ * digest of those is sent to KMS, one call per file. A signer is thread safe.
+ * <p>
+ * The mapped windows are only unmapped when garbage collected, so they outlive
+ * the call: they hold address space, and on Windows a signed file can't be
+ * deleted or replaced until they are collected. Files are read with blocking
+ * I/O, asynchronous signing therefore runs on an executor for blocking tasks,
+ * by default a pool of daemon threads bounded by the concurrency.
+ */
+public class CmsSigner {
+
+    private static final DefaultDigestAlgorithmIdentifierFinder DIGEST_FINDER =
+            new DefaultDigestAlgorithmIdentifierFinder();
+    private static final DefaultCMSSignatureEncryptionAlgorithmFinder ENCRYPTION_FINDER =
+            new DefaultCMSSignatureEncryptionAlgorithmFinder();
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * A detached CMS signature. The DER encoding is made once when the
+     * signature is assembled, and the PEM encoding is cached.
+     */
+    public static class Result {
+
+        private final CMSSignedData signedData;
+        private final byte[] contentDigest;
+        private final byte[] der;
+        private volatile byte[] pem;
+
+        private Result(CMSSignedData signedData, byte[] contentDigest, byte[] der) {
+            this.signedData = signedData;
+            this.contentDigest = contentDigest;
+            this.der = der;
+        }
+
+        /**
+         * @return The signed data, without content, never null
+         */
+        public CMSSignedData getSignedData() {
+            return signedData;
+        }
+
+        /**
+         * @return A copy of the digest of the signed content, never null
+         */
+        public byte[] getContentDigest() {
+            return contentDigest.clone();
+        }
+
+        /**
+         * @return A copy of the DER encoded signature, never null
+         */
+        public byte[] asDer() {
+            return der.clone();
+        }
+
+        /**
+         * @return The signature as a PEM string, never null
+         */
+        public String asPem() {
+            return new String(pem(), StandardCharsets.US_ASCII);
+        }
+
+        /**
+         * @return A copy of the signature as PEM in US ASCII bytes, never null
+         */
+        public byte[] asPemBytes() {
+            return pem().clone();
+        }
+
+        /**
+         * Write the DER encoded signature to a stream. The stream is not closed.
+         * 
+         * @param out
+         *            Stream to write to, must not be null
+         * @throws IOException
+         *             If failing to write the signature
+         */
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(der);
+        }
+
+        private byte[] pem() {
+            byte[] result = pem;
+            if (result == null) {
+                result = Pem.encode("PKCS7", der);
+                pem = result;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * A builder for the signer. Created via
+     * {@link CmsSigner#builder(KmsServiceClient, KmsKeyCache)}, or from a
+     * factory.
+     */
+    public static class Builder {
+
+        private final KmsServiceClient client;
+        private final KmsKeyCache cache;
+        private final List<X509CertificateHolder> chain = new ArrayList<>();
+        private CryptoKeyVersionName keyName;
+        private X509CertificateHolder certificate;
+        private Executor executor;
+        private Clock clock = Clock.systemUTC();
+        private int windowSize = 64 * 1024 * 1024;
+        private int concurrency = 16;
+
+        private Builder(KmsServiceClient client, KmsKeyCache cache) {
+            this.client = Preconditions.checkNotNull(client);
+            this.cache = Preconditions.checkNotNull(cache);
+        }
+
+        /**
+         * @param keyName
+         *            The key version to sign with, must not be null
+         * @return This builder
+         */
+        public Builder withKey(CryptoKeyVersionName keyName) {
+            this.keyName = Preconditions.checkNotNull(keyName);
+            return this;
+        }
+
+        /**
+         * @param certificate
+         *            The signer certificate, which identifies the signer and is
+         *            included in the signature, must not be null
+         * @return This builder
+         */
+        public Builder withCertificate(X509CertificateHolder certificate) {
+            this.certificate = Preconditions.checkNotNull(certificate);
+            return this;
+        }
+
+        /**
+         * @param chain
+         *            Additional certificates to include in the signature, such as
+         *            intermediate CA:s, must not be null
+         * @return This builder
+         */
+        public Builder withCertificateChain(Collection<X509CertificateHolder> chain) {
+            this.chain.addAll(chain);
+            return this;
+        }
+
+        /**
+         * @param executor
+         *            Executor to digest content on in asynchronous signing, which
+         *            blocks on file reads, if null a pool of daemon threads,
+         *            bounded by the concurrency, is used
+         * @return This builder
+         */
+        public Builder withExecutor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * @param clock
+         *            Clock for the signing time, must not be null
+         * @return This builder
+         */
+        public Builder withClock(Clock clock) {
+            this.clock = Preconditions.checkNotNull(clock);
+            return this;
+        }
+
+        /**
+         * Set the size of the file regions mapped into memory at a time when
+         * digesting files. Defaults to 64 MiB.
+         * 
+         * @param windowSize
+         *            Window size in bytes, must be positive
+         * @return This builder
+         */
+        public Builder withWindowSize(int windowSize) {
+            Preconditions.checkArgument(windowSize > 0, "Window size must be positive");
+            this.windowSize = windowSize;
+            return this;
+        }
+
+        /**
+         * Set the maximum number of files digested and signed at a time in
+         * {@link CmsSigner#signAll(Collection)}, and the number of threads of the
+         * default executor. Defaults to 16.
+         * 
+         * @param concurrency
+         *            Max number of concurrent files, must be positive
+         * @return This builder
+         */
+        public Builder withConcurrency(int concurrency) {
+            Preconditions.checkArgument(concurrency > 0, "Concurrency must be positive");
+            this.concurrency = concurrency;
+            return this;
+        }
+
+        /**
+         * @return A new signer, never null
+         */
+        public CmsSigner build() {
+            Preconditions.checkNotNull(keyName, "Missing crypto key version name");
+            Preconditions.checkNotNull(certificate, "Missing signer certificate");
+            return new CmsSigner(this);
+        }
+    }
+
+    /**
+     * @param client
+     *            KMS client, must not be null
+     * @param cache
+     *            Key cache, must not be null
+     * @return A new signer builder, never null
+     */
+    public static Builder builder(KmsServiceClient client, KmsKeyCache cache) {
+        return new Builder(client, cache);
+    }
+
+    private final KmsServiceClient client;
+    private final KmsKeyCache cache;
+    private final CryptoKeyVersionName keyName;
+    private final SignerIdentifier signerIdentifier;
+    private final DERSet certificates;
+    private final Executor executor;
+    private final Clock clock;
+    private final int windowSize;
+    private final int concurrency;
+
+    private CmsSigner(Builder builder) {
+        this.client = builder.client;
+        this.cache = builder.cache;
+        this.keyName = builder.keyName;
+        this.signerIdentifier = new SignerIdentifier(new IssuerAndSerialNumber(builder.certificate.toASN1Structure()));
+        ASN1EncodableVector certificates = new ASN1EncodableVector();
+        certificates.add(builder.certificate.toASN1Structure());
+        builder.chain.forEach(c -> certificates.add(c.toASN1Structure()));
+        this.certificates = new DERSet(certificates);
+        this.clock = builder.clock;
+        this.windowSize = builder.windowSize;
+        this.concurrency = builder.concurrency;
+        this.executor = builder.executor == null ? newReaderPool(concurrency) : builder.executor;
+    }
+
+    /*
+     * A pool for blocking file reads whose idle threads exit, so that the signer
+     * needs no closing.
+     */
+    private static Executor newReaderPool(int threads) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(r, "kms-cms-signer");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Sign a file, blocking until it is signed.
+     * 
+     * @param file
+     *            The file to sign, must not be null
+     * @return The detached signature, never null
+     * @throws IOException
+     *             If failing to read the file
+     */
+    public Result sign(Path file) throws IOException {
+        KmsKeyCache.Entry entry = cache.get(keyName);
+        return sign(entry, digest(entry, file));
+    }
+
+    /**
+     * Sign the content of a stream, blocking until it is signed. The stream is
+     * read to its end but not closed.
+     * 
+     * @param in
+     *            The content to sign, must not be null
+     * @return The detached signature, never null
+     * @throws IOException
+     *             If failing to read the stream
+     */
+    public Result sign(InputStream in) throws IOException {
+        KmsKeyCache.Entry entry = cache.get(keyName);
+        MessageDigest digest = JcaDigest.of(entry.getAlgorithm()).newDigest();
+        byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+            digest.update(buffer, 0, read);
+        }
+        return sign(entry, digest.digest());
+    }
+
+    /**
+     * Sign a file asynchronously. The file is digested on the executor, and the
+     * digest is signed asynchronously. Failures to read the file fail the
+     * returned future with an {@link UncheckedIOException}.
+     * 
+     * @param file
+     *            The file to sign, must not be null
+     * @return A future for the detached signature, never null
+     */
+    public CompletableFuture<Result> signAsync(Path file) {
+        Preconditions.checkNotNull(file);
+        return cache.getAsync(keyName).thenComposeAsync(entry -> {
+            byte[] digest;
+            try {
+                digest = digest(entry, file);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to read: " + file, e);
+            }
+            return signAsync(entry, digest);
+        }, executor);
+    }
+
+    /**
+     * Sign files asynchronously, with a bounded number of files digested and
+     * signed at a time. Each file has its own future, in the order of the files,
+     * and a failure of one does not affect the others.
+     * 
+     * @param files
+     *            The files to sign, must not be null
+     * @return Futures for the detached signatures, never null
+     */
+    public List<CompletableFuture<Result>> signAll(Collection<Path> files) {
+        List<Path> list = new ArrayList<>(files);
+        List<CompletableFuture<Result>> results = new ArrayList<>(list.size());
+        for (int i = 0; i < list.size(); i++) {
+            results.add(new CompletableFuture<>());
+        }
+        AtomicInteger next = new AtomicInteger();
+        for (int i = 0; i < Math.min(concurrency, list.size()); i++) {
+            drive(list, results, next);
+        }
+        return Collections.unmodifiableList(results);
+    }
+
+    /*
+     * Start signing until one file is in flight asynchronously. This loops rather
+     * than recurses, so that a future that completes in the calling thread doesn't
+     * exhaust the stack.
+     */
+    private void drive(List<Path> files, List<CompletableFuture<Result>> results, AtomicInteger next) {
+        while (true) {
+            int index = next.getAndIncrement();
+            if (index >= files.size()) {
+                return;
+            }
+            CompletableFuture<Result> future;
+            try {
+                future = signAsync(files.get(index));
+            } catch (RuntimeException e) {
+                future = CompletableFutures.failed(e);
+            }
+            CompletableFuture<Result> result = results.get(index);
+            if (!future.isDone()) {
+                future.whenComplete((value, error) -> {
+                    complete(result, value, error);
+                    drive(files, results, next);
+                });
+                return;
+            }
+            future.whenComplete((value, error) -> complete(result, value, error));
+        }
+    }
+
+    private static void complete(CompletableFuture<Result> result, Result value, Throwable error) {
+        if (error == null) {
+            result.complete(value);
+        } else {
+            result.completeExceptionally(CompletableFutures.unwrap(error));
+        }
+    }
+
+    /*
+     * Digest the file one mapped window at a time. The windows are read by the
+     * digest straight from the page cache, and are unmapped when collected, not
+     * when this returns.
+     */
+    private byte[] digest(KmsKeyCache.Entry entry, Path file) throws IOException {
+        MessageDigest digest = JcaDigest.of(entry.getAlgorithm()).newDigest();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long position = 0; position < size; position += windowSize) {
+                digest.update(channel.map(MapMode.READ_ONLY, position, Math.min(windowSize, size - position)));
+            }
+        }
+        return digest.digest();
+    }
+
+    private Result sign(KmsKeyCache.Entry entry, byte[] contentDigest) {
+        Template template = new Template(entry, contentDigest);
+        return template.assemble(template.signer.getSignature());
+    }
+
+    private CompletableFuture<Result> signAsync(KmsKeyCache.Entry entry, byte[] contentDigest) {
+        Template template = new Template(entry, contentDigest);
+        return template.signer.getSignatureAsync().thenApply(template::assemble);
+    }
+
+    /**
+     * The signed attributes for a content digest, written to a KMS signer.
+     */
+    private class Template {
+
+        private final KmsContentSigner signer;
+        private final byte[] contentDigest;
+        private final AlgorithmIdentifier digestAlgorithm;
+        private final AlgorithmIdentifier encryptionAlgorithm;
+        private final DERSet signedAttributes;
+
+        private Template(KmsKeyCache.Entry entry, byte[] contentDigest) {
+            this.signer = new KmsContentSigner(client, entry.getKeyName(), entry.getAlgorithm());
+            this.contentDigest = contentDigest;
+            this.digestAlgorithm = DIGEST_FINDER.find(signer.getAlgorithmIdentifier());
+            this.encryptionAlgorithm = ENCRYPTION_FINDER.findEncryptionAlgorithm(signer.getAlgorithmIdentifier());
+            ASN1EncodableVector attributes = new ASN1EncodableVector(4);
+            attributes.add(new Attribute(CMSAttributes.contentType, new DERSet(CMSObjectIdentifiers.data)));
+            attributes.add(new Attribute(CMSAttributes.signingTime, new DERSet(new Time(Date.from(clock.instant())))));
+            attributes.add(new Attribute(CMSAttributes.messageDigest, new DERSet(new DEROctetString(contentDigest))));
+            CMSAlgorithmProtection protection = new CMSAlgorithmProtection(digestAlgorithm,
+                    CMSAlgorithmProtection.SIGNATURE, encryptionAlgorithm);
+            attributes.add(new Attribute(CMSAttributes.cmsAlgorithmProtect, new DERSet(protection)));
+            this.signedAttributes = new DERSet(attributes);
+            try (OutputStream out = signer.getOutputStream()) {
+                signedAttributes.encodeTo(out, ASN1Encoding.DER);
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to encode signed attributes", e);
+            }
+        }
+
+        private Result assemble(byte[] signature) {
+            SignerInfo signerInfo = new SignerInfo(signerIdentifier, digestAlgorithm, signedAttributes,
+                    encryptionAlgorithm, new DEROctetString(signature), null);
+            SignedData signedData = new SignedData(new DERSet(digestAlgorithm),
+                    new ContentInfo(CMSObjectIdentifiers.data, null), certificates, null, new DERSet(signerInfo));
+            ContentInfo contentInfo = new ContentInfo(CMSObjectIdentifiers.signedData, signedData);
+            try {
+                return new Result(new CMSSignedData(contentInfo), contentDigest,
+                        contentInfo.getEncoded(ASN1Encoding.DER));
+            } catch (IOException | CMSException e) {
+                throw new IllegalStateException("Failed to encode signed data", e);
+            }
+        }
+    }
+}
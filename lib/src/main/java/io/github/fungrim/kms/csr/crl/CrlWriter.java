@@ -0,0 +1,450 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.crl;
+
+
+import com.google.cloud.kms.v1.CryptoKeyVersionName;
+import com.google.common.base.Preconditions;
+import io.github.fungrim.kms.csr.KmsKeyCache;
+import io.github.fungrim.kms.csr.client.KmsServiceClient;
+import io.github.fungrim.kms.csr.util.Algorithms;
+import io.github.fungrim.kms.csr.util.DigestingOutputStream;
+import io.github.fungrim.kms.csr.util.JcaDigest;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Date;
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.DERBitString;
+import org.bouncycastle.asn1.DERTaggedObject;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.AuthorityKeyIdentifier;
+import org.bouncycastle.asn1.x509.CRLNumber;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.ExtensionsGenerator;
+import org.bouncycastle.asn1.x509.SubjectKeyIdentifier;
+import org.bouncycastle.asn1.x509.Time;
+import org.bouncycastle.cert.X509CertificateHolder;
+
+/**
+ * This CRL writer signs CRL:s of any size with a KMS CA key. E.g.:
+ * 
+ * <pre>
+ * CsrBuilderFactory factory = // create builder factory
+ * CrlWriter writer = factory.crlWriter()
+ *              .withCaKey(caKeyName)
+ *              .withCaCertificate(caCertificate)
+ *              .build();
+ * try (OutputStream out = Files.newOutputStream(path)) {
+ *     writer.write(crlNumber, revokedEntries, out);
+ * }
+ * </pre>
+ * 
+ * The revoked entries are streamed and encoded one at a time, so memory use
+ * does not grow with the size of the CRL. To do so the entries are iterated
+ * three times, first to compute the encoded length, then to digest the TBS
+ * certificate list for KMS to sign, and last to write the CRL. Each iteration
+ * must return the same entries in the same order, e.g. from a snapshot or an
+ * ordered query, which is checked. A writer is thread safe.
+ */
+public class CrlWriter {
+
+    /**
+     * A written CRL.
+     */
+    public static class Result {
+
+        private final BigInteger crlNumber;
+        private final long entries;
+        private final long length;
+        private final Instant thisUpdate;
+        private final Instant nextUpdate;
+
+        private Result(BigInteger crlNumber, long entries, long length, Instant thisUpdate, Instant nextUpdate) {
+            this.crlNumber = crlNumber;
+            this.entries = entries;
+            this.length = length;
+            this.thisUpdate = thisUpdate;
+            this.nextUpdate = nextUpdate;
+        }
+
+        /**
+         * @return The CRL number, never null
+         */
+        public BigInteger getCrlNumber() {
+            return crlNumber;
+        }
+
+        /**
+         * @return The number of revoked entries
+         */
+        public long getEntries() {
+            return entries;
+        }
+
+        /**
+         * @return The number of bytes written
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * @return The time the CRL was issued, never null
+         */
+        public Instant getThisUpdate() {
+            return thisUpdate;
+        }
+
+        /**
+         * @return The time the next CRL is due, never null
+         */
+        public Instant getNextUpdate() {
+            return nextUpdate;
+        }
+    }
+
+    /**
+     * A builder for the writer. Created via
+     * {@link CrlWriter#builder(KmsServiceClient, KmsKeyCache)}, or from a
+     * factory.
+     */
+    public static class Builder {
+
+        private final KmsServiceClient client;
+        private final KmsKeyCache cache;
+        private CryptoKeyVersionName caKey;
+        private X509CertificateHolder caCertificate;
+        private Duration validity = Duration.ofDays(7);
+        private Clock clock = Clock.systemUTC();
+
+        private Builder(KmsServiceClient client, KmsKeyCache cache) {
+            this.client = Preconditions.checkNotNull(client);
+            this.cache = Preconditions.checkNotNull(cache);
+        }
+
+        /**
+         * @param caKey
+         *            The CA key version to sign with, must not be null
+         * @return This builder
+         */
+        public Builder withCaKey(CryptoKeyVersionName caKey) {
+            this.caKey = Preconditions.checkNotNull(caKey);
+            return this;
+        }
+
+        /**
+         * @param caCertificate
+         *            The CA certificate, its public key must be the CA key version
+         *            public key, must not be null
+         * @return This builder
+         */
+        public Builder withCaCertificate(X509CertificateHolder caCertificate) {
+            this.caCertificate = Preconditions.checkNotNull(caCertificate);
+            return this;
+        }
+
+        /**
+         * @param validity
+         *            Time from this update to next update, defaults to 7 days,
+         *            must be positive
+         * @return This builder
+         */
+        public Builder withValidity(Duration validity) {
+            Preconditions.checkArgument(!validity.isNegative() && !validity.isZero(), "Validity must be positive");
+            this.validity = validity;
+            return this;
+        }
+
+        /**
+         * @param clock
+         *            Clock for the update times, must not be null
+         * @return This builder
+         */
+        public Builder withClock(Clock clock) {
+            this.clock = Preconditions.checkNotNull(clock);
+            return this;
+        }
+
+        /**
+         * @return A new writer, never null
+         */
+        public CrlWriter build() {
+            Preconditions.checkNotNull(caKey, "Missing CA key version name");
+            Preconditions.checkNotNull(caCertificate, "Missing CA certificate");
+            return new CrlWriter(this);
+        }
+    }
+
+    /**
+     * @param client
+     *            KMS client, must not be null
+     * @param cache
+     *            Key cache, must not be null
+     * @return A new writer builder, never null
+     */
+    public static Builder builder(KmsServiceClient client, KmsKeyCache cache) {
+        return new Builder(client, cache);
+    }
+
+    private final KmsServiceClient client;
+    private final KmsKeyCache cache;
+    private final CryptoKeyVersionName caKey;
+    private final X509CertificateHolder caCertificate;
+    private final AuthorityKeyIdentifier authorityKeyIdentifier;
+    private final Duration validity;
+    private final Clock clock;
+
+    private CrlWriter(Builder builder) {
+        this.client = builder.client;
+        this.cache = builder.cache;
+        this.caKey = builder.caKey;
+        this.caCertificate = builder.caCertificate;
+        this.validity = builder.validity;
+        this.clock = builder.clock;
+        Extension caKeyId = caCertificate.getExtension(Extension.subjectKeyIdentifier);
+        byte[] keyId = caKeyId == null ? keyIdentifier(caCertificate)
+                : SubjectKeyIdentifier.getInstance(caKeyId.getParsedValue()).getKeyIdentifier();
+        this.authorityKeyIdentifier = new AuthorityKeyIdentifier(keyId);
+    }
+
+    /**
+     * Sign and write a CRL. The stream is flushed but not closed.
+     * 
+     * @param crlNumber
+     *            The CRL number, must increase for each CRL, must not be null
+     * @param entries
+     *            The revoked entries, iterated three times, must not be null
+     * @param out
+     *            Stream to write the DER encoded CRL to, must not be null
+     * @return The written CRL, never null
+     * @throws IOException
+     *             If failing to write the CRL
+     * @throws IllegalStateException
+     *             If the entries change between iterations
+     */
+    public Result write(BigInteger crlNumber, Iterable<RevokedEntry> entries, OutputStream out) throws IOException {
+        Preconditions.checkArgument(crlNumber.signum() >= 0, "CRL number must not be negative");
+        KmsKeyCache.Entry ca = cache.get(caKey);
+        checkCaKey(ca);
+        Instant thisUpdate = clock.instant();
+        Instant nextUpdate = thisUpdate.plus(validity);
+        AlgorithmIdentifier algorithm = Algorithms.toIdentifier(ca.getAlgorithm());
+        Template template = new Template(algorithm, crlNumber, thisUpdate, nextUpdate);
+        // first pass, the length of the revoked entries
+        Totals totals = new Totals();
+        for (RevokedEntry entry : entries) {
+            totals.add(entry.encode());
+        }
+        // second pass, digest once and sign the digest
+        JcaDigest jcaDigest = JcaDigest.of(ca.getAlgorithm());
+        MessageDigest digest = jcaDigest.newDigest();
+        template.writeTbs(totals, entries, new DigestingOutputStream(digest));
+        byte[] signed = digest.digest();
+        DERBitString signature = new DERBitString(client.asymmetricSign(ca.getKeyName(), jcaDigest.wrap(signed)));
+        // third pass, write the CRL and check the content is what was signed
+        byte[] tail = concat(algorithm.getEncoded(ASN1Encoding.DER), signature.getEncoded(ASN1Encoding.DER));
+        long tbsLength = template.tbsLength(totals);
+        long length = tbsLength + tail.length;
+        BufferedOutputStream buffered = new BufferedOutputStream(out, 64 * 1024);
+        DigestingOutputStream check = new DigestingOutputStream(digest);
+        byte[] header = Der.header(Der.SEQUENCE, length);
+        buffered.write(header);
+        template.writeTbs(totals, entries, new Tee(buffered, check));
+        if (!Arrays.equals(signed, check.digest())) {
+            throw new IllegalStateException("Revoked entries changed while writing the CRL");
+        }
+        buffered.write(tail);
+        buffered.flush();
+        return new Result(crlNumber, totals.count, header.length + length, thisUpdate, nextUpdate);
+    }
+
+    /**
+     * Sign and write a CRL to a file, replacing any existing file. The CRL is
+     * written to a temp file in the same directory which is moved over the file,
+     * atomically where supported, only once the CRL is complete, so readers see
+     * either the old or the new CRL and a failure leaves the old CRL in place.
+     * 
+     * @param crlNumber
+     *            The CRL number, must increase for each CRL, must not be null
+     * @param entries
+     *            The revoked entries, iterated three times, must not be null
+     * @param file
+     *            The file to write the DER encoded CRL to, must not be null
+     * @return The written CRL, never null
+     * @throws IOException
+     *             If failing to write the CRL
+     */
+    public Result write(BigInteger crlNumber, Iterable<RevokedEntry> entries, Path file) throws IOException {
+        Path target = file.toAbsolutePath();
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            Result result;
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                result = write(crlNumber, entries, out);
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return result;
+        } finally {
+            deleteQuietly(temp);
+        }
+    }
+
+    private static void deleteQuietly(Path temp) {
+        try {
+            Files.deleteIfExists(temp);
+        } catch (IOException e) {
+            // ignore, only a stray temp file
+        }
+    }
+
+    /**
+     * The count and encoded length of revoked entries.
+     */
+    private static class Totals {
+
+        private long count;
+        private long length;
+
+        private void add(byte[] encoded) {
+            count++;
+            length += encoded.length;
+        }
+    }
+
+    /**
+     * The fixed parts of the TBS certificate list.
+     */
+    private class Template {
+
+        private final byte[] head;
+        private final byte[] extensions;
+
+        private Template(AlgorithmIdentifier algorithm, BigInteger crlNumber, Instant thisUpdate, Instant nextUpdate)
+                throws IOException {
+            this.head = concat(new ASN1Integer(1).getEncoded(ASN1Encoding.DER),
+                    algorithm.getEncoded(ASN1Encoding.DER), caCertificate.getSubject().getEncoded(ASN1Encoding.DER),
+                    new Time(Date.from(thisUpdate)).getEncoded(ASN1Encoding.DER),
+                    new Time(Date.from(nextUpdate)).getEncoded(ASN1Encoding.DER));
+            ExtensionsGenerator generator = new ExtensionsGenerator();
+            generator.addExtension(Extension.authorityKeyIdentifier, false, authorityKeyIdentifier);
+            generator.addExtension(Extension.cRLNumber, false, new CRLNumber(crlNumber));
+            this.extensions = new DERTaggedObject(true, 0, generator.generate()).getEncoded(ASN1Encoding.DER);
+        }
+
+        private long tbsLength(Totals totals) {
+            long content = head.length + revokedLength(totals) + extensions.length;
+            return Der.headerLength(content) + content;
+        }
+
+        private long revokedLength(Totals totals) {
+            // an empty list of revoked certificates is left out
+            return totals.count == 0 ? 0 : Der.headerLength(totals.length) + totals.length;
+        }
+
+        private void writeTbs(Totals totals, Iterable<RevokedEntry> entries, OutputStream out) throws IOException {
+            out.write(Der.header(Der.SEQUENCE, head.length + revokedLength(totals) + extensions.length));
+            out.write(head);
+            if (totals.count > 0) {
+                out.write(Der.header(Der.SEQUENCE, totals.length));
+                Totals written = new Totals();
+                for (RevokedEntry entry : entries) {
+                    byte[] encoded = entry.encode();
+                    written.add(encoded);
+                    out.write(encoded);
+                }
+                if (written.count != totals.count || written.length != totals.length) {
+                    throw new IllegalStateException("Revoked entries changed while writing the CRL");
+                }
+            }
+            out.write(extensions);
+        }
+    }
+
+    /**
+     * Writes to two streams.
+     */
+    private static class Tee extends OutputStream {
+
+        private final OutputStream first;
+        private final OutputStream second;
+
+        private Tee(OutputStream first, OutputStream second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            first.write(b);
+            second.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            first.write(b, off, len);
+            second.write(b, off, len);
+        }
+    }
+
+    private void checkCaKey(KmsKeyCache.Entry ca) {
+        try {
+            byte[] caPublicKey = caCertificate.getSubjectPublicKeyInfo().getEncoded();
+            if (!Arrays.equals(caPublicKey, ca.getPublicKey().getEncoded())) {
+                throw new IllegalStateException("CA certificate public key does not match key: " + caKey);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to encode CA public key", e);
+        }
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * A key identifier per RFC 5280, the SHA-1 hash of the public key bits.
+     */
+    private static byte[] keyIdentifier(X509CertificateHolder certificate) {
+        try {
+            return MessageDigest.getInstance("SHA-1")
+                    .digest(certificate.getSubjectPublicKeyInfo().getPublicKeyData().getBytes());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+    }
+}
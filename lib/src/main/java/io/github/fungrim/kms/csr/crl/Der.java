@@ -0,0 +1,66 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.crl;
+
+
+/**
+ * DER encoding helpers for writing structures piece by piece.
+ */
+class Der {
+
+    static final int INTEGER = 0x02;
+    static final int UTC_TIME = 0x17;
+    static final int GENERALIZED_TIME = 0x18;
+    static final int SEQUENCE = 0x30;
+
+    private Der() {
+    }
+
+    /**
+     * @return The length of a tag and definite length header
+     */
+    static int headerLength(long length) {
+        return length < 128 ? 2 : 2 + (Long.SIZE - Long.numberOfLeadingZeros(length) + 7) / 8;
+    }
+
+    /**
+     * Write a tag and definite length header.
+     * 
+     * @return The position after the header
+     */
+    static int writeHeader(byte[] buffer, int position, int tag, long length) {
+        buffer[position++] = (byte) tag;
+        if (length < 128) {
+            buffer[position++] = (byte) length;
+            return position;
+        }
+        int size = headerLength(length) - 2;
+        buffer[position++] = (byte) (0x80 | size);
+        for (int i = size - 1; i >= 0; i--) {
+            buffer[position++] = (byte) (length >>> (8 * i));
+        }
+        return position;
+    }
+
+    /**
+     * @return A tag and definite length header
+     */
+    static byte[] header(int tag, long length) {
+        byte[] header = new byte[headerLength(length)];
+        writeHeader(header, 0, tag, length);
+        return header;
+    }
+}
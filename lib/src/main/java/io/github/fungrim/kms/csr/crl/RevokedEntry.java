@@ -0,0 +1,159 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.crl;
+
+
+import com.google.common.base.Preconditions;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.ExtensionsGenerator;
+
+/**
+ * A revoked certificate in a CRL, a serial number, revocation date and
+ * optionally a reason.
+ */
+public class RevokedEntry {
+
+    private static final byte[] EMPTY = new byte[0];
+    private static final byte[][] REASON_EXTENSIONS = createReasonExtensions();
+
+    private final BigInteger serialNumber;
+    private final Instant revocationDate;
+    private final int reason;
+
+    private RevokedEntry(BigInteger serialNumber, Instant revocationDate, int reason) {
+        this.serialNumber = Preconditions.checkNotNull(serialNumber);
+        this.revocationDate = Preconditions.checkNotNull(revocationDate);
+        this.reason = reason;
+        if (reason != CRLReason.unspecified) {
+            reasonExtensions(reason);
+        }
+    }
+
+    /**
+     * @param serialNumber
+     *            The certificate serial number, must not be null
+     * @param revocationDate
+     *            The time of revocation, must not be null
+     * @return A new entry, without a reason, never null
+     */
+    public static RevokedEntry of(BigInteger serialNumber, Instant revocationDate) {
+        return new RevokedEntry(serialNumber, revocationDate, CRLReason.unspecified);
+    }
+
+    /**
+     * @param serialNumber
+     *            The certificate serial number, must not be null
+     * @param revocationDate
+     *            The time of revocation, must not be null
+     * @param reason
+     *            The reason, one of the {@link CRLReason} constants
+     * @return A new entry, never null
+     */
+    public static RevokedEntry of(BigInteger serialNumber, Instant revocationDate, int reason) {
+        return new RevokedEntry(serialNumber, revocationDate, reason);
+    }
+
+    /**
+     * @return The certificate serial number, never null
+     */
+    public BigInteger getSerialNumber() {
+        return serialNumber;
+    }
+
+    /**
+     * @return The time of revocation, never null
+     */
+    public Instant getRevocationDate() {
+        return revocationDate;
+    }
+
+    /**
+     * @return The reason, one of the {@link CRLReason} constants
+     */
+    public int getReason() {
+        return reason;
+    }
+
+    /**
+     * Encode the CRL entry. This is done by hand, as it is done millions of times
+     * for large CRL:s, and gives the same encoding as Bouncy Castle.
+     * 
+     * @return The DER encoded CRL entry, never null
+     */
+    byte[] encode() {
+        byte[] serial = serialNumber.toByteArray();
+        LocalDateTime time = LocalDateTime.ofEpochSecond(revocationDate.getEpochSecond(), 0, ZoneOffset.UTC);
+        // RFC 5280, UTC time until 2049 and generalized time after
+        boolean utc = time.getYear() >= 1950 && time.getYear() < 2050;
+        byte[] extensions = reason == CRLReason.unspecified ? EMPTY : reasonExtensions(reason);
+        int content = Der.headerLength(serial.length) + serial.length + (utc ? 15 : 17) + extensions.length;
+        byte[] encoded = new byte[Der.headerLength(content) + content];
+        int position = Der.writeHeader(encoded, 0, Der.SEQUENCE, content);
+        position = Der.writeHeader(encoded, position, Der.INTEGER, serial.length);
+        System.arraycopy(serial, 0, encoded, position, serial.length);
+        position += serial.length;
+        position = Der.writeHeader(encoded, position, utc ? Der.UTC_TIME : Der.GENERALIZED_TIME, utc ? 13 : 15);
+        position = utc ? digits(encoded, position, time.getYear() % 100, 2)
+                : digits(encoded, position, time.getYear(), 4);
+        position = digits(encoded, position, time.getMonthValue(), 2);
+        position = digits(encoded, position, time.getDayOfMonth(), 2);
+        position = digits(encoded, position, time.getHour(), 2);
+        position = digits(encoded, position, time.getMinute(), 2);
+        position = digits(encoded, position, time.getSecond(), 2);
+        encoded[position++] = 'Z';
+        System.arraycopy(extensions, 0, encoded, position, extensions.length);
+        return encoded;
+    }
+
+    private static int digits(byte[] buffer, int position, int value, int count) {
+        for (int i = count - 1; i >= 0; i--) {
+            buffer[position + i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return position + count;
+    }
+
+    private static byte[] reasonExtensions(int reason) {
+        Preconditions.checkArgument(reason >= 0 && reason < REASON_EXTENSIONS.length && reason != 7,
+                "Unknown CRL reason: " + reason);
+        return REASON_EXTENSIONS[reason];
+    }
+
+    private static byte[][] createReasonExtensions() {
+        // the reason codes are 0 to 10, where 7 is not used
+        byte[][] extensions = new byte[11][];
+        for (int reason = 0; reason < extensions.length; reason++) {
+            if (reason == 7) {
+                continue;
+            }
+            ExtensionsGenerator generator = new ExtensionsGenerator();
+            try {
+                generator.addExtension(Extension.reasonCode, false, CRLReason.lookup(reason));
+                extensions[reason] = generator.generate().getEncoded(ASN1Encoding.DER);
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to encode CRL reason", e);
+            }
+        }
+        return extensions;
+    }
+}
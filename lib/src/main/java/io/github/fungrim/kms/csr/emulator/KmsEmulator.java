@@ -0,0 +1,589 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.emulator;
+
+
+import com.google.api.gax.rpc.StatusCode.Code;
+import com.google.cloud.kms.v1.CryptoKeyName;
+import com.google.cloud.kms.v1.CryptoKeyVersion;
+import com.google.cloud.kms.v1.CryptoKeyVersion.CryptoKeyVersionAlgorithm;
+import com.google.cloud.kms.v1.CryptoKeyVersion.CryptoKeyVersionState;
+import com.google.cloud.kms.v1.CryptoKeyVersionName;
+import com.google.cloud.kms.v1.Digest;
+import com.google.cloud.kms.v1.KeyRingName;
+import com.google.cloud.kms.v1.ProtectionLevel;
+import com.google.common.base.Preconditions;
+import com.google.protobuf.Timestamp;
+import io.github.fungrim.kms.csr.client.KmsServiceClient;
+import io.github.fungrim.kms.csr.metrics.KmsCall;
+import io.github.fungrim.kms.csr.util.Algorithms;
+import io.github.fungrim.kms.csr.util.CompletableFutures;
+import io.github.fungrim.kms.csr.util.JcaDigest;
+import io.github.fungrim.kms.csr.util.Provider;
+import io.github.fungrim.kms.csr.util.StatusCodes;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.PSSParameterSpec;
+import java.time.Clock;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.nist.NISTObjectIdentifiers;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.DigestInfo;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.util.io.pem.PemObject;
+import org.bouncycastle.util.io.pem.PemWriter;
+
+/**
+ * An in process stand in for KMS. It generates and holds EC and RSA key
+ * versions in memory, returns key versions and PEM public keys like KMS does,
+ * and signs digests locally. Latency, errors and quota throttling can be
+ * injected to load test the library, or the code using it, without GCP. E.g.:
+ * 
+ * <pre>
+ * KmsEmulator kms = KmsEmulator.builder()
+ *              .withLatency(LatencyModel.logNormal(Duration.ofMillis(20), 0.5))
+ *              .withErrorRate(0.01, Code.UNAVAILABLE)
+ *              .withProjectQuota(500)
+ *              .withSeed(42)
+ *              .build();
+ * CryptoKeyVersionName keyName = // a key name
+ * kms.createKey(keyName, CryptoKeyVersionAlgorithm.EC_SIGN_P256_SHA256);
+ * CsrBuilderFactory factory = CsrBuilderFactory.builder(kms).build();
+ * </pre>
+ * 
+ * Errors are thrown as API exceptions with a gRPC status, like the GCP client
+ * does. Blocking calls sleep for their latency, while asynchronous calls are
+ * completed on a scheduler so that no thread is parked. With a fixed seed and a
+ * single calling thread the injected latencies and errors are deterministic.
+ */
+public class KmsEmulator implements KmsServiceClient, AutoCloseable {
+
+    private static final BouncyCastleProvider PROVIDER = new BouncyCastleProvider();
+
+    /**
+     * A builder for the emulator. Created via {@link KmsEmulator#builder()}.
+     */
+    public static class Builder {
+
+        private final Map<KmsCall, LatencyModel> callLatency = new EnumMap<>(KmsCall.class);
+        private LatencyModel latency = LatencyModel.none();
+        private double errorRate;
+        private Code errorCode = Code.UNAVAILABLE;
+        private double projectQuota;
+        private double keyQuota;
+        private long seed = System.nanoTime();
+        private boolean localSigning = true;
+        private ScheduledExecutorService scheduler;
+        private Clock clock = Clock.systemUTC();
+
+        private Builder() {
+        }
+
+        /**
+         * @param latency
+         *            Latency of all calls, must not be null
+         * @return This builder
+         */
+        public Builder withLatency(LatencyModel latency) {
+            this.latency = Preconditions.checkNotNull(latency);
+            return this;
+        }
+
+        /**
+         * @param call
+         *            The call to set latency for, must not be null
+         * @param latency
+         *            Latency of the call, overrides the latency for all calls, must
+         *            not be null
+         * @return This builder
+         */
+        public Builder withLatency(KmsCall call, LatencyModel latency) {
+            this.callLatency.put(Preconditions.checkNotNull(call), Preconditions.checkNotNull(latency));
+            return this;
+        }
+
+        /**
+         * @param rate
+         *            The rate of calls that fail, between 0 and 1
+         * @param code
+         *            The status of the failures, must not be null
+         * @return This builder
+         */
+        public Builder withErrorRate(double rate, Code code) {
+            Preconditions.checkArgument(rate >= 0 && rate <= 1, "Error rate must be between 0 and 1");
+            this.errorRate = rate;
+            this.errorCode = Preconditions.checkNotNull(code);
+            return this;
+        }
+
+        /**
+         * @param callsPerSecond
+         *            The calls allowed per second and project, calls above the quota
+         *            fail with RESOURCE_EXHAUSTED, 0 for no quota
+         * @return This builder
+         */
+        public Builder withProjectQuota(double callsPerSecond) {
+            Preconditions.checkArgument(callsPerSecond >= 0, "Quota must not be negative");
+            this.projectQuota = callsPerSecond;
+            return this;
+        }
+
+        /**
+         * @param callsPerSecond
+         *            The calls allowed per second and key version, calls above the
+         *            quota fail with RESOURCE_EXHAUSTED, 0 for no quota
+         * @return This builder
+         */
+        public Builder withKeyQuota(double callsPerSecond) {
+            Preconditions.checkArgument(callsPerSecond >= 0, "Quota must not be negative");
+            this.keyQuota = callsPerSecond;
+            return this;
+        }
+
+        /**
+         * @param seed
+         *            Seed for injected latencies and errors
+         * @return This builder
+         */
+        public Builder withSeed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        /**
+         * Sign with the local keys, which is the default. If disabled a fixed,
+         * invalid, signature is returned, which is useful to measure the overhead of
+         * the library without the cost of the signature itself.
+         * 
+         * @param localSigning
+         *            True to sign locally
+         * @return This builder
+         */
+        public Builder withLocalSigning(boolean localSigning) {
+            this.localSigning = localSigning;
+            return this;
+        }
+
+        /**
+         * @param scheduler
+         *            Scheduler to complete asynchronous calls on, if null a single
+         *            daemon thread is created and shut down on close
+         * @return This builder
+         */
+        public Builder withScheduler(ScheduledExecutorService scheduler) {
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        /**
+         * @param clock
+         *            Clock for the creation time of keys, defaults to the UTC
+         *            system clock, must not be null
+         * @return This builder
+         */
+        public Builder withClock(Clock clock) {
+            this.clock = Preconditions.checkNotNull(clock);
+            return this;
+        }
+
+        /**
+         * @return A new emulator, never null
+         */
+        public KmsEmulator build() {
+            return new KmsEmulator(this);
+        }
+    }
+
+    /**
+     * @return A new emulator builder, never null
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    private static class LocalKey {
+
+        private final KeyPair keyPair;
+        private final byte[] pem;
+        private volatile CryptoKeyVersion version;
+
+        private LocalKey(CryptoKeyVersion version, KeyPair keyPair, byte[] pem) {
+            this.version = version;
+            this.keyPair = keyPair;
+            this.pem = pem;
+        }
+    }
+
+    private final Map<CryptoKeyVersionName, LocalKey> keys = new ConcurrentHashMap<>();
+    private final Map<String, TokenBucket> projectQuotas = new ConcurrentHashMap<>();
+    private final Map<CryptoKeyVersionName, TokenBucket> keyQuotas = new ConcurrentHashMap<>();
+    private final Map<KmsCall, LongAdder> callCounts = new EnumMap<>(KmsCall.class);
+    private final Map<KmsCall, LatencyModel> callLatency;
+    private final LatencyModel latency;
+    private final double errorRate;
+    private final Code errorCode;
+    private final double projectQuota;
+    private final double keyQuota;
+    private final Random random;
+    private final boolean localSigning;
+    private final ScheduledExecutorService scheduler;
+    private final boolean ownsScheduler;
+    private final Clock clock;
+
+    private KmsEmulator(Builder builder) {
+        this.callLatency = new EnumMap<>(builder.callLatency);
+        this.latency = builder.latency;
+        this.errorRate = builder.errorRate;
+        this.errorCode = builder.errorCode;
+        this.projectQuota = builder.projectQuota;
+        this.keyQuota = builder.keyQuota;
+        this.random = new Random(builder.seed);
+        this.localSigning = builder.localSigning;
+        this.clock = builder.clock;
+        this.ownsScheduler = builder.scheduler == null;
+        this.scheduler = ownsScheduler ? Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "kms-emulator");
+            thread.setDaemon(true);
+            return thread;
+        }) : builder.scheduler;
+        for (KmsCall call : KmsCall.values()) {
+            callCounts.put(call, new LongAdder());
+        }
+    }
+
+    /**
+     * Generate a new enabled key version.
+     * 
+     * @param keyName
+     *            Name of the key version, must not be null
+     * @param algorithm
+     *            Key algorithm, must be a signing algorithm supported by the
+     *            library, see {@link Algorithms#isSupported}
+     * @return The created key version, never null
+     */
+    public CryptoKeyVersion createKey(CryptoKeyVersionName keyName, CryptoKeyVersionAlgorithm algorithm) {
+        Preconditions.checkNotNull(keyName);
+        Preconditions.checkArgument(Algorithms.isSupported(algorithm), "Unsupported algorithm: %s", algorithm);
+        try {
+            KeyPair keyPair = generator(algorithm).generateKeyPair();
+            StringWriter pem = new StringWriter();
+            try (PemWriter writer = new PemWriter(pem)) {
+                writer.writeObject(new PemObject("PUBLIC KEY", keyPair.getPublic().getEncoded()));
+            }
+            long now = clock.millis();
+            CryptoKeyVersion version = CryptoKeyVersion.newBuilder().setName(keyName.toString()).setAlgorithm(algorithm)
+                    .setState(CryptoKeyVersionState.ENABLED).setProtectionLevel(ProtectionLevel.SOFTWARE)
+                    .setCreateTime(Timestamp.newBuilder().setSeconds(now / 1000)
+                            .setNanos((int) (now % 1000) * 1_000_000))
+                    .build();
+            keys.put(keyName, new LocalKey(version, keyPair, pem.toString().getBytes(StandardCharsets.US_ASCII)));
+            return version;
+        } catch (GeneralSecurityException | IOException e) {
+            throw new IllegalStateException("Failed to create key", e);
+        }
+    }
+
+    private static KeyPairGenerator generator(CryptoKeyVersionAlgorithm algorithm) throws GeneralSecurityException {
+        switch (algorithm) {
+            case EC_SIGN_P256_SHA256 :
+                return ecGenerator("secp256r1");
+            case EC_SIGN_P384_SHA384 :
+                return ecGenerator("secp384r1");
+            case RSA_SIGN_PKCS1_2048_SHA256 :
+            case RSA_SIGN_PSS_2048_SHA256 :
+                return rsaGenerator(2048);
+            case RSA_SIGN_PKCS1_3072_SHA256 :
+            case RSA_SIGN_PSS_3072_SHA256 :
+                return rsaGenerator(3072);
+            case RSA_SIGN_PKCS1_4096_SHA256 :
+            case RSA_SIGN_PKCS1_4096_SHA512 :
+            case RSA_SIGN_PSS_4096_SHA256 :
+            case RSA_SIGN_PSS_4096_SHA512 :
+                return rsaGenerator(4096);
+            default :
+                throw new IllegalArgumentException("Unsupported algorithm: " + algorithm);
+        }
+    }
+
+    private static KeyPairGenerator ecGenerator(String curve) throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec(curve));
+        return generator;
+    }
+
+    private static KeyPairGenerator rsaGenerator(int keySize) throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(keySize);
+        return generator;
+    }
+
+    /**
+     * Copy a key version, with its key material, to another emulator. This can
+     * be used to emulate keys imported to several regions.
+     * 
+     * @param keyName
+     *            Key version to copy, must exist
+     * @param target
+     *            Emulator to copy to, must not be null
+     * @param targetName
+     *            Name of the copy, must not be null
+     * @return The key version copy, never null
+     */
+    public CryptoKeyVersion replicateKey(CryptoKeyVersionName keyName, KmsEmulator target,
+            CryptoKeyVersionName targetName) {
+        LocalKey key = keys.get(keyName);
+        Preconditions.checkArgument(key != null, "No such key: %s", keyName);
+        CryptoKeyVersion version = key.version.toBuilder().setName(targetName.toString()).build();
+        target.keys.put(targetName, new LocalKey(version, key.keyPair, key.pem));
+        return version;
+    }
+
+    /**
+     * Change the state of a key version, e.g. to disable or destroy it.
+     * 
+     * @param keyName
+     *            Key version to change, must exist
+     * @param state
+     *            The new state, must not be null
+     */
+    public void setState(CryptoKeyVersionName keyName, CryptoKeyVersionState state) {
+        LocalKey key = keys.get(keyName);
+        Preconditions.checkArgument(key != null, "No such key: %s", keyName);
+        key.version = key.version.toBuilder().setState(Preconditions.checkNotNull(state)).build();
+    }
+
+    /**
+     * @param call
+     *            The call to count, must not be null
+     * @return The number of calls made so far, including failed calls
+     */
+    public long getCallCount(KmsCall call) {
+        return callCounts.get(call).sum();
+    }
+
+    @Override
+    public CryptoKeyVersion getKey(CryptoKeyVersionName keyName) {
+        return call(KmsCall.GET_KEY, keyName.getProject(), keyName, () -> doGetKey(keyName));
+    }
+
+    @Override
+    public byte[] getPublicKeyPem(CryptoKeyVersionName keyName) {
+        return call(KmsCall.GET_PUBLIC_KEY, keyName.getProject(), keyName, () -> doGetPublicKeyPem(keyName));
+    }
+
+    @Override
+    public byte[] asymmetricSign(CryptoKeyVersionName keyName, Digest digest) {
+        return call(KmsCall.ASYMMETRIC_SIGN, keyName.getProject(), keyName, () -> doSign(keyName, digest));
+    }
+
+    @Override
+    public List<CryptoKeyVersion> listSigningKeys(KeyRingName keyRing) {
+        return call(KmsCall.LIST_SIGNING_KEYS, keyRing.getProject(), null, () -> doListSigningKeys(keyRing));
+    }
+
+    @Override
+    public List<CryptoKeyVersion> listKeyVersions(CryptoKeyName cryptoKey) {
+        return call(KmsCall.LIST_KEY_VERSIONS, cryptoKey.getProject(), null, () -> doListKeyVersions(cryptoKey));
+    }
+
+    @Override
+    public CompletableFuture<CryptoKeyVersion> getKeyAsync(CryptoKeyVersionName keyName) {
+        return callAsync(KmsCall.GET_KEY, keyName.getProject(), keyName, () -> doGetKey(keyName));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getPublicKeyPemAsync(CryptoKeyVersionName keyName) {
+        return callAsync(KmsCall.GET_PUBLIC_KEY, keyName.getProject(), keyName, () -> doGetPublicKeyPem(keyName));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> asymmetricSignAsync(CryptoKeyVersionName keyName, Digest digest) {
+        return callAsync(KmsCall.ASYMMETRIC_SIGN, keyName.getProject(), keyName, () -> doSign(keyName, digest));
+    }
+
+    /**
+     * Shut down the scheduler, if it was created by the emulator.
+     */
+    @Override
+    public void close() {
+        if (ownsScheduler) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private <T> T call(KmsCall call, String project, CryptoKeyVersionName keyName, Provider<T> operation) {
+        long nanos = nextLatency(call);
+        CompletableFuture<T> outcome = outcome(call, project, keyName, operation);
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw StatusCodes.toException(Code.CANCELLED, "Interrupted");
+        }
+        return CompletableFutures.join(outcome);
+    }
+
+    private <T> CompletableFuture<T> callAsync(KmsCall call, String project, CryptoKeyVersionName keyName,
+            Provider<T> operation) {
+        long nanos = nextLatency(call);
+        CompletableFuture<T> outcome = outcome(call, project, keyName, operation);
+        if (nanos <= 0) {
+            return outcome;
+        }
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            scheduler.schedule(() -> outcome.whenComplete((value, error) -> {
+                if (error == null) {
+                    result.complete(value);
+                } else {
+                    result.completeExceptionally(error);
+                }
+            }), nanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // closed, fail like any other call rather than throw
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    private <T> CompletableFuture<T> outcome(KmsCall call, String project, CryptoKeyVersionName keyName,
+            Provider<T> operation) {
+        callCounts.get(call).increment();
+        if (projectQuota > 0 && !projectQuotas.computeIfAbsent(project, p -> new TokenBucket(projectQuota))
+                .tryAcquire()) {
+            return CompletableFutures.failed(StatusCodes.toException(Code.RESOURCE_EXHAUSTED,
+                    "Quota exceeded for project: " + project));
+        }
+        if (keyQuota > 0 && keyName != null
+                && !keyQuotas.computeIfAbsent(keyName, k -> new TokenBucket(keyQuota)).tryAcquire()) {
+            return CompletableFutures.failed(StatusCodes.toException(Code.RESOURCE_EXHAUSTED,
+                    "Quota exceeded for key: " + keyName));
+        }
+        if (errorRate > 0 && random.nextDouble() < errorRate) {
+            return CompletableFutures.failed(StatusCodes.toException(errorCode, "Injected error"));
+        }
+        return CompletableFutures.supply(operation);
+    }
+
+    private long nextLatency(KmsCall call) {
+        return Math.max(0, callLatency.getOrDefault(call, latency).nextNanos(random));
+    }
+
+    private LocalKey key(CryptoKeyVersionName keyName) {
+        LocalKey key = keys.get(keyName);
+        if (key == null) {
+            throw StatusCodes.toException(Code.NOT_FOUND, keyName + " not found");
+        }
+        return key;
+    }
+
+    private CryptoKeyVersion doGetKey(CryptoKeyVersionName keyName) {
+        return key(keyName).version;
+    }
+
+    private byte[] doGetPublicKeyPem(CryptoKeyVersionName keyName) {
+        LocalKey key = enabledKey(keyName);
+        return key.pem.clone();
+    }
+
+    private List<CryptoKeyVersion> doListSigningKeys(KeyRingName keyRing) {
+        String prefix = keyRing.toString() + "/";
+        return keys.values().stream().map(k -> k.version)
+                .filter(v -> v.getName().startsWith(prefix) && v.getState() == CryptoKeyVersionState.ENABLED)
+                .collect(Collectors.toList());
+    }
+
+    private List<CryptoKeyVersion> doListKeyVersions(CryptoKeyName cryptoKey) {
+        String prefix = cryptoKey.toString() + "/cryptoKeyVersions/";
+        return keys.values().stream().map(k -> k.version)
+                .filter(v -> v.getName().startsWith(prefix) && v.getState() == CryptoKeyVersionState.ENABLED)
+                .collect(Collectors.toList());
+    }
+
+    private LocalKey enabledKey(CryptoKeyVersionName keyName) {
+        LocalKey key = key(keyName);
+        if (key.version.getState() != CryptoKeyVersionState.ENABLED) {
+            throw StatusCodes.toException(Code.FAILED_PRECONDITION,
+                    keyName + " is not enabled, current state is: " + key.version.getState());
+        }
+        return key;
+    }
+
+    private byte[] doSign(CryptoKeyVersionName keyName, Digest digest) {
+        LocalKey key = enabledKey(keyName);
+        CryptoKeyVersionAlgorithm algorithm = key.version.getAlgorithm();
+        byte[] hash = hashOf(digest, JcaDigest.of(algorithm));
+        if (!localSigning) {
+            return new byte[64];
+        }
+        try {
+            String name = algorithm.name();
+            Signature signature;
+            if (name.startsWith("EC_SIGN")) {
+                signature = Signature.getInstance("NONEwithECDSA");
+                signature.initSign(key.keyPair.getPrivate());
+                signature.update(hash);
+            } else if (name.startsWith("RSA_SIGN_PSS")) {
+                String hashName = "SHA-" + (hash.length * 8);
+                signature = Signature.getInstance("NONEWITHRSAPSS", PROVIDER);
+                signature.setParameter(
+                        new PSSParameterSpec(hashName, "MGF1", new MGF1ParameterSpec(hashName), hash.length, 1));
+                signature.initSign(key.keyPair.getPrivate());
+                signature.update(hash);
+            } else {
+                signature = Signature.getInstance("NONEwithRSA");
+                signature.initSign(key.keyPair.getPrivate());
+                AlgorithmIdentifier hashId = new AlgorithmIdentifier(
+                        hash.length == 64 ? NISTObjectIdentifiers.id_sha512 : NISTObjectIdentifiers.id_sha256,
+                        DERNull.INSTANCE);
+                signature.update(new DigestInfo(hashId, hash).getEncoded());
+            }
+            return signature.sign();
+        } catch (GeneralSecurityException | IOException e) {
+            throw StatusCodes.toException(Code.INTERNAL, "Failed to sign: " + e.getMessage());
+        }
+    }
+
+    private static byte[] hashOf(Digest digest, JcaDigest expected) {
+        if (expected == JcaDigest.SHA256 && digest.getDigestCase() == Digest.DigestCase.SHA256) {
+            return digest.getSha256().toByteArray();
+        } else if (expected == JcaDigest.SHA384 && digest.getDigestCase() == Digest.DigestCase.SHA384) {
+            return digest.getSha384().toByteArray();
+        } else if (expected == JcaDigest.SHA512 && digest.getDigestCase() == Digest.DigestCase.SHA512) {
+            return digest.getSha512().toByteArray();
+        }
+        throw StatusCodes.toException(Code.INVALID_ARGUMENT, "Digest does not match the key algorithm");
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.emulator;
+
+
+import com.google.common.base.Preconditions;
+import java.time.Duration;
+import java.util.Random;
+
+/**
+ * A model of call latency for the KMS emulator.
+ */
+@FunctionalInterface
+public interface LatencyModel {
+
+    /**
+     * @param random
+     *            Random source to use, never null
+     * @return The next latency in nanoseconds, zero or more
+     */
+    public long nextNanos(Random random);
+
+    /**
+     * @return A model without latency, never null
+     */
+    public static LatencyModel none() {
+        return r -> 0;
+    }
+
+    /**
+     * @param latency
+     *            The latency, must not be null
+     * @return A model with a fixed latency, never null
+     */
+    public static LatencyModel fixed(Duration latency) {
+        long nanos = Preconditions.checkNotNull(latency).toNanos();
+        return r -> nanos;
+    }
+
+    /**
+     * @param min
+     *            The min latency, must not be null
+     * @param max
+     *            The max latency, must not be null or less than min
+     * @return A model with uniformly distributed latency, never null
+     */
+    public static LatencyModel uniform(Duration min, Duration max) {
+        long minNanos = min.toNanos();
+        long range = max.toNanos() - minNanos;
+        Preconditions.checkArgument(range >= 0, "Max latency must not be less than min latency");
+        return r -> minNanos + (long) (r.nextDouble() * range);
+    }
+
+    /**
+     * A log normal latency, which has the long tail typical for remote calls.
+     * 
+     * @param median
+     *            The median latency, must not be null
+     * @param sigma
+     *            The standard deviation of the log of the latency, e.g. 0.5 gives
+     *            a p99 of about 3.2 times the median
+     * @return A model with log normal latency, never null
+     */
+    public static LatencyModel logNormal(Duration median, double sigma) {
+        long medianNanos = median.toNanos();
+        Preconditions.checkArgument(sigma >= 0, "Sigma must not be negative");
+        return r -> (long) (medianNanos * Math.exp(sigma * r.nextGaussian()));
+    }
+
+    /**
+     * @param probability
+     *            The probability of using the tail model, between 0 and 1
+     * @param tail
+     *            The tail model, must not be null
+     * @return A model that uses this model, or with the given probability the tail
+     *         model, never null
+     */
+    public default LatencyModel withTail(double probability, LatencyModel tail) {
+        Preconditions.checkArgument(probability >= 0 && probability <= 1, "Probability must be between 0 and 1");
+        Preconditions.checkNotNull(tail);
+        return r -> r.nextDouble() < probability ? tail.nextNanos(r) : nextNanos(r);
+    }
+}
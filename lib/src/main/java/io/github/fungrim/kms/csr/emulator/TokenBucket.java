@@ -0,0 +1,46 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.emulator;
+
+/**
+ * A simple token bucket with a burst of one second worth of permits, but at
+ * least one permit so that rates below one per second are allowed at all.
+ */
+class TokenBucket {
+
+    private final double permitsPerSecond;
+    private final double capacity;
+    private double tokens;
+    private long lastRefill;
+
+    TokenBucket(double permitsPerSecond) {
+        this.permitsPerSecond = permitsPerSecond;
+        this.capacity = Math.max(1, permitsPerSecond);
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    synchronized boolean tryAcquire() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * permitsPerSecond / 1_000_000_000d);
+        lastRefill = now;
+        if (tokens >= 1) {
+            tokens -= 1;
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,566 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.issuer;
+
+
+import com.google.cloud.kms.v1.CryptoKeyVersionName;
+import com.google.common.base.Preconditions;
+import io.github.fungrim.kms.csr.KmsKeyCache;
+import io.github.fungrim.kms.csr.client.KmsServiceClient;
+import io.github.fungrim.kms.csr.signer.KmsContentSigner;
+import io.github.fungrim.kms.csr.util.Algorithms;
+import io.github.fungrim.kms.csr.util.CompletableFutures;
+import io.github.fungrim.kms.csr.util.Pem;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.security.auth.x500.X500Principal;
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.DERBitString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.AuthorityKeyIdentifier;
+import org.bouncycastle.asn1.x509.Certificate;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.Extensions;
+import org.bouncycastle.asn1.x509.ExtensionsGenerator;
+import org.bouncycastle.asn1.x509.SubjectKeyIdentifier;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.asn1.x509.TBSCertificate;
+import org.bouncycastle.asn1.x509.Time;
+import org.bouncycastle.asn1.x509.V3TBSCertificateGenerator;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.operator.ContentVerifierProvider;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentVerifierProviderBuilder;
+import org.bouncycastle.pkcs.PKCS10CertificationRequest;
+import org.bouncycastle.pkcs.PKCSException;
+
+/**
+ * This certificate issuer signs X.509 certificates with a KMS CA key. It takes
+ * CSR:s, or a subject and public key, applies a {@link CertificateProfile} and
+ * signs with the CA key version via the key cache. E.g.:
+ * 
+ * <pre>
+ * CsrBuilderFactory factory = // create builder factory
+ * CertificateIssuer issuer = factory.issuer()
+ *              .withCaKey(caKeyName)
+ *              .withCaCertificate(caCertificate)
+ *              .withProfile(profile)
+ *              .build();
+ * X509CertificateHolder certificate = issuer.issue(Request.of(csr)).getCertificate();
+ * </pre>
+ * 
+ * The certificate is templated and encoded in the calling thread and only the
+ * digest is sent to KMS, so with {@link #issueAll(Collection)} the templating
+ * of the next certificates overlaps with the signing calls in flight. An issuer
+ * is thread safe.
+ */
+public class CertificateIssuer {
+
+    private static final BouncyCastleProvider PROVIDER = new BouncyCastleProvider();
+
+    /**
+     * A certificate to issue, a subject and public key, and optionally the CSR
+     * they came from.
+     */
+    public static class Request {
+
+        private final X500Name subject;
+        private final SubjectPublicKeyInfo publicKey;
+        private final PKCS10CertificationRequest csr;
+
+        private Request(X500Name subject, SubjectPublicKeyInfo publicKey, PKCS10CertificationRequest csr) {
+            this.subject = Preconditions.checkNotNull(subject);
+            this.publicKey = Preconditions.checkNotNull(publicKey);
+            this.csr = csr;
+        }
+
+        /**
+         * Request a certificate for a CSR. The CSR signature is verified when the
+         * certificate is issued, and the extensions of its extension request are
+         * copied if allowed by the profile.
+         * 
+         * @param csr
+         *            The CSR, must not be null
+         * @return A new request, never null
+         */
+        public static Request of(PKCS10CertificationRequest csr) {
+            return new Request(csr.getSubject(), csr.getSubjectPublicKeyInfo(), csr);
+        }
+
+        /**
+         * @param subject
+         *            The certificate subject, must not be null
+         * @param publicKey
+         *            The certificate public key, must not be null
+         * @return A new request, never null
+         */
+        public static Request of(X500Principal subject, PublicKey publicKey) {
+            return new Request(X500Name.getInstance(subject.getEncoded()),
+                    SubjectPublicKeyInfo.getInstance(publicKey.getEncoded()), null);
+        }
+
+        /**
+         * @param subject
+         *            The certificate subject, must not be null
+         * @param publicKey
+         *            The certificate public key, must not be null
+         * @return A new request, never null
+         */
+        public static Request of(X500Name subject, SubjectPublicKeyInfo publicKey) {
+            return new Request(subject, publicKey, null);
+        }
+
+        /**
+         * @return The certificate subject, never null
+         */
+        public X500Name getSubject() {
+            return subject;
+        }
+    }
+
+    /**
+     * An issued certificate. The DER encoding is made once when the certificate
+     * is assembled, and the PEM encoding is cached.
+     */
+    public static class Result {
+
+        private final X509CertificateHolder certificate;
+        private final byte[] der;
+        private volatile byte[] pem;
+
+        private Result(X509CertificateHolder certificate, byte[] der) {
+            this.certificate = certificate;
+            this.der = der;
+        }
+
+        /**
+         * @return The certificate, never null
+         */
+        public X509CertificateHolder getCertificate() {
+            return certificate;
+        }
+
+        /**
+         * @return The certificate serial number, never null
+         */
+        public BigInteger getSerialNumber() {
+            return certificate.getSerialNumber();
+        }
+
+        /**
+         * @return A copy of the DER encoded certificate, never null
+         */
+        public byte[] asDer() {
+            return der.clone();
+        }
+
+        /**
+         * @return The certificate as a PEM string, never null
+         */
+        public String asPem() {
+            return new String(pem(), StandardCharsets.US_ASCII);
+        }
+
+        /**
+         * @return A copy of the certificate as PEM in US ASCII bytes, never null
+         */
+        public byte[] asPemBytes() {
+            return pem().clone();
+        }
+
+        /**
+         * Write the DER encoded certificate to a stream. The stream is not closed.
+         * 
+         * @param out
+         *            Stream to write to, must not be null
+         * @throws IOException
+         *             If failing to write the certificate
+         */
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(der);
+        }
+
+        private byte[] pem() {
+            byte[] result = pem;
+            if (result == null) {
+                result = Pem.encode("CERTIFICATE", der);
+                pem = result;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * A builder for the issuer. Created via
+     * {@link CertificateIssuer#builder(KmsServiceClient, KmsKeyCache)}, or from a
+     * factory.
+     */
+    public static class Builder {
+
+        private final KmsServiceClient client;
+        private final KmsKeyCache cache;
+        private CryptoKeyVersionName caKey;
+        private X509CertificateHolder caCertificate;
+        private CertificateProfile profile;
+        private Executor executor;
+        private int concurrency = 16;
+
+        private Builder(KmsServiceClient client, KmsKeyCache cache) {
+            this.client = Preconditions.checkNotNull(client);
+            this.cache = Preconditions.checkNotNull(cache);
+        }
+
+        /**
+         * @param caKey
+         *            The CA key version to sign with, must not be null
+         * @return This builder
+         */
+        public Builder withCaKey(CryptoKeyVersionName caKey) {
+            this.caKey = Preconditions.checkNotNull(caKey);
+            return this;
+        }
+
+        /**
+         * @param caCertificate
+         *            The CA certificate, its public key must be the CA key version
+         *            public key, must not be null
+         * @return This builder
+         */
+        public Builder withCaCertificate(X509CertificateHolder caCertificate) {
+            this.caCertificate = Preconditions.checkNotNull(caCertificate);
+            return this;
+        }
+
+        /**
+         * @param profile
+         *            Profile of issued certificates, if null the default profile is
+         *            used
+         * @return This builder
+         */
+        public Builder withProfile(CertificateProfile profile) {
+            this.profile = profile;
+            return this;
+        }
+
+        /**
+         * @param executor
+         *            Executor to sign on with blocking KMS calls in asynchronous
+         *            issuance, if null KMS is called asynchronously
+         * @return This builder
+         */
+        public Builder withExecutor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * Set the maximum number of KMS signing calls in flight in
+         * {@link CertificateIssuer#issueAll(Collection)}. Defaults to 16.
+         * 
+         * @param concurrency
+         *            Max number of concurrent calls, must be positive
+         * @return This builder
+         */
+        public Builder withConcurrency(int concurrency) {
+            Preconditions.checkArgument(concurrency > 0, "Concurrency must be positive");
+            this.concurrency = concurrency;
+            return this;
+        }
+
+        /**
+         * @return A new issuer, never null
+         */
+        public CertificateIssuer build() {
+            Preconditions.checkNotNull(caKey, "Missing CA key version name");
+            Preconditions.checkNotNull(caCertificate, "Missing CA certificate");
+            return new CertificateIssuer(this);
+        }
+    }
+
+    /**
+     * @param client
+     *            KMS client, must not be null
+     * @param cache
+     *            Key cache, must not be null
+     * @return A new issuer builder, never null
+     */
+    public static Builder builder(KmsServiceClient client, KmsKeyCache cache) {
+        return new Builder(client, cache);
+    }
+
+    private final KmsServiceClient client;
+    private final KmsKeyCache cache;
+    private final CryptoKeyVersionName caKey;
+    private final X509CertificateHolder caCertificate;
+    private final AuthorityKeyIdentifier authorityKeyIdentifier;
+    private final CertificateProfile profile;
+    private final Executor executor;
+    private final int concurrency;
+    private volatile KmsKeyCache.Entry verifiedCaEntry;
+
+    private CertificateIssuer(Builder builder) {
+        this.client = builder.client;
+        this.cache = builder.cache;
+        this.caKey = builder.caKey;
+        this.caCertificate = builder.caCertificate;
+        this.profile = builder.profile == null ? CertificateProfile.defaults() : builder.profile;
+        this.executor = builder.executor;
+        this.concurrency = builder.concurrency;
+        Extension caKeyId = caCertificate.getExtension(Extension.subjectKeyIdentifier);
+        byte[] keyId = caKeyId == null ? keyIdentifier(caCertificate.getSubjectPublicKeyInfo())
+                : SubjectKeyIdentifier.getInstance(caKeyId.getParsedValue()).getKeyIdentifier();
+        this.authorityKeyIdentifier = new AuthorityKeyIdentifier(keyId);
+    }
+
+    /**
+     * Issue a certificate, blocking until it is signed.
+     * 
+     * @param request
+     *            The certificate to issue, must not be null
+     * @return The issued certificate, never null
+     */
+    public Result issue(Request request) {
+        Preconditions.checkNotNull(request);
+        KmsKeyCache.Entry ca = cache.get(caKey);
+        TBSCertificate tbs = template(ca, request);
+        KmsContentSigner signer = encode(ca, tbs);
+        return assemble(tbs, signer.getAlgorithmIdentifier(), signer.getSignature());
+    }
+
+    /**
+     * Issue a certificate asynchronously. Invalid requests fail the returned
+     * future.
+     * 
+     * @param request
+     *            The certificate to issue, must not be null
+     * @return A future for the issued certificate, never null
+     */
+    public CompletableFuture<Result> issueAsync(Request request) {
+        Preconditions.checkNotNull(request);
+        if (executor != null) {
+            return cache.getAsync(caKey).thenApplyAsync(ca -> {
+                TBSCertificate tbs = template(ca, request);
+                KmsContentSigner signer = encode(ca, tbs);
+                return assemble(tbs, signer.getAlgorithmIdentifier(), signer.getSignature());
+            }, executor);
+        }
+        return cache.getAsync(caKey).thenCompose(ca -> {
+            TBSCertificate tbs = template(ca, request);
+            KmsContentSigner signer = encode(ca, tbs);
+            return signer.getSignatureAsync()
+                    .thenApply(signature -> assemble(tbs, signer.getAlgorithmIdentifier(), signature));
+        });
+    }
+
+    /**
+     * Issue certificates pipelined, with a bounded number of signing calls in
+     * flight. The next certificates are templated while earlier ones are being
+     * signed. Each certificate has its own future, in the order of the requests,
+     * and a failure of one does not affect the others.
+     * 
+     * @param requests
+     *            The certificates to issue, must not be null
+     * @return Futures for the issued certificates, never null
+     */
+    public List<CompletableFuture<Result>> issueAll(Collection<Request> requests) {
+        List<Request> list = new ArrayList<>(requests);
+        List<CompletableFuture<Result>> results = new ArrayList<>(list.size());
+        for (int i = 0; i < list.size(); i++) {
+            results.add(new CompletableFuture<>());
+        }
+        AtomicInteger next = new AtomicInteger();
+        for (int i = 0; i < Math.min(concurrency, list.size()); i++) {
+            drive(list, results, next);
+        }
+        return Collections.unmodifiableList(results);
+    }
+
+    /*
+     * Start issuing until one certificate is in flight asynchronously. This loops
+     * rather than recurses, so that a client that completes in the calling thread
+     * doesn't exhaust the stack.
+     */
+    private void drive(List<Request> requests, List<CompletableFuture<Result>> results, AtomicInteger next) {
+        while (true) {
+            int index = next.getAndIncrement();
+            if (index >= requests.size()) {
+                return;
+            }
+            CompletableFuture<Result> future;
+            try {
+                future = issueAsync(requests.get(index));
+            } catch (RuntimeException e) {
+                future = CompletableFutures.failed(e);
+            }
+            CompletableFuture<Result> result = results.get(index);
+            if (!future.isDone()) {
+                future.whenComplete((value, error) -> {
+                    complete(result, value, error);
+                    drive(requests, results, next);
+                });
+                return;
+            }
+            future.whenComplete((value, error) -> complete(result, value, error));
+        }
+    }
+
+    private static void complete(CompletableFuture<Result> result, Result value, Throwable error) {
+        if (error == null) {
+            result.complete(value);
+        } else {
+            result.completeExceptionally(CompletableFutures.unwrap(error));
+        }
+    }
+
+    private TBSCertificate template(KmsKeyCache.Entry ca, Request request) {
+        checkCaKey(ca);
+        if (request.csr != null) {
+            verify(request.csr);
+        }
+        Instant now = profile.getClock().instant();
+        Date notAfter = Date.from(now.plus(profile.getValidity()));
+        if (notAfter.after(caCertificate.getNotAfter())) {
+            // a certificate must not outlive its issuer
+            notAfter = caCertificate.getNotAfter();
+        }
+        V3TBSCertificateGenerator generator = new V3TBSCertificateGenerator();
+        generator.setSerialNumber(new ASN1Integer(profile.getSerialNumbers().next()));
+        generator.setSignature(Algorithms.toIdentifier(ca.getAlgorithm()));
+        generator.setIssuer(caCertificate.getSubject());
+        generator.setStartDate(new Time(Date.from(now.minus(profile.getBackdate()))));
+        generator.setEndDate(new Time(notAfter));
+        generator.setSubject(request.subject);
+        generator.setSubjectPublicKeyInfo(request.publicKey);
+        generator.setExtensions(extensions(request));
+        return generator.generateTBSCertificate();
+    }
+
+    private Extensions extensions(Request request) {
+        ExtensionsGenerator generator = new ExtensionsGenerator();
+        try {
+            for (CertificateProfile.StaticExtension extension : profile.getExtensions()) {
+                generator.addExtension(extension.oid, extension.critical, extension.value);
+            }
+            generator.addExtension(Extension.subjectKeyIdentifier, false,
+                    new SubjectKeyIdentifier(keyIdentifier(request.publicKey)));
+            generator.addExtension(Extension.authorityKeyIdentifier, false, authorityKeyIdentifier);
+            Extensions requested = request.csr == null ? null : requestedExtensions(request.csr);
+            if (requested != null) {
+                for (ASN1ObjectIdentifier oid : profile.getRequestedExtensions()) {
+                    Extension extension = requested.getExtension(oid);
+                    if (extension != null && !generator.hasExtension(oid)) {
+                        generator.addExtension(extension);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Failed to encode certificate extensions", e);
+        }
+        return generator.generate();
+    }
+
+    private KmsContentSigner encode(KmsKeyCache.Entry ca, TBSCertificate tbs) {
+        KmsContentSigner signer = new KmsContentSigner(client, ca.getKeyName(), ca.getAlgorithm());
+        try (OutputStream out = signer.getOutputStream()) {
+            tbs.encodeTo(out, ASN1Encoding.DER);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to encode certificate", e);
+        }
+        return signer;
+    }
+
+    private static Result assemble(TBSCertificate tbs, AlgorithmIdentifier algorithm, byte[] signature) {
+        ASN1EncodableVector vector = new ASN1EncodableVector(3);
+        vector.add(tbs);
+        vector.add(algorithm);
+        vector.add(new DERBitString(signature));
+        Certificate certificate = Certificate.getInstance(new DERSequence(vector));
+        try {
+            return new Result(new X509CertificateHolder(certificate), certificate.getEncoded(ASN1Encoding.DER));
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to encode certificate", e);
+        }
+    }
+
+    private void checkCaKey(KmsKeyCache.Entry ca) {
+        if (ca == verifiedCaEntry) {
+            return;
+        }
+        try {
+            byte[] caPublicKey = caCertificate.getSubjectPublicKeyInfo().getEncoded();
+            if (!Arrays.equals(caPublicKey, ca.getPublicKey().getEncoded())) {
+                throw new IllegalStateException("CA certificate public key does not match key: " + caKey);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to encode CA public key", e);
+        }
+        verifiedCaEntry = ca;
+    }
+
+    private static void verify(PKCS10CertificationRequest csr) {
+        try {
+            ContentVerifierProvider verifier = new JcaContentVerifierProviderBuilder().setProvider(PROVIDER)
+                    .build(csr.getSubjectPublicKeyInfo());
+            if (!csr.isSignatureValid(verifier)) {
+                throw new IllegalArgumentException("CSR signature is not valid for: " + csr.getSubject());
+            }
+        } catch (OperatorCreationException | PKCSException e) {
+            throw new IllegalArgumentException("Failed to verify CSR for: " + csr.getSubject(), e);
+        }
+    }
+
+    private static Extensions requestedExtensions(PKCS10CertificationRequest csr) {
+        org.bouncycastle.asn1.pkcs.Attribute[] attributes = csr
+                .getAttributes(PKCSObjectIdentifiers.pkcs_9_at_extensionRequest);
+        if (attributes.length == 0 || attributes[0].getAttrValues().size() == 0) {
+            return null;
+        }
+        return Extensions.getInstance(attributes[0].getAttrValues().getObjectAt(0));
+    }
+
+    /**
+     * A key identifier per RFC 5280, the SHA-1 hash of the public key bits.
+     */
+    private static byte[] keyIdentifier(SubjectPublicKeyInfo publicKey) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(publicKey.getPublicKeyData().getBytes());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+    }
+}
@@ -0,0 +1,308 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.issuer;
+
+
+import com.google.common.base.Preconditions;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.ExtendedKeyUsage;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.asn1.x509.KeyUsage;
+
+/**
+ * A certificate profile, the validity, extensions and serial numbers of issued
+ * certificates. A profile is immutable and can be shared. The default profile
+ * issues end entity certificates valid for 90 days with digital signature key
+ * usage, random serial numbers, key identifiers, and the subject alternative
+ * name of the request. A CA profile defaults to certificate and CRL signing
+ * key usage instead. E.g.:
+ * 
+ * <pre>
+ * CertificateProfile profile = CertificateProfile.builder()
+ *              .withValidity(Duration.ofDays(30))
+ *              .withKeyUsage(KeyUsage.digitalSignature | KeyUsage.keyEncipherment)
+ *              .withExtendedKeyUsage(KeyPurposeId.id_kp_serverAuth)
+ *              .build();
+ * </pre>
+ */
+public class CertificateProfile {
+
+    private static final Set<ASN1ObjectIdentifier> BUILT_IN_EXTENSIONS = Collections
+            .unmodifiableSet(new LinkedHashSet<>(Arrays.asList(Extension.basicConstraints, Extension.keyUsage,
+                    Extension.extendedKeyUsage, Extension.subjectKeyIdentifier, Extension.authorityKeyIdentifier)));
+
+    /**
+     * A static extension added to every certificate.
+     */
+    static class StaticExtension {
+
+        final ASN1ObjectIdentifier oid;
+        final boolean critical;
+        final ASN1Encodable value;
+
+        private StaticExtension(ASN1ObjectIdentifier oid, boolean critical, ASN1Encodable value) {
+            this.oid = oid;
+            this.critical = critical;
+            this.value = value;
+        }
+    }
+
+    /**
+     * A builder for profiles. Created via {@link CertificateProfile#builder()}.
+     */
+    public static class Builder {
+
+        private final List<StaticExtension> extensions = new ArrayList<>();
+        private Set<ASN1ObjectIdentifier> requestedExtensions = new LinkedHashSet<>(
+                Collections.singleton(Extension.subjectAlternativeName));
+        private Duration validity = Duration.ofDays(90);
+        private Duration backdate = Duration.ZERO;
+        private BasicConstraints basicConstraints = new BasicConstraints(false);
+        private Integer keyUsage;
+        private KeyPurposeId[] extendedKeyUsage;
+        private SerialNumberGenerator serialNumbers;
+        private Clock clock = Clock.systemUTC();
+
+        private Builder() {
+        }
+
+        /**
+         * @param validity
+         *            How long issued certificates are valid, defaults to 90 days,
+         *            must not be null
+         * @return This builder
+         */
+        public Builder withValidity(Duration validity) {
+            Preconditions.checkArgument(!validity.isNegative() && !validity.isZero(), "Validity must be positive");
+            this.validity = validity;
+            return this;
+        }
+
+        /**
+         * @param backdate
+         *            How long before issuance certificates are valid, to allow for
+         *            clock skew, defaults to zero, must not be null
+         * @return This builder
+         */
+        public Builder withBackdate(Duration backdate) {
+            Preconditions.checkArgument(!backdate.isNegative(), "Backdate must not be negative");
+            this.backdate = backdate;
+            return this;
+        }
+
+        /**
+         * Issue CA certificates instead of end entity certificates. Unless set,
+         * the key usage is certificate and CRL signing.
+         * 
+         * @param pathLength
+         *            Max number of intermediate CA:s below issued certificates, or
+         *            negative for no limit
+         * @return This builder
+         */
+        public Builder withCa(int pathLength) {
+            this.basicConstraints = pathLength < 0 ? new BasicConstraints(true) : new BasicConstraints(pathLength);
+            return this;
+        }
+
+        /**
+         * @param keyUsage
+         *            Key usage bits, see {@link KeyUsage}, or 0 for no key usage,
+         *            defaults to digital signature, or certificate and CRL
+         *            signing for a CA
+         * @return This builder
+         */
+        public Builder withKeyUsage(int keyUsage) {
+            this.keyUsage = keyUsage;
+            return this;
+        }
+
+        /**
+         * @param purposes
+         *            Extended key usage, if empty no extended key usage is added,
+         *            which is the default
+         * @return This builder
+         */
+        public Builder withExtendedKeyUsage(KeyPurposeId... purposes) {
+            this.extendedKeyUsage = purposes.length == 0 ? null : purposes.clone();
+            return this;
+        }
+
+        /**
+         * Add a static extension to every certificate. The basic constraints, key
+         * usage and extended key usage have their own settings, and the key
+         * identifiers are made by the issuer, so they can't be added here.
+         * 
+         * @param oid
+         *            Extension id, must not be null
+         * @param critical
+         *            True if the extension is critical
+         * @param value
+         *            Extension value, must not be null
+         * @return This builder
+         * @throws IllegalArgumentException
+         *             If the extension is set by the profile or issuer, or already
+         *             added
+         */
+        public Builder withExtension(ASN1ObjectIdentifier oid, boolean critical, ASN1Encodable value) {
+            Preconditions.checkNotNull(oid);
+            Preconditions.checkArgument(!BUILT_IN_EXTENSIONS.contains(oid),
+                    "Extension %s is set by the profile or issuer", oid);
+            Preconditions.checkArgument(extensions.stream().noneMatch(e -> e.oid.equals(oid)),
+                    "Extension %s is already added", oid);
+            extensions.add(new StaticExtension(oid, critical, Preconditions.checkNotNull(value)));
+            return this;
+        }
+
+        /**
+         * Set the extensions that are copied from the extension request of a CSR,
+         * if not set by the profile. Defaults to the subject alternative name.
+         * 
+         * @param oids
+         *            Extensions to copy, if empty none are copied
+         * @return This builder
+         */
+        public Builder withRequestedExtensions(ASN1ObjectIdentifier... oids) {
+            this.requestedExtensions = new LinkedHashSet<>(Arrays.asList(oids));
+            return this;
+        }
+
+        /**
+         * @param serialNumbers
+         *            Serial number generator, if null random serial numbers are
+         *            used
+         * @return This builder
+         */
+        public Builder withSerialNumbers(SerialNumberGenerator serialNumbers) {
+            this.serialNumbers = serialNumbers;
+            return this;
+        }
+
+        /**
+         * @param clock
+         *            Clock for the issuance time, defaults to the UTC system clock,
+         *            must not be null
+         * @return This builder
+         */
+        public Builder withClock(Clock clock) {
+            this.clock = Preconditions.checkNotNull(clock);
+            return this;
+        }
+
+        /**
+         * @return A new profile, never null
+         */
+        public CertificateProfile build() {
+            return new CertificateProfile(this);
+        }
+    }
+
+    /**
+     * @return A new profile builder, never null
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return A profile with the default settings, never null
+     */
+    public static CertificateProfile defaults() {
+        return builder().build();
+    }
+
+    private final List<StaticExtension> extensions;
+    private final Set<ASN1ObjectIdentifier> requestedExtensions;
+    private final Duration validity;
+    private final Duration backdate;
+    private final SerialNumberGenerator serialNumbers;
+    private final Clock clock;
+
+    private CertificateProfile(Builder builder) {
+        List<StaticExtension> extensions = new ArrayList<>();
+        extensions.add(new StaticExtension(Extension.basicConstraints, true, builder.basicConstraints));
+        int keyUsage;
+        if (builder.keyUsage != null) {
+            keyUsage = builder.keyUsage;
+        } else {
+            keyUsage = builder.basicConstraints.isCA() ? KeyUsage.keyCertSign | KeyUsage.cRLSign
+                    : KeyUsage.digitalSignature;
+        }
+        if (keyUsage != 0) {
+            extensions.add(new StaticExtension(Extension.keyUsage, true, new KeyUsage(keyUsage)));
+        }
+        if (builder.extendedKeyUsage != null) {
+            extensions.add(new StaticExtension(Extension.extendedKeyUsage, false,
+                    new ExtendedKeyUsage(builder.extendedKeyUsage)));
+        }
+        extensions.addAll(builder.extensions);
+        this.extensions = Collections.unmodifiableList(extensions);
+        this.requestedExtensions = Collections.unmodifiableSet(new LinkedHashSet<>(builder.requestedExtensions));
+        this.validity = builder.validity;
+        this.backdate = builder.backdate;
+        this.serialNumbers = builder.serialNumbers == null ? SerialNumberGenerator.random() : builder.serialNumbers;
+        this.clock = builder.clock;
+    }
+
+    /**
+     * @return How long issued certificates are valid, never null
+     */
+    public Duration getValidity() {
+        return validity;
+    }
+
+    /**
+     * @return How long before issuance certificates are valid, never null
+     */
+    public Duration getBackdate() {
+        return backdate;
+    }
+
+    /**
+     * @return The serial number generator, never null
+     */
+    public SerialNumberGenerator getSerialNumbers() {
+        return serialNumbers;
+    }
+
+    /**
+     * @return The clock for the issuance time, never null
+     */
+    public Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * @return The extensions copied from a CSR extension request, never null
+     */
+    public Set<ASN1ObjectIdentifier> getRequestedExtensions() {
+        return requestedExtensions;
+    }
+
+    List<StaticExtension> getExtensions() {
+        return extensions;
+    }
+}
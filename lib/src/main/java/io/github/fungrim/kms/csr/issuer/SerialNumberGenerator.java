@@ -0,0 +1,54 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.issuer;
+
+
+import com.google.common.base.Preconditions;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A generator of certificate serial numbers. Implementations must be thread
+ * safe, and must return positive numbers of at most 20 octets.
+ */
+@FunctionalInterface
+public interface SerialNumberGenerator {
+
+    /**
+     * @return The next serial number, never null
+     */
+    public BigInteger next();
+
+    /**
+     * @return A generator of random 127 bit serial numbers, never null
+     */
+    public static SerialNumberGenerator random() {
+        SecureRandom random = new SecureRandom();
+        return () -> new BigInteger(127, random).add(BigInteger.ONE);
+    }
+
+    /**
+     * @param start
+     *            The first serial number, must be positive
+     * @return A generator of increasing serial numbers, never null
+     */
+    public static SerialNumberGenerator sequential(BigInteger start) {
+        Preconditions.checkArgument(start.signum() > 0, "Serial numbers must be positive");
+        AtomicReference<BigInteger> next = new AtomicReference<>(start);
+        return () -> next.getAndUpdate(n -> n.add(BigInteger.ONE));
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.metrics;
+
+
+import com.google.api.gax.rpc.StatusCode.Code;
+import com.google.common.cache.CacheStats;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+/**
+ * A listener for metrics from KMS calls, the key cache and CSR builds. All
+ * methods have empty defaults, so implementations only need to override what
+ * they are interested in. Implementations must be thread safe and should be
+ * fast, as they are called on the signing path.
+ */
+public interface KmsMetrics {
+
+    /**
+     * A metrics listener that ignores everything.
+     */
+    public static final KmsMetrics NOOP = new KmsMetrics() {
+    };
+
+    /**
+     * Record a completed KMS call.
+     * 
+     * @param call
+     *            The call made, never null
+     * @param nanos
+     *            The call latency in nanoseconds
+     * @param status
+     *            The call status, OK on success, never null
+     */
+    public default void recordCall(KmsCall call, long nanos, Code status) {
+    }
+
+    /**
+     * Record a completed CSR build, end to end including key lookup and signing.
+     * 
+     * @param nanos
+     *            The build time in nanoseconds
+     * @param success
+     *            True if the build succeeded
+     */
+    public default void recordBuild(long nanos, boolean success) {
+    }
+
+    /**
+     * Register the statistics of a key cache. This is called once per cache when
+     * it is created, the supplier returns the current hit, miss, load and
+     * eviction statistics.
+     * 
+     * @param stats
+     *            Cache statistics supplier, never null
+     */
+    public default void registerKeyCache(Supplier<CacheStats> stats) {
+    }
+
+    /**
+     * Register a concurrency limit partition. This is called once per partition
+     * when it is first used, the suppliers return the current values.
+     * 
+     * @param partition
+     *            Name of the partition, a key version or a project, never null
+     * @param limit
+     *            Current concurrency limit supplier, never null
+     * @param inFlight
+     *            Current number of calls in flight supplier, never null
+     * @param queueDepth
+     *            Current number of waiting calls supplier, never null
+     */
+    public default void registerConcurrencyLimit(String partition, IntSupplier limit, IntSupplier inFlight,
+            IntSupplier queueDepth) {
+    }
+
+    /**
+     * Record a call rejected by a concurrency limit without reaching KMS.
+     * 
+     * @param partition
+     *            Name of the partition, never null
+     * @param status
+     *            RESOURCE_EXHAUSTED if the queue was full, or DEADLINE_EXCEEDED if
+     *            the call timed out in the queue, never null
+     */
+    public default void recordRejection(String partition, Code status) {
+    }
+
+    /**
+     * Record the outcome of a hedged call, i.e. a call that was sent twice.
+     * 
+     * @param call
+     *            The call hedged, never null
+     * @param won
+     *            True if the hedge answered first, false if its answer was not
+     *            used and it was wasted
+     */
+    public default void recordHedge(KmsCall call, boolean won) {
+    }
+
+    /**
+     * Record a retried call.
+     * 
+     * @param call
+     *            The call retried, never null
+     * @param status
+     *            The status of the failure that is retried, never null
+     */
+    public default void recordRetry(KmsCall call, Code status) {
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.metrics;
+
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock free latency histogram with exponential buckets. Bucket {@code i}
+ * holds latencies up to {@code 2^i} microseconds, and the last bucket holds
+ * everything above roughly 18 minutes. Percentiles are estimated as the upper
+ * bound of the bucket they fall in.
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 31;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * @param nanos
+     *            Latency to record in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        int bucket = micros <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1);
+        buckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+        count.increment();
+        sum.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    /**
+     * @return The number of recorded latencies
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return The mean latency in nanoseconds, or 0 if nothing is recorded
+     */
+    public long getMean() {
+        long c = count.sum();
+        return c == 0 ? 0 : sum.sum() / c;
+    }
+
+    /**
+     * @return The max latency in nanoseconds, or 0 if nothing is recorded
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile
+     *            The percentile, between 0 and 100
+     * @return The estimated latency in nanoseconds, or 0 if nothing is recorded
+     */
+    public long getPercentile(double percentile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = buckets.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank && snapshot[i] > 0) {
+                return Math.min(TimeUnit.MICROSECONDS.toNanos(1L << i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.2fms p50=%.2fms p99=%.2fms max=%.2fms", getCount(), getMean() / 1e6,
+                getPercentile(50) / 1e6, getPercentile(99) / 1e6, getMax() / 1e6);
+    }
+}
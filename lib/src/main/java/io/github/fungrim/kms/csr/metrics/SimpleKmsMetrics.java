@@ -0,0 +1,217 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.metrics;
+
+
+import com.google.api.gax.rpc.StatusCode.Code;
+import com.google.common.cache.CacheStats;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+/**
+ * A dependency free metrics implementation that keeps latency histograms and
+ * error counts in memory. Use the getters to read the current values, for
+ * example to export them to a metrics system without an adapter.
+ */
+public class SimpleKmsMetrics implements KmsMetrics {
+
+    private final Map<KmsCall, LatencyHistogram> callLatencies = new EnumMap<>(KmsCall.class);
+    private final Map<KmsCall, Map<Code, LongAdder>> callErrors = new EnumMap<>(KmsCall.class);
+    private final LatencyHistogram buildLatency = new LatencyHistogram();
+    private final LongAdder buildFailures = new LongAdder();
+    private final List<Supplier<CacheStats>> keyCaches = new CopyOnWriteArrayList<>();
+    private final Map<String, IntSupplier[]> concurrencyLimits = new ConcurrentHashMap<>();
+    private final LongAdder rejections = new LongAdder();
+    private final LongAdder hedgesWon = new LongAdder();
+    private final LongAdder hedgesWasted = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+
+    public SimpleKmsMetrics() {
+        for (KmsCall call : KmsCall.values()) {
+            callLatencies.put(call, new LatencyHistogram());
+            Map<Code, LongAdder> errors = new EnumMap<>(Code.class);
+            for (Code code : Code.values()) {
+                errors.put(code, new LongAdder());
+            }
+            callErrors.put(call, errors);
+        }
+    }
+
+    @Override
+    public void recordCall(KmsCall call, long nanos, Code status) {
+        callLatencies.get(call).record(nanos);
+        if (status != Code.OK) {
+            callErrors.get(call).get(status).increment();
+        }
+    }
+
+    @Override
+    public void recordBuild(long nanos, boolean success) {
+        buildLatency.record(nanos);
+        if (!success) {
+            buildFailures.increment();
+        }
+    }
+
+    @Override
+    public void registerKeyCache(Supplier<CacheStats> stats) {
+        keyCaches.add(stats);
+    }
+
+    @Override
+    public void registerConcurrencyLimit(String partition, IntSupplier limit, IntSupplier inFlight,
+            IntSupplier queueDepth) {
+        concurrencyLimits.put(partition, new IntSupplier[] { limit, inFlight, queueDepth });
+    }
+
+    @Override
+    public void recordRejection(String partition, Code status) {
+        rejections.increment();
+    }
+
+    @Override
+    public void recordHedge(KmsCall call, boolean won) {
+        (won ? hedgesWon : hedgesWasted).increment();
+    }
+
+    @Override
+    public void recordRetry(KmsCall call, Code status) {
+        retries.increment();
+    }
+
+    /**
+     * @param call
+     *            Call to get latencies for, must not be null
+     * @return The latency histogram of the call, never null
+     */
+    public LatencyHistogram getCallLatency(KmsCall call) {
+        return callLatencies.get(call);
+    }
+
+    /**
+     * @param call
+     *            Call to get errors for, must not be null
+     * @param status
+     *            The error status, must not be null
+     * @return The number of failed calls with the given status
+     */
+    public long getCallErrors(KmsCall call, Code status) {
+        return callErrors.get(call).get(status).sum();
+    }
+
+    /**
+     * @return The end to end CSR build latency histogram, never null
+     */
+    public LatencyHistogram getBuildLatency() {
+        return buildLatency;
+    }
+
+    /**
+     * @return The number of failed CSR builds
+     */
+    public long getBuildFailures() {
+        return buildFailures.sum();
+    }
+
+    /**
+     * @return The summed statistics of all registered key caches, never null
+     */
+    public CacheStats getKeyCacheStats() {
+        CacheStats total = new CacheStats(0, 0, 0, 0, 0, 0);
+        for (Supplier<CacheStats> stats : keyCaches) {
+            total = total.plus(stats.get());
+        }
+        return total;
+    }
+
+    /**
+     * @param partition
+     *            Concurrency limit partition, must not be null
+     * @return The current limit of the partition, or -1 if not registered
+     */
+    public int getConcurrencyLimit(String partition) {
+        IntSupplier[] values = concurrencyLimits.get(partition);
+        return values == null ? -1 : values[0].getAsInt();
+    }
+
+    /**
+     * @param partition
+     *            Concurrency limit partition, must not be null
+     * @return The current queue depth of the partition, or -1 if not registered
+     */
+    public int getQueueDepth(String partition) {
+        IntSupplier[] values = concurrencyLimits.get(partition);
+        return values == null ? -1 : values[2].getAsInt();
+    }
+
+    /**
+     * @return The number of calls rejected by concurrency limits
+     */
+    public long getRejections() {
+        return rejections.sum();
+    }
+
+    /**
+     * @return The number of hedges that answered first
+     */
+    public long getHedgesWon() {
+        return hedgesWon.sum();
+    }
+
+    /**
+     * @return The number of hedges whose answer was not used
+     */
+    public long getHedgesWasted() {
+        return hedgesWasted.sum();
+    }
+
+    /**
+     * @return The number of retried calls
+     */
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    @Override
+    public String toString() {
+        List<String> lines = new ArrayList<>();
+        for (KmsCall call : KmsCall.values()) {
+            LatencyHistogram latency = callLatencies.get(call);
+            if (latency.getCount() > 0) {
+                long errors = callErrors.get(call).values().stream().mapToLong(LongAdder::sum).sum();
+                lines.add(call + ": " + latency + " errors=" + errors);
+            }
+        }
+        lines.add("build: " + buildLatency + " failures=" + getBuildFailures());
+        lines.add("key cache: " + getKeyCacheStats());
+        concurrencyLimits.forEach((partition, values) -> lines.add("limit " + partition + ": limit="
+                + values[0].getAsInt() + " inFlight=" + values[1].getAsInt() + " queued=" + values[2].getAsInt()));
+        if (getHedgesWon() + getHedgesWasted() + getRetries() > 0) {
+            lines.add("hedges: won=" + getHedgesWon() + " wasted=" + getHedgesWasted() + " retries=" + getRetries());
+        }
+        if (!concurrencyLimits.isEmpty()) {
+            lines.add("rejections: " + getRejections());
+        }
+        return String.join(System.lineSeparator(), lines);
+    }
+}
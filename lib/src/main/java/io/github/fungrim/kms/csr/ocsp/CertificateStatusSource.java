@@ -0,0 +1,53 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.ocsp;
+
+
+import java.math.BigInteger;
+import org.bouncycastle.cert.ocsp.CertificateStatus;
+
+/**
+ * The source of truth for the revocation status of issued certificates, such
+ * as a database. Implementations must be thread safe. Status lookups are made
+ * when responses are signed, never when they are served.
+ */
+@FunctionalInterface
+public interface CertificateStatusSource {
+
+    /**
+     * @param serialNumber
+     *            Serial number of the certificate, never null
+     * @return The status, {@link CertificateStatus#GOOD} (which is null) for a
+     *         good certificate, a {@link org.bouncycastle.cert.ocsp.RevokedStatus}
+     *         or an {@link org.bouncycastle.cert.ocsp.UnknownStatus}
+     */
+    public CertificateStatus getStatus(BigInteger serialNumber);
+
+    /**
+     * Check if a serial number was issued, before a response is signed for a
+     * lookup of it. Unknown serial numbers are answered "unauthorized" without
+     * calling KMS, so that requests for made up serial numbers can't drive KMS
+     * calls. This is called when serving requests, so it must be fast, e.g. an
+     * in memory set or bloom filter. Defaults to true.
+     * 
+     * @param serialNumber
+     *            Serial number of the certificate, never null
+     * @return True if a response should be signed for the serial number
+     */
+    public default boolean isKnown(BigInteger serialNumber) {
+        return true;
+    }
+}
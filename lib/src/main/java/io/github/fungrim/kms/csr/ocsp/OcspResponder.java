@@ -0,0 +1,749 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.ocsp;
+
+
+import com.google.cloud.kms.v1.CryptoKeyVersionName;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.github.fungrim.kms.csr.KmsKeyCache;
+import io.github.fungrim.kms.csr.client.KmsServiceClient;
+import io.github.fungrim.kms.csr.signer.KmsContentSigner;
+import io.github.fungrim.kms.csr.util.CompletableFutures;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.ASN1GeneralizedTime;
+import org.bouncycastle.asn1.DERBitString;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.ocsp.BasicOCSPResponse;
+import org.bouncycastle.asn1.ocsp.CertStatus;
+import org.bouncycastle.asn1.ocsp.OCSPObjectIdentifiers;
+import org.bouncycastle.asn1.ocsp.OCSPResponse;
+import org.bouncycastle.asn1.ocsp.OCSPResponseStatus;
+import org.bouncycastle.asn1.ocsp.ResponderID;
+import org.bouncycastle.asn1.ocsp.ResponseBytes;
+import org.bouncycastle.asn1.ocsp.ResponseData;
+import org.bouncycastle.asn1.ocsp.RevokedInfo;
+import org.bouncycastle.asn1.ocsp.SingleResponse;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.Extensions;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.CertificateStatus;
+import org.bouncycastle.cert.ocsp.OCSPException;
+import org.bouncycastle.cert.ocsp.OCSPReq;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.cert.ocsp.Req;
+import org.bouncycastle.cert.ocsp.RespID;
+import org.bouncycastle.cert.ocsp.RevokedStatus;
+import org.bouncycastle.operator.DigestCalculator;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+
+/**
+ * This OCSP responder serves pre-signed responses, following the lightweight
+ * profile of RFC 5019. E.g.:
+ * 
+ * <pre>
+ * CsrBuilderFactory factory = // create builder factory
+ * OcspResponder responder = factory.ocspResponder()
+ *              .withKey(responderKeyName)
+ *              .withIssuerCertificate(caCertificate)
+ *              .withResponderCertificate(responderCertificate)
+ *              .withStatusSource(serial -> statusOf(serial))
+ *              .build();
+ * byte[] response = responder.respond(requestBytes);
+ * </pre>
+ * 
+ * A response is signed once per serial number and validity period and then
+ * cached, bounded in size and evicted at its next update time. Responses
+ * getting close to their next update, and looked up within the idle timeout,
+ * are re-signed in batches in the background, with a bounded number of KMS
+ * calls in flight, so lookups never wait for KMS. Responses that are not looked
+ * up are not re-signed, and so expire. A lookup of a serial number without a
+ * response triggers signing in the background and answers "try later"
+ * meanwhile, unless the status source doesn't know the serial number, which is
+ * answered "unauthorized", or too many responses are already being signed. The
+ * responder is thread safe, and should be closed when no longer used.
+ */
+public class OcspResponder implements AutoCloseable {
+
+    private static final Signed MALFORMED_REQUEST = unsigned(OCSPResponseStatus.MALFORMED_REQUEST);
+    private static final Signed UNAUTHORIZED = unsigned(OCSPResponseStatus.UNAUTHORIZED);
+    private static final Signed TRY_LATER = unsigned(OCSPResponseStatus.TRY_LATER);
+
+    /**
+     * A builder for the responder. Created via
+     * {@link OcspResponder#builder(KmsServiceClient, KmsKeyCache)}, or from a
+     * factory.
+     */
+    public static class Builder {
+
+        private final KmsServiceClient client;
+        private final KmsKeyCache cache;
+        private CryptoKeyVersionName keyName;
+        private X509CertificateHolder issuerCertificate;
+        private X509CertificateHolder responderCertificate;
+        private CertificateStatusSource statusSource;
+        private Duration validity = Duration.ofDays(1);
+        private Duration refreshAhead = Duration.ofHours(12);
+        private Duration refreshInterval = Duration.ofMinutes(1);
+        private Duration idleTimeout;
+        private long maximumSize = 100_000;
+        private int maximumPending = 10_000;
+        private int concurrency = 16;
+        private Executor executor;
+        private ScheduledExecutorService scheduler;
+        private Clock clock = Clock.systemUTC();
+
+        private Builder(KmsServiceClient client, KmsKeyCache cache) {
+            this.client = Preconditions.checkNotNull(client);
+            this.cache = Preconditions.checkNotNull(cache);
+        }
+
+        /**
+         * @param keyName
+         *            The key version to sign responses with, must not be null
+         * @return This builder
+         */
+        public Builder withKey(CryptoKeyVersionName keyName) {
+            this.keyName = Preconditions.checkNotNull(keyName);
+            return this;
+        }
+
+        /**
+         * @param issuerCertificate
+         *            The CA certificate of the certificates to answer for, must
+         *            not be null
+         * @return This builder
+         */
+        public Builder withIssuerCertificate(X509CertificateHolder issuerCertificate) {
+            this.issuerCertificate = Preconditions.checkNotNull(issuerCertificate);
+            return this;
+        }
+
+        /**
+         * @param responderCertificate
+         *            The certificate of the signing key version, either the CA
+         *            certificate or a delegated OCSP signing certificate, which is
+         *            then included in the responses. If null the CA certificate is
+         *            used.
+         * @return This builder
+         */
+        public Builder withResponderCertificate(X509CertificateHolder responderCertificate) {
+            this.responderCertificate = responderCertificate;
+            return this;
+        }
+
+        /**
+         * @param statusSource
+         *            Source of certificate statuses, must not be null
+         * @return This builder
+         */
+        public Builder withStatusSource(CertificateStatusSource statusSource) {
+            this.statusSource = Preconditions.checkNotNull(statusSource);
+            return this;
+        }
+
+        /**
+         * Set the time from this update to next update of responses, and how long
+         * before the next update a response is re-signed. Defaults to one day and
+         * twelve hours.
+         * 
+         * @param validity
+         *            Response validity, must be positive
+         * @param refreshAhead
+         *            Time before the next update to re-sign, must be less than the
+         *            validity
+         * @return This builder
+         */
+        public Builder withValidity(Duration validity, Duration refreshAhead) {
+            Preconditions.checkArgument(!validity.isNegative() && !validity.isZero(), "Validity must be positive");
+            Preconditions.checkArgument(!refreshAhead.isNegative() && refreshAhead.compareTo(validity) < 0,
+                    "Refresh ahead must be less than the validity");
+            this.validity = validity;
+            this.refreshAhead = refreshAhead;
+            return this;
+        }
+
+        /**
+         * @param refreshInterval
+         *            Interval of the background batches re-signing responses,
+         *            defaults to one minute, must be positive
+         * @return This builder
+         */
+        public Builder withRefreshInterval(Duration refreshInterval) {
+            Preconditions.checkArgument(!refreshInterval.isNegative() && !refreshInterval.isZero(),
+                    "Refresh interval must be positive");
+            this.refreshInterval = refreshInterval;
+            return this;
+        }
+
+        /**
+         * @param idleTimeout
+         *            Time since the last lookup after which a response is no
+         *            longer re-signed, if null it will default to the validity
+         * @return This builder
+         */
+        public Builder withIdleTimeout(Duration idleTimeout) {
+            Preconditions.checkArgument(idleTimeout == null || !idleTimeout.isNegative(),
+                    "Idle timeout must not be negative");
+            this.idleTimeout = idleTimeout;
+            return this;
+        }
+
+        /**
+         * @param maximumPending
+         *            Max number of responses queued or being signed, beyond which
+         *            lookups of serial numbers without a response don't trigger
+         *            signing, defaults to 10 000, must be positive
+         * @return This builder
+         */
+        public Builder withMaximumPending(int maximumPending) {
+            Preconditions.checkArgument(maximumPending > 0, "Maximum pending must be positive");
+            this.maximumPending = maximumPending;
+            return this;
+        }
+
+        /**
+         * @param maximumSize
+         *            Max number of cached responses, defaults to 100 000, must be
+         *            positive
+         * @return This builder
+         */
+        public Builder withMaximumSize(long maximumSize) {
+            Preconditions.checkArgument(maximumSize > 0, "Maximum size must be positive");
+            this.maximumSize = maximumSize;
+            return this;
+        }
+
+        /**
+         * @param concurrency
+         *            Max number of KMS signing calls in flight, defaults to 16,
+         *            must be positive
+         * @return This builder
+         */
+        public Builder withConcurrency(int concurrency) {
+            Preconditions.checkArgument(concurrency > 0, "Concurrency must be positive");
+            this.concurrency = concurrency;
+            return this;
+        }
+
+        /**
+         * @param executor
+         *            Executor for status lookups and signing, if null the common
+         *            fork join pool is used
+         * @return This builder
+         */
+        public Builder withExecutor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * @param scheduler
+         *            Scheduler for the background batches, if null a single daemon
+         *            thread is created and shut down on close
+         * @return This builder
+         */
+        public Builder withScheduler(ScheduledExecutorService scheduler) {
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        /**
+         * @param clock
+         *            Clock for response times, must not be null
+         * @return This builder
+         */
+        public Builder withClock(Clock clock) {
+            this.clock = Preconditions.checkNotNull(clock);
+            return this;
+        }
+
+        /**
+         * @return A new responder, never null
+         */
+        public OcspResponder build() {
+            Preconditions.checkNotNull(keyName, "Missing crypto key version name");
+            Preconditions.checkNotNull(issuerCertificate, "Missing issuer certificate");
+            Preconditions.checkNotNull(statusSource, "Missing status source");
+            return new OcspResponder(this);
+        }
+    }
+
+    /**
+     * @param client
+     *            KMS client, must not be null
+     * @param cache
+     *            Key cache, must not be null
+     * @return A new responder builder, never null
+     */
+    public static Builder builder(KmsServiceClient client, KmsKeyCache cache) {
+        return new Builder(client, cache);
+    }
+
+    /**
+     * A response with its encoding, and next update if signed.
+     */
+    private static class Signed {
+
+        private final OCSPResp response;
+        private final byte[] der;
+        private final Instant nextUpdate;
+        private volatile long lastAccessMillis;
+
+        private Signed(OCSPResp response, byte[] der, Instant nextUpdate) {
+            this.response = response;
+            this.der = der;
+            this.nextUpdate = nextUpdate;
+        }
+
+        /*
+         * Update the last access at most once per second, to not write to a shared
+         * field on every lookup.
+         */
+        private void touch(long nowMillis) {
+            if (nowMillis - lastAccessMillis >= 1000) {
+                lastAccessMillis = nowMillis;
+            }
+        }
+    }
+
+    /*
+     * A response being signed. If the certificate is invalidated meanwhile, the
+     * result is dropped and the response is signed again, as the status may have
+     * been looked up before the invalidation.
+     */
+    private static class Signing {
+
+        private final CompletableFuture<OCSPResp> future = new CompletableFuture<>();
+        // guarded by the in flight map
+        private boolean invalidated;
+    }
+
+    private final Cache<BigInteger, Signed> responses;
+    private final ConcurrentMap<BigInteger, Signing> inFlight = new ConcurrentHashMap<>();
+    private final Queue<BigInteger> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger active = new AtomicInteger();
+    private final KmsServiceClient client;
+    private final KmsKeyCache cache;
+    private final CryptoKeyVersionName keyName;
+    private final X509CertificateHolder responderCertificate;
+    private final CertificateID certificateIdTemplate;
+    private final ResponderID responderId;
+    private final DERSequence certificates;
+    private final CertificateStatusSource statusSource;
+    private final Duration validity;
+    private final Duration refreshAhead;
+    private final Duration idleTimeout;
+    private final int maximumPending;
+    private final int concurrency;
+    private final Executor executor;
+    private final ScheduledExecutorService scheduler;
+    private final ScheduledFuture<?> refreshTask;
+    private final boolean ownsScheduler;
+    private final Clock clock;
+    private volatile KmsKeyCache.Entry verifiedEntry;
+
+    private OcspResponder(Builder builder) {
+        this.client = builder.client;
+        this.cache = builder.cache;
+        this.keyName = builder.keyName;
+        this.responderCertificate = builder.responderCertificate == null ? builder.issuerCertificate
+                : builder.responderCertificate;
+        this.certificates = responderCertificate.equals(builder.issuerCertificate) ? null
+                : new DERSequence(responderCertificate.toASN1Structure());
+        try {
+            DigestCalculator sha1 = new JcaDigestCalculatorProviderBuilder().build().get(CertificateID.HASH_SHA1);
+            this.certificateIdTemplate = new CertificateID(sha1, builder.issuerCertificate, BigInteger.ONE);
+            this.responderId = new RespID(responderCertificate.getSubjectPublicKeyInfo(), sha1).toASN1Primitive();
+        } catch (OperatorCreationException | OCSPException e) {
+            throw new IllegalStateException("Failed to create SHA-1 key hashes", e);
+        }
+        this.statusSource = builder.statusSource;
+        this.validity = builder.validity;
+        this.refreshAhead = builder.refreshAhead;
+        this.idleTimeout = builder.idleTimeout == null ? validity : builder.idleTimeout;
+        this.maximumPending = builder.maximumPending;
+        this.concurrency = builder.concurrency;
+        this.executor = builder.executor == null ? ForkJoinPool.commonPool() : builder.executor;
+        this.clock = builder.clock;
+        this.responses = CacheBuilder.newBuilder().maximumSize(builder.maximumSize)
+                .expireAfterWrite(validity.toMillis(), TimeUnit.MILLISECONDS).build();
+        this.ownsScheduler = builder.scheduler == null;
+        this.scheduler = ownsScheduler ? Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "kms-ocsp-responder");
+            thread.setDaemon(true);
+            return thread;
+        }) : builder.scheduler;
+        long interval = builder.refreshInterval.toMillis();
+        this.refreshTask = scheduler.scheduleWithFixedDelay(this::refreshDue, interval, interval,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Answer an OCSP request without waiting for KMS. Requests must have a
+     * single certificate with a SHA-1 certificate ID for the issuer, as per RFC
+     * 5019. Other requests are answered "malformed request" or "unauthorized".
+     * Requests without a cached response are answered "try later", and the
+     * response is signed in the background, or "unauthorized" if the status
+     * source doesn't know the serial number. Nonces are ignored.
+     * 
+     * @param request
+     *            The request, must not be null
+     * @return The response, never null
+     */
+    public OCSPResp respond(OCSPReq request) {
+        return answer(request).response;
+    }
+
+    /**
+     * Answer a DER encoded OCSP request, as received over HTTP. See
+     * {@link #respond(OCSPReq)}.
+     * 
+     * @param request
+     *            The DER encoded request, must not be null
+     * @return The DER encoded response, never null
+     */
+    public byte[] respond(byte[] request) {
+        OCSPReq parsed;
+        try {
+            parsed = new OCSPReq(request);
+        } catch (IOException | RuntimeException e) {
+            return MALFORMED_REQUEST.der.clone();
+        }
+        return answer(parsed).der.clone();
+    }
+
+    /**
+     * Get the cached response for a certificate, without waiting for KMS. If
+     * there is none a response is signed in the background.
+     * 
+     * @param serialNumber
+     *            The certificate serial number, must not be null
+     * @return The response, or an empty optional if not yet signed
+     */
+    public Optional<OCSPResp> getResponse(BigInteger serialNumber) {
+        Signed signed = lookup(Preconditions.checkNotNull(serialNumber));
+        if (signed == null) {
+            request(serialNumber);
+            return Optional.empty();
+        }
+        return Optional.of(signed.response);
+    }
+
+    /**
+     * Sign a response for a certificate, e.g. when it is issued, unless it is
+     * already being signed.
+     * 
+     * @param serialNumber
+     *            The certificate serial number, must not be null
+     * @return A future for the signed response, never null
+     */
+    public CompletableFuture<OCSPResp> prepare(BigInteger serialNumber) {
+        return submit(Preconditions.checkNotNull(serialNumber));
+    }
+
+    /**
+     * Sign responses for certificates in a batch, with a bounded number of KMS
+     * calls in flight.
+     * 
+     * @param serialNumbers
+     *            The certificate serial numbers, must not be null
+     * @return A future completing when all responses are signed, never null
+     */
+    public CompletableFuture<Void> prepareAll(Collection<BigInteger> serialNumbers) {
+        List<CompletableFuture<OCSPResp>> futures = new ArrayList<>(serialNumbers.size());
+        serialNumbers.forEach(serialNumber -> futures.add(submit(serialNumber)));
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Drop the cached response for a certificate and sign a new one, e.g. when it
+     * is revoked. Until the new response is signed the certificate is answered
+     * "try later". If a response for the certificate is being signed, it is
+     * dropped when done and signed again.
+     * 
+     * @param serialNumber
+     *            The certificate serial number, must not be null
+     * @return A future for the new response, never null
+     */
+    public CompletableFuture<OCSPResp> invalidate(BigInteger serialNumber) {
+        Preconditions.checkNotNull(serialNumber);
+        Signing fresh = new Signing();
+        Signing signing = inFlight.compute(serialNumber, (serial, current) -> {
+            responses.invalidate(serial);
+            if (current == null) {
+                return fresh;
+            }
+            current.invalidated = true;
+            return current;
+        });
+        if (signing == fresh) {
+            pending.add(serialNumber);
+            drain();
+        }
+        return signing.future;
+    }
+
+    /**
+     * @return The number of cached responses
+     */
+    public long size() {
+        return responses.size();
+    }
+
+    /**
+     * Stop the background batches, and shut down the scheduler if it was created
+     * by the responder.
+     */
+    @Override
+    public void close() {
+        refreshTask.cancel(false);
+        if (ownsScheduler) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private Signed answer(OCSPReq request) {
+        Req[] requests = request.getRequestList();
+        if (requests.length != 1) {
+            return MALFORMED_REQUEST;
+        }
+        CertificateID id = requests[0].getCertID();
+        if (!isIssuer(id)) {
+            return UNAUTHORIZED;
+        }
+        Signed signed = lookup(id.getSerialNumber());
+        if (signed == null) {
+            return request(id.getSerialNumber()) ? TRY_LATER : UNAUTHORIZED;
+        }
+        return signed;
+    }
+
+    private Signed lookup(BigInteger serialNumber) {
+        Signed signed = responses.getIfPresent(serialNumber);
+        long now = clock.millis();
+        if (signed != null && signed.nextUpdate.toEpochMilli() > now) {
+            signed.touch(now);
+            return signed;
+        }
+        return null;
+    }
+
+    /*
+     * Sign a response for a looked up serial number without one, unless the
+     * serial number is unknown or too many responses are already pending.
+     */
+    private boolean request(BigInteger serialNumber) {
+        if (!statusSource.isKnown(serialNumber)) {
+            return false;
+        }
+        if (inFlight.size() < maximumPending) {
+            submit(serialNumber);
+        }
+        return true;
+    }
+
+    private boolean isIssuer(CertificateID id) {
+        return id.getHashAlgOID().equals(certificateIdTemplate.getHashAlgOID())
+                && Arrays.equals(id.getIssuerNameHash(), certificateIdTemplate.getIssuerNameHash())
+                && Arrays.equals(id.getIssuerKeyHash(), certificateIdTemplate.getIssuerKeyHash());
+    }
+
+    /*
+     * Queue responses that are due for re-signing, if they have been looked up
+     * recently. Others are left to expire.
+     */
+    private void refreshDue() {
+        Instant now = clock.instant();
+        Instant due = now.plus(refreshAhead);
+        long idleSince = now.minus(idleTimeout).toEpochMilli();
+        for (Map.Entry<BigInteger, Signed> entry : responses.asMap().entrySet()) {
+            Signed signed = entry.getValue();
+            if (!signed.nextUpdate.isAfter(due) && signed.lastAccessMillis >= idleSince) {
+                submit(entry.getKey());
+            }
+        }
+    }
+
+    private CompletableFuture<OCSPResp> submit(BigInteger serialNumber) {
+        Signing signing = new Signing();
+        Signing existing = inFlight.putIfAbsent(serialNumber, signing);
+        if (existing != null) {
+            return existing.future;
+        }
+        pending.add(serialNumber);
+        drain();
+        return signing.future;
+    }
+
+    /*
+     * Start signing queued responses while there are fewer than the max number
+     * in flight.
+     */
+    private void drain() {
+        while (!pending.isEmpty()) {
+            int current = active.get();
+            if (current >= concurrency) {
+                return;
+            }
+            if (active.compareAndSet(current, current + 1)) {
+                BigInteger serialNumber = pending.poll();
+                if (serialNumber == null) {
+                    active.decrementAndGet();
+                } else {
+                    executor.execute(() -> sign(serialNumber));
+                }
+            }
+        }
+    }
+
+    private void sign(BigInteger serialNumber) {
+        CompletableFuture<Signed> signed;
+        try {
+            signed = cache.getAsync(keyName).thenCompose(entry -> signAsync(entry, serialNumber));
+        } catch (RuntimeException e) {
+            signed = CompletableFutures.failed(e);
+        }
+        signed.whenComplete((result, error) -> complete(serialNumber, result, error));
+    }
+
+    /*
+     * Cache a signed response, unless the certificate was invalidated while it
+     * was signed, in which case it is queued to be signed again.
+     */
+    private void complete(BigInteger serialNumber, Signed result, Throwable error) {
+        Signing signing = inFlight.get(serialNumber);
+        boolean resign = inFlight.compute(serialNumber, (serial, current) -> {
+            if (current.invalidated) {
+                current.invalidated = false;
+                return current;
+            }
+            if (error == null) {
+                Signed old = responses.getIfPresent(serial);
+                result.lastAccessMillis = old == null ? clock.millis() : old.lastAccessMillis;
+                responses.put(serial, result);
+            }
+            return null;
+        }) != null;
+        if (resign) {
+            pending.add(serialNumber);
+        } else if (error == null) {
+            signing.future.complete(result.response);
+        } else {
+            // a failed refresh keeps the current response until it expires
+            signing.future.completeExceptionally(CompletableFutures.unwrap(error));
+        }
+        active.decrementAndGet();
+        drain();
+    }
+
+    private CompletableFuture<Signed> signAsync(KmsKeyCache.Entry entry, BigInteger serialNumber) {
+        checkKey(entry);
+        CertStatus status = toCertStatus(statusSource.getStatus(serialNumber));
+        Instant now = clock.instant();
+        Instant nextUpdate = now.plus(validity);
+        ASN1GeneralizedTime thisUpdate = new ASN1GeneralizedTime(Date.from(now));
+        SingleResponse single = new SingleResponse(
+                CertificateID.deriveCertificateID(certificateIdTemplate, serialNumber).toASN1Primitive(), status,
+                thisUpdate, new ASN1GeneralizedTime(Date.from(nextUpdate)), (Extensions) null);
+        ResponseData data = new ResponseData(responderId, thisUpdate, new DERSequence(single), (Extensions) null);
+        KmsContentSigner signer = new KmsContentSigner(client, entry.getKeyName(), entry.getAlgorithm());
+        try (OutputStream out = signer.getOutputStream()) {
+            data.encodeTo(out, ASN1Encoding.DER);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to encode OCSP response", e);
+        }
+        return signer.getSignatureAsync().thenApply(signature -> {
+            BasicOCSPResponse basic = new BasicOCSPResponse(data, signer.getAlgorithmIdentifier(),
+                    new DERBitString(signature), certificates);
+            try {
+                OCSPResponse response = new OCSPResponse(new OCSPResponseStatus(OCSPResponseStatus.SUCCESSFUL),
+                        new ResponseBytes(OCSPObjectIdentifiers.id_pkix_ocsp_basic,
+                                new DEROctetString(basic.getEncoded(ASN1Encoding.DER))));
+                return new Signed(new OCSPResp(response), response.getEncoded(ASN1Encoding.DER), nextUpdate);
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to encode OCSP response", e);
+            }
+        });
+    }
+
+    private void checkKey(KmsKeyCache.Entry entry) {
+        if (entry == verifiedEntry) {
+            return;
+        }
+        try {
+            byte[] publicKey = responderCertificate.getSubjectPublicKeyInfo().getEncoded();
+            if (!Arrays.equals(publicKey, entry.getPublicKey().getEncoded())) {
+                throw new IllegalStateException("Responder certificate public key does not match key: " + keyName);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to encode responder public key", e);
+        }
+        verifiedEntry = entry;
+    }
+
+    private static CertStatus toCertStatus(CertificateStatus status) {
+        if (status == CertificateStatus.GOOD) {
+            return new CertStatus();
+        }
+        if (status instanceof RevokedStatus) {
+            RevokedStatus revoked = (RevokedStatus) status;
+            CRLReason reason = revoked.hasRevocationReason() ? CRLReason.lookup(revoked.getRevocationReason())
+                    : null;
+            return new CertStatus(new RevokedInfo(new ASN1GeneralizedTime(revoked.getRevocationTime()), reason));
+        }
+        return new CertStatus(2, DERNull.INSTANCE);
+    }
+
+    private static Signed unsigned(int status) {
+        OCSPResponse response = new OCSPResponse(new OCSPResponseStatus(status), null);
+        try {
+            return new Signed(new OCSPResp(response), response.getEncoded(ASN1Encoding.DER), null);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to encode OCSP response", e);
+        }
+    }
+}
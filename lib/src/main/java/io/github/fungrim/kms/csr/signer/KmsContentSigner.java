@@ -22,22 +22,26 @@ import com.google.cloud.kms.v1.Digest;
 import com.google.common.base.Preconditions;
 import io.github.fungrim.kms.csr.client.KmsServiceClient;
 import io.github.fungrim.kms.csr.util.Algorithms;
+import io.github.fungrim.kms.csr.util.DigestingOutputStream;
 import io.github.fungrim.kms.csr.util.JcaDigest;
-import java.io.ByteArrayOutputStream;
 import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
 import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
 import org.bouncycastle.operator.ContentSigner;
 
 /**
- * A bouncy castle content signer, using a KMS key.
+ * A bouncy castle content signer, using a KMS key. The content written to the
+ * output stream is digested as it is written, and only the final digest is
+ * sent to KMS for signing.
  */
 public class KmsContentSigner implements ContentSigner {
 
-    private final ByteArrayOutputStream baout = new ByteArrayOutputStream();
-
     private final KmsServiceClient client;
     private final CryptoKeyVersionName keyName;
     private final CryptoKeyVersionAlgorithm algorithm;
+    private final JcaDigest jcaDigest;
+    private final DigestingOutputStream digestOut;
+    private final KmsKeyPool.Lease lease;
 
     /**
      * @param client
@@ -49,9 +53,40 @@ public class KmsContentSigner implements ContentSigner {
      */
     public KmsContentSigner(KmsServiceClient client, CryptoKeyVersionName keyName,
             CryptoKeyVersionAlgorithm algorithm) {
+        this(client, keyName, algorithm, null);
+    }
+
+    /**
+     * Sign with a key version leased from a key pool. The lease is closed when
+     * the signature is done.
+     * 
+     * @param client
+     *            Client to use, must not be null
+     * @param lease
+     *            Key lease to sign with, must not be null
+     * @param algorithm
+     *            Key algorithm, must match the rest of the pool
+     */
+    public KmsContentSigner(KmsServiceClient client, KmsKeyPool.Lease lease, CryptoKeyVersionAlgorithm algorithm) {
+        this(client, lease.getKeyName(), algorithm, lease);
+        lease.getPool().checkAlgorithm(keyName, algorithm);
+    }
+
+    private KmsContentSigner(KmsServiceClient client, CryptoKeyVersionName keyName,
+            CryptoKeyVersionAlgorithm algorithm, KmsKeyPool.Lease lease) {
         this.client = Preconditions.checkNotNull(client);
         this.keyName = Preconditions.checkNotNull(keyName);
         this.algorithm = Preconditions.checkNotNull(algorithm);
+        this.jcaDigest = JcaDigest.of(algorithm);
+        this.digestOut = new DigestingOutputStream(jcaDigest.newDigest());
+        this.lease = lease;
+    }
+
+    /**
+     * @return The key version signing, never null
+     */
+    public CryptoKeyVersionName getKeyName() {
+        return keyName;
     }
 
     @Override
@@ -61,13 +96,41 @@ public class KmsContentSigner implements ContentSigner {
 
     @Override
     public OutputStream getOutputStream() {
-        return baout;
+        return digestOut;
     }
 
     @Override
     public byte[] getSignature() {
-        byte[] bytes = baout.toByteArray();
-        Digest digest = JcaDigest.of(algorithm).digestAndWrap(bytes);
-        return client.asymmetricSign(keyName, digest);
+        Digest digest = jcaDigest.wrap(digestOut.digest());
+        try {
+            return client.asymmetricSign(keyName, digest);
+        } finally {
+            closeLease();
+        }
+    }
+
+    /**
+     * Complete the digest of the written content and sign it asynchronously.
+     * The digest is completed in the calling thread, so the output stream may be
+     * reused as soon as this method returns.
+     * 
+     * @return A future for the signature, never null
+     */
+    public CompletableFuture<byte[]> getSignatureAsync() {
+        Digest digest = jcaDigest.wrap(digestOut.digest());
+        CompletableFuture<byte[]> signature;
+        try {
+            signature = client.asymmetricSignAsync(keyName, digest);
+        } catch (RuntimeException e) {
+            closeLease();
+            throw e;
+        }
+        return lease == null ? signature : signature.whenComplete((result, error) -> closeLease());
+    }
+
+    private void closeLease() {
+        if (lease != null) {
+            lease.close();
+        }
     }
 }
@@ -0,0 +1,164 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.signer;
+
+
+import com.google.cloud.kms.v1.CryptoKeyVersion.CryptoKeyVersionAlgorithm;
+import com.google.cloud.kms.v1.CryptoKeyVersionName;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A pool of equivalent key versions to spread signing over, as KMS throttles
+ * per key as well as per project. The key versions must all be enabled and of
+ * the same algorithm, but may come from different key rings. Each signature
+ * leases the key version with the fewest signatures in flight, ties are broken
+ * round robin. E.g.:
+ * 
+ * <pre>
+ * KmsKeyPool pool = KmsKeyPool.of(Arrays.asList(keyName1, keyName2, keyName3));
+ * CsrBuilder.Result result = factory.builder()
+ *              .forPrincipal(principal)
+ *              .withKeyPool(pool)
+ *              .build();
+ * CryptoKeyVersionName signedBy = result.getKeyName();
+ * </pre>
+ * 
+ * A pool is thread safe and should be shared by all signers using the same
+ * keys.
+ */
+public class KmsKeyPool {
+
+    /**
+     * A lease of a key version in the pool. The lease counts as in flight until
+     * closed, closing it more than once has no effect.
+     */
+    public static class Lease implements AutoCloseable {
+
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final KmsKeyPool pool;
+        private final int index;
+
+        private Lease(KmsKeyPool pool, int index) {
+            this.pool = pool;
+            this.index = index;
+        }
+
+        /**
+         * @return The leased key version, never null
+         */
+        public CryptoKeyVersionName getKeyName() {
+            return pool.keyNames.get(index);
+        }
+
+        /**
+         * @return The pool the key version is leased from, never null
+         */
+        public KmsKeyPool getPool() {
+            return pool;
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                pool.inFlight[index].decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @param keyNames
+     *            Key versions of the pool, must not be null or empty
+     * @return A new pool, never null
+     */
+    public static KmsKeyPool of(Collection<CryptoKeyVersionName> keyNames) {
+        Preconditions.checkNotNull(keyNames);
+        Preconditions.checkArgument(!keyNames.isEmpty(), "Key pool must not be empty");
+        return new KmsKeyPool(ImmutableList.copyOf(new LinkedHashSet<>(keyNames)));
+    }
+
+    private final AtomicReference<CryptoKeyVersionAlgorithm> algorithm = new AtomicReference<>();
+    private final AtomicInteger next = new AtomicInteger();
+    private final List<CryptoKeyVersionName> keyNames;
+    private final AtomicInteger[] inFlight;
+
+    private KmsKeyPool(List<CryptoKeyVersionName> keyNames) {
+        this.keyNames = keyNames;
+        this.inFlight = new AtomicInteger[keyNames.size()];
+        for (int i = 0; i < inFlight.length; i++) {
+            inFlight[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * @return The key versions of the pool, never null
+     */
+    public List<CryptoKeyVersionName> getKeyNames() {
+        return keyNames;
+    }
+
+    /**
+     * @param keyName
+     *            Key version to check, must be in the pool
+     * @return The number of signatures in flight for the key version
+     */
+    public int getInFlight(CryptoKeyVersionName keyName) {
+        int index = keyNames.indexOf(keyName);
+        Preconditions.checkArgument(index >= 0, "Key is not in the pool: %s", keyName);
+        return inFlight[index].get();
+    }
+
+    /**
+     * Lease the key version with the fewest signatures in flight. The lease must
+     * be closed when the signature is done.
+     * 
+     * @return A new lease, never null
+     */
+    public Lease lease() {
+        int size = inFlight.length;
+        int start = Math.floorMod(next.getAndIncrement(), size);
+        int best = start;
+        int bestCount = inFlight[start].get();
+        for (int i = 1; i < size && bestCount > 0; i++) {
+            int index = (start + i) % size;
+            int count = inFlight[index].get();
+            if (count < bestCount) {
+                best = index;
+                bestCount = count;
+            }
+        }
+        inFlight[best].incrementAndGet();
+        return new Lease(this, best);
+    }
+
+    /**
+     * Check that a key version algorithm matches the rest of the pool. The
+     * first algorithm checked is the pool algorithm.
+     */
+    void checkAlgorithm(CryptoKeyVersionName keyName, CryptoKeyVersionAlgorithm keyAlgorithm) {
+        CryptoKeyVersionAlgorithm poolAlgorithm = algorithm.updateAndGet(a -> a == null ? keyAlgorithm : a);
+        if (poolAlgorithm != keyAlgorithm) {
+            throw new IllegalStateException("Key pool algorithm is " + poolAlgorithm + " but " + keyName + " is "
+                    + keyAlgorithm);
+        }
+    }
+}
@@ -17,35 +17,43 @@ package io.github.fungrim.kms.csr.util;
 
 
 import com.google.cloud.kms.v1.CryptoKeyVersion.CryptoKeyVersionAlgorithm;
+import java.util.EnumMap;
+import java.util.Map;
 import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
 import org.bouncycastle.operator.DefaultSignatureAlgorithmIdentifierFinder;
 
 public class Algorithms {
 
+    private static final Map<CryptoKeyVersionAlgorithm, AlgorithmIdentifier> IDENTIFIERS = createIdentifiers();
+
     private Algorithms() {
     }
 
     public static AlgorithmIdentifier toIdentifier(CryptoKeyVersionAlgorithm algorithm) {
-        DefaultSignatureAlgorithmIdentifierFinder finder = new DefaultSignatureAlgorithmIdentifierFinder();
-        switch (algorithm) {
-            case EC_SIGN_P256_SHA256 :
-                return finder.find("SHA256WITHECDSA");
-            case EC_SIGN_P384_SHA384 :
-                return finder.find("SHA384WITHECDSA");
-            case RSA_SIGN_PKCS1_2048_SHA256 :
-            case RSA_SIGN_PKCS1_3072_SHA256 :
-            case RSA_SIGN_PKCS1_4096_SHA256 :
-                return finder.find("SHA256WITHRSA");
-            case RSA_SIGN_PKCS1_4096_SHA512 :
-                return finder.find("SHA512WITHRSA");
-            case RSA_SIGN_PSS_2048_SHA256 :
-            case RSA_SIGN_PSS_3072_SHA256 :
-            case RSA_SIGN_PSS_4096_SHA256 :
-                return finder.find("SHA256WITHRSAANDMGF1");
-            case RSA_SIGN_PSS_4096_SHA512 :
-                return finder.find("SHA512WITHRSAANDMGF1");
-            default :
-                throw new IllegalArgumentException("Unsupported signature algorithm: " + algorithm);
+        AlgorithmIdentifier identifier = IDENTIFIERS.get(algorithm);
+        if (identifier == null) {
+            throw new IllegalArgumentException("Unsupported signature algorithm: " + algorithm);
         }
+        return identifier;
+    }
+
+    public static boolean isSupported(CryptoKeyVersionAlgorithm algorithm) {
+        return IDENTIFIERS.containsKey(algorithm);
+    }
+
+    private static Map<CryptoKeyVersionAlgorithm, AlgorithmIdentifier> createIdentifiers() {
+        DefaultSignatureAlgorithmIdentifierFinder finder = new DefaultSignatureAlgorithmIdentifierFinder();
+        Map<CryptoKeyVersionAlgorithm, AlgorithmIdentifier> map = new EnumMap<>(CryptoKeyVersionAlgorithm.class);
+        map.put(CryptoKeyVersionAlgorithm.EC_SIGN_P256_SHA256, finder.find("SHA256WITHECDSA"));
+        map.put(CryptoKeyVersionAlgorithm.EC_SIGN_P384_SHA384, finder.find("SHA384WITHECDSA"));
+        map.put(CryptoKeyVersionAlgorithm.RSA_SIGN_PKCS1_2048_SHA256, finder.find("SHA256WITHRSA"));
+        map.put(CryptoKeyVersionAlgorithm.RSA_SIGN_PKCS1_3072_SHA256, finder.find("SHA256WITHRSA"));
+        map.put(CryptoKeyVersionAlgorithm.RSA_SIGN_PKCS1_4096_SHA256, finder.find("SHA256WITHRSA"));
+        map.put(CryptoKeyVersionAlgorithm.RSA_SIGN_PKCS1_4096_SHA512, finder.find("SHA512WITHRSA"));
+        map.put(CryptoKeyVersionAlgorithm.RSA_SIGN_PSS_2048_SHA256, finder.find("SHA256WITHRSAANDMGF1"));
+        map.put(CryptoKeyVersionAlgorithm.RSA_SIGN_PSS_3072_SHA256, finder.find("SHA256WITHRSAANDMGF1"));
+        map.put(CryptoKeyVersionAlgorithm.RSA_SIGN_PSS_4096_SHA256, finder.find("SHA256WITHRSAANDMGF1"));
+        map.put(CryptoKeyVersionAlgorithm.RSA_SIGN_PSS_4096_SHA512, finder.find("SHA512WITHRSAANDMGF1"));
+        return map;
     }
 }
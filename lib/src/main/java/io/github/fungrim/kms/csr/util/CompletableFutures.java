@@ -0,0 +1,234 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.util;
+
+
+import com.google.api.core.ApiFuture;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Utilities for working with completable futures.
+ */
+public class CompletableFutures {
+
+    private CompletableFutures() {
+    }
+
+    /**
+     * Adapt a GAPIC future to a completable future. Cancelling the returned future
+     * cancels the underlying call.
+     * 
+     * @param future
+     *            Future to adapt, must not be null
+     * @return A completable future, never null
+     */
+    public static <T> CompletableFuture<T> toCompletable(ApiFuture<T> future) {
+        Preconditions.checkNotNull(future);
+        CompletableFuture<T> result = new CompletableFuture<T>() {
+
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                future.cancel(mayInterruptIfRunning);
+                return super.cancel(mayInterruptIfRunning);
+            }
+        };
+        future.addListener(() -> {
+            try {
+                result.complete(future.get());
+            } catch (ExecutionException e) {
+                result.completeExceptionally(e.getCause());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        }, MoreExecutors.directExecutor());
+        return result;
+    }
+
+    /**
+     * Apply a function to the value of a future. Unlike
+     * {@link CompletableFuture#thenApply}, cancelling the returned future cancels
+     * the source future, e.g. the underlying call.
+     * 
+     * @param source
+     *            Future to apply the function to, must not be null
+     * @param fn
+     *            Function to apply, must not be null
+     * @return A future for the function result, never null
+     */
+    public static <T, R> CompletableFuture<R> thenApply(CompletableFuture<T> source,
+            Function<? super T, ? extends R> fn) {
+        Preconditions.checkNotNull(fn);
+        return compose(source, (value, error) -> error == null ? supply(() -> fn.apply(value)) : failed(error));
+    }
+
+    /**
+     * Compose a future with the next stage, which gets either the value or the
+     * failure of the future, like {@link CompletableFuture#handle} followed by
+     * {@link CompletableFuture#thenCompose}. Unlike these, cancelling the
+     * returned future cancels the source future, or the future of the next stage
+     * once it is created, e.g. the underlying call.
+     * 
+     * @param source
+     *            Future to compose, must not be null
+     * @param next
+     *            Next stage, given the value, or null, and the unwrapped failure,
+     *            or null, must not return null
+     * @return A future for the result of the next stage, never null
+     */
+    public static <T, R> CompletableFuture<R> compose(CompletableFuture<T> source,
+            BiFunction<? super T, Throwable, ? extends CompletableFuture<R>> next) {
+        Preconditions.checkNotNull(next);
+        Composed<R> result = new Composed<>(Preconditions.checkNotNull(source));
+        source.whenComplete((value, error) -> {
+            CompletableFuture<R> stage;
+            try {
+                stage = next.apply(value, error == null ? null : unwrap(error));
+            } catch (RuntimeException e) {
+                stage = failed(e);
+            }
+            result.follow(stage);
+        });
+        return result;
+    }
+
+    /**
+     * Adapt a completable future to a Guava listenable future.
+     * 
+     * @param future
+     *            Future to adapt, must not be null
+     * @return A listenable future, never null
+     */
+    public static <T> ListenableFuture<T> toListenable(CompletableFuture<T> future) {
+        SettableFuture<T> result = SettableFuture.create();
+        future.whenComplete((value, error) -> {
+            if (error == null) {
+                result.set(value);
+            } else {
+                result.setException(unwrap(error));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Run a provider in the calling thread and capture the result, or the thrown
+     * exception, in a completed future.
+     * 
+     * @param provider
+     *            Provider to call, must not be null
+     * @return A completed future, never null
+     */
+    public static <T> CompletableFuture<T> supply(Provider<T> provider) {
+        try {
+            return CompletableFuture.completedFuture(provider.get());
+        } catch (RuntimeException e) {
+            return failed(e);
+        }
+    }
+
+    /**
+     * @param t
+     *            The failure, must not be null
+     * @return A future completed with the given failure, never null
+     */
+    public static <T> CompletableFuture<T> failed(Throwable t) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        result.completeExceptionally(Preconditions.checkNotNull(t));
+        return result;
+    }
+
+    /**
+     * Wait for a future and return its value. If the future failed with a runtime
+     * exception or error, that is rethrown as is instead of wrapped in a
+     * {@link CompletionException}.
+     * 
+     * @param future
+     *            Future to wait for, must not be null
+     * @return The future value
+     */
+    public static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = unwrap(e);
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw e;
+            }
+        }
+    }
+
+    /*
+     * A future following the current stage of a composition, which it cancels
+     * when cancelled.
+     */
+    private static class Composed<T> extends CompletableFuture<T> {
+
+        private volatile Future<?> current;
+
+        private Composed(Future<?> source) {
+            this.current = source;
+        }
+
+        private void follow(CompletableFuture<T> stage) {
+            current = stage;
+            if (isCancelled()) {
+                stage.cancel(false);
+                return;
+            }
+            stage.whenComplete((value, error) -> {
+                if (error == null) {
+                    complete(value);
+                } else {
+                    completeExceptionally(unwrap(error));
+                }
+            });
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            current.cancel(mayInterruptIfRunning);
+            return cancelled;
+        }
+    }
+
+    /**
+     * @param t
+     *            Throwable to unwrap, must not be null
+     * @return The first cause that is not a completion or execution exception
+     */
+    public static Throwable unwrap(Throwable t) {
+        Throwable cause = t;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException)
+                && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
+}
@@ -0,0 +1,58 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.util;
+
+
+import com.google.common.base.Preconditions;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+
+/**
+ * An output stream that feeds every written byte straight into a message
+ * digest. Nothing is buffered, so the memory used is constant regardless of
+ * how much content is written.
+ */
+public class DigestingOutputStream extends OutputStream {
+
+    private final MessageDigest digest;
+
+    /**
+     * @param digest
+     *            Digest to update, must not be null
+     */
+    public DigestingOutputStream(MessageDigest digest) {
+        this.digest = Preconditions.checkNotNull(digest);
+    }
+
+    @Override
+    public void write(int b) {
+        digest.update((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        digest.update(b, off, len);
+    }
+
+    /**
+     * Complete the digest. This resets the underlying digest.
+     * 
+     * @return The digest bytes, never null
+     */
+    public byte[] digest() {
+        return digest.digest();
+    }
+}
@@ -18,29 +18,43 @@ package io.github.fungrim.kms.csr.util;
 
 import com.google.cloud.kms.v1.CryptoKeyVersion.CryptoKeyVersionAlgorithm;
 import com.google.cloud.kms.v1.Digest;
-import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.EnumMap;
+import java.util.Map;
 
+/**
+ * The digests KMS can sign. Message digests are created by cloning a
+ * prototype, and one shot digests reuse a digest per thread. The digest bytes
+ * are wrapped without copying, so they must not be modified once wrapped.
+ */
 public enum JcaDigest {
 
-    SHA256(() -> safeGetDigest("SHA-256"),
-            (b) -> com.google.cloud.kms.v1.Digest.newBuilder().setSha256(ByteString.copyFrom(b)).build()), SHA384(
-                    () -> safeGetDigest("SHA-382"),
-                    (b) -> com.google.cloud.kms.v1.Digest.newBuilder().setSha384(ByteString.copyFrom(b))
-                            .build()), SHA512(() -> safeGetDigest("SHA-512"),
-                                    (b) -> com.google.cloud.kms.v1.Digest.newBuilder().setSha512(ByteString.copyFrom(b))
-                                            .build());
+    SHA256("SHA-256", (b) -> Digest.newBuilder().setSha256(UnsafeByteOperations.unsafeWrap(b)).build()), SHA384(
+            "SHA-384", (b) -> Digest.newBuilder().setSha384(UnsafeByteOperations.unsafeWrap(b)).build()), SHA512(
+                    "SHA-512", (b) -> Digest.newBuilder().setSha512(UnsafeByteOperations.unsafeWrap(b)).build());
+
+    private static final Map<CryptoKeyVersionAlgorithm, JcaDigest> DIGESTS = createDigests();
 
     public static JcaDigest of(CryptoKeyVersionAlgorithm algorithm) {
-        String name = algorithm.name();
-        if (name.endsWith("256") || name.endsWith("256K")) {
-            return SHA256;
-        } else if (name.endsWith("384")) {
-            return SHA384;
-        } else {
-            return SHA512;
+        JcaDigest digest = DIGESTS.get(algorithm);
+        return digest == null ? SHA512 : digest;
+    }
+
+    private static Map<CryptoKeyVersionAlgorithm, JcaDigest> createDigests() {
+        Map<CryptoKeyVersionAlgorithm, JcaDigest> map = new EnumMap<>(CryptoKeyVersionAlgorithm.class);
+        for (CryptoKeyVersionAlgorithm algorithm : CryptoKeyVersionAlgorithm.values()) {
+            String name = algorithm.name();
+            if (name.endsWith("256") || name.endsWith("256K")) {
+                map.put(algorithm, SHA256);
+            } else if (name.endsWith("384")) {
+                map.put(algorithm, SHA384);
+            } else {
+                map.put(algorithm, SHA512);
+            }
         }
+        return map;
     }
 
     private static MessageDigest safeGetDigest(String alg) {
@@ -51,16 +65,31 @@ public enum JcaDigest {
         }
     }
 
-    private final Provider<MessageDigest> digestProvider;
+    private final String jcaName;
+    private final MessageDigest prototype;
+    private final ThreadLocal<MessageDigest> threadDigest;
     private final KmsDigestBuilder kmsDigestBuilder;
 
-    private JcaDigest(Provider<MessageDigest> digestProvider, KmsDigestBuilder kmsDigestBuilder) {
-        this.digestProvider = digestProvider;
+    private JcaDigest(String jcaName, KmsDigestBuilder kmsDigestBuilder) {
+        this.jcaName = jcaName;
+        this.prototype = safeGetDigest(jcaName);
+        this.threadDigest = ThreadLocal.withInitial(this::newDigest);
         this.kmsDigestBuilder = kmsDigestBuilder;
     }
 
+    /**
+     * @return A new message digest for this algorithm, never null
+     */
+    public MessageDigest newDigest() {
+        try {
+            return (MessageDigest) prototype.clone();
+        } catch (CloneNotSupportedException e) {
+            return safeGetDigest(jcaName);
+        }
+    }
+
     public byte[] digest(byte[] bytes) {
-        return digestProvider.get().digest(bytes);
+        return threadDigest.get().digest(bytes);
     }
 
     public Digest wrap(byte[] digestBytes) {
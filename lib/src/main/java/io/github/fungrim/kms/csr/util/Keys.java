@@ -17,38 +17,85 @@ package io.github.fungrim.kms.csr.util;
 
 
 import com.google.cloud.kms.v1.CryptoKeyVersion.CryptoKeyVersionAlgorithm;
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
-import org.bouncycastle.util.io.pem.PemObject;
-import org.bouncycastle.util.io.pem.PemReader;
+import java.util.Base64;
 
 public class Keys {
 
+    private static final byte[] PEM_BOUNDARY = "-----".getBytes(StandardCharsets.US_ASCII);
+
+    private static final ThreadLocal<KeyFactory> EC_FACTORY = ThreadLocal.withInitial(() -> safeGetKeyFactory("EC"));
+    private static final ThreadLocal<KeyFactory> RSA_FACTORY = ThreadLocal.withInitial(() -> safeGetKeyFactory("RSA"));
+
     private Keys() {
     }
 
     public static PublicKey toPublicKey(CryptoKeyVersionAlgorithm algorithm, byte[] pemBytes) {
-        PemReader reader = new PemReader(new InputStreamReader(new ByteArrayInputStream(pemBytes)));
+        return toPublicKeyFromSpki(algorithm, decodePem(pemBytes));
+    }
+
+    public static PublicKey toPublicKeyFromSpki(CryptoKeyVersionAlgorithm algorithm, byte[] spkiBytes) {
         try {
-            PemObject spki = reader.readPemObject();
             if (isEc(algorithm)) {
-                return KeyFactory.getInstance("EC").generatePublic(new X509EncodedKeySpec(spki.getContent()));
+                return EC_FACTORY.get().generatePublic(new X509EncodedKeySpec(spkiBytes));
             } else if (isRsa(algorithm)) {
-                return KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(spki.getContent()));
+                return RSA_FACTORY.get().generatePublic(new X509EncodedKeySpec(spkiBytes));
             } else {
                 throw new IllegalArgumentException("Cannot create public key for algorithm: " + algorithm);
             }
-        } catch (IOException | NoSuchAlgorithmException | InvalidKeySpecException e) {
+        } catch (InvalidKeySpecException e) {
             throw new IllegalStateException("Failed to create public key", e);
         }
     }
 
+    /*
+     * Decode the content of the first PEM object, the base64 between the end of
+     * the BEGIN line and the start of the END line.
+     */
+    private static byte[] decodePem(byte[] pemBytes) {
+        int begin = indexOf(pemBytes, PEM_BOUNDARY, 0);
+        int headerEnd = begin < 0 ? -1 : indexOf(pemBytes, PEM_BOUNDARY, begin + PEM_BOUNDARY.length);
+        int end = headerEnd < 0 ? -1 : indexOf(pemBytes, PEM_BOUNDARY, headerEnd + PEM_BOUNDARY.length);
+        if (end < 0) {
+            throw new IllegalStateException("Failed to create public key, malformed PEM");
+        }
+        int start = headerEnd + PEM_BOUNDARY.length;
+        try {
+            ByteBuffer content = Base64.getMimeDecoder().decode(ByteBuffer.wrap(pemBytes, start, end - start));
+            byte[] result = new byte[content.remaining()];
+            content.get(result);
+            return result;
+        } catch (IllegalArgumentException e) {
+            throw new IllegalStateException("Failed to create public key, malformed PEM", e);
+        }
+    }
+
+    private static int indexOf(byte[] bytes, byte[] pattern, int from) {
+        outer : for (int i = from; i <= bytes.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (bytes[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static KeyFactory safeGetKeyFactory(String alg) {
+        try {
+            return KeyFactory.getInstance(alg);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Missing algorithm: " + alg, e);
+        }
+    }
+
     private static boolean isEc(CryptoKeyVersionAlgorithm algorithm) {
         return algorithm.name().startsWith("EC");
     }
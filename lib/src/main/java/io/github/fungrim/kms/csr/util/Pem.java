@@ -0,0 +1,82 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.util;
+
+
+import com.google.common.base.Preconditions;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A PEM encoder that writes straight to a byte array of the exact size, with
+ * no intermediate strings or writers. The output is the same as from the
+ * Bouncy Castle PEM writer: 64 column base 64 lines and the platform line
+ * separator.
+ */
+public class Pem {
+
+    private static final byte[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+            .getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+    private static final int GROUPS_PER_LINE = 16;
+
+    private Pem() {
+    }
+
+    /**
+     * @param type
+     *            PEM type, e.g. "CERTIFICATE REQUEST", must not be null
+     * @param der
+     *            DER encoding to wrap, must not be null
+     * @return The PEM bytes in US ASCII, never null
+     */
+    public static byte[] encode(String type, byte[] der) {
+        Preconditions.checkNotNull(type);
+        Preconditions.checkNotNull(der);
+        byte[] header = ("-----BEGIN " + type + "-----").getBytes(StandardCharsets.US_ASCII);
+        byte[] footer = ("-----END " + type + "-----").getBytes(StandardCharsets.US_ASCII);
+        int groups = (der.length + 2) / 3;
+        int lines = (groups + GROUPS_PER_LINE - 1) / GROUPS_PER_LINE;
+        int length = header.length + footer.length + groups * 4 + (lines + 2) * LINE_SEPARATOR.length;
+        byte[] pem = new byte[length];
+        int pos = put(pem, 0, header);
+        pos = put(pem, pos, LINE_SEPARATOR);
+        for (int group = 0, in = 0; group < groups; group++, in += 3) {
+            int remaining = der.length - in;
+            int bits = (der[in] & 0xff) << 16;
+            if (remaining > 1) {
+                bits |= (der[in + 1] & 0xff) << 8;
+            }
+            if (remaining > 2) {
+                bits |= der[in + 2] & 0xff;
+            }
+            pem[pos++] = ALPHABET[(bits >>> 18) & 0x3f];
+            pem[pos++] = ALPHABET[(bits >>> 12) & 0x3f];
+            pem[pos++] = remaining > 1 ? ALPHABET[(bits >>> 6) & 0x3f] : (byte) '=';
+            pem[pos++] = remaining > 2 ? ALPHABET[bits & 0x3f] : (byte) '=';
+            if ((group + 1) % GROUPS_PER_LINE == 0 || group + 1 == groups) {
+                pos = put(pem, pos, LINE_SEPARATOR);
+            }
+        }
+        pos = put(pem, pos, footer);
+        put(pem, pos, LINE_SEPARATOR);
+        return pem;
+    }
+
+    private static int put(byte[] target, int pos, byte[] source) {
+        System.arraycopy(source, 0, target, pos, source.length);
+        return pos + source.length;
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.util;
+
+
+import com.google.api.gax.grpc.GrpcStatusCode;
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.ApiExceptionFactory;
+import com.google.api.gax.rpc.StatusCode.Code;
+import io.grpc.Status;
+
+public class StatusCodes {
+
+    private StatusCodes() {
+    }
+
+    /**
+     * @param error
+     *            Error to classify, may be null
+     * @return The gRPC status code of the error, OK if null or UNKNOWN if the
+     *         error is not an API exception, never null
+     */
+    public static Code of(Throwable error) {
+        if (error == null) {
+            return Code.OK;
+        }
+        Throwable cause = CompletableFutures.unwrap(error);
+        if (cause instanceof ApiException) {
+            return ((ApiException) cause).getStatusCode().getCode();
+        }
+        return Code.UNKNOWN;
+    }
+
+    /**
+     * @param error
+     *            Error to check, may be null
+     * @return True if the error is an API exception with a status that is worth
+     *         retrying, i.e. UNAVAILABLE, DEADLINE_EXCEEDED or RESOURCE_EXHAUSTED
+     */
+    public static boolean isRetryable(Throwable error) {
+        return isRetryable(of(error));
+    }
+
+    /**
+     * @param code
+     *            Status code to check, must not be null
+     * @return True if the code is worth retrying
+     */
+    public static boolean isRetryable(Code code) {
+        return code == Code.UNAVAILABLE || code == Code.DEADLINE_EXCEEDED || code == Code.RESOURCE_EXHAUSTED;
+    }
+
+    /**
+     * Create an API exception, as thrown by the GCP clients, for a status code.
+     * 
+     * @param code
+     *            Status code, must not be null
+     * @param message
+     *            Error message, must not be null
+     * @return A new exception, never null
+     */
+    public static ApiException toException(Code code, String message) {
+        return ApiExceptionFactory.createException(message, null,
+                GrpcStatusCode.of(Status.Code.valueOf(code.name())), isRetryable(code));
+    }
+}
@@ -0,0 +1,38 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.util;
+
+
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Thread utilities that depend on the Java version. This is the Java 21
+ * version, used from the multi release jar.
+ */
+public class Threads {
+
+    private Threads() {
+    }
+
+    /**
+     * @return An executor that runs each task on a new virtual thread, never null
+     */
+    public static Optional<Executor> newVirtualThreadExecutor() {
+        return Optional.of(Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("kms-csr-", 0).factory()));
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr;
+
+
+import com.google.cloud.kms.v1.CryptoKeyVersion.CryptoKeyVersionAlgorithm;
+import com.google.cloud.kms.v1.CryptoKeyVersionName;
+import io.github.fungrim.kms.csr.emulator.KmsEmulator;
+import io.github.fungrim.kms.csr.metrics.KmsCall;
+import javax.security.auth.x500.X500Principal;
+import org.bouncycastle.operator.jcajce.JcaContentVerifierProviderBuilder;
+import org.bouncycastle.pkcs.PKCS10CertificationRequest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class CsrBatchTest {
+
+    private final CryptoKeyVersionName ecKey = CryptoKeyVersionName.of("project", "location", "ring", "ec", "1");
+    private final CryptoKeyVersionName rsaKey = CryptoKeyVersionName.of("project", "location", "ring", "rsa", "1");
+    private final CryptoKeyVersionName missingKey = CryptoKeyVersionName.of("project", "location", "ring", "none",
+            "1");
+
+    private KmsEmulator kms;
+    private CsrBuilderFactory factory;
+
+    @BeforeEach
+    void setup() {
+        kms = KmsEmulator.builder().build();
+        kms.createKey(ecKey, CryptoKeyVersionAlgorithm.EC_SIGN_P256_SHA256);
+        kms.createKey(rsaKey, CryptoKeyVersionAlgorithm.RSA_SIGN_PKCS1_2048_SHA256);
+        factory = CsrBuilderFactory.builder(kms).build();
+    }
+
+    @AfterEach
+    void teardown() {
+        factory.close();
+        kms.close();
+    }
+
+    @Test
+    void buildsEachItemWithOneLookupPerKey() throws Exception {
+        CsrBatch batch = factory.batch().withConcurrency(4);
+        for (int i = 0; i < 20; i++) {
+            batch.add(principal(i), i % 4 == 3 ? missingKey : i % 2 == 0 ? ecKey : rsaKey);
+        }
+        CsrBatch.Outcome outcome = batch.execute();
+        Assertions.assertEquals(20, outcome.getItems().size());
+        Assertions.assertEquals(15, outcome.getSucceeded());
+        Assertions.assertEquals(5, outcome.getFailed());
+        Assertions.assertEquals(3, outcome.getDistinctKeys());
+        Assertions.assertEquals(3, kms.getCallCount(KmsCall.GET_KEY));
+        Assertions.assertEquals(15, kms.getCallCount(KmsCall.ASYMMETRIC_SIGN));
+        for (int i = 0; i < 20; i++) {
+            CsrBatch.Item item = outcome.getItems().get(i);
+            Assertions.assertEquals(principal(i), item.getSpec().getPrincipal());
+            if (item.getSpec().getKeyName().equals(missingKey)) {
+                Assertions.assertFalse(item.isSuccess());
+                Assertions.assertTrue(item.getError() instanceof KmsKeyException);
+            } else {
+                Assertions.assertTrue(item.isSuccess());
+                PKCS10CertificationRequest csr = new PKCS10CertificationRequest(item.getResult().asDer());
+                Assertions.assertTrue(csr.isSignatureValid(new JcaContentVerifierProviderBuilder()
+                        .setProvider(TestSupport.provider()).build(csr.getSubjectPublicKeyInfo())));
+            }
+        }
+    }
+
+    @Test
+    void completesEmptyBatch() {
+        CsrBatch.Outcome outcome = factory.batch().executeAsync().join();
+        Assertions.assertTrue(outcome.getItems().isEmpty());
+        Assertions.assertEquals(0, outcome.getDistinctKeys());
+    }
+
+    private static X500Principal principal(int index) {
+        return new X500Principal("CN=item" + index + ", O=Fungrim Consulting AB, C=SE");
+    }
+}
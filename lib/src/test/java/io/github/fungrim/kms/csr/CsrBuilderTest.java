@@ -0,0 +1,111 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr;
+
+
+import com.google.cloud.kms.v1.CryptoKeyVersion.CryptoKeyVersionAlgorithm;
+import com.google.cloud.kms.v1.CryptoKeyVersionName;
+import io.github.fungrim.kms.csr.emulator.KmsEmulator;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import javax.security.auth.x500.X500Principal;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.operator.jcajce.JcaContentVerifierProviderBuilder;
+import org.bouncycastle.pkcs.PKCS10CertificationRequest;
+import org.bouncycastle.util.io.pem.PemReader;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+class CsrBuilderTest {
+
+    private final CryptoKeyVersionName keyName = CryptoKeyVersionName.of("project", "location", "ring", "key", "1");
+    private final X500Principal principal = new X500Principal("CN=io.github.fungrim, O=Fungrim Consulting AB, C=SE");
+
+    private KmsEmulator kms;
+    private CsrBuilderFactory factory;
+
+    @BeforeEach
+    void setup() {
+        kms = KmsEmulator.builder().build();
+        factory = CsrBuilderFactory.builder(kms).build();
+    }
+
+    @AfterEach
+    void teardown() {
+        factory.close();
+        kms.close();
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = CryptoKeyVersionAlgorithm.class, names = {"EC_SIGN_P256_SHA256", "EC_SIGN_P384_SHA384",
+            "RSA_SIGN_PKCS1_2048_SHA256", "RSA_SIGN_PSS_2048_SHA256"})
+    void buildsVerifiableCsr(CryptoKeyVersionAlgorithm algorithm) throws Exception {
+        kms.createKey(keyName, algorithm);
+        CsrBuilder.Result result = factory.builder().forPrincipal(principal).withKey(keyName).build();
+        assertValid(new PKCS10CertificationRequest(result.asDer()));
+        assertValid(new PKCS10CertificationRequest(
+                factory.builder().forPrincipal(principal).withKey(keyName).buildAsync().join().asDer()));
+    }
+
+    @Test
+    void asyncBuildKeepsPrincipal() throws Exception {
+        kms.createKey(keyName, CryptoKeyVersionAlgorithm.EC_SIGN_P256_SHA256);
+        CsrBuilder builder = factory.builder().forPrincipal(principal).withKey(keyName);
+        CompletableFuture<CsrBuilder.Result> result = builder.buildAsync();
+        builder.forPrincipal(new X500Principal("CN=other"));
+        assertValid(new PKCS10CertificationRequest(result.join().asDer()));
+    }
+
+    @Test
+    void writesResultEncodings() throws Exception {
+        kms.createKey(keyName, CryptoKeyVersionAlgorithm.EC_SIGN_P256_SHA256);
+        CsrBuilder.Result result = factory.builder().forPrincipal(principal).withKey(keyName).build();
+        byte[] der = result.asDer();
+        assertValid(new PKCS10CertificationRequest(der));
+        der[0] = 0;
+        Assertions.assertEquals(0x30, result.asDer()[0]);
+        der = result.asDer();
+        try (PemReader reader = new PemReader(new StringReader(result.asPem()))) {
+            Assertions.assertArrayEquals(der, reader.readPemObject().getContent());
+        }
+        Assertions.assertArrayEquals(result.asPem().getBytes(StandardCharsets.US_ASCII), result.asPemBytes());
+        ByteBuffer buffer = result.asByteBuffer();
+        Assertions.assertTrue(buffer.isReadOnly());
+        byte[] buffered = new byte[buffer.remaining()];
+        buffer.get(buffered);
+        Assertions.assertArrayEquals(der, buffered);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        result.writeTo(out);
+        Assertions.assertArrayEquals(der, out.toByteArray());
+        out.reset();
+        result.writeTo(Channels.newChannel(out));
+        Assertions.assertArrayEquals(der, out.toByteArray());
+    }
+
+    private void assertValid(PKCS10CertificationRequest csr) throws Exception {
+        Assertions.assertEquals(X500Name.getInstance(principal.getEncoded()), csr.getSubject());
+        Assertions.assertTrue(csr.isSignatureValid(new JcaContentVerifierProviderBuilder()
+                .setProvider(TestSupport.provider()).build(csr.getSubjectPublicKeyInfo())));
+    }
+}
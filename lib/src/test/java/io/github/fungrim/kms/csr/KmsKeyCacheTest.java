@@ -0,0 +1,359 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr;
+
+
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.StatusCode.Code;
+import com.google.cloud.kms.v1.CryptoKeyName;
+import com.google.cloud.kms.v1.CryptoKeyVersion.CryptoKeyVersionAlgorithm;
+import com.google.cloud.kms.v1.CryptoKeyVersion.CryptoKeyVersionState;
+import com.google.cloud.kms.v1.CryptoKeyVersion;
+import com.google.cloud.kms.v1.CryptoKeyVersionName;
+import com.google.cloud.kms.v1.Digest;
+import com.google.cloud.kms.v1.KeyRingName;
+import io.github.fungrim.kms.csr.client.ConcurrencyLimitingKmsServiceClient;
+import io.github.fungrim.kms.csr.client.HedgingKmsServiceClient;
+import io.github.fungrim.kms.csr.client.InstrumentedKmsServiceClient;
+import io.github.fungrim.kms.csr.client.KmsServiceClient;
+import io.github.fungrim.kms.csr.client.RoutingKmsServiceClient;
+import io.github.fungrim.kms.csr.emulator.KmsEmulator;
+import io.github.fungrim.kms.csr.emulator.LatencyModel;
+import io.github.fungrim.kms.csr.metrics.KmsCall;
+import io.github.fungrim.kms.csr.metrics.KmsMetrics;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class KmsKeyCacheTest {
+
+    private final CryptoKeyVersionName keyName = CryptoKeyVersionName.of("project", "location", "ring", "key", "1");
+
+    private final TestSupport.ManualClock clock = new TestSupport.ManualClock();
+
+    private KmsEmulator kms;
+
+    @BeforeEach
+    void setup() {
+        kms = KmsEmulator.builder().withClock(clock).build();
+        kms.createKey(keyName, CryptoKeyVersionAlgorithm.EC_SIGN_P256_SHA256);
+    }
+
+    @AfterEach
+    void teardown() {
+        kms.close();
+    }
+
+    @Test
+    void getLoadsOnce() {
+        KmsKeyCache cache = KmsKeyCache.builder(kms).build();
+        KmsKeyCache.Entry entry = cache.get(keyName);
+        Assertions.assertSame(entry, cache.get(keyName));
+        Assertions.assertSame(entry, cache.getAsync(keyName).join());
+        Assertions.assertEquals(keyName, entry.getKeyName());
+        Assertions.assertEquals(1, kms.getCallCount(KmsCall.GET_KEY));
+        Assertions.assertEquals(1, kms.getCallCount(KmsCall.GET_PUBLIC_KEY));
+    }
+
+    @Test
+    void sharesLoadsBetweenBlockingAndAsyncCalls() {
+        try (KmsEmulator slow = KmsEmulator.builder().withLatency(LatencyModel.fixed(Duration.ofMillis(50))).build()) {
+            slow.createKey(keyName, CryptoKeyVersionAlgorithm.EC_SIGN_P256_SHA256);
+            KmsKeyCache cache = KmsKeyCache.builder(slow).build();
+            CompletableFuture<KmsKeyCache.Entry> async = cache.getAsync(keyName);
+            Assertions.assertSame(cache.get(keyName), async.join());
+            Assertions.assertEquals(1, slow.getCallCount(KmsCall.GET_KEY));
+            Assertions.assertEquals(1, slow.getCallCount(KmsCall.GET_PUBLIC_KEY));
+        }
+    }
+
+    @Test
+    void refreshPicksUpStateChanges() throws InterruptedException {
+        KmsKeyCache cache = KmsKeyCache.builder(kms).withRefreshInterval(Duration.ofMillis(50)).build();
+        Assertions.assertTrue(cache.get(keyName).isEnabled());
+        kms.setState(keyName, CryptoKeyVersionState.DISABLED);
+        Assertions.assertTrue(TestSupport.await(() -> isRejected(cache, KeyFailure.NOT_ENABLED),
+                Duration.ofSeconds(5)));
+        kms.setState(keyName, CryptoKeyVersionState.ENABLED);
+        Assertions.assertTrue(TestSupport.await(() -> !isRejected(cache, KeyFailure.NOT_ENABLED),
+                Duration.ofSeconds(5)));
+        // a refresh only fetches the key version, the public key never changes
+        Assertions.assertEquals(1, kms.getCallCount(KmsCall.GET_PUBLIC_KEY));
+    }
+
+    @Test
+    void servesOldEntryWhileRefreshing() throws InterruptedException {
+        List<Runnable> refreshes = new ArrayList<>();
+        KmsKeyCache cache = KmsKeyCache.builder(kms).withRefreshInterval(Duration.ofMillis(1))
+                .withRefreshExecutor(refreshes::add).build();
+        KmsKeyCache.Entry entry = cache.get(keyName);
+        Thread.sleep(5);
+        Assertions.assertSame(entry, cache.get(keyName));
+        Assertions.assertEquals(1, refreshes.size());
+        Assertions.assertEquals(1, kms.getCallCount(KmsCall.GET_KEY));
+    }
+
+    @Test
+    void preloadsKeyList() {
+        List<CryptoKeyVersionName> names = createKeys("project", 10);
+        KmsKeyCache cache = KmsKeyCache.builder(kms).build();
+        cache.preload(names).join();
+        Assertions.assertEquals(10, cache.size());
+        names.forEach(cache::get);
+        Assertions.assertEquals(10, kms.getCallCount(KmsCall.GET_KEY));
+    }
+
+    @Test
+    void preloadsKeyRingThroughDecorators() {
+        List<CryptoKeyVersionName> names = createKeys("project", 10);
+        kms.setState(names.get(0), CryptoKeyVersionState.DISABLED);
+        try (ConcurrencyLimitingKmsServiceClient limiter = ConcurrencyLimitingKmsServiceClient.builder(kms).build();
+                HedgingKmsServiceClient hedging = HedgingKmsServiceClient.builder(limiter).build()) {
+            KmsServiceClient client = RoutingKmsServiceClient.builder()
+                    .withRegion("location", new InstrumentedKmsServiceClient(hedging, KmsMetrics.NOOP)).build();
+            KmsKeyCache cache = KmsKeyCache.builder(client).build();
+            cache.preload(KeyRingName.of("project", "location", "ring")).join();
+            // the setup key and nine of the created keys, the disabled key is not listed
+            Assertions.assertEquals(10, cache.size());
+            Assertions.assertEquals(0, kms.getCallCount(KmsCall.GET_KEY));
+            Assertions.assertEquals(10, kms.getCallCount(KmsCall.GET_PUBLIC_KEY));
+        }
+    }
+
+    @Test
+    void preloadSkipsUnsupportedAlgorithms() {
+        List<CryptoKeyVersionName> names = createKeys("project", 2);
+        CryptoKeyVersion unsupported = CryptoKeyVersion.newBuilder()
+                .setName(CryptoKeyVersionName.of("project", "location", "ring", "secp256k1", "1").toString())
+                .setAlgorithm(CryptoKeyVersionAlgorithm.EC_SIGN_SECP256K1_SHA256)
+                .setState(CryptoKeyVersionState.ENABLED).build();
+        KmsServiceClient client = new ForwardingClient(kms) {
+
+            @Override
+            public List<CryptoKeyVersion> listSigningKeys(KeyRingName keyRing) {
+                List<CryptoKeyVersion> keys = new ArrayList<>(kms.listSigningKeys(keyRing));
+                keys.add(unsupported);
+                return keys;
+            }
+        };
+        KmsKeyCache cache = KmsKeyCache.builder(client).build();
+        cache.preload(KeyRingName.of("project", "location", "ring")).join();
+        // the setup key and the created keys
+        Assertions.assertEquals(names.size() + 1, cache.size());
+    }
+
+    @Test
+    void preloadNeedsListingClient() {
+        KmsKeyCache cache = KmsKeyCache.builder(new ForwardingClient(kms)).build();
+        CompletionException e = Assertions.assertThrows(CompletionException.class,
+                () -> cache.preload(KeyRingName.of("project", "location", "ring")).join());
+        Assertions.assertTrue(e.getCause() instanceof UnsupportedOperationException);
+        Assertions.assertEquals(keyName, cache.get(keyName).getKeyName());
+    }
+
+    @Test
+    void resolvesLatestVersion() {
+        clock.advance(Duration.ofMillis(1));
+        CryptoKeyVersionName latest = CryptoKeyVersionName.of("project", "location", "ring", "key", "3");
+        kms.createKey(latest, CryptoKeyVersionAlgorithm.EC_SIGN_P256_SHA256);
+        KmsKeyCache cache = KmsKeyCache.builder(kms).build();
+        CryptoKeyName cryptoKey = CryptoKeyName.of("project", "location", "ring", "key");
+        Assertions.assertEquals(latest, cache.resolve(cryptoKey));
+        Assertions.assertEquals(latest, cache.getAsync(cryptoKey).join().getKeyName());
+        Assertions.assertEquals(1, kms.getCallCount(KmsCall.LIST_KEY_VERSIONS));
+    }
+
+    @Test
+    void remembersResolveFailures() {
+        KmsKeyCache cache = KmsKeyCache.builder(kms).build();
+        CryptoKeyName missing = CryptoKeyName.of("project", "location", "ring", "missing");
+        for (int i = 0; i < 10; i++) {
+            Assertions.assertThrows(IllegalStateException.class, () -> cache.resolve(missing));
+            CompletionException e = Assertions.assertThrows(CompletionException.class,
+                    () -> cache.getAsync(missing).join());
+            Assertions.assertTrue(e.getCause() instanceof IllegalStateException, "Cause " + e.getCause());
+        }
+        Assertions.assertEquals(1, kms.getCallCount(KmsCall.LIST_KEY_VERSIONS));
+        CryptoKeyVersionName created = CryptoKeyVersionName.of("project", "location", "ring", "missing", "1");
+        kms.createKey(created, CryptoKeyVersionAlgorithm.EC_SIGN_P256_SHA256);
+        Assertions.assertThrows(IllegalStateException.class, () -> cache.resolve(missing));
+        cache.invalidateFailure(missing);
+        Assertions.assertEquals(created, cache.resolve(missing));
+        Assertions.assertEquals(2, kms.getCallCount(KmsCall.LIST_KEY_VERSIONS));
+    }
+
+    @Test
+    void remembersMissingKeys() {
+        CryptoKeyVersionName missingKeyName = CryptoKeyVersionName.of("project", "location", "ring", "key", "2");
+        KmsKeyCache cache = KmsKeyCache.builder(kms).withNegativeCacheDuration(KeyFailure.NOT_FOUND,
+                Duration.ofMinutes(1)).build();
+        for (int i = 0; i < 100; i++) {
+            KmsKeyException e = Assertions.assertThrows(KmsKeyException.class, () -> cache.get(missingKeyName));
+            Assertions.assertEquals(KeyFailure.NOT_FOUND, e.getFailure());
+            Assertions.assertEquals(missingKeyName, e.getKeyName());
+        }
+        Assertions.assertEquals(1, kms.getCallCount(KmsCall.GET_KEY));
+        kms.createKey(missingKeyName, CryptoKeyVersionAlgorithm.EC_SIGN_P256_SHA256);
+        Assertions.assertThrows(KmsKeyException.class, () -> cache.get(missingKeyName));
+        cache.invalidateFailure(missingKeyName);
+        Assertions.assertEquals(missingKeyName, cache.get(missingKeyName).getKeyName());
+        Assertions.assertEquals(2, kms.getCallCount(KmsCall.GET_KEY));
+    }
+
+    @Test
+    void expiresRememberedFailures() {
+        CryptoKeyVersionName missingKeyName = CryptoKeyVersionName.of("project", "location", "ring", "key", "2");
+        KmsKeyCache cache = KmsKeyCache.builder(kms).withNegativeCacheDuration(KeyFailure.NOT_FOUND,
+                Duration.ofSeconds(10)).withClock(clock).build();
+        Assertions.assertThrows(KmsKeyException.class, () -> cache.get(missingKeyName));
+        clock.advance(Duration.ofSeconds(9));
+        Assertions.assertThrows(KmsKeyException.class, () -> cache.get(missingKeyName));
+        Assertions.assertEquals(1, kms.getCallCount(KmsCall.GET_KEY));
+        clock.advance(Duration.ofSeconds(1));
+        Assertions.assertThrows(KmsKeyException.class, () -> cache.get(missingKeyName));
+        Assertions.assertEquals(2, kms.getCallCount(KmsCall.GET_KEY));
+    }
+
+    @Test
+    void doesNotRememberUnauthenticated() {
+        try (KmsEmulator failing = KmsEmulator.builder().withErrorRate(1.0, Code.UNAUTHENTICATED).build()) {
+            failing.createKey(keyName, CryptoKeyVersionAlgorithm.EC_SIGN_P256_SHA256);
+            KmsKeyCache cache = KmsKeyCache.builder(failing).build();
+            for (int i = 0; i < 3; i++) {
+                ApiException e = Assertions.assertThrows(ApiException.class, () -> cache.get(keyName));
+                Assertions.assertEquals(Code.UNAUTHENTICATED, e.getStatusCode().getCode());
+            }
+            Assertions.assertEquals(3, failing.getCallCount(KmsCall.GET_KEY));
+        }
+    }
+
+    @Test
+    void rejectsDisabledKeys() {
+        kms.setState(keyName, CryptoKeyVersionState.DISABLED);
+        KmsKeyCache cache = KmsKeyCache.builder(kms).build();
+        KmsKeyException e = Assertions.assertThrows(KmsKeyException.class, () -> cache.get(keyName));
+        Assertions.assertEquals(KeyFailure.NOT_ENABLED, e.getFailure());
+    }
+
+    @Test
+    void serializesKeyExceptions() throws Exception {
+        KmsKeyException e = new KmsKeyException(keyName, KeyFailure.NOT_ENABLED, "Not enabled", null);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(e);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            KmsKeyException copy = (KmsKeyException) in.readObject();
+            Assertions.assertEquals(keyName, copy.getKeyName());
+            Assertions.assertEquals(KeyFailure.NOT_ENABLED, copy.getFailure());
+        }
+    }
+
+    @Test
+    void keepsDisabledKeysIfNotRejected() throws InterruptedException {
+        KmsKeyCache cache = KmsKeyCache.builder(kms).withRefreshInterval(Duration.ofMillis(50))
+                .withRejectDisabledKeys(false).build();
+        Assertions.assertTrue(cache.get(keyName).isEnabled());
+        kms.setState(keyName, CryptoKeyVersionState.DISABLED);
+        Assertions.assertTrue(TestSupport.await(() -> !cache.get(keyName).isEnabled(), Duration.ofSeconds(5)));
+    }
+
+    @Test
+    void boundsSize() {
+        KmsKeyCache cache = KmsKeyCache.builder(kms).withMaximumSize(10).build();
+        for (CryptoKeyVersionName name : createKeys("project", 50)) {
+            cache.get(name);
+        }
+        Assertions.assertTrue(cache.size() <= 10, "Size " + cache.size());
+    }
+
+    @Test
+    void boundsWeight() {
+        KmsKeyCache cache = KmsKeyCache.builder(kms).withMaximumWeight(30, entry -> 3).build();
+        for (CryptoKeyVersionName name : createKeys("project", 50)) {
+            cache.get(name);
+        }
+        Assertions.assertTrue(cache.size() <= 10, "Size " + cache.size());
+    }
+
+    @Test
+    void limitsTenants() {
+        KmsKeyCache cache = KmsKeyCache.builder(kms).withTenantLimit(null, 5).build();
+        List<CryptoKeyVersionName> small = createKeys("small", 5);
+        small.forEach(cache::get);
+        createKeys("large", 50).forEach(cache::get);
+        Assertions.assertEquals(10, cache.size());
+        long loads = kms.getCallCount(KmsCall.GET_KEY);
+        small.forEach(cache::get);
+        Assertions.assertEquals(loads, kms.getCallCount(KmsCall.GET_KEY));
+    }
+
+    private boolean isRejected(KmsKeyCache cache, KeyFailure failure) {
+        try {
+            cache.get(keyName);
+            return false;
+        } catch (KmsKeyException e) {
+            return e.getFailure() == failure;
+        }
+    }
+
+    private List<CryptoKeyVersionName> createKeys(String project, int count) {
+        List<CryptoKeyVersionName> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            CryptoKeyVersionName name = CryptoKeyVersionName.of(project, "location", "ring", "key" + i, "1");
+            kms.createKey(name, CryptoKeyVersionAlgorithm.EC_SIGN_P256_SHA256);
+            result.add(name);
+        }
+        return result;
+    }
+
+    /*
+     * A client that only forwards the required calls, as a custom client would.
+     */
+    private static class ForwardingClient implements KmsServiceClient {
+
+        private final KmsServiceClient delegate;
+
+        private ForwardingClient(KmsServiceClient delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public CryptoKeyVersion getKey(CryptoKeyVersionName keyName) {
+            return delegate.getKey(keyName);
+        }
+
+        @Override
+        public byte[] getPublicKeyPem(CryptoKeyVersionName keyName) {
+            return delegate.getPublicKeyPem(keyName);
+        }
+
+        @Override
+        public byte[] asymmetricSign(CryptoKeyVersionName keyName, Digest digest) {
+            return delegate.asymmetricSign(keyName, digest);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr;
+
+
+import com.google.cloud.kms.v1.CryptoKeyVersion.CryptoKeyVersionAlgorithm;
+import com.google.cloud.kms.v1.CryptoKeyVersionName;
+import io.github.fungrim.kms.csr.emulator.KmsEmulator;
+import io.github.fungrim.kms.csr.metrics.KmsCall;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class KmsKeyFileTest {
+
+    private final CryptoKeyVersionName keyName = CryptoKeyVersionName.of("project", "location", "ring", "key", "1");
+
+    private final List<Runnable> writes = new ArrayList<>();
+
+    private KmsEmulator kms;
+    private Path dir;
+    private Path file;
+
+    @BeforeEach
+    void setup() throws IOException {
+        kms = KmsEmulator.builder().build();
+        kms.createKey(keyName, CryptoKeyVersionAlgorithm.EC_SIGN_P384_SHA384);
+        dir = Files.createTempDirectory("keys");
+        file = dir.resolve("keys.bin");
+    }
+
+    @AfterEach
+    void teardown() throws IOException {
+        kms.close();
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path path : (Iterable<Path>) files::iterator) {
+                Files.delete(path);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    @Test
+    void writesRecordsOnClose() {
+        KmsKeyCache.Entry entry = KmsKeyCache.builder(kms).build().get(keyName);
+        KmsKeyFile keyFile = new KmsKeyFile(file, Duration.ofHours(1), writes::add);
+        keyFile.put(entry);
+        Assertions.assertFalse(Files.exists(file));
+        Assertions.assertEquals(1, writes.size());
+        keyFile.close();
+        Optional<KmsKeyFile.Record> record = new KmsKeyFile(file, Duration.ofHours(1), writes::add).get(keyName);
+        Assertions.assertTrue(record.isPresent());
+        Assertions.assertEquals(keyName, record.get().getKeyName());
+        Assertions.assertEquals(entry.getAlgorithm(), record.get().getAlgorithm());
+        Assertions.assertEquals(entry.getState(), record.get().getState());
+        Assertions.assertArrayEquals(entry.getPublicKey().getEncoded(), record.get().getSpki());
+    }
+
+    @Test
+    void ignoresCorruptFile() throws IOException {
+        KmsKeyFile keyFile = new KmsKeyFile(file, Duration.ofHours(1), writes::add);
+        keyFile.put(KmsKeyCache.builder(kms).build().get(keyName));
+        keyFile.close();
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length / 2] ^= 1;
+        Files.write(file, bytes);
+        Assertions.assertFalse(new KmsKeyFile(file, Duration.ofHours(1), writes::add).get(keyName).isPresent());
+        Files.write(file, new byte[] { 1, 2, 3 });
+        Assertions.assertFalse(new KmsKeyFile(file, Duration.ofHours(1), writes::add).get(keyName).isPresent());
+    }
+
+    @Test
+    void startsFromFile() throws IOException {
+        KmsKeyCache cache = KmsKeyCache.builder(kms).withPersistentFile(file, Duration.ofHours(1))
+                .withRefreshExecutor(writes::add).build();
+        KmsKeyCache.Entry entry = cache.get(keyName);
+        cache.flush();
+        try (KmsEmulator empty = KmsEmulator.builder().build()) {
+            KmsKeyCache warm = KmsKeyCache.builder(empty).withPersistentFile(file, Duration.ofHours(1)).build();
+            KmsKeyCache.Entry restored = warm.get(keyName);
+            Assertions.assertEquals(entry.getPublicKey(), restored.getPublicKey());
+            Assertions.assertEquals(entry.getAlgorithm(), restored.getAlgorithm());
+            Assertions.assertEquals(0, empty.getCallCount(KmsCall.GET_KEY));
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            Assertions.assertEquals(1, files.count());
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr;
+
+
+import com.google.cloud.kms.v1.CryptoKeyVersionName;
+import io.github.fungrim.kms.csr.client.KmsServiceClient;
+import io.github.fungrim.kms.csr.signer.KmsContentSigner;
+import java.math.BigInteger;
+import java.security.cert.CertificateException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Date;
+import java.util.function.BooleanSupplier;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.cert.CertIOException;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.operator.ContentVerifierProvider;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentVerifierProviderBuilder;
+
+/**
+ * Helpers for tests against the KMS emulator: self signed CA certificates for
+ * emulator keys, verification with plain BouncyCastle and waiting for
+ * background work.
+ */
+public class TestSupport {
+
+    /**
+     * A clock that only moves when told to, for expiry and creation times
+     * without sleeping.
+     */
+    public static class ManualClock extends Clock {
+
+        private volatile Instant now = Instant.parse("2022-01-01T00:00:00Z");
+
+        /**
+         * @param duration
+         *            Time to move the clock forward, must not be null
+         */
+        public void advance(Duration duration) {
+            now = now.plus(duration);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+
+    private static final BouncyCastleProvider PROVIDER = new BouncyCastleProvider();
+
+    private TestSupport() {
+    }
+
+    /**
+     * @param client
+     *            Client holding the key, must not be null
+     * @param entry
+     *            Key to sign with, must not be null
+     * @param subject
+     *            Subject and issuer name, must not be null
+     * @return A self signed CA certificate for the key, valid for a day, never
+     *         null
+     */
+    public static X509CertificateHolder selfSigned(KmsServiceClient client, KmsKeyCache.Entry entry, String subject)
+            throws CertIOException {
+        X500Name name = new X500Name(subject);
+        long now = System.currentTimeMillis();
+        CryptoKeyVersionName keyName = entry.getKeyName();
+        return new JcaX509v3CertificateBuilder(name, BigInteger.ONE, new Date(now - 60_000),
+                new Date(now + Duration.ofDays(1).toMillis()), name, entry.getPublicKey())
+                        .addExtension(Extension.basicConstraints, true, new BasicConstraints(true))
+                        .build(new KmsContentSigner(client, keyName, entry.getAlgorithm()));
+    }
+
+    /**
+     * @param certificate
+     *            Certificate whose public key verifies, must not be null
+     * @return A BouncyCastle verifier provider, never null
+     */
+    public static ContentVerifierProvider verifier(X509CertificateHolder certificate)
+            throws OperatorCreationException, CertificateException {
+        return new JcaContentVerifierProviderBuilder().setProvider(PROVIDER).build(certificate);
+    }
+
+    /**
+     * @return The BouncyCastle provider to verify with, never null
+     */
+    public static BouncyCastleProvider provider() {
+        return PROVIDER;
+    }
+
+    /**
+     * Wait for a condition set by background work.
+     * 
+     * @param condition
+     *            Condition to wait for, must not be null
+     * @param timeout
+     *            Max time to wait, must not be null
+     * @return True if the condition was met in time
+     */
+    public static boolean await(BooleanSupplier condition, Duration timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.client;
+
+
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.StatusCode.Code;
+import com.google.cloud.kms.v1.CryptoKeyVersion.CryptoKeyVersionAlgorithm;
+import com.google.cloud.kms.v1.CryptoKeyVersionName;
+import com.google.cloud.kms.v1.Digest;
+import io.github.fungrim.kms.csr.emulator.KmsEmulator;
+import io.github.fungrim.kms.csr.emulator.LatencyModel;
+import io.github.fungrim.kms.csr.util.JcaDigest;
+import io.github.fungrim.kms.csr.util.StatusCodes;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class ConcurrencyLimitingKmsServiceClientTest {
+
+    private final CryptoKeyVersionName keyName = CryptoKeyVersionName.of("project", "location", "ring", "key", "1");
+    private final Digest digest = JcaDigest.SHA256.digestAndWrap(new byte[] { 1, 2, 3 });
+
+    @Test
+    void backsOffOnOverload() {
+        try (KmsEmulator kms = KmsEmulator.builder().withErrorRate(1.0, Code.RESOURCE_EXHAUSTED).build();
+                ConcurrencyLimitingKmsServiceClient client = ConcurrencyLimitingKmsServiceClient.builder(kms)
+                        .withLimit(20, 1, 500).withBackoffRatio(0.5).build()) {
+            kms.createKey(keyName, CryptoKeyVersionAlgorithm.EC_SIGN_P256_SHA256);
+            for (int i = 0; i < 3; i++) {
+                ApiException e = Assertions.assertThrows(ApiException.class,
+                        () -> client.asymmetricSign(keyName, digest));
+                Assertions.assertEquals(Code.RESOURCE_EXHAUSTED, e.getStatusCode().getCode());
+            }
+            Assertions.assertEquals(2, client.getLimit(keyName));
+            for (int i = 0; i < 10; i++) {
+                Assertions.assertThrows(ApiException.class, () -> client.asymmetricSign(keyName, digest));
+            }
+            Assertions.assertEquals(1, client.getLimit(keyName));
+        }
+    }
+
+    @Test
+    void growsOnSuccess() {
+        try (KmsEmulator kms = KmsEmulator.builder().withLatency(LatencyModel.fixed(Duration.ofMillis(2))).build();
+                ConcurrencyLimitingKmsServiceClient client = ConcurrencyLimitingKmsServiceClient.builder(kms)
+                        .withLimit(2, 1, 500).build()) {
+            kms.createKey(keyName, CryptoKeyVersionAlgorithm.EC_SIGN_P256_SHA256);
+            for (int i = 0; i < 50; i++) {
+                List<CompletableFuture<byte[]>> calls = new ArrayList<>();
+                for (int j = 0; j < 4; j++) {
+                    calls.add(client.asymmetricSignAsync(keyName, digest));
+                }
+                calls.forEach(CompletableFuture::join);
+            }
+            Assertions.assertTrue(client.getLimit(keyName) > 2);
+            Assertions.assertEquals(0, client.getQueueDepth(keyName));
+        }
+    }
+
+    @Test
+    void rejectsCallsOverTheQueueSize() {
+        PendingKmsServiceClient delegate = new PendingKmsServiceClient();
+        try (ConcurrencyLimitingKmsServiceClient client = ConcurrencyLimitingKmsServiceClient.builder(delegate)
+                .withLimit(1, 1, 1).withQueue(1, Duration.ofMinutes(1)).build()) {
+            CompletableFuture<byte[]> first = client.asymmetricSignAsync(keyName, digest);
+            CompletableFuture<byte[]> second = client.asymmetricSignAsync(keyName, digest);
+            CompletableFuture<byte[]> third = client.asymmetricSignAsync(keyName, digest);
+            Assertions.assertEquals(Code.RESOURCE_EXHAUSTED, status(third));
+            Assertions.assertEquals(1, delegate.size());
+            Assertions.assertEquals(1, client.getQueueDepth(keyName));
+            delegate.request(0).complete(new byte[0]);
+            first.join();
+            Assertions.assertEquals(2, delegate.size());
+            delegate.request(1).complete(new byte[0]);
+            second.join();
+            Assertions.assertEquals(0, client.getQueueDepth(keyName));
+        }
+    }
+
+    @Test
+    void timesOutQueuedCalls() {
+        PendingKmsServiceClient delegate = new PendingKmsServiceClient();
+        try (ConcurrencyLimitingKmsServiceClient client = ConcurrencyLimitingKmsServiceClient.builder(delegate)
+                .withLimit(1, 1, 1).withQueue(1, Duration.ofMillis(20)).build()) {
+            client.asymmetricSignAsync(keyName, digest);
+            Assertions.assertEquals(Code.DEADLINE_EXCEEDED, status(client.asymmetricSignAsync(keyName, digest)));
+            Assertions.assertEquals(0, client.getQueueDepth(keyName));
+            Assertions.assertEquals(1, delegate.size());
+        }
+    }
+
+    @Test
+    void cancelReleasesPermit() {
+        PendingKmsServiceClient delegate = new PendingKmsServiceClient();
+        try (ConcurrencyLimitingKmsServiceClient client = ConcurrencyLimitingKmsServiceClient.builder(delegate)
+                .withLimit(1, 1, 1).withQueue(2, Duration.ofMinutes(1)).build()) {
+            CompletableFuture<byte[]> first = client.asymmetricSignAsync(keyName, digest);
+            CompletableFuture<byte[]> second = client.asymmetricSignAsync(keyName, digest);
+            CompletableFuture<byte[]> third = client.asymmetricSignAsync(keyName, digest);
+            second.cancel(false);
+            Assertions.assertEquals(1, client.getQueueDepth(keyName));
+            first.cancel(false);
+            Assertions.assertTrue(delegate.request(0).isCancelled());
+            Assertions.assertEquals(2, delegate.size());
+            Assertions.assertEquals(0, client.getQueueDepth(keyName));
+            delegate.request(1).complete(new byte[] { 1 });
+            Assertions.assertArrayEquals(new byte[] { 1 }, third.join());
+        }
+    }
+
+    private static Code status(CompletableFuture<?> call) {
+        return StatusCodes.of(Assertions.assertThrows(CompletionException.class, call::join));
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.client;
+
+
+import com.google.api.gax.rpc.StatusCode.Code;
+import com.google.cloud.kms.v1.CryptoKeyVersionName;
+import com.google.cloud.kms.v1.Digest;
+import io.github.fungrim.kms.csr.TestSupport;
+import io.github.fungrim.kms.csr.util.JcaDigest;
+import io.github.fungrim.kms.csr.util.StatusCodes;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class HedgingKmsServiceClientTest {
+
+    private final CryptoKeyVersionName keyName = CryptoKeyVersionName.of("project", "location", "ring", "key", "1");
+    private final Digest digest = JcaDigest.SHA256.digestAndWrap(new byte[] { 1, 2, 3 });
+    private final PendingKmsServiceClient delegate = new PendingKmsServiceClient();
+
+    @Test
+    void hedgeWins() throws InterruptedException {
+        try (HedgingKmsServiceClient client = HedgingKmsServiceClient.builder(delegate)
+                .withHedgeDelay(0.95, Duration.ofMillis(20), Duration.ofMillis(1)).build()) {
+            CompletableFuture<byte[]> result = client.asymmetricSignAsync(keyName, digest);
+            Assertions.assertTrue(TestSupport.await(() -> delegate.size() == 2, Duration.ofSeconds(5)));
+            delegate.request(1).complete(new byte[] { 2 });
+            Assertions.assertArrayEquals(new byte[] { 2 }, result.join());
+            Assertions.assertTrue(delegate.request(0).isCancelled());
+            Assertions.assertEquals(1, client.getHedges());
+            Assertions.assertEquals(1, client.getHedgesWon());
+            Assertions.assertEquals(0, client.getHedgesWasted());
+        }
+    }
+
+    @Test
+    void primaryWins() throws InterruptedException {
+        try (HedgingKmsServiceClient client = HedgingKmsServiceClient.builder(delegate)
+                .withHedgeDelay(0.95, Duration.ofMillis(20), Duration.ofMillis(1)).build()) {
+            CompletableFuture<byte[]> result = client.asymmetricSignAsync(keyName, digest);
+            Assertions.assertTrue(TestSupport.await(() -> delegate.size() == 2, Duration.ofSeconds(5)));
+            delegate.request(0).complete(new byte[] { 1 });
+            Assertions.assertArrayEquals(new byte[] { 1 }, result.join());
+            Assertions.assertTrue(delegate.request(1).isCancelled());
+            Assertions.assertEquals(0, client.getHedgesWon());
+            Assertions.assertEquals(1, client.getHedgesWasted());
+        }
+    }
+
+    @Test
+    void budgetBoundsHedges() throws InterruptedException {
+        try (HedgingKmsServiceClient client = HedgingKmsServiceClient.builder(delegate)
+                .withHedgeDelay(0.95, Duration.ofMillis(1), Duration.ofMillis(1)).withBudget(0).build()) {
+            List<CompletableFuture<byte[]>> results = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                results.add(client.asymmetricSignAsync(keyName, digest));
+            }
+            // the budget starts with a burst of 10 and never grows
+            Assertions.assertTrue(TestSupport.await(() -> client.getHedges() == 10, Duration.ofSeconds(5)));
+            Thread.sleep(50);
+            Assertions.assertEquals(10, client.getHedges());
+            Assertions.assertEquals(60, delegate.size());
+            results.forEach(f -> f.cancel(false));
+        }
+    }
+
+    @Test
+    void retriesRetryableFailures() throws InterruptedException {
+        try (HedgingKmsServiceClient client = HedgingKmsServiceClient.builder(delegate)
+                .withHedgeDelay(0.95, Duration.ofMinutes(1), Duration.ofMillis(1))
+                .withRetries(2, Duration.ofMillis(1), Duration.ofMillis(1)).build()) {
+            CompletableFuture<byte[]> result = client.asymmetricSignAsync(keyName, digest);
+            delegate.request(0).completeExceptionally(StatusCodes.toException(Code.UNAVAILABLE, "unavailable"));
+            Assertions.assertTrue(TestSupport.await(() -> delegate.size() == 2, Duration.ofSeconds(5)));
+            delegate.request(1).complete(new byte[] { 1 });
+            Assertions.assertArrayEquals(new byte[] { 1 }, result.join());
+            Assertions.assertEquals(1, client.getRetries());
+            Assertions.assertEquals(0, client.getHedges());
+        }
+    }
+
+    @Test
+    void doesNotRetryOtherFailures() {
+        try (HedgingKmsServiceClient client = HedgingKmsServiceClient.builder(delegate)
+                .withHedgeDelay(0.95, Duration.ofMinutes(1), Duration.ofMillis(1)).build()) {
+            CompletableFuture<byte[]> result = client.asymmetricSignAsync(keyName, digest);
+            delegate.request(0).completeExceptionally(StatusCodes.toException(Code.NOT_FOUND, "not found"));
+            Assertions.assertTrue(result.isCompletedExceptionally());
+            Assertions.assertEquals(0, client.getRetries());
+            Assertions.assertEquals(1, delegate.size());
+        }
+    }
+
+    @Test
+    void cancelStopsCallsAndHedge() {
+        ScheduledThreadPoolExecutor scheduler = scheduler();
+        try (HedgingKmsServiceClient client = HedgingKmsServiceClient.builder(delegate)
+                .withHedgeDelay(0.95, Duration.ofMinutes(1), Duration.ofMillis(1)).withScheduler(scheduler).build()) {
+            CompletableFuture<byte[]> result = client.asymmetricSignAsync(keyName, digest);
+            Assertions.assertEquals(1, scheduler.getQueue().size());
+            result.cancel(false);
+            Assertions.assertTrue(delegate.request(0).isCancelled());
+            Assertions.assertTrue(scheduler.getQueue().isEmpty());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    void cancelStopsPendingRetry() {
+        ScheduledThreadPoolExecutor scheduler = scheduler();
+        try (HedgingKmsServiceClient client = HedgingKmsServiceClient.builder(delegate)
+                .withHedgeDelay(0.95, Duration.ofMinutes(1), Duration.ofMillis(1))
+                .withRetries(2, Duration.ofMinutes(1), Duration.ofMinutes(1)).withScheduler(scheduler).build()) {
+            CompletableFuture<byte[]> result = client.asymmetricSignAsync(keyName, digest);
+            delegate.request(0).completeExceptionally(StatusCodes.toException(Code.UNAVAILABLE, "unavailable"));
+            Assertions.assertEquals(1, client.getRetries());
+            Assertions.assertEquals(1, scheduler.getQueue().size());
+            result.cancel(false);
+            Assertions.assertTrue(scheduler.getQueue().isEmpty());
+            Assertions.assertEquals(1, delegate.size());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    void saturatesRetryBackoff() throws InterruptedException {
+        try (HedgingKmsServiceClient client = HedgingKmsServiceClient.builder(delegate)
+                .withHedgeDelay(0.95, Duration.ofMinutes(1), Duration.ofMillis(1))
+                .withRetries(2, Duration.ofDays(100_000), Duration.ofMillis(1)).build()) {
+            CompletableFuture<byte[]> result = client.asymmetricSignAsync(keyName, digest);
+            for (int i = 0; i < 2; i++) {
+                int size = i + 1;
+                delegate.request(i).completeExceptionally(StatusCodes.toException(Code.UNAVAILABLE, "unavailable"));
+                Assertions.assertTrue(TestSupport.await(() -> delegate.size() > size, Duration.ofSeconds(5)));
+            }
+            delegate.request(2).complete(new byte[] { 1 });
+            Assertions.assertArrayEquals(new byte[] { 1 }, result.join());
+            Assertions.assertEquals(2, client.getRetries());
+        }
+    }
+
+    @Test
+    void failsInsteadOfRetryingWhenClosed() {
+        HedgingKmsServiceClient client = HedgingKmsServiceClient.builder(delegate).build();
+        client.close();
+        CompletableFuture<byte[]> result = client.asymmetricSignAsync(keyName, digest);
+        delegate.request(0).completeExceptionally(StatusCodes.toException(Code.UNAVAILABLE, "unavailable"));
+        Assertions.assertEquals(Code.UNAVAILABLE,
+                StatusCodes.of(Assertions.assertThrows(CompletionException.class, result::join)));
+        Assertions.assertEquals(0, client.getRetries());
+        Assertions.assertEquals(1, delegate.size());
+    }
+
+    private static ScheduledThreadPoolExecutor scheduler() {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.client;
+
+
+import com.google.cloud.kms.v1.CryptoKeyVersion;
+import com.google.cloud.kms.v1.CryptoKeyVersionName;
+import com.google.cloud.kms.v1.Digest;
+import io.github.fungrim.kms.csr.util.CompletableFutures;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A client whose sign calls stay pending until the test completes them, to
+ * control the order in which calls answer. Key lookups are not supported.
+ */
+class PendingKmsServiceClient implements KmsServiceClient {
+
+    private final List<CompletableFuture<byte[]>> requests = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param index
+     *            Index of the sign call, in call order
+     * @return The pending sign call, never null
+     */
+    CompletableFuture<byte[]> request(int index) {
+        return requests.get(index);
+    }
+
+    /**
+     * @return The number of sign calls made
+     */
+    int size() {
+        return requests.size();
+    }
+
+    @Override
+    public CryptoKeyVersion getKey(CryptoKeyVersionName keyName) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public byte[] getPublicKeyPem(CryptoKeyVersionName keyName) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public byte[] asymmetricSign(CryptoKeyVersionName keyName, Digest digest) {
+        return CompletableFutures.join(asymmetricSignAsync(keyName, digest));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> asymmetricSignAsync(CryptoKeyVersionName keyName, Digest digest) {
+        CompletableFuture<byte[]> request = new CompletableFuture<>();
+        requests.add(request);
+        return request;
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.client;
+
+
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.StatusCode.Code;
+import com.google.cloud.kms.v1.CryptoKeyVersion.CryptoKeyVersionAlgorithm;
+import com.google.cloud.kms.v1.CryptoKeyVersionName;
+import com.google.cloud.kms.v1.Digest;
+import io.github.fungrim.kms.csr.emulator.KmsEmulator;
+import io.github.fungrim.kms.csr.metrics.KmsCall;
+import io.github.fungrim.kms.csr.util.JcaDigest;
+import io.github.fungrim.kms.csr.util.StatusCodes;
+import java.time.Duration;
+import java.util.concurrent.CompletionException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class RoutingKmsServiceClientTest {
+
+    private final CryptoKeyVersionName westKey = CryptoKeyVersionName.of("project", "europe-west1", "ring", "key", "1");
+    private final CryptoKeyVersionName northKey = CryptoKeyVersionName.of("project", "europe-north1", "ring", "key",
+            "1");
+    private final Digest digest = JcaDigest.SHA256.digestAndWrap(new byte[] { 1, 2, 3 });
+
+    private KmsEmulator west;
+    private KmsEmulator north;
+
+    @BeforeEach
+    void setup() {
+        west = KmsEmulator.builder().withErrorRate(1.0, Code.UNAVAILABLE).build();
+        north = KmsEmulator.builder().build();
+        west.createKey(westKey, CryptoKeyVersionAlgorithm.EC_SIGN_P256_SHA256);
+        west.replicateKey(westKey, north, northKey);
+    }
+
+    @AfterEach
+    void teardown() {
+        west.close();
+        north.close();
+    }
+
+    @Test
+    void failsOverOnUnavailable() {
+        RoutingKmsServiceClient client = RoutingKmsServiceClient.builder().withRegion("europe-west1", west)
+                .withRegion("europe-north1", north).withProbeRatio(0).build();
+        Assertions.assertNotNull(client.asymmetricSign(westKey, digest));
+        Assertions.assertNotNull(client.asymmetricSignAsync(westKey, digest).join());
+        Assertions.assertEquals(2, north.getCallCount(KmsCall.ASYMMETRIC_SIGN));
+        Assertions.assertTrue(client.getErrorRate("europe-west1") > 0);
+        Assertions.assertTrue(client.isHealthy("europe-north1"));
+    }
+
+    @Test
+    void doesNotFailOverOnOtherErrors() {
+        KmsServiceClient failing = new PendingKmsServiceClient() {
+
+            @Override
+            public byte[] asymmetricSign(CryptoKeyVersionName keyName, Digest digest) {
+                throw new IllegalStateException("Not a gRPC error");
+            }
+        };
+        RoutingKmsServiceClient client = RoutingKmsServiceClient.builder().withRegion("europe-west1", failing)
+                .withRegion("europe-north1", north).withProbeRatio(0).build();
+        Assertions.assertThrows(IllegalStateException.class, () -> client.asymmetricSign(westKey, digest));
+        Assertions.assertEquals(0, north.getCallCount(KmsCall.ASYMMETRIC_SIGN));
+    }
+
+    @Test
+    void avoidsUnhealthyRegions() {
+        RoutingKmsServiceClient client = RoutingKmsServiceClient.builder().withRegion("europe-west1", west)
+                .withRegion("europe-north1", north).withSmoothing(1.0).withHealth(0.5, Duration.ofMinutes(1))
+                .withProbeRatio(0).build();
+        client.asymmetricSign(westKey, digest);
+        Assertions.assertFalse(client.isHealthy("europe-west1"));
+        for (int i = 0; i < 10; i++) {
+            client.asymmetricSign(westKey, digest);
+        }
+        Assertions.assertEquals(1, west.getCallCount(KmsCall.ASYMMETRIC_SIGN));
+        Assertions.assertEquals(11, north.getCallCount(KmsCall.ASYMMETRIC_SIGN));
+        Assertions.assertEquals(0, west.getCallCount(KmsCall.GET_KEY));
+    }
+
+    @Test
+    void failsWhenAllRegionsFail() {
+        RoutingKmsServiceClient client = RoutingKmsServiceClient.builder().withRegion("europe-west1", west)
+                .withRegion("europe-north1", west).withKeyMapping((k, l) -> k).build();
+        ApiException e = Assertions.assertThrows(ApiException.class, () -> client.asymmetricSign(westKey, digest));
+        Assertions.assertEquals(Code.UNAVAILABLE, e.getStatusCode().getCode());
+        Assertions.assertEquals(2, west.getCallCount(KmsCall.ASYMMETRIC_SIGN));
+    }
+
+    @Test
+    void keepsRegionsHealthyOnMissingKeys() {
+        CryptoKeyVersionName missingKey = CryptoKeyVersionName.of("project", "europe-north1", "ring", "key", "2");
+        RoutingKmsServiceClient client = RoutingKmsServiceClient.builder().withRegion("europe-north1", north)
+                .withRegion("europe-west1", west).withSmoothing(1.0).withProbeRatio(0).build();
+        for (int i = 0; i < 2; i++) {
+            ApiException e = Assertions.assertThrows(ApiException.class, () -> client.getKey(missingKey));
+            Assertions.assertEquals(Code.NOT_FOUND, e.getStatusCode().getCode());
+            CompletionException async = Assertions.assertThrows(CompletionException.class,
+                    () -> client.getKeyAsync(missingKey).join());
+            Assertions.assertEquals(Code.NOT_FOUND, StatusCodes.of(async));
+        }
+        Assertions.assertTrue(client.isHealthy("europe-north1"));
+        Assertions.assertTrue(client.getErrorRate("europe-north1") == 0);
+        Assertions.assertEquals(0, west.getCallCount(KmsCall.GET_KEY));
+    }
+}
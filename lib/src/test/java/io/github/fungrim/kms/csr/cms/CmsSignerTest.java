@@ -0,0 +1,87 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.cms;
+
+
+import com.google.cloud.kms.v1.CryptoKeyVersion.CryptoKeyVersionAlgorithm;
+import com.google.cloud.kms.v1.CryptoKeyVersionName;
+import io.github.fungrim.kms.csr.KmsKeyCache;
+import io.github.fungrim.kms.csr.TestSupport;
+import io.github.fungrim.kms.csr.emulator.KmsEmulator;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+class CmsSignerTest {
+
+    private final CryptoKeyVersionName keyName = CryptoKeyVersionName.of("project", "location", "ring", "key", "1");
+    private final byte[] content = "Signed with a KMS key".getBytes(StandardCharsets.UTF_8);
+
+    private KmsEmulator kms;
+    private KmsKeyCache cache;
+
+    @BeforeEach
+    void setup() {
+        kms = KmsEmulator.builder().build();
+        cache = KmsKeyCache.builder(kms).build();
+    }
+
+    @AfterEach
+    void teardown() {
+        kms.close();
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = CryptoKeyVersionAlgorithm.class, names = {"EC_SIGN_P256_SHA256", "EC_SIGN_P384_SHA384",
+            "RSA_SIGN_PKCS1_2048_SHA256", "RSA_SIGN_PSS_2048_SHA256"})
+    void signsVerifiableContent(CryptoKeyVersionAlgorithm algorithm) throws Exception {
+        kms.createKey(keyName, algorithm);
+        X509CertificateHolder certificate = TestSupport.selfSigned(kms, cache.get(keyName), "CN=Test Signer");
+        CmsSigner signer = CmsSigner.builder(kms, cache).withKey(keyName).withCertificate(certificate).build();
+        assertValid(certificate, content, signer.sign(new ByteArrayInputStream(content)).asDer());
+        Path file = Files.createTempFile("cms", ".txt");
+        try {
+            Files.write(file, content);
+            assertValid(certificate, content, signer.sign(file).asDer());
+            assertValid(certificate, content, signer.signAsync(file).join().asDer());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static void assertValid(X509CertificateHolder certificate, byte[] content, byte[] der)
+            throws Exception {
+        CMSSignedData signedData = new CMSSignedData(new CMSProcessableByteArray(content), der);
+        Collection<SignerInformation> signers = signedData.getSignerInfos().getSigners();
+        Assertions.assertEquals(1, signers.size());
+        for (SignerInformation signer : signers) {
+            Assertions.assertTrue(signer.verify(new JcaSimpleSignerInfoVerifierBuilder()
+                    .setProvider(TestSupport.provider()).build(certificate)));
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.crl;
+
+
+import com.google.cloud.kms.v1.CryptoKeyVersion.CryptoKeyVersionAlgorithm;
+import com.google.cloud.kms.v1.CryptoKeyVersionName;
+import io.github.fungrim.kms.csr.KmsKeyCache;
+import io.github.fungrim.kms.csr.TestSupport;
+import io.github.fungrim.kms.csr.emulator.KmsEmulator;
+import io.github.fungrim.kms.csr.metrics.KmsCall;
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.cert.X509CRLEntryHolder;
+import org.bouncycastle.cert.X509CRLHolder;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+class CrlWriterTest {
+
+    private final CryptoKeyVersionName caKey = CryptoKeyVersionName.of("project", "location", "ring", "ca", "1");
+    private final Instant revoked = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+
+    private KmsEmulator kms;
+    private KmsKeyCache cache;
+
+    @BeforeEach
+    void setup() {
+        kms = KmsEmulator.builder().build();
+        cache = KmsKeyCache.builder(kms).build();
+    }
+
+    @AfterEach
+    void teardown() {
+        kms.close();
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = CryptoKeyVersionAlgorithm.class, names = {"EC_SIGN_P256_SHA256", "EC_SIGN_P384_SHA384",
+            "RSA_SIGN_PKCS1_2048_SHA256", "RSA_SIGN_PSS_2048_SHA256"})
+    void writesVerifiableCrl(CryptoKeyVersionAlgorithm algorithm) throws Exception {
+        kms.createKey(caKey, algorithm);
+        X509CertificateHolder caCertificate = TestSupport.selfSigned(kms, cache.get(caKey), "CN=Test CA");
+        CrlWriter writer = CrlWriter.builder(kms, cache).withCaKey(caKey).withCaCertificate(caCertificate).build();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CrlWriter.Result result = writer.write(BigInteger.valueOf(7), entries(1000), out);
+        Assertions.assertEquals(1000, result.getEntries());
+        Assertions.assertEquals(out.size(), result.getLength());
+        X509CRLHolder crl = new X509CRLHolder(out.toByteArray());
+        Assertions.assertTrue(crl.isSignatureValid(TestSupport.verifier(caCertificate)));
+        Assertions.assertEquals(caCertificate.getSubject(), crl.getIssuer());
+        Assertions.assertEquals(1000, crl.getRevokedCertificates().size());
+        X509CRLEntryHolder entry = crl.getRevokedCertificate(BigInteger.valueOf(42));
+        Assertions.assertNotNull(entry);
+        Assertions.assertEquals(revoked, entry.getRevocationDate().toInstant());
+        Assertions.assertNull(crl.getRevokedCertificate(BigInteger.valueOf(1000)));
+    }
+
+    @Test
+    void replacesCrlFile() throws Exception {
+        kms.createKey(caKey, CryptoKeyVersionAlgorithm.EC_SIGN_P256_SHA256);
+        X509CertificateHolder caCertificate = TestSupport.selfSigned(kms, cache.get(caKey), "CN=Test CA");
+        CrlWriter writer = CrlWriter.builder(kms, cache).withCaKey(caKey).withCaCertificate(caCertificate).build();
+        Path dir = Files.createTempDirectory("crl");
+        Path file = dir.resolve("ca.crl");
+        try {
+            writer.write(BigInteger.ONE, entries(10), file);
+            writer.write(BigInteger.valueOf(2), entries(20), file);
+            X509CRLHolder crl = new X509CRLHolder(Files.readAllBytes(file));
+            Assertions.assertTrue(crl.isSignatureValid(TestSupport.verifier(caCertificate)));
+            Assertions.assertEquals(20, crl.getRevokedCertificates().size());
+            try (Stream<Path> files = Files.list(dir)) {
+                Assertions.assertEquals(1, files.count());
+            }
+        } finally {
+            Files.deleteIfExists(file);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    void detectsChangedEntries() throws Exception {
+        kms.createKey(caKey, CryptoKeyVersionAlgorithm.EC_SIGN_P256_SHA256);
+        X509CertificateHolder caCertificate = TestSupport.selfSigned(kms, cache.get(caKey), "CN=Test CA");
+        CrlWriter writer = CrlWriter.builder(kms, cache).withCaKey(caKey).withCaCertificate(caCertificate).build();
+        List<RevokedEntry> entries = entries(10);
+        List<RevokedEntry> reordered = new ArrayList<>(entries);
+        Collections.swap(reordered, 1, 2);
+        // same length, so only the digest of the last pass can tell
+        AtomicInteger iterations = new AtomicInteger();
+        Iterable<RevokedEntry> changing = () -> iterations.incrementAndGet() < 3 ? entries.iterator()
+                : reordered.iterator();
+        long signatures = kms.getCallCount(KmsCall.ASYMMETRIC_SIGN);
+        Assertions.assertThrows(IllegalStateException.class,
+                () -> writer.write(BigInteger.ONE, changing, new ByteArrayOutputStream()));
+        Assertions.assertEquals(3, iterations.get());
+        Assertions.assertEquals(signatures + 1, kms.getCallCount(KmsCall.ASYMMETRIC_SIGN));
+    }
+
+    private List<RevokedEntry> entries(int count) {
+        List<RevokedEntry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            entries.add(RevokedEntry.of(BigInteger.valueOf(i), revoked, CRLReason.keyCompromise));
+        }
+        return entries;
+    }
+}
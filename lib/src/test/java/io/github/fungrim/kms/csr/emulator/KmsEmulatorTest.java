@@ -0,0 +1,87 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.emulator;
+
+
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.StatusCode.Code;
+import com.google.cloud.kms.v1.CryptoKeyVersion;
+import com.google.cloud.kms.v1.CryptoKeyVersion.CryptoKeyVersionAlgorithm;
+import com.google.cloud.kms.v1.CryptoKeyVersionName;
+import io.github.fungrim.kms.csr.TestSupport;
+import io.github.fungrim.kms.csr.metrics.KmsCall;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class KmsEmulatorTest {
+
+    private final CryptoKeyVersionName keyName = CryptoKeyVersionName.of("project", "location", "ring", "key", "1");
+
+    @Test
+    void allowsQuotaBelowOnePerSecond() {
+        try (KmsEmulator kms = KmsEmulator.builder().withProjectQuota(0.1).build()) {
+            kms.createKey(keyName, CryptoKeyVersionAlgorithm.EC_SIGN_P256_SHA256);
+            Assertions.assertEquals(keyName.toString(), kms.getKey(keyName).getName());
+            ApiException e = Assertions.assertThrows(ApiException.class, () -> kms.getKey(keyName));
+            Assertions.assertEquals(Code.RESOURCE_EXHAUSTED, e.getStatusCode().getCode());
+        }
+    }
+
+    @Test
+    void injectsErrors() {
+        try (KmsEmulator kms = KmsEmulator.builder().withErrorRate(1, Code.UNAVAILABLE).build()) {
+            kms.createKey(keyName, CryptoKeyVersionAlgorithm.EC_SIGN_P256_SHA256);
+            ApiException e = Assertions.assertThrows(ApiException.class, () -> kms.getKey(keyName));
+            Assertions.assertEquals(Code.UNAVAILABLE, e.getStatusCode().getCode());
+            Assertions.assertEquals(1, kms.getCallCount(KmsCall.GET_KEY));
+        }
+    }
+
+    @Test
+    void rejectsUnsupportedAlgorithms() {
+        try (KmsEmulator kms = KmsEmulator.builder().build()) {
+            Assertions.assertThrows(IllegalArgumentException.class,
+                    () -> kms.createKey(keyName, CryptoKeyVersionAlgorithm.EC_SIGN_SECP256K1_SHA256));
+        }
+    }
+
+    @Test
+    void stampsCreationTimeFromClock() {
+        TestSupport.ManualClock clock = new TestSupport.ManualClock();
+        try (KmsEmulator kms = KmsEmulator.builder().withClock(clock).build()) {
+            CryptoKeyVersion first = kms.createKey(keyName, CryptoKeyVersionAlgorithm.EC_SIGN_P256_SHA256);
+            clock.advance(Duration.ofMillis(1));
+            CryptoKeyVersion second = kms.createKey(CryptoKeyVersionName.of("project", "location", "ring", "key",
+                    "2"), CryptoKeyVersionAlgorithm.EC_SIGN_P256_SHA256);
+            Assertions.assertEquals(clock.instant().getEpochSecond(), second.getCreateTime().getSeconds());
+            Assertions.assertEquals(first.getCreateTime().getNanos() + 1_000_000, second.getCreateTime().getNanos());
+        }
+    }
+
+    @Test
+    void failsAsyncCallsAfterClose() {
+        KmsEmulator kms = KmsEmulator.builder().withLatency(LatencyModel.fixed(Duration.ofMillis(5))).build();
+        kms.createKey(keyName, CryptoKeyVersionAlgorithm.EC_SIGN_P256_SHA256);
+        kms.close();
+        CompletableFuture<CryptoKeyVersion> future = kms.getKeyAsync(keyName);
+        CompletionException e = Assertions.assertThrows(CompletionException.class, future::join);
+        Assertions.assertTrue(e.getCause() instanceof RejectedExecutionException, "Cause " + e.getCause());
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.issuer;
+
+
+import com.google.cloud.kms.v1.CryptoKeyVersion.CryptoKeyVersionAlgorithm;
+import com.google.cloud.kms.v1.CryptoKeyVersionName;
+import io.github.fungrim.kms.csr.KmsKeyCache;
+import io.github.fungrim.kms.csr.TestSupport;
+import io.github.fungrim.kms.csr.emulator.KmsEmulator;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import javax.security.auth.x500.X500Principal;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.DERUTF8String;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+class CertificateIssuerTest {
+
+    private final CryptoKeyVersionName caKey = CryptoKeyVersionName.of("project", "location", "ring", "ca", "1");
+    private final X500Principal subject = new X500Principal("CN=io.github.fungrim, O=Fungrim Consulting AB, C=SE");
+
+    private KmsEmulator kms;
+    private KmsKeyCache cache;
+    private PublicKey publicKey;
+
+    @BeforeEach
+    void setup() throws Exception {
+        kms = KmsEmulator.builder().build();
+        cache = KmsKeyCache.builder(kms).build();
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(256);
+        publicKey = generator.generateKeyPair().getPublic();
+    }
+
+    @AfterEach
+    void teardown() {
+        kms.close();
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = CryptoKeyVersionAlgorithm.class, names = {"EC_SIGN_P256_SHA256", "EC_SIGN_P384_SHA384",
+            "RSA_SIGN_PKCS1_2048_SHA256", "RSA_SIGN_PSS_2048_SHA256"})
+    void issuesVerifiableCertificates(CryptoKeyVersionAlgorithm algorithm) throws Exception {
+        kms.createKey(caKey, algorithm);
+        X509CertificateHolder caCertificate = TestSupport.selfSigned(kms, cache.get(caKey), "CN=Test CA");
+        CertificateIssuer issuer = CertificateIssuer.builder(kms, cache).withCaKey(caKey)
+                .withCaCertificate(caCertificate).build();
+        CertificateIssuer.Result result = issuer.issue(CertificateIssuer.Request.of(subject, publicKey));
+        assertIssued(caCertificate, new X509CertificateHolder(result.asDer()));
+        List<CompletableFuture<CertificateIssuer.Result>> results = issuer.issueAll(IntStream.range(0, 10)
+                .mapToObj(i -> CertificateIssuer.Request.of(subject, publicKey)).collect(Collectors.toList()));
+        for (CompletableFuture<CertificateIssuer.Result> future : results) {
+            assertIssued(caCertificate, future.join().getCertificate());
+        }
+    }
+
+    @Test
+    void defaultsKeyUsageByCertificateType() throws Exception {
+        kms.createKey(caKey, CryptoKeyVersionAlgorithm.EC_SIGN_P256_SHA256);
+        X509CertificateHolder caCertificate = TestSupport.selfSigned(kms, cache.get(caKey), "CN=Test CA");
+        X509CertificateHolder endEntity = issue(caCertificate, CertificateProfile.defaults());
+        Assertions.assertFalse(BasicConstraints.fromExtensions(endEntity.getExtensions()).isCA());
+        Assertions.assertEquals(new KeyUsage(KeyUsage.digitalSignature),
+                KeyUsage.fromExtensions(endEntity.getExtensions()));
+        X509CertificateHolder ca = issue(caCertificate, CertificateProfile.builder().withCa(0).build());
+        Assertions.assertTrue(BasicConstraints.fromExtensions(ca.getExtensions()).isCA());
+        Assertions.assertEquals(new KeyUsage(KeyUsage.keyCertSign | KeyUsage.cRLSign),
+                KeyUsage.fromExtensions(ca.getExtensions()));
+        X509CertificateHolder signingCa = issue(caCertificate, CertificateProfile.builder()
+                .withKeyUsage(KeyUsage.keyCertSign | KeyUsage.digitalSignature).withCa(-1).build());
+        Assertions.assertEquals(new KeyUsage(KeyUsage.keyCertSign | KeyUsage.digitalSignature),
+                KeyUsage.fromExtensions(signingCa.getExtensions()));
+    }
+
+    @Test
+    void addsOnlyNewExtensions() throws Exception {
+        ASN1ObjectIdentifier oid = new ASN1ObjectIdentifier("1.3.6.1.4.1.55555.1");
+        CertificateProfile.Builder builder = CertificateProfile.builder().withExtension(oid, false,
+                new DERUTF8String("test"));
+        for (ASN1ObjectIdentifier builtIn : new ASN1ObjectIdentifier[] { Extension.basicConstraints,
+                Extension.keyUsage, Extension.extendedKeyUsage, Extension.subjectKeyIdentifier,
+                Extension.authorityKeyIdentifier, oid }) {
+            Assertions.assertThrows(IllegalArgumentException.class,
+                    () -> builder.withExtension(builtIn, false, new DERUTF8String("test")));
+        }
+        kms.createKey(caKey, CryptoKeyVersionAlgorithm.EC_SIGN_P256_SHA256);
+        X509CertificateHolder caCertificate = TestSupport.selfSigned(kms, cache.get(caKey), "CN=Test CA");
+        X509CertificateHolder certificate = issue(caCertificate, builder.build());
+        Assertions.assertEquals(new DERUTF8String("test"), certificate.getExtension(oid).getParsedValue());
+    }
+
+    private void assertIssued(X509CertificateHolder caCertificate, X509CertificateHolder certificate)
+            throws Exception {
+        Assertions.assertEquals(X500Name.getInstance(subject.getEncoded()), certificate.getSubject());
+        Assertions.assertEquals(caCertificate.getSubject(), certificate.getIssuer());
+        Assertions.assertArrayEquals(publicKey.getEncoded(), certificate.getSubjectPublicKeyInfo().getEncoded());
+        Assertions.assertTrue(certificate.isSignatureValid(TestSupport.verifier(caCertificate)));
+    }
+
+    private X509CertificateHolder issue(X509CertificateHolder caCertificate, CertificateProfile profile)
+            throws Exception {
+        CertificateIssuer issuer = CertificateIssuer.builder(kms, cache).withCaKey(caKey)
+                .withCaCertificate(caCertificate).withProfile(profile).build();
+        X509CertificateHolder certificate = issuer.issue(CertificateIssuer.Request.of(subject, publicKey))
+                .getCertificate();
+        assertIssued(caCertificate, certificate);
+        return certificate;
+    }
+}
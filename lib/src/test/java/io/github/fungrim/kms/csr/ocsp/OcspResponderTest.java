@@ -0,0 +1,130 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.ocsp;
+
+
+import com.google.cloud.kms.v1.CryptoKeyVersion.CryptoKeyVersionAlgorithm;
+import com.google.cloud.kms.v1.CryptoKeyVersionName;
+import io.github.fungrim.kms.csr.KmsKeyCache;
+import io.github.fungrim.kms.csr.TestSupport;
+import io.github.fungrim.kms.csr.emulator.KmsEmulator;
+import java.math.BigInteger;
+import java.util.Date;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.ocsp.BasicOCSPResp;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.CertificateStatus;
+import org.bouncycastle.cert.ocsp.OCSPReq;
+import org.bouncycastle.cert.ocsp.OCSPReqBuilder;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.cert.ocsp.RevokedStatus;
+import org.bouncycastle.cert.ocsp.SingleResp;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+class OcspResponderTest {
+
+    private final CryptoKeyVersionName caKey = CryptoKeyVersionName.of("project", "location", "ring", "ca", "1");
+    private final BigInteger good = BigInteger.valueOf(1);
+    private final BigInteger revoked = BigInteger.valueOf(2);
+    private final Date revocationDate = new Date(System.currentTimeMillis() / 1000 * 1000);
+
+    private KmsEmulator kms;
+    private KmsKeyCache cache;
+
+    @BeforeEach
+    void setup() {
+        kms = KmsEmulator.builder().build();
+        cache = KmsKeyCache.builder(kms).build();
+    }
+
+    @AfterEach
+    void teardown() {
+        kms.close();
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = CryptoKeyVersionAlgorithm.class, names = {"EC_SIGN_P256_SHA256", "EC_SIGN_P384_SHA384",
+            "RSA_SIGN_PKCS1_2048_SHA256", "RSA_SIGN_PSS_2048_SHA256"})
+    void signsVerifiableResponses(CryptoKeyVersionAlgorithm algorithm) throws Exception {
+        kms.createKey(caKey, algorithm);
+        X509CertificateHolder caCertificate = TestSupport.selfSigned(kms, cache.get(caKey), "CN=Test CA");
+        try (OcspResponder responder = responder(caCertificate)) {
+            responder.prepare(good).join();
+            responder.prepare(revoked).join();
+            SingleResp goodResponse = assertSigned(caCertificate, responder.respond(request(caCertificate, good)));
+            Assertions.assertNull(goodResponse.getCertStatus());
+            SingleResp revokedResponse = assertSigned(caCertificate,
+                    responder.respond(request(caCertificate, revoked)));
+            RevokedStatus status = (RevokedStatus) revokedResponse.getCertStatus();
+            Assertions.assertEquals(revocationDate, status.getRevocationTime());
+            Assertions.assertEquals(CRLReason.keyCompromise, status.getRevocationReason());
+        }
+    }
+
+    @Test
+    void answersTryLaterUntilSigned() throws Exception {
+        kms.createKey(caKey, CryptoKeyVersionAlgorithm.EC_SIGN_P256_SHA256);
+        X509CertificateHolder caCertificate = TestSupport.selfSigned(kms, cache.get(caKey), "CN=Test CA");
+        try (OcspResponder responder = responder(caCertificate)) {
+            OCSPReq request = request(caCertificate, good);
+            Assertions.assertEquals(OCSPResp.TRY_LATER, responder.respond(request).getStatus());
+            responder.prepare(good).join();
+            assertSigned(caCertificate, responder.respond(request));
+            Assertions.assertEquals(OCSPResp.UNAUTHORIZED,
+                    responder.respond(request(caCertificate, BigInteger.valueOf(3))).getStatus());
+        }
+    }
+
+    private OcspResponder responder(X509CertificateHolder caCertificate) {
+        return OcspResponder.builder(kms, cache).withKey(caKey).withIssuerCertificate(caCertificate)
+                .withStatusSource(new CertificateStatusSource() {
+
+                    @Override
+                    public CertificateStatus getStatus(BigInteger serialNumber) {
+                        return serialNumber.equals(revoked)
+                                ? new RevokedStatus(revocationDate, CRLReason.keyCompromise)
+                                : CertificateStatus.GOOD;
+                    }
+
+                    @Override
+                    public boolean isKnown(BigInteger serialNumber) {
+                        return serialNumber.equals(good) || serialNumber.equals(revoked);
+                    }
+                }).build();
+    }
+
+    private static OCSPReq request(X509CertificateHolder caCertificate, BigInteger serialNumber) throws Exception {
+        CertificateID id = new CertificateID(new JcaDigestCalculatorProviderBuilder().build()
+                .get(CertificateID.HASH_SHA1), caCertificate, serialNumber);
+        return new OCSPReqBuilder().addRequest(id).build();
+    }
+
+    private static SingleResp assertSigned(X509CertificateHolder caCertificate, OCSPResp response)
+            throws Exception {
+        Assertions.assertEquals(OCSPResp.SUCCESSFUL, response.getStatus());
+        BasicOCSPResp basic = (BasicOCSPResp) response.getResponseObject();
+        Assertions.assertTrue(basic.isSignatureValid(TestSupport.verifier(caCertificate)));
+        Assertions.assertEquals(1, basic.getResponses().length);
+        return basic.getResponses()[0];
+    }
+}
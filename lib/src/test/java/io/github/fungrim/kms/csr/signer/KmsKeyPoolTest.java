@@ -0,0 +1,109 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.signer;
+
+
+import com.google.cloud.kms.v1.CryptoKeyVersion.CryptoKeyVersionAlgorithm;
+import com.google.cloud.kms.v1.CryptoKeyVersionName;
+import io.github.fungrim.kms.csr.CsrBuilder;
+import io.github.fungrim.kms.csr.CsrBuilderFactory;
+import io.github.fungrim.kms.csr.emulator.KmsEmulator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.security.auth.x500.X500Principal;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class KmsKeyPoolTest {
+
+    private final CryptoKeyVersionName key1 = CryptoKeyVersionName.of("project", "location", "ring", "key1", "1");
+    private final CryptoKeyVersionName key2 = CryptoKeyVersionName.of("project", "location", "ring", "key2", "1");
+    private final CryptoKeyVersionName key3 = CryptoKeyVersionName.of("project", "other", "ring", "key3", "1");
+    private final X500Principal principal = new X500Principal("CN=test");
+
+    @Test
+    void leasesLeastLoadedKey() {
+        KmsKeyPool pool = KmsKeyPool.of(Arrays.asList(key1, key2, key3));
+        List<KmsKeyPool.Lease> leases = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            leases.add(pool.lease());
+        }
+        for (CryptoKeyVersionName keyName : pool.getKeyNames()) {
+            Assertions.assertEquals(2, pool.getInFlight(keyName));
+        }
+        KmsKeyPool.Lease released = leases.get(4);
+        released.close();
+        Assertions.assertEquals(released.getKeyName(), pool.lease().getKeyName());
+    }
+
+    @Test
+    void closesLeaseOnce() {
+        KmsKeyPool pool = KmsKeyPool.of(Arrays.asList(key1, key2));
+        KmsKeyPool.Lease lease = pool.lease();
+        pool.lease();
+        lease.close();
+        lease.close();
+        Assertions.assertEquals(0, pool.getInFlight(lease.getKeyName()));
+        Assertions.assertEquals(1, pool.getInFlight(key1) + pool.getInFlight(key2));
+        Assertions.assertSame(pool, lease.getPool());
+    }
+
+    @Test
+    void dropsDuplicateKeys() {
+        KmsKeyPool pool = KmsKeyPool.of(Arrays.asList(key1, key2, key1));
+        Assertions.assertEquals(Arrays.asList(key1, key2), pool.getKeyNames());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> KmsKeyPool.of(Collections.emptyList()));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> pool.getInFlight(key3));
+    }
+
+    @Test
+    void spreadsSignaturesOverKeys() {
+        try (KmsEmulator kms = KmsEmulator.builder().build();
+                CsrBuilderFactory factory = CsrBuilderFactory.builder(kms).build()) {
+            KmsKeyPool pool = KmsKeyPool.of(Arrays.asList(key1, key2, key3));
+            pool.getKeyNames().forEach(k -> kms.createKey(k, CryptoKeyVersionAlgorithm.EC_SIGN_P256_SHA256));
+            Map<CryptoKeyVersionName, Integer> signatures = new HashMap<>();
+            for (int i = 0; i < 30; i++) {
+                CsrBuilder builder = factory.builder().forPrincipal(principal).withKeyPool(pool);
+                CsrBuilder.Result result = i % 2 == 0 ? builder.build() : builder.buildAsync().join();
+                signatures.merge(result.getKeyName(), 1, Integer::sum);
+            }
+            for (CryptoKeyVersionName keyName : pool.getKeyNames()) {
+                Assertions.assertEquals(10, (int) signatures.get(keyName));
+                Assertions.assertEquals(0, pool.getInFlight(keyName));
+            }
+        }
+    }
+
+    @Test
+    void rejectsMixedAlgorithms() {
+        try (KmsEmulator kms = KmsEmulator.builder().build();
+                CsrBuilderFactory factory = CsrBuilderFactory.builder(kms).build()) {
+            kms.createKey(key1, CryptoKeyVersionAlgorithm.EC_SIGN_P256_SHA256);
+            kms.createKey(key2, CryptoKeyVersionAlgorithm.EC_SIGN_P384_SHA384);
+            KmsKeyPool pool = KmsKeyPool.of(Arrays.asList(key1, key2));
+            Assertions.assertEquals(key1, factory.builder().forPrincipal(principal).withKeyPool(pool).build()
+                    .getKeyName());
+            Assertions.assertThrows(IllegalStateException.class,
+                    () -> factory.builder().forPrincipal(principal).withKeyPool(pool).build());
+            Assertions.assertEquals(0, pool.getInFlight(key2));
+        }
+    }
+}
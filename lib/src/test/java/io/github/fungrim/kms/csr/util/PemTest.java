@@ -0,0 +1,56 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.util;
+
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import org.bouncycastle.util.io.pem.PemObject;
+import org.bouncycastle.util.io.pem.PemWriter;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class PemTest {
+
+    @Test
+    void encodesLikeBouncyCastle() throws IOException {
+        Random random = new Random(42);
+        // every padding and around the line length
+        for (int length = 0; length < 200; length++) {
+            byte[] der = new byte[length];
+            random.nextBytes(der);
+            Assertions.assertEquals(bouncyCastle("CERTIFICATE REQUEST", der),
+                    new String(Pem.encode("CERTIFICATE REQUEST", der), StandardCharsets.US_ASCII),
+                    "Length " + length);
+        }
+    }
+
+    @Test
+    void rejectsNull() {
+        Assertions.assertThrows(NullPointerException.class, () -> Pem.encode(null, new byte[1]));
+        Assertions.assertThrows(NullPointerException.class, () -> Pem.encode("CERTIFICATE", null));
+    }
+
+    private static String bouncyCastle(String type, byte[] der) throws IOException {
+        StringWriter pem = new StringWriter();
+        try (PemWriter writer = new PemWriter(pem)) {
+            writer.writeObject(new PemObject(type, der));
+        }
+        return pem.toString();
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.metrics.micrometer;
+
+
+import com.google.api.gax.rpc.StatusCode.Code;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheStats;
+import io.github.fungrim.kms.csr.metrics.KmsCall;
+import io.github.fungrim.kms.csr.metrics.KmsMetrics;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * A metrics listener that reports to a Micrometer meter registry. The following
+ * meters are registered, all with the given common tags:
+ * <ul>
+ * <li>{@code kms.client.calls}, a timer tagged with {@code method} and
+ * {@code status}</li>
+ * <li>{@code kms.csr.builds}, a timer tagged with {@code result}</li>
+ * <li>{@code kms.keycache.gets}, a counter tagged with {@code result} hit or
+ * miss</li>
+ * <li>{@code kms.keycache.loads}, a counter tagged with {@code result} success
+ * or failure</li>
+ * <li>{@code kms.keycache.load.duration}, a function timer of all loads</li>
+ * <li>{@code kms.keycache.evictions}, a counter</li>
+ * <li>{@code kms.keycache.hit.ratio}, a gauge</li>
+ * <li>{@code kms.limiter.limit}, {@code kms.limiter.inflight} and
+ * {@code kms.limiter.queue}, gauges tagged with {@code partition}</li>
+ * <li>{@code kms.limiter.rejections}, a counter tagged with {@code partition}
+ * and {@code status}</li>
+ * <li>{@code kms.client.hedges}, a counter tagged with {@code method} and
+ * {@code result} won or wasted</li>
+ * <li>{@code kms.client.retries}, a counter tagged with {@code method} and
+ * {@code status}</li>
+ * </ul>
+ * Key caches are tagged with {@code cache}, a sequence number in registration
+ * order.
+ */
+public class MicrometerKmsMetrics implements KmsMetrics {
+
+    private final Map<KmsCall, Map<Code, Timer>> callTimers = new ConcurrentHashMap<>();
+    private final List<Supplier<CacheStats>> keyCaches = new CopyOnWriteArrayList<>();
+    private final List<IntSupplier> concurrencyLimits = new CopyOnWriteArrayList<>();
+    private final AtomicInteger keyCacheCount = new AtomicInteger();
+    private final MeterRegistry registry;
+    private final Tags tags;
+    private final Timer buildSuccess;
+    private final Timer buildFailure;
+
+    /**
+     * @param registry
+     *            Registry to report to, must not be null
+     */
+    public MicrometerKmsMetrics(MeterRegistry registry) {
+        this(registry, Tags.empty());
+    }
+
+    /**
+     * @param registry
+     *            Registry to report to, must not be null
+     * @param tags
+     *            Common tags for all meters, must not be null
+     */
+    public MicrometerKmsMetrics(MeterRegistry registry, Iterable<Tag> tags) {
+        this.registry = Preconditions.checkNotNull(registry);
+        this.tags = Tags.of(Preconditions.checkNotNull(tags));
+        this.buildSuccess = Timer.builder("kms.csr.builds").tags(this.tags).tag("result", "success")
+                .description("End to end CSR build time").register(registry);
+        this.buildFailure = Timer.builder("kms.csr.builds").tags(this.tags).tag("result", "failure")
+                .description("End to end CSR build time").register(registry);
+    }
+
+    @Override
+    public void recordCall(KmsCall call, long nanos, Code status) {
+        callTimers.computeIfAbsent(call, c -> new ConcurrentHashMap<>())
+                .computeIfAbsent(status, s -> Timer.builder("kms.client.calls").tags(tags)
+                        .tag("method", call.name().toLowerCase(Locale.ROOT)).tag("status", s.name())
+                        .description("KMS service call latency").register(registry))
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void recordBuild(long nanos, boolean success) {
+        (success ? buildSuccess : buildFailure).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void registerKeyCache(Supplier<CacheStats> stats) {
+        // keep a strong reference, micrometer only holds the state object weakly
+        keyCaches.add(stats);
+        Tags cacheTags = tags.and("cache", String.valueOf(keyCacheCount.getAndIncrement()));
+        counter("kms.keycache.gets", cacheTags.and("result", "hit"), stats, CacheStats::hitCount);
+        counter("kms.keycache.gets", cacheTags.and("result", "miss"), stats, CacheStats::missCount);
+        counter("kms.keycache.loads", cacheTags.and("result", "success"), stats, CacheStats::loadSuccessCount);
+        counter("kms.keycache.loads", cacheTags.and("result", "failure"), stats, CacheStats::loadExceptionCount);
+        counter("kms.keycache.evictions", cacheTags, stats, CacheStats::evictionCount);
+        FunctionTimer.builder("kms.keycache.load.duration", stats, s -> s.get().loadCount(),
+                s -> s.get().totalLoadTime(), TimeUnit.NANOSECONDS).tags(cacheTags).register(registry);
+        Gauge.builder("kms.keycache.hit.ratio", stats, s -> s.get().hitRate()).tags(cacheTags).register(registry);
+    }
+
+    @Override
+    public void registerConcurrencyLimit(String partition, IntSupplier limit, IntSupplier inFlight,
+            IntSupplier queueDepth) {
+        Tags limitTags = tags.and("partition", partition);
+        gauge("kms.limiter.limit", limitTags, limit);
+        gauge("kms.limiter.inflight", limitTags, inFlight);
+        gauge("kms.limiter.queue", limitTags, queueDepth);
+    }
+
+    @Override
+    public void recordRejection(String partition, Code status) {
+        Counter.builder("kms.limiter.rejections").tags(tags).tag("partition", partition)
+                .tag("status", status.name()).register(registry).increment();
+    }
+
+    @Override
+    public void recordHedge(KmsCall call, boolean won) {
+        Counter.builder("kms.client.hedges").tags(tags).tag("method", call.name().toLowerCase(Locale.ROOT))
+                .tag("result", won ? "won" : "wasted").register(registry).increment();
+    }
+
+    @Override
+    public void recordRetry(KmsCall call, Code status) {
+        Counter.builder("kms.client.retries").tags(tags).tag("method", call.name().toLowerCase(Locale.ROOT))
+                .tag("status", status.name()).register(registry).increment();
+    }
+
+    private void gauge(String name, Tags tags, IntSupplier value) {
+        // keep a strong reference, micrometer only holds the state object weakly
+        concurrencyLimits.add(value);
+        Gauge.builder(name, value, IntSupplier::getAsInt).tags(tags).register(registry);
+    }
+
+    private void counter(String name, Tags tags, Supplier<CacheStats> stats, ToDoubleFunction<CacheStats> value) {
+        FunctionCounter.builder(name, stats, s -> value.applyAsDouble(s.get())).tags(tags).register(registry);
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright 2022 Lars J. Nilsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.fungrim.kms.csr.metrics.micrometer;
+
+
+import com.google.api.gax.rpc.StatusCode.Code;
+import com.google.cloud.kms.v1.CryptoKeyVersion.CryptoKeyVersionAlgorithm;
+import com.google.cloud.kms.v1.CryptoKeyVersionName;
+import io.github.fungrim.kms.csr.CsrBuilderFactory;
+import io.github.fungrim.kms.csr.emulator.KmsEmulator;
+import io.github.fungrim.kms.csr.metrics.KmsCall;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import javax.security.auth.x500.X500Principal;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class MicrometerKmsMetricsTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final MicrometerKmsMetrics metrics = new MicrometerKmsMetrics(registry, Tags.of("app", "test"));
+
+    @Test
+    void reportsBuilds() {
+        CryptoKeyVersionName keyName = CryptoKeyVersionName.of("project", "location", "ring", "key", "1");
+        try (KmsEmulator kms = KmsEmulator.builder().build()) {
+            kms.createKey(keyName, CryptoKeyVersionAlgorithm.EC_SIGN_P256_SHA256);
+            try (CsrBuilderFactory factory = CsrBuilderFactory.builder(kms).withMetrics(metrics).build()) {
+                for (int i = 0; i < 3; i++) {
+                    factory.builder().forPrincipal(new X500Principal("CN=test")).withKey(keyName).build();
+                }
+            }
+        }
+        Assertions.assertEquals(1, registry.get("kms.client.calls").tags("app", "test", "method", "get_key",
+                "status", "OK").timer().count());
+        Assertions.assertEquals(3, registry.get("kms.client.calls").tags("method", "asymmetric_sign", "status",
+                "OK").timer().count());
+        Assertions.assertEquals(3, registry.get("kms.csr.builds").tags("result", "success").timer().count());
+        Assertions.assertEquals(0, registry.get("kms.csr.builds").tags("result", "failure").timer().count());
+        Assertions.assertTrue(registry.get("kms.keycache.gets").tags("cache", "0", "result", "hit")
+                .functionCounter().count() >= 2);
+    }
+
+    @Test
+    void reportsLimiterAndHedging() {
+        metrics.registerConcurrencyLimit("project", () -> 20, () -> 3, () -> 1);
+        metrics.recordRejection("project", Code.RESOURCE_EXHAUSTED);
+        metrics.recordHedge(KmsCall.ASYMMETRIC_SIGN, true);
+        metrics.recordRetry(KmsCall.ASYMMETRIC_SIGN, Code.UNAVAILABLE);
+        Assertions.assertEquals(20.0, registry.get("kms.limiter.limit").tags("partition", "project").gauge().value());
+        Assertions.assertEquals(3.0, registry.get("kms.limiter.inflight").gauge().value());
+        Assertions.assertEquals(1.0, registry.get("kms.limiter.queue").gauge().value());
+        Assertions.assertEquals(1.0, registry.get("kms.limiter.rejections").tags("status", "RESOURCE_EXHAUSTED")
+                .counter().count());
+        Assertions.assertEquals(1.0, registry.get("kms.client.hedges").tags("method", "asymmetric_sign", "result",
+                "won").counter().count());
+        Assertions.assertEquals(1.0, registry.get("kms.client.retries").tags("status", "UNAVAILABLE").counter()
+                .count());
+    }
+
+    @Test
+    void namesMethodsIndependentOfLocale() {
+        Locale locale = Locale.getDefault();
+        Locale.setDefault(new Locale("tr", "TR"));
+        try {
+            metrics.recordCall(KmsCall.LIST_SIGNING_KEYS, TimeUnit.MILLISECONDS.toNanos(5), Code.OK);
+        } finally {
+            Locale.setDefault(locale);
+        }
+        Assertions.assertEquals(1, registry.get("kms.client.calls").tags("method", "list_signing_keys").timer()
+                .count());
+    }
+}